@@ -1,5 +1,6 @@
 package nz.ac.auckland.aem.contentgraph;
 
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixTrie;
 import org.osgi.service.event.EventHandler;
 
 /**
@@ -17,4 +18,9 @@ public interface JcrChangeListener extends EventHandler {
      */
     public String[] getExcludedPaths();
 
+    /**
+     * @return the include and exclude paths compiled into a trie, to match paths against
+     */
+    public PathPrefixTrie getPathTrie();
+
 }
@@ -1,10 +1,12 @@
 package nz.ac.auckland.aem.contentgraph;
 
+import nz.ac.auckland.aem.contentgraph.synch.ChangeBatch;
+import nz.ac.auckland.aem.contentgraph.synch.ChangeRecord;
 import nz.ac.auckland.aem.contentgraph.synch.CompositeSynchronizer;
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixTrie;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.*;
 import org.apache.sling.api.resource.LoginException;
-import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.event.jobs.JobProcessor;
@@ -15,6 +17,11 @@ import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author Marnix Cook
@@ -45,6 +52,14 @@ import org.slf4j.LoggerFactory;
         label = "Exclude these paths",
         description = "Paths that are excluded from synchronization (eg. /content/usergenerated, /content/catalog)",
         cardinality = Integer.MAX_VALUE
+    ),
+    @Property(
+        name = "observationBatches",
+        label = "Batched JCR observation",
+        description =
+                "Receive changes from a JCR observation listener on the include paths and pass each " +
+                "batch of events to the synchronizers at once, instead of a Sling job per resource event",
+        boolValue = JcrChangeListenerImpl.DEFAULT_OBSERVATION_BATCHES
     )
 })
 public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
@@ -54,6 +69,18 @@ public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
      */
     public static final boolean SUCCESSFUL = true;
 
+    /**
+     * Properties of a resource event with the names of the changed properties
+     */
+    private static final String[] ATTRIBUTE_PROPERTIES = {
+        "resourceAddedAttributes", "resourceChangedAttributes", "resourceRemovedAttributes"
+    };
+
+    /**
+     * Resource events are processed as Sling jobs by default
+     */
+    public static final boolean DEFAULT_OBSERVATION_BATCHES = false;
+
     /**
      * Logger
      */
@@ -86,6 +113,21 @@ public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
      */
     private String[] excludePaths;
 
+    /**
+     * Include and exclude paths compiled for matching
+     */
+    private volatile PathPrefixTrie pathTrie = new PathPrefixTrie(null, null);
+
+    /**
+     * True if changes are received from JCR observation instead of resource events
+     */
+    private boolean observationBatches = DEFAULT_OBSERVATION_BATCHES;
+
+    /**
+     * The registered observation listeners, empty when resource events are processed
+     */
+    private List<ObservationBatchListener> observationListeners = new ArrayList<ObservationBatchListener>();
+
     /**
      * Called when the bundle is either activated
      *
@@ -96,6 +138,10 @@ public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
 
         this.includePaths = (String[]) context.getProperties().get("include");
         this.excludePaths = (String[]) context.getProperties().get("exclude");
+        this.pathTrie = new PathPrefixTrie(this.includePaths, this.excludePaths);
+
+        Boolean cfgObservationBatches = (Boolean) context.getProperties().get("observationBatches");
+        this.observationBatches = cfgObservationBatches == null ? DEFAULT_OBSERVATION_BATCHES : cfgObservationBatches;
 
         if (this.resourceResolver != null) {
             LOG.info("Resource resolver already instantiated, skipping activation code");
@@ -107,6 +153,36 @@ public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
         }
         catch (LoginException lEx) {
             LOG.error("Cannot generate a resource resolver for the JcrChangeListener");
+            return;
+        }
+
+        if (this.observationBatches) {
+            registerObservationListeners();
+        }
+    }
+
+    /**
+     * Register the observation listeners on the session of the resource resolver, when
+     * that fails resource events are processed instead
+     */
+    protected void registerObservationListeners() {
+        Session session = this.resourceResolver.adaptTo(Session.class);
+        if (session == null) {
+            LOG.error("The resource resolver has no JCR session, processing resource events instead");
+            this.observationBatches = false;
+            return;
+        }
+
+        try {
+            this.observationListeners = ObservationBatchListener.register(
+                session, this.includePaths, this.synchronizers, this.resourceResolver, this.pathTrie
+            );
+        }
+        catch (RepositoryException rEx) {
+            LOG.error("Could not register the observation listeners, processing resource events instead", rEx);
+            ObservationBatchListener.unregister(session, this.observationListeners);
+            this.observationListeners = new ArrayList<ObservationBatchListener>();
+            this.observationBatches = false;
         }
     }
 
@@ -115,6 +191,11 @@ public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
      */
     @Deactivate
     public void deactivation() {
+        if (!observationListeners.isEmpty() && resourceResolver != null) {
+            ObservationBatchListener.unregister(resourceResolver.adaptTo(Session.class), observationListeners);
+            observationListeners = new ArrayList<ObservationBatchListener>();
+        }
+
         if (resourceResolver != null && resourceResolver.isLive()) {
             resourceResolver.close();
         }
@@ -128,6 +209,10 @@ public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
      * @param event the event that happened.
      */
     public void handleEvent(Event event) {
+        // the observation listeners already receive the changes
+        if (this.observationBatches) {
+            return;
+        }
         JobUtil.processJob(event, this);
     }
 
@@ -149,8 +234,12 @@ public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
         }
         else if (isMutation(job)) {
             LOG.debug("Node `{}` being mutated", path);
-            Resource pathResource = this.resourceResolver.getResource(path);
-            synchronizers.synch(pathResource);
+
+            ChangeBatch batch = new ChangeBatch();
+            batch.add(new ChangeRecord(path, ChangeRecord.Operation.SYNCH, System.currentTimeMillis(), getAttributeNames(job)));
+
+            // only resolved when a synchronizer needs the resource
+            synchronizers.synchBatch(batch, this.resourceResolver);
         }
 
 
@@ -171,6 +260,27 @@ public class JcrChangeListenerImpl implements JcrChangeListener, JobProcessor {
         return this.includePaths;
     }
 
+    /**
+     * @return the compiled include and exclude paths
+     */
+    public PathPrefixTrie getPathTrie() {
+        return this.pathTrie;
+    }
+
+
+    /**
+     * @return the names of the properties the resource event says were added, changed or removed
+     */
+    protected List<String> getAttributeNames(Event job) {
+        List<String> names = new ArrayList<String>();
+        for (String attributesProperty : ATTRIBUTE_PROPERTIES) {
+            Object attributes = job.getProperty(attributesProperty);
+            if (attributes instanceof String[]) {
+                names.addAll(Arrays.asList((String[]) attributes));
+            }
+        }
+        return names;
+    }
 
     protected boolean isMutation(Event job) {
         return job.getTopic().endsWith("ADDED") || job.getTopic().endsWith("CHANGED");
@@ -0,0 +1,276 @@
+package nz.ac.auckland.aem.contentgraph;
+
+import nz.ac.auckland.aem.contentgraph.synch.ChangeBatch;
+import nz.ac.auckland.aem.contentgraph.synch.ChangeRecord;
+import nz.ac.auckland.aem.contentgraph.synch.CompositeSynchronizer;
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixTrie;
+import nz.ac.auckland.aem.contentgraph.utils.StripedCounter;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Marnix Cook
+ *
+ * Receives repository changes straight from JCR observation, instead of as a Sling job
+ * per resource event. Each iterator of events the repository delivers is turned into one
+ * batch of node changes and passed to the synchronizers in a single call:
+ *
+ * - property events count as a change of their node, with the property's name;
+ * - events outside the include paths or inside the exclude paths are dropped;
+ * - a node that changed more than once in the batch is passed on once.
+ *
+ * The include paths are prefixes, `/content/abi` also matches `/content/abilities`, so
+ * the listener observes the parent of a partial last segment and relies on the path trie
+ * to filter. One listener is registered for each distinct observed path.
+ */
+public class ObservationBatchListener implements EventListener {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ObservationBatchListener.class);
+
+    /**
+     * Node moves are also delivered as a removal and an addition
+     */
+    public static final int EVENT_TYPES =
+        Event.NODE_ADDED | Event.NODE_REMOVED |
+        Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+    private CompositeSynchronizer synchronizers;
+    private ResourceResolver resolver;
+    private PathPrefixTrie pathTrie;
+
+    private final StripedCounter nEvents = new StripedCounter();
+    private final StripedCounter nBatches = new StripedCounter();
+
+    /**
+     * Initialize data-members
+     *
+     * @param synchronizers the synchronizers to pass the batches to
+     * @param resolver resolves resources for synchronizers that need them
+     * @param pathTrie the include and exclude paths
+     */
+    public ObservationBatchListener(CompositeSynchronizer synchronizers, ResourceResolver resolver, PathPrefixTrie pathTrie) {
+        this.synchronizers = synchronizers;
+        this.resolver = resolver;
+        this.pathTrie = pathTrie;
+    }
+
+    /**
+     * Called by the repository with the events of one or more saves
+     */
+    @Override
+    public void onEvent(EventIterator events) {
+        ChangeBatch batch = toBatch(events);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        this.nEvents.add(batch.getEventCount());
+        this.nBatches.increment();
+
+        LOG.debug("Passing on {} changed nodes from {} events", batch.size(), batch.getEventCount());
+
+        try {
+            this.synchronizers.synchBatch(batch, this.resolver);
+        }
+        catch (RuntimeException rEx) {
+            // don't let the observation thread die on a synchronizer
+            LOG.error("Could not pass on a batch of " + batch.size() + " changes, caused by", rEx);
+        }
+    }
+
+    /**
+     * @return the node changes of the tracked events
+     */
+    protected ChangeBatch toBatch(EventIterator events) {
+        ChangeBatch batch = new ChangeBatch();
+
+        // the properties of a node usually follow its own event
+        String lastPath = null;
+        boolean lastTracked = false;
+
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+
+            String path;
+            try {
+                path = event.getPath();
+            }
+            catch (RepositoryException rEx) {
+                LOG.warn("Could not get the path of an event, skipping", rEx);
+                continue;
+            }
+
+            if (path == null) {
+                continue;
+            }
+
+            int type = event.getType();
+            String propertyName = null;
+
+            if (type == Event.PROPERTY_ADDED || type == Event.PROPERTY_CHANGED || type == Event.PROPERTY_REMOVED) {
+                propertyName = path.substring(path.lastIndexOf('/') + 1);
+                path = isChildOf(path, lastPath) ? lastPath : getParentPath(path);
+            }
+
+            if (!path.equals(lastPath)) {
+                lastPath = path;
+                lastTracked = this.pathTrie.isTracked(path);
+            }
+
+            if (!lastTracked) {
+                continue;
+            }
+
+            batch.add(
+                path,
+                type == Event.NODE_REMOVED ? ChangeRecord.Operation.DELETE : ChangeRecord.Operation.SYNCH,
+                getDate(event),
+                propertyName == null ? null : Collections.singleton(propertyName)
+            );
+        }
+
+        return batch;
+    }
+
+    /**
+     * @return the time of <code>event</code>, or now when the repository can't tell
+     */
+    protected static long getDate(Event event) {
+        try {
+            return event.getDate();
+        }
+        catch (RepositoryException rEx) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the paths the listeners should be registered at for <code>includePaths</code>
+     */
+    public static List<String> getObservedPaths(String[] includePaths) {
+        List<String> observed = new ArrayList<String>();
+        if (includePaths == null) {
+            return observed;
+        }
+
+        for (String include : includePaths) {
+            if (include == null || !include.startsWith("/")) {
+                continue;
+            }
+
+            // the parent of a partial segment, or the path without its trailing slash
+            int lastSlash = include.lastIndexOf('/');
+            observed.add(lastSlash <= 0 ? "/" : include.substring(0, lastSlash));
+        }
+
+        // paths below another observed path would deliver their events twice
+        List<String> distinct = new ArrayList<String>();
+        for (String path : observed) {
+            boolean covered = false;
+            for (String other : observed) {
+                if (!other.equals(path) && isAncestorOrSelf(other, path)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered && !distinct.contains(path)) {
+                distinct.add(path);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Register a listener for each observed path of <code>includePaths</code>
+     *
+     * @return the registered listeners
+     */
+    public static List<ObservationBatchListener> register(
+            Session session, String[] includePaths,
+            CompositeSynchronizer synchronizers, ResourceResolver resolver, PathPrefixTrie pathTrie)
+            throws RepositoryException {
+
+        ObservationManager obsMgr = session.getWorkspace().getObservationManager();
+        List<ObservationBatchListener> listeners = new ArrayList<ObservationBatchListener>();
+
+        for (String path : getObservedPaths(includePaths)) {
+            ObservationBatchListener listener = new ObservationBatchListener(synchronizers, resolver, pathTrie);
+            obsMgr.addEventListener(listener, EVENT_TYPES, path, true, null, null, false);
+            listeners.add(listener);
+
+            LOG.info("Observing changes below `{}`", path);
+        }
+
+        return listeners;
+    }
+
+    /**
+     * Remove the listeners, failures are logged
+     */
+    public static void unregister(Session session, List<ObservationBatchListener> listeners) {
+        try {
+            ObservationManager obsMgr = session.getWorkspace().getObservationManager();
+            for (ObservationBatchListener listener : listeners) {
+                obsMgr.removeEventListener(listener);
+                LOG.info("Stopped observing, received {} events in {} batches", listener.getEventCount(), listener.getBatchCount());
+            }
+        }
+        catch (RepositoryException rEx) {
+            LOG.error("Could not remove the observation listeners", rEx);
+        }
+    }
+
+    /**
+     * @return true if <code>ancestor</code> is <code>path</code> or one of its ancestors
+     */
+    protected static boolean isAncestorOrSelf(String ancestor, String path) {
+        if (ancestor.equals("/") || ancestor.equals(path)) {
+            return true;
+        }
+        return path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+
+    /**
+     * @return true if <code>path</code> is a direct child of <code>parent</code>
+     */
+    protected static boolean isChildOf(String path, String parent) {
+        return
+            parent != null &&
+            path.length() > parent.length() + 1 &&
+            path.lastIndexOf('/') == parent.length() &&
+            path.startsWith(parent);
+    }
+
+    protected static String getParentPath(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash <= 0 ? "/" : path.substring(0, lastSlash);
+    }
+
+    /**
+     * @return the number of tracked events received
+     */
+    public long getEventCount() {
+        return nEvents.sum();
+    }
+
+    /**
+     * @return the number of batches passed on
+     */
+    public long getBatchCount() {
+        return nBatches.sum();
+    }
+}
@@ -0,0 +1,23 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import java.util.List;
+
+/**
+ * @author Marnix Cook
+ *
+ * A synchronizer that handles the changes of a burst at once, e.g. to write them in a
+ * single transaction. The composite synchronizer collects changes for a short window and
+ * passes them on with one call; synchronizers that don't implement this interface are
+ * called once per change instead, see {@link SynchronizerAdapter}.
+ */
+public interface BatchSynchronizer extends Synchronizer {
+
+    /**
+     * Nodes are to be synchronized or deleted
+     *
+     * @param records the changes, in order, a path occurs once
+     * @param resources resolves the resources of the changes when they are needed
+     */
+    public void synchBatch(List<ChangeRecord> records, ResourceLookup resources);
+
+}
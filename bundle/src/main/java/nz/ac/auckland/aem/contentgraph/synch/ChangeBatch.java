@@ -0,0 +1,183 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * @author Marnix Cook
+ *
+ * The node changes of one batch of repository events. A path that changed more than once
+ * is only in the batch once, combined into a single {@link ChangeRecord}: the last
+ * operation wins and the changed property names add up. Records are kept in the order of
+ * their last change, so a node that was deleted and then added again below a deleted
+ * ancestor is still passed on after the ancestor.
+ *
+ * Not thread-safe, a batch is built by one thread and read-only once it is passed on.
+ */
+public class ChangeBatch {
+
+    /**
+     * The combined change of a path, updated in place while the batch is built
+     */
+    private static class Change {
+
+        private ChangeRecord.Operation operation;
+        private long timestamp;
+
+        /**
+         * Null when the changed properties aren't known
+         */
+        private Set<String> propertyNames;
+
+        private ChangeRecord toRecord(String path) {
+            return new ChangeRecord(path, operation, timestamp, propertyNames);
+        }
+    }
+
+    /**
+     * The combined change by path
+     */
+    private Map<String, Change> changes = new LinkedHashMap<String, Change>();
+
+    /**
+     * The path that was changed last, it is at the end already
+     */
+    private String lastPath;
+
+    /**
+     * Number of events the batch was built from
+     */
+    private int nEvents;
+
+    /**
+     * Node at path was added or changed
+     */
+    public void synch(String path) {
+        add(ChangeRecord.synch(path));
+    }
+
+    /**
+     * Node at path was deleted
+     */
+    public void delete(String path) {
+        add(ChangeRecord.delete(path));
+    }
+
+    /**
+     * Add a change, combined with an earlier change of the same node
+     */
+    public void add(ChangeRecord record) {
+        add(record.getPath(), record.getOperation(), record.getTimestamp(), record.getPropertyNames());
+    }
+
+    /**
+     * Add a change, combined with an earlier change of the same node, see
+     * {@link ChangeRecord#merge(ChangeRecord)}
+     *
+     * @param path the path of the node
+     * @param operation what happened to it
+     * @param timestamp when it happened, in milliseconds since the epoch
+     * @param propertyNames the names of the changed properties, null or empty when unknown
+     */
+    public void add(String path, ChangeRecord.Operation operation, long timestamp, Collection<String> propertyNames) {
+        boolean unknown = propertyNames == null || propertyNames.isEmpty();
+
+        Change change;
+        if (path.equals(this.lastPath)) {
+            change = this.changes.get(path);
+        } else {
+            // move the path to the end
+            change = this.changes.remove(path);
+            if (change == null) {
+                change = new Change();
+            }
+            this.changes.put(path, change);
+            this.lastPath = path;
+        }
+
+        if (change.operation != ChangeRecord.Operation.SYNCH || operation != ChangeRecord.Operation.SYNCH) {
+            // the later operation wins
+            change.operation = operation;
+            change.timestamp = timestamp;
+            change.propertyNames = unknown ? null : new TreeSet<String>(propertyNames);
+        }
+        else {
+            change.timestamp = Math.max(change.timestamp, timestamp);
+
+            // unknown property names stay unknown
+            if (unknown) {
+                change.propertyNames = null;
+            } else if (change.propertyNames != null) {
+                change.propertyNames.addAll(propertyNames);
+            }
+        }
+
+        ++this.nEvents;
+    }
+
+    /**
+     * Add the changes of <code>other</code>, after the changes of this batch
+     */
+    public void addAll(ChangeBatch other) {
+        for (Map.Entry<String, Change> entry : other.changes.entrySet()) {
+            Change change = entry.getValue();
+            add(entry.getKey(), change.operation, change.timestamp, change.propertyNames);
+        }
+        this.nEvents += other.nEvents - other.changes.size();
+    }
+
+    /**
+     * @return the changes, in order
+     */
+    public List<ChangeRecord> getRecords() {
+        List<ChangeRecord> records = new ArrayList<ChangeRecord>(this.changes.size());
+        for (Map.Entry<String, Change> entry : this.changes.entrySet()) {
+            records.add(entry.getValue().toRecord(entry.getKey()));
+        }
+        return records;
+    }
+
+    /**
+     * @return the change of <code>path</code>, or null
+     */
+    public ChangeRecord getRecord(String path) {
+        Change change = this.changes.get(path);
+        return change == null ? null : change.toRecord(path);
+    }
+
+    /**
+     * @return the paths with <code>operation</code>, in order
+     */
+    public List<String> getPaths(ChangeRecord.Operation operation) {
+        List<String> paths = new ArrayList<String>();
+        for (Map.Entry<String, Change> entry : this.changes.entrySet()) {
+            if (entry.getValue().operation == operation) {
+                paths.add(entry.getKey());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return the number of distinct paths
+     */
+    public int size() {
+        return this.changes.size();
+    }
+
+    public boolean isEmpty() {
+        return this.changes.isEmpty();
+    }
+
+    /**
+     * @return the number of events the batch was built from
+     */
+    public int getEventCount() {
+        return nEvents;
+    }
+}
@@ -0,0 +1,109 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * @author Marnix Cook
+ *
+ * A change to one node: its path, what happened to it, when, and which of its properties
+ * changed. The property names are empty when they aren't known, a synchronizer should then
+ * assume any property may have changed.
+ *
+ * Instances are immutable.
+ */
+public class ChangeRecord {
+
+    /**
+     * What happened to a node
+     */
+    public enum Operation {
+        SYNCH,
+        DELETE
+    }
+
+    private final String path;
+    private final Operation operation;
+    private final long timestamp;
+    private final Set<String> propertyNames;
+
+    /**
+     * Initialize data-members
+     *
+     * @param path the path of the node
+     * @param operation what happened to it
+     * @param timestamp when it happened, in milliseconds since the epoch
+     * @param propertyNames the names of the changed properties, may be null when unknown
+     */
+    public ChangeRecord(String path, Operation operation, long timestamp, Collection<String> propertyNames) {
+        this.path = path;
+        this.operation = operation;
+        this.timestamp = timestamp;
+        this.propertyNames =
+            propertyNames == null || propertyNames.isEmpty() ?
+                Collections.<String>emptySet() :
+                Collections.unmodifiableSet(new TreeSet<String>(propertyNames));
+    }
+
+    /**
+     * @return a node that was added or changed now
+     */
+    public static ChangeRecord synch(String path) {
+        return new ChangeRecord(path, Operation.SYNCH, System.currentTimeMillis(), null);
+    }
+
+    /**
+     * @return a node that was deleted now
+     */
+    public static ChangeRecord delete(String path) {
+        return new ChangeRecord(path, Operation.DELETE, System.currentTimeMillis(), null);
+    }
+
+    /**
+     * Combine this change with a later change of the same node: the later operation wins,
+     * the property names of two synchronizations are combined.
+     *
+     * @param later the later change
+     * @return the combined change
+     */
+    public ChangeRecord merge(ChangeRecord later) {
+        if (later.operation != Operation.SYNCH || this.operation != Operation.SYNCH) {
+            return later;
+        }
+
+        // unknown property names stay unknown
+        if (this.propertyNames.isEmpty() || later.propertyNames.isEmpty()) {
+            return new ChangeRecord(this.path, Operation.SYNCH, Math.max(this.timestamp, later.timestamp), null);
+        }
+
+        Set<String> names = new TreeSet<String>(this.propertyNames);
+        names.addAll(later.propertyNames);
+        return new ChangeRecord(this.path, Operation.SYNCH, Math.max(this.timestamp, later.timestamp), names);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the names of the changed properties, empty when unknown
+     */
+    public Set<String> getPropertyNames() {
+        return propertyNames;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + path + (propertyNames.isEmpty() ? "" : " " + propertyNames);
+    }
+}
@@ -1,6 +1,7 @@
 package nz.ac.auckland.aem.contentgraph.synch;
 
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 
 /**
  * @author Marnix Cook
@@ -14,6 +15,23 @@ public interface CompositeSynchronizer {
      */
     public void synch(Resource resource);
 
+    /**
+     * Node at path is to be synchronized. Path synchronizers get the path as is, the
+     * resource is only resolved when a synchronizer that needs it is registered.
+     *
+     * @param path
+     * @param resolver resolves the resource for synchronizers that need it
+     */
+    public void synchPath(String path, ResourceResolver resolver);
+
+    /**
+     * The nodes of a batch of repository events are to be synchronized or deleted
+     *
+     * @param batch the changes, in order
+     * @param resolver resolves the resources for synchronizers that need them
+     */
+    public void synchBatch(ChangeBatch batch, ResourceResolver resolver);
+
     /**
      * Path is to be deleted
      *
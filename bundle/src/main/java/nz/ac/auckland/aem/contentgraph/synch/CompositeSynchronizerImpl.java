@@ -2,20 +2,58 @@ package nz.ac.auckland.aem.contentgraph.synch;
 
 import org.apache.felix.scr.annotations.*;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jcr.Node;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Marnix Cook
  *
- * The composite class implementation
+ * The composite class implementation. Changes are collected for a short window and then
+ * passed to every synchronizer as one batch; synchronizers that don't take batches get
+ * the changes one by one through a {@link SynchronizerAdapter}. Before activation, or with
+ * a window of 0, every change is passed on right away.
+ *
+ * Each synchronizer gets its batches from a {@link SynchronizerDispatcher}, with a queue and
+ * a thread of its own, so a slow synchronizer only falls behind itself. A synchronizer with
+ * a {@link Subscription} only gets the changes that match it, see {@link SubscriptionIndex}.
  */
 @Service
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
+@Properties({
+    @Property(
+        name = "windowMillis",
+        label = "Batch window in milliseconds",
+        description =
+                "Changes are collected for this number of milliseconds and then passed to the " +
+                "synchronizers as one batch, 0 passes every change on right away",
+        intValue = CompositeSynchronizerImpl.DEFAULT_WINDOW_MILLIS
+    ),
+    @Property(
+        name = "maxBatchSize",
+        label = "Maximum batch size",
+        description = "A batch is passed on before its window ends once it holds this number of nodes",
+        intValue = CompositeSynchronizerImpl.DEFAULT_MAX_BATCH_SIZE
+    ),
+    @Property(
+        name = "sinkQueueCapacity",
+        label = "Batches waiting per synchronizer",
+        description =
+                "The number of batches that may wait for each synchronizer, further batches for " +
+                "a synchronizer that falls behind are dropped for that synchronizer and logged",
+        intValue = CompositeSynchronizerImpl.DEFAULT_SINK_QUEUE_CAPACITY
+    )
+})
 public class CompositeSynchronizerImpl implements CompositeSynchronizer {
 
     /**
@@ -24,7 +62,15 @@ public class CompositeSynchronizerImpl implements CompositeSynchronizer {
     private static final Logger LOG = LoggerFactory.getLogger(CompositeSynchronizerImpl.class);
 
     /**
-     * Get a list of synchronizers
+     * Batching defaults
+     */
+    public static final int DEFAULT_WINDOW_MILLIS = 200;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    public static final int DEFAULT_SINK_QUEUE_CAPACITY = 1000;
+
+    /**
+     * A dispatcher for each synchronizer, bind and unbind replace the list so the
+     * deliveries never see it change
      */
     @Reference(
         referenceInterface = Synchronizer.class,
@@ -33,7 +79,82 @@ public class CompositeSynchronizerImpl implements CompositeSynchronizer {
         bind = "addSynchronizer",
         unbind = "removeSynchronizer"
     )
-    private List<Synchronizer> synchronizers = new ArrayList<Synchronizer>();
+    private final List<SynchronizerDispatcher> dispatchers = new CopyOnWriteArrayList<SynchronizerDispatcher>();
+
+    /**
+     * The subscriptions of the synchronizers, rebuilt on bind and unbind
+     */
+    private volatile SubscriptionIndex subscriptions = new SubscriptionIndex(this.dispatchers);
+
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int sinkQueueCapacity = DEFAULT_SINK_QUEUE_CAPACITY;
+
+    /**
+     * Delivers the batches, null when changes are passed on right away
+     */
+    private ScheduledExecutorService scheduler;
+
+    //
+    //  The batch that is being collected, guarded by pendingLock
+    //
+    private final Object pendingLock = new Object();
+    private ChangeBatch pending;
+    private ResourceLookup pendingResources;
+    private ScheduledFuture<?> pendingFlush;
+
+    /**
+     * Called when the configuration changed
+     *
+     * @param context is the context to read the configuration from
+     */
+    @Activate @Modified
+    public void configChanged(ComponentContext context) {
+        Integer cfgWindowMillis = (Integer) context.getProperties().get("windowMillis");
+        Integer cfgMaxBatchSize = (Integer) context.getProperties().get("maxBatchSize");
+        Integer cfgSinkQueueCapacity = (Integer) context.getProperties().get("sinkQueueCapacity");
+
+        // pass on what was collected with the previous configuration
+        stopScheduler();
+
+        this.windowMillis = cfgWindowMillis == null ? DEFAULT_WINDOW_MILLIS : Math.max(0, cfgWindowMillis);
+        this.maxBatchSize = cfgMaxBatchSize == null ? DEFAULT_MAX_BATCH_SIZE : Math.max(1, cfgMaxBatchSize);
+
+        int capacity = cfgSinkQueueCapacity == null ? DEFAULT_SINK_QUEUE_CAPACITY : Math.max(1, cfgSinkQueueCapacity);
+        synchronized (this.dispatchers) {
+            if (capacity != this.sinkQueueCapacity) {
+                this.sinkQueueCapacity = capacity;
+                for (SynchronizerDispatcher dispatcher : this.dispatchers) {
+                    dispatcher.resize(capacity);
+                }
+            }
+        }
+
+        if (this.windowMillis > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Composite synchronizer batches");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Pass on the collected changes and wait for the synchronizers to handle them
+     */
+    @Deactivate
+    public void deactivate() {
+        stopScheduler();
+
+        for (SynchronizerDispatcher dispatcher : this.dispatchers) {
+            dispatcher.stop();
+            LOG.info("Stopped dispatching to {}", dispatcher);
+        }
+    }
 
     // ----------------------------------------------------------------------
     //      Interface implementation
@@ -46,29 +167,222 @@ public class CompositeSynchronizerImpl implements CompositeSynchronizer {
      */
     @Override
     public void synch(Resource resource) {
-        for (Synchronizer synch : this.synchronizers) {
-            synch.synch(resource);
+        if (resource == null) {
+            return;
         }
+
+        ChangeBatch batch = new ChangeBatch();
+        batch.synch(resource.getPath());
+        enqueue(batch, resource.getResourceResolver(), resource);
+    }
+
+    /**
+     * Pass the path on, the resource is only resolved for synchronizers that need it
+     *
+     * @param path is the path of the node to synchronize
+     * @param resolver resolves the resource
+     */
+    @Override
+    public void synchPath(String path, ResourceResolver resolver) {
+        ChangeBatch batch = new ChangeBatch();
+        batch.synch(path);
+        enqueue(batch, resolver, null);
+    }
+
+    /**
+     * Add the changes to the batch that is being collected
+     *
+     * @param batch the changes
+     * @param resolver resolves the resources
+     */
+    @Override
+    public void synchBatch(ChangeBatch batch, ResourceResolver resolver) {
+        enqueue(batch, resolver, null);
     }
 
     @Override
     public void delete(String path) {
-        for (Synchronizer synch : this.synchronizers) {
-            synch.delete(path);
+        ChangeBatch batch = new ChangeBatch();
+        batch.delete(path);
+        enqueue(batch, null, null);
+    }
+
+    /**
+     * Add <code>batch</code> to the batch that is being collected, which is passed on when
+     * the window ends or when it is full.
+     *
+     * @param batch the changes
+     * @param resolver resolves the resources of the changes, may be null
+     * @param resource a resource of the changes that was resolved already, may be null
+     */
+    protected void enqueue(ChangeBatch batch, ResourceResolver resolver, Resource resource) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        ResourceLookup resources;
+        synchronized (this.pendingLock) {
+            if (this.scheduler != null) {
+                if (this.pending == null) {
+                    this.pending = new ChangeBatch();
+                    this.pendingResources = new ResourceLookup(resolver);
+                    this.pendingFlush = this.scheduler.schedule(
+                        new Runnable() {
+
+                            @Override
+                            public void run() {
+                                flush();
+                            }
+                        },
+                        this.windowMillis, TimeUnit.MILLISECONDS
+                    );
+                }
+
+                // a batch that started with deletions has nothing to resolve with yet
+                if (this.pendingResources.getResolver() == null && resolver != null) {
+                    this.pendingResources = new ResourceLookup(resolver);
+                }
+
+                this.pending.addAll(batch);
+                this.pendingResources.add(resource);
+
+                if (this.pending.size() >= this.maxBatchSize) {
+                    this.pendingFlush.cancel(false);
+
+                    final ChangeBatch full = this.pending;
+                    final ResourceLookup fullResources = this.pendingResources;
+                    this.pending = null;
+
+                    this.scheduler.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            deliver(full, fullResources);
+                        }
+                    });
+                }
+                return;
+            }
+
+            // changes collected before the window was switched off go first
+            if (this.pending != null) {
+                this.pending.addAll(batch);
+                batch = this.pending;
+                resources =
+                    this.pendingResources.getResolver() == null && resolver != null ?
+                        new ResourceLookup(resolver) : this.pendingResources;
+                this.pending = null;
+            } else {
+                resources = new ResourceLookup(resolver);
+            }
+            resources.add(resource);
+        }
+
+        deliver(batch, resources);
+    }
+
+    /**
+     * Pass on the batch that is being collected
+     */
+    protected void flush() {
+        ChangeBatch batch;
+        ResourceLookup resources;
+
+        synchronized (this.pendingLock) {
+            batch = this.pending;
+            resources = this.pendingResources;
+            this.pending = null;
+        }
+
+        if (batch != null) {
+            deliver(batch, resources);
         }
     }
 
+    /**
+     * Queue the changes of <code>batch</code> for the synchronizers that want them
+     */
+    protected void deliver(ChangeBatch batch, ResourceLookup resources) {
+        List<ChangeRecord> records = batch.getRecords();
+        SubscriptionIndex index = this.subscriptions;
+
+        LOG.debug("Passing on {} changed nodes from {} events", records.size(), batch.getEventCount());
+
+        if (!index.isFiltering()) {
+            for (SynchronizerDispatcher dispatcher : index.getDispatchers()) {
+                dispatcher.dispatch(records, resources);
+            }
+            return;
+        }
+
+        List<List<ChangeRecord>> routed = index.route(records);
+        for (int idx = 0; idx < routed.size(); ++idx) {
+            if (!routed.get(idx).isEmpty()) {
+                index.getDispatchers().get(idx).dispatch(routed.get(idx), resources);
+            }
+        }
+    }
+
+    /**
+     * Deliver the batch that is being collected and wait for the delivery thread to stop
+     */
+    protected void stopScheduler() {
+        ScheduledExecutorService stopping;
+
+        synchronized (this.pendingLock) {
+            stopping = this.scheduler;
+            this.scheduler = null;
+
+            if (stopping != null && this.pending != null) {
+                this.pendingFlush.cancel(false);
+            }
+        }
+
+        if (stopping == null) {
+            return;
+        }
+
+        // batches that were handed to the thread go first
+        stopping.shutdown();
+        try {
+            if (!stopping.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warn("Batches were still being delivered after 30 seconds");
+            }
+        }
+        catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+    }
+
     // ----------------------------------------------------------------------
     //      Reference implementation
     // ----------------------------------------------------------------------
 
     /**
-     * Remove the synchronizer
+     * Remove the synchronizer, after it handled the batches that are waiting for it
      *
      * @param synch
      */
     public void removeSynchronizer(Synchronizer synch) {
-        this.synchronizers.remove(synch);
+        SynchronizerDispatcher removed = null;
+
+        synchronized (this.dispatchers) {
+            for (SynchronizerDispatcher dispatcher : this.dispatchers) {
+                if (dispatcher.getSynchronizer() == synch) {
+                    removed = dispatcher;
+                    this.dispatchers.remove(dispatcher);
+                    this.subscriptions = new SubscriptionIndex(this.dispatchers);
+                    break;
+                }
+            }
+        }
+
+        if (removed != null) {
+            removed.stop();
+            LOG.info("Stopped dispatching to {}", removed);
+        }
     }
 
 
@@ -82,7 +396,17 @@ public class CompositeSynchronizerImpl implements CompositeSynchronizer {
             LOG.info("Not going to add self to composite");
             return;
         }
-        this.synchronizers.add(synch);
+        synchronized (this.dispatchers) {
+            this.dispatchers.add(new SynchronizerDispatcher(synch, this.sinkQueueCapacity));
+            this.subscriptions = new SubscriptionIndex(this.dispatchers);
+        }
+    }
+
+    /**
+     * @return the dispatchers of the synchronizers, with their queue depth, latency and drops
+     */
+    public List<SynchronizerDispatcher> getDispatchers() {
+        return Collections.unmodifiableList(this.dispatchers);
     }
 
 }
@@ -0,0 +1,27 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+/**
+ * @author Marnix Cook
+ *
+ * A synchronizer that only needs the path of a changed node. Changes are passed to it
+ * without reading the resource from the repository; synchronizers that don't implement
+ * this interface get the resource, which is resolved once for all of them.
+ */
+public interface PathSynchronizer extends Synchronizer {
+
+    /**
+     * Node at path is to be synchronized
+     *
+     * @param path
+     */
+    public void synchPath(String path);
+
+    /**
+     * Not all changes underneath path were passed on, e.g. because they were dropped while
+     * the synchronizer fell behind. The whole subtree is to be synchronized.
+     *
+     * @param path the root of the subtree
+     */
+    public void resynchSubtree(String path);
+
+}
@@ -0,0 +1,69 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author Marnix Cook
+ *
+ * Resolves the resources of a batch of changes on demand. Synchronizers that only need
+ * paths never cause a repository read, the ones that need resources share each resource
+ * that was resolved, also when they run on different threads. Synchronizers on different
+ * threads take turns using the resolver.
+ */
+public class ResourceLookup {
+
+    /**
+     * Marks a path that did not resolve, the map can't hold null
+     */
+    private static final Object MISSING = new Object();
+
+    private ResourceResolver resolver;
+    private ConcurrentMap<String, Object> resolved = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Initialize data-members
+     *
+     * @param resolver the resolver to resolve with, may be null when nothing can be resolved
+     */
+    public ResourceLookup(ResourceResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return the resource at <code>path</code>, or null when it doesn't exist
+     */
+    public Resource get(String path) {
+        Object resource = this.resolved.get(path);
+        if (resource == null && this.resolver != null) {
+            // a resolver is not thread-safe, and each path is resolved once
+            synchronized (this.resolver) {
+                resource = this.resolved.get(path);
+                if (resource == null) {
+                    resource = this.resolver.getResource(path);
+                    this.resolved.put(path, resource == null ? MISSING : resource);
+                }
+            }
+        }
+        return resource == null || resource == MISSING ? null : (Resource) resource;
+    }
+
+    /**
+     * Remember a resource that was resolved already, null is ignored
+     */
+    public void add(Resource resource) {
+        if (resource != null) {
+            this.resolved.put(resource.getPath(), resource);
+        }
+    }
+
+    /**
+     * @return the resolver, may be null
+     */
+    public ResourceResolver getResolver() {
+        return resolver;
+    }
+}
@@ -0,0 +1,17 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+/**
+ * @author Marnix Cook
+ *
+ * A synchronizer that is only interested in part of the changes, e.g. only in `/etc/tags`.
+ * The composite synchronizer reads the subscription once, when the synchronizer is bound,
+ * and passes on only the changes that match it. Other synchronizers receive every change.
+ */
+public interface SubscribingSynchronizer extends Synchronizer {
+
+    /**
+     * @return the changes to receive
+     */
+    public Subscription getSubscription();
+
+}
@@ -0,0 +1,52 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+/**
+ * @author Marnix Cook
+ *
+ * The changes a synchronizer wants to receive: the nodes below its include paths and not
+ * below its exclude paths, and of those only changes to the listed properties. The paths
+ * are prefixes, like the include and exclude paths of the change listener. Deletions and
+ * changes of which the properties aren't known are passed on whatever the property names.
+ *
+ * Instances are immutable.
+ */
+public class Subscription {
+
+    private final String[] includePaths;
+    private final String[] excludePaths;
+    private final String[] propertyNames;
+
+    /**
+     * Initialize data-members
+     *
+     * @param includePaths the prefixes of the paths to receive, null for all paths
+     * @param excludePaths the prefixes of the paths not to receive, may be null
+     * @param propertyNames the properties to receive changes of, null for all properties
+     */
+    public Subscription(String[] includePaths, String[] excludePaths, String[] propertyNames) {
+        this.includePaths = includePaths == null ? null : includePaths.clone();
+        this.excludePaths = excludePaths == null ? new String[0] : excludePaths.clone();
+        this.propertyNames = propertyNames == null ? null : propertyNames.clone();
+    }
+
+    /**
+     * @return the prefixes of the paths to receive, null for all paths
+     */
+    public String[] getIncludePaths() {
+        return includePaths == null ? null : includePaths.clone();
+    }
+
+    /**
+     * @return the prefixes of the paths not to receive
+     */
+    public String[] getExcludePaths() {
+        return excludePaths.clone();
+    }
+
+    /**
+     * @return the properties to receive changes of, null for all properties
+     */
+    public String[] getPropertyNames() {
+        return propertyNames == null ? null : propertyNames.clone();
+    }
+}
@@ -0,0 +1,155 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixIndex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Marnix Cook
+ *
+ * The subscriptions of all synchronizers in one index, to find the synchronizers a change
+ * goes to with a single descent of a path trie instead of matching every subscription.
+ * Synchronizers are numbered by their position: include path prefixes are added to the
+ * trie with the number of their synchronizer, exclude path prefixes with that number plus
+ * the number of synchronizers. The property names map to the synchronizers that want them.
+ *
+ * Built for each change of the bound synchronizers, instances are immutable.
+ */
+public class SubscriptionIndex {
+
+    private final List<SynchronizerDispatcher> dispatchers;
+    private final int nDispatchers;
+    private final PathPrefixIndex paths = new PathPrefixIndex();
+
+    /**
+     * Synchronizers that receive changes to any property
+     */
+    private final BitSet allProperties = new BitSet();
+
+    /**
+     * Synchronizers by the property they want to receive changes of
+     */
+    private final Map<String, BitSet> byProperty = new HashMap<String, BitSet>();
+
+    /**
+     * False when no synchronizer has a subscription, every change goes to all of them
+     */
+    private boolean filtering;
+
+    /**
+     * Index the subscriptions of the synchronizers of <code>dispatchers</code>
+     */
+    public SubscriptionIndex(List<SynchronizerDispatcher> dispatchers) {
+        this.dispatchers = Collections.unmodifiableList(new ArrayList<SynchronizerDispatcher>(dispatchers));
+        this.nDispatchers = this.dispatchers.size();
+
+        for (int idx = 0; idx < this.nDispatchers; ++idx) {
+            Synchronizer synch = this.dispatchers.get(idx).getSynchronizer();
+            Subscription subscription =
+                synch instanceof SubscribingSynchronizer ?
+                    ((SubscribingSynchronizer) synch).getSubscription() : null;
+
+            if (subscription == null) {
+                this.paths.add("", idx);
+                this.allProperties.set(idx);
+                continue;
+            }
+
+            this.filtering = true;
+            addPaths(subscription.getIncludePaths(), idx);
+            addPaths(subscription.getExcludePaths(), this.nDispatchers + idx);
+
+            String[] propertyNames = subscription.getPropertyNames();
+            if (propertyNames == null) {
+                this.allProperties.set(idx);
+            } else {
+                for (String propertyName : propertyNames) {
+                    BitSet interested = this.byProperty.get(propertyName);
+                    if (interested == null) {
+                        interested = new BitSet();
+                        this.byProperty.put(propertyName, interested);
+                    }
+                    interested.set(idx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add <code>prefixes</code>, null stands for all paths
+     */
+    protected void addPaths(String[] prefixes, int id) {
+        if (prefixes == null) {
+            this.paths.add("", id);
+            return;
+        }
+        for (String prefix : prefixes) {
+            if (prefix != null) {
+                this.paths.add(prefix, id);
+            }
+        }
+    }
+
+    /**
+     * @return the positions of the synchronizers that want <code>record</code>
+     */
+    public BitSet match(ChangeRecord record) {
+        BitSet ids = this.paths.match(record.getPath());
+
+        BitSet receivers = ids.get(0, this.nDispatchers);
+        receivers.andNot(ids.get(this.nDispatchers, 2 * this.nDispatchers));
+
+        // deletions and changes to unknown properties go to everyone on the path
+        if (record.getOperation() == ChangeRecord.Operation.SYNCH && !record.getPropertyNames().isEmpty()) {
+            BitSet interested = (BitSet) this.allProperties.clone();
+            for (String propertyName : record.getPropertyNames()) {
+                BitSet propertyInterested = this.byProperty.get(propertyName);
+                if (propertyInterested != null) {
+                    interested.or(propertyInterested);
+                }
+            }
+            receivers.and(interested);
+        }
+
+        return receivers;
+    }
+
+    /**
+     * Split <code>records</code> up by synchronizer
+     *
+     * @return for each dispatcher, by position, the records its synchronizer wants, in order
+     */
+    public List<List<ChangeRecord>> route(List<ChangeRecord> records) {
+        List<List<ChangeRecord>> routed = new ArrayList<List<ChangeRecord>>(this.nDispatchers);
+        for (int idx = 0; idx < this.nDispatchers; ++idx) {
+            routed.add(new ArrayList<ChangeRecord>());
+        }
+
+        for (ChangeRecord record : records) {
+            BitSet receivers = match(record);
+            for (int idx = receivers.nextSetBit(0); idx >= 0; idx = receivers.nextSetBit(idx + 1)) {
+                routed.get(idx).add(record);
+            }
+        }
+        return routed;
+    }
+
+    /**
+     * @return the dispatchers, the positions are the ones used by {@link #route(List)}
+     */
+    public List<SynchronizerDispatcher> getDispatchers() {
+        return dispatchers;
+    }
+
+    /**
+     * @return false when every change goes to every synchronizer
+     */
+    public boolean isFiltering() {
+        return filtering;
+    }
+}
@@ -0,0 +1,68 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import org.apache.sling.api.resource.Resource;
+
+import java.util.List;
+
+/**
+ * @author Marnix Cook
+ *
+ * Lets a synchronizer that handles one path at a time take batches: each change is passed
+ * to {@link Synchronizer#delete(String)}, {@link PathSynchronizer#synchPath(String)} or
+ * {@link Synchronizer#synch(Resource)} in order.
+ */
+public class SynchronizerAdapter implements BatchSynchronizer {
+
+    private final Synchronizer synchronizer;
+
+    /**
+     * Initialize data-members
+     *
+     * @param synchronizer the synchronizer to pass the changes to
+     */
+    public SynchronizerAdapter(Synchronizer synchronizer) {
+        this.synchronizer = synchronizer;
+    }
+
+    /**
+     * @return <code>synchronizer</code> itself when it takes batches, otherwise an adapter
+     */
+    public static BatchSynchronizer adapt(Synchronizer synchronizer) {
+        if (synchronizer instanceof BatchSynchronizer) {
+            return (BatchSynchronizer) synchronizer;
+        }
+        return new SynchronizerAdapter(synchronizer);
+    }
+
+    @Override
+    public void synchBatch(List<ChangeRecord> records, ResourceLookup resources) {
+        for (ChangeRecord record : records) {
+            if (record.getOperation() == ChangeRecord.Operation.DELETE) {
+                this.synchronizer.delete(record.getPath());
+            }
+            else if (this.synchronizer instanceof PathSynchronizer) {
+                ((PathSynchronizer) this.synchronizer).synchPath(record.getPath());
+            }
+            else {
+                this.synchronizer.synch(resources.get(record.getPath()));
+            }
+        }
+    }
+
+    @Override
+    public void synch(Resource resource) {
+        this.synchronizer.synch(resource);
+    }
+
+    @Override
+    public void delete(String path) {
+        this.synchronizer.delete(path);
+    }
+
+    /**
+     * @return the adapted synchronizer
+     */
+    public Synchronizer getSynchronizer() {
+        return synchronizer;
+    }
+}
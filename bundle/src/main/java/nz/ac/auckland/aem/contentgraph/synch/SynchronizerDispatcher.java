@@ -0,0 +1,320 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import nz.ac.auckland.aem.contentgraph.utils.LatencyHistogram;
+import nz.ac.auckland.aem.contentgraph.utils.StripedCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Marnix Cook
+ *
+ * Passes batches to one synchronizer on a thread of its own, so a synchronizer that is slow
+ * or stuck doesn't hold up the others or the thread the changes come from. Batches wait in
+ * a bounded queue and are delivered one at a time in the order they were dispatched, which
+ * keeps the changes of a path in order. Dispatching never blocks: when the queue is full
+ * the batch is dropped right away, for this synchronizer only, and counted. A
+ * {@link PathSynchronizer} doesn't lose the changes of a dropped batch: the closest common
+ * ancestor of their paths is passed to it as a subtree to resynchronize, with the next
+ * batch that is delivered or when the dispatcher stops.
+ *
+ * Keeps the number of delivered batches and changes, failures, drops and a histogram of
+ * the time from dispatch until a batch was handled.
+ */
+public class SynchronizerDispatcher {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SynchronizerDispatcher.class);
+
+    private final Synchronizer synchronizer;
+    private final BatchSynchronizer target;
+
+    /**
+     * Single thread with the bounded queue, replaced when the capacity changes
+     */
+    private volatile ThreadPoolExecutor worker;
+
+    /**
+     * Closest common ancestor of the changes that were dropped and not resynchronized yet
+     */
+    private final AtomicReference<String> pendingResynch = new AtomicReference<String>();
+
+    private final StripedCounter nBatches = new StripedCounter();
+    private final StripedCounter nRecords = new StripedCounter();
+    private final StripedCounter nFailures = new StripedCounter();
+    private final StripedCounter nDropped = new StripedCounter();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Initialize data-members and start the worker
+     *
+     * @param synchronizer the synchronizer to pass the batches to
+     * @param capacity the number of batches that may wait
+     */
+    public SynchronizerDispatcher(Synchronizer synchronizer, int capacity) {
+        this.synchronizer = synchronizer;
+        this.target = SynchronizerAdapter.adapt(synchronizer);
+        this.worker = createWorker(capacity);
+    }
+
+    /**
+     * Queue a batch for the synchronizer
+     *
+     * @param records the changes, in order
+     * @param resources resolves the resources of the changes
+     * @return false when the batch was dropped
+     */
+    public boolean dispatch(final List<ChangeRecord> records, final ResourceLookup resources) {
+        final long dispatched = System.nanoTime();
+        Runnable delivery = new Runnable() {
+
+            @Override
+            public void run() {
+                deliver(records, resources, dispatched);
+            }
+        };
+
+        ThreadPoolExecutor current = this.worker;
+        while (true) {
+            try {
+                // offers the batch to the bounded queue, rejected at once when it is full
+                current.execute(delivery);
+                return true;
+            }
+            catch (RejectedExecutionException reEx) {
+                // the worker was replaced while we were dispatching, try its successor
+                if (current != this.worker) {
+                    current = this.worker;
+                    continue;
+                }
+            }
+
+            this.nDropped.add(records.size());
+
+            if (this.synchronizer instanceof PathSynchronizer && !records.isEmpty()) {
+                String root = addPendingResynch(records);
+                LOG.warn(
+                    "Dropped a batch of {} changes for {}, {} batches are waiting; `{}` is resynchronized instead",
+                    new Object[] { records.size(), this.synchronizer, getQueueDepth(), root }
+                );
+            } else {
+                LOG.warn(
+                    "Dropped a batch of {} changes for {}, {} batches are waiting",
+                    new Object[] { records.size(), this.synchronizer, getQueueDepth() }
+                );
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Widen the pending resynchronization to the paths of <code>records</code>
+     *
+     * @return the root of the subtree that is to be resynchronized now
+     */
+    protected String addPendingResynch(List<ChangeRecord> records) {
+        String batchRoot = null;
+        for (ChangeRecord record : records) {
+            batchRoot = batchRoot == null ? record.getPath() : getCommonAncestor(batchRoot, record.getPath());
+        }
+
+        while (true) {
+            String root = this.pendingResynch.get();
+            String newRoot = root == null ? batchRoot : getCommonAncestor(root, batchRoot);
+            if (this.pendingResynch.compareAndSet(root, newRoot)) {
+                return newRoot;
+            }
+        }
+    }
+
+    /**
+     * Pass the pending resynchronization to the synchronizer, if there is one
+     */
+    protected void resynchPending() {
+        String root = this.pendingResynch.getAndSet(null);
+        if (root != null) {
+            LOG.info("Resynchronizing `{}` for {}, changes underneath it were dropped", root, this.synchronizer);
+            ((PathSynchronizer) this.synchronizer).resynchSubtree(root);
+        }
+    }
+
+    /**
+     * @return the closest path that is <code>first</code> or <code>second</code> or an ancestor of both
+     */
+    protected static String getCommonAncestor(String first, String second) {
+        int length = Math.min(first.length(), second.length());
+        int idx = 0;
+        while (idx < length && first.charAt(idx) == second.charAt(idx)) {
+            ++idx;
+        }
+
+        if (idx == first.length() && (idx == second.length() || second.charAt(idx) == '/')) {
+            return first;
+        }
+        if (idx == second.length() && first.charAt(idx) == '/') {
+            return second;
+        }
+
+        int slash = first.lastIndexOf('/', idx - 1);
+        return slash <= 0 ? "/" : first.substring(0, slash);
+    }
+
+    /**
+     * Pass a batch to the synchronizer, failures are logged and counted
+     */
+    protected void deliver(List<ChangeRecord> records, ResourceLookup resources, long dispatched) {
+        try {
+            resynchPending();
+            this.target.synchBatch(records, resources);
+            this.nRecords.add(records.size());
+        }
+        catch (RuntimeException rEx) {
+            this.nFailures.increment();
+            LOG.error("Synchronizer " + this.synchronizer + " could not handle a batch of " + records.size() + " changes", rEx);
+        }
+        finally {
+            this.nBatches.increment();
+            this.latency.record(System.nanoTime() - dispatched);
+        }
+    }
+
+    /**
+     * Continue with a queue of <code>capacity</code> batches. The batches that are waiting
+     * are delivered first, the new worker starts once the old one has terminated, however
+     * long that takes, so the order is kept.
+     */
+    public synchronized void resize(int capacity) {
+        final ThreadPoolExecutor previous = this.worker;
+        ThreadPoolExecutor replacement = createWorker(capacity);
+
+        replacement.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (!previous.awaitTermination(30, TimeUnit.SECONDS)) {
+                        LOG.warn("{} is still handling the batches from before a resize, waiting for it", synchronizer);
+                    }
+                }
+                catch (InterruptedException iEx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        this.worker = replacement;
+        previous.shutdown();
+    }
+
+    /**
+     * Deliver the batches that are waiting and stop the worker
+     */
+    public synchronized void stop() {
+        this.worker.shutdown();
+        awaitTermination(this.worker);
+
+        if (this.worker.isTerminated()) {
+            try {
+                resynchPending();
+            }
+            catch (RuntimeException rEx) {
+                LOG.error("Synchronizer " + this.synchronizer + " could not resynchronize dropped changes", rEx);
+            }
+        }
+    }
+
+    /**
+     * Wait for <code>executor</code> to finish its queue, for 30 seconds at most
+     */
+    protected void awaitTermination(ThreadPoolExecutor executor) {
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warn("{} was still handling batches after 30 seconds", this.synchronizer);
+            }
+        }
+        catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return a single thread with a queue of <code>capacity</code> batches that rejects the
+     * batches that don't fit
+     */
+    protected ThreadPoolExecutor createWorker(int capacity) {
+        return new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(capacity),
+            new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Synchronizer dispatch: " + synchronizer.getClass().getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+    }
+
+    public Synchronizer getSynchronizer() {
+        return synchronizer;
+    }
+
+    /**
+     * @return the number of batches waiting for the synchronizer
+     */
+    public int getQueueDepth() {
+        return this.worker.getQueue().size();
+    }
+
+    /**
+     * @return the number of batches handled, including the ones that failed
+     */
+    public long getBatchCount() {
+        return nBatches.sum();
+    }
+
+    /**
+     * @return the number of changes handled without failure
+     */
+    public long getRecordCount() {
+        return nRecords.sum();
+    }
+
+    public long getFailureCount() {
+        return nFailures.sum();
+    }
+
+    /**
+     * @return the number of changes dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return nDropped.sum();
+    }
+
+    /**
+     * @return the time from dispatch until a batch was handled, at quantile <code>q</code>
+     */
+    public long getLatencyNanos(double q) {
+        return LatencyHistogram.valueAt(this.latency.getCounts(), q);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "%s: %d batches, %d changes, %d failed, %d dropped, %d waiting, p50 %.2f ms, p99 %.2f ms",
+            this.synchronizer, getBatchCount(), getRecordCount(), getFailureCount(), getDroppedCount(),
+            getQueueDepth(), getLatencyNanos(0.5) / 1e6, getLatencyNanos(0.99) / 1e6
+        );
+    }
+}
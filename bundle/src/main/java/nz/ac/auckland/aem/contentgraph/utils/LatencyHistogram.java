@@ -0,0 +1,99 @@
+package nz.ac.auckland.aem.contentgraph.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Marnix Cook
+ *
+ * Concurrent histogram of durations in nanoseconds with a fixed relative precision, like
+ * an HDR histogram. Each power of two is split into 16 linear buckets, so a recorded
+ * value is reported at most 1/16th (about 6%) above its actual value, from single
+ * nanoseconds up to centuries, in under 8 KB.
+ *
+ * Recording is a single atomic increment and never blocks, percentiles can be read while
+ * other threads keep recording.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of a value kept below its highest bit
+     */
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Values below SUB_BUCKETS each have their own bucket, every power of two above has SUB_BUCKETS
+     */
+    private static final int N_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+
+    /**
+     * Record a value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+    }
+
+    /**
+     * @return a copy of the bucket counts, recordings made while copying may or may not be included
+     */
+    public long[] getCounts() {
+        long[] copy = new long[N_BUCKETS];
+        for (int idx = 0; idx < N_BUCKETS; ++idx) {
+            copy[idx] = counts.get(idx);
+        }
+        return copy;
+    }
+
+    /**
+     * @param counts bucket counts as returned by {@link #getCounts()}
+     * @param quantile the quantile, between 0 and 1
+     * @return the highest value of the bucket the quantile falls in, or 0 when nothing was recorded
+     */
+    public static long valueAt(long[] counts, double quantile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int idx = 0; idx < counts.length; ++idx) {
+            seen += counts[idx];
+            if (seen >= rank) {
+                return highestValueOf(idx);
+            }
+        }
+        return highestValueOf(counts.length - 1);
+    }
+
+    /**
+     * @return the bucket of <code>value</code>
+     */
+    protected static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value that is recorded in bucket <code>index</code>
+     */
+    protected static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        long width = 1L << (exponent - SUB_BITS);
+        return lowest + width - 1 < 0 ? Long.MAX_VALUE : lowest + width - 1;
+    }
+}
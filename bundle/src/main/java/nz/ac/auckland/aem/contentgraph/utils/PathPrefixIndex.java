@@ -0,0 +1,128 @@
+package nz.ac.auckland.aem.contentgraph.utils;
+
+import java.util.BitSet;
+
+/**
+ * @author Marnix Cook
+ *
+ * Prefixes with a number each, compiled into a trie of path segments like the
+ * {@link PathPrefixTrie}, so the numbers of all prefixes of a path are found in a single
+ * descent. Several prefixes may share a number and a prefix may have several numbers.
+ *
+ * The prefixes are plain prefixes: `/etc/tags` also matches `/etc/tagsets`.
+ *
+ * Instances are immutable once built and can be shared between threads.
+ */
+public class PathPrefixIndex {
+
+    private final TrieNode root = new TrieNode();
+
+    /**
+     * Add <code>prefix</code> with number <code>id</code>
+     */
+    public void add(String prefix, int id) {
+        TrieNode node = this.root;
+        int position = 0;
+
+        int slash;
+        while ((slash = prefix.indexOf('/', position)) >= 0) {
+            node = node.getOrAddChild(prefix.substring(position, slash));
+            position = slash + 1;
+        }
+
+        node.getOrAddPartial(prefix.substring(position)).set(id);
+    }
+
+    /**
+     * Descend the trie along the segments of <code>path</code>
+     *
+     * @param path the path to match
+     * @return the numbers of all prefixes of <code>path</code>
+     */
+    public BitSet match(String path) {
+        BitSet ids = new BitSet();
+        TrieNode node = this.root;
+        int position = 0;
+
+        while (true) {
+            for (int idx = 0; idx < node.partials.length; ++idx) {
+                if (path.startsWith(node.partials[idx], position)) {
+                    ids.or(node.partialIds[idx]);
+                }
+            }
+
+            int slash = path.indexOf('/', position);
+            if (slash < 0 || node.segments.length == 0) {
+                return ids;
+            }
+
+            node = node.getChild(path, position, slash - position);
+            if (node == null) {
+                return ids;
+            }
+            position = slash + 1;
+        }
+    }
+
+    /**
+     * A node of the trie, reached by consuming complete segments
+     */
+    protected static class TrieNode {
+
+        private String[] segments = new String[0];
+        private TrieNode[] children = new TrieNode[0];
+
+        private String[] partials = new String[0];
+        private BitSet[] partialIds = new BitSet[0];
+
+        /**
+         * @return the child for the segment of <code>length</code> characters at <code>offset</code> in <code>path</code>
+         */
+        protected TrieNode getChild(String path, int offset, int length) {
+            for (int idx = 0; idx < this.segments.length; ++idx) {
+                String segment = this.segments[idx];
+                if (segment.length() == length && path.regionMatches(offset, segment, 0, length)) {
+                    return this.children[idx];
+                }
+            }
+            return null;
+        }
+
+        protected TrieNode getOrAddChild(String segment) {
+            TrieNode child = getChild(segment, 0, segment.length());
+            if (child == null) {
+                child = new TrieNode();
+
+                String[] newSegments = new String[this.segments.length + 1];
+                TrieNode[] newChildren = new TrieNode[this.children.length + 1];
+                System.arraycopy(this.segments, 0, newSegments, 0, this.segments.length);
+                System.arraycopy(this.children, 0, newChildren, 0, this.children.length);
+                newSegments[this.segments.length] = segment;
+                newChildren[this.children.length] = child;
+
+                this.segments = newSegments;
+                this.children = newChildren;
+            }
+            return child;
+        }
+
+        protected BitSet getOrAddPartial(String partial) {
+            for (int idx = 0; idx < this.partials.length; ++idx) {
+                if (this.partials[idx].equals(partial)) {
+                    return this.partialIds[idx];
+                }
+            }
+
+            String[] newPartials = new String[this.partials.length + 1];
+            BitSet[] newIds = new BitSet[this.partialIds.length + 1];
+            System.arraycopy(this.partials, 0, newPartials, 0, this.partials.length);
+            System.arraycopy(this.partialIds, 0, newIds, 0, this.partialIds.length);
+            newPartials[this.partials.length] = partial;
+            newIds[this.partialIds.length] = new BitSet();
+
+            this.partials = newPartials;
+            this.partialIds = newIds;
+            return newIds[this.partials.length - 1];
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package nz.ac.auckland.aem.contentgraph.utils;
+
+/**
+ * @author Marnix Cook
+ *
+ * The include and exclude paths compiled into a trie of path segments, so a path is
+ * matched against all of them in a single descent instead of a `startsWith` per
+ * configured path.
+ *
+ * The configured paths are plain prefixes: `/content/abi` also matches `/content/abilities`.
+ * Each complete segment of a prefix is a step in the trie, the text after its last slash
+ * is kept as a partial segment on the node it ends at and is compared with the start of
+ * the remainder of the path. A prefix that ends with a slash has an empty partial segment.
+ *
+ * Instances are immutable and can be shared between threads.
+ */
+public class PathPrefixTrie {
+
+    /**
+     * Match flags
+     */
+    public static final int INCLUDED = 1;
+    public static final int EXCLUDED = 2;
+
+    /**
+     * Returned when no children of a node are pruned
+     */
+    private static final String[] NONE = new String[0];
+
+    /**
+     * Returned when all children of a node are pruned, the empty prefix matches every name
+     */
+    private static final String[] ALL = new String[] { "" };
+
+    private final TrieNode root = new TrieNode();
+
+    /**
+     * Compile the include and exclude paths
+     *
+     * @param includes the included prefixes, may be null
+     * @param excludes the excluded prefixes, may be null
+     */
+    public PathPrefixTrie(String[] includes, String[] excludes) {
+        addAll(includes, INCLUDED);
+        addAll(excludes, EXCLUDED);
+    }
+
+    /**
+     * @return true if <code>path</code> starts with an include path and not with an exclude path
+     */
+    public boolean isTracked(String path) {
+        return match(path) == INCLUDED;
+    }
+
+    /**
+     * @return true if <code>path</code> starts with an include path
+     */
+    public boolean isIncluded(String path) {
+        return (match(path) & INCLUDED) != 0;
+    }
+
+    /**
+     * @return true if <code>path</code> starts with an exclude path
+     */
+    public boolean isExcluded(String path) {
+        return (match(path) & EXCLUDED) != 0;
+    }
+
+    /**
+     * Descend the trie along the segments of <code>path</code>
+     *
+     * @param path the path to match
+     * @return the flags of all prefixes of <code>path</code>, INCLUDED and/or EXCLUDED
+     */
+    public int match(String path) {
+        int flags = 0;
+        TrieNode node = this.root;
+        int position = 0;
+
+        while (true) {
+            for (int idx = 0; idx < node.partials.length; ++idx) {
+                if (path.startsWith(node.partials[idx], position)) {
+                    flags |= node.partialFlags[idx];
+                }
+            }
+
+            // an exclusion can't be undone deeper down
+            if (flags == (INCLUDED | EXCLUDED) || node.segments.length == 0) {
+                return flags;
+            }
+
+            int slash = path.indexOf('/', position);
+            if (slash < 0) {
+                return flags;
+            }
+
+            node = node.getChild(path, position, slash - position);
+            if (node == null) {
+                return flags;
+            }
+            position = slash + 1;
+        }
+    }
+
+    /**
+     * Determine which children of <code>parentPath</code> lead to excluded subtrees only,
+     * so a traversal can skip them by name before it looks at them. A child whose path is
+     * excluded is excluded all the way down, because the exclusions are prefixes.
+     *
+     * @param parentPath the path of the node whose children are about to be traversed
+     * @return the prefixes of the names of the children to skip, empty if there are none
+     */
+    public String[] getPrunedChildNames(String parentPath) {
+        String childPrefix = parentPath.endsWith("/") ? parentPath : parentPath + "/";
+        if (isExcluded(childPrefix)) {
+            return ALL;
+        }
+
+        // the node that is reached by consuming all segments of the parent
+        TrieNode node = this.root;
+        int position = 0;
+        int slash;
+        while (node != null && (slash = childPrefix.indexOf('/', position)) >= 0) {
+            node = node.getChild(childPrefix, position, slash - position);
+            position = slash + 1;
+        }
+
+        if (node == null) {
+            return NONE;
+        }
+
+        int nExcluded = 0;
+        for (int flag : node.partialFlags) {
+            if ((flag & EXCLUDED) != 0) {
+                ++nExcluded;
+            }
+        }
+        if (nExcluded == 0) {
+            return NONE;
+        }
+
+        String[] pruned = new String[nExcluded];
+        for (int idx = 0, prunedIdx = 0; idx < node.partials.length; ++idx) {
+            if ((node.partialFlags[idx] & EXCLUDED) != 0) {
+                pruned[prunedIdx++] = node.partials[idx];
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * @return true if <code>prunedNames</code> prunes every child
+     */
+    public static boolean isPruningAll(String[] prunedNames) {
+        for (String prunedName : prunedNames) {
+            if (prunedName.length() == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the child called <code>childName</code> is pruned by <code>prunedNames</code>
+     */
+    public static boolean isPrunedChild(String[] prunedNames, String childName) {
+        for (String prunedName : prunedNames) {
+            if (childName.startsWith(prunedName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void addAll(String[] prefixes, int flag) {
+        if (prefixes == null) {
+            return;
+        }
+        for (String prefix : prefixes) {
+            if (prefix != null) {
+                add(prefix, flag);
+            }
+        }
+    }
+
+    protected void add(String prefix, int flag) {
+        TrieNode node = this.root;
+        int position = 0;
+
+        int slash;
+        while ((slash = prefix.indexOf('/', position)) >= 0) {
+            node = node.getOrAddChild(prefix.substring(position, slash));
+            position = slash + 1;
+        }
+
+        node.addPartial(prefix.substring(position), flag);
+    }
+
+    /**
+     * A node of the trie, reached by consuming complete segments. A node has few
+     * children, comparing their segments with the path in place is cheaper than
+     * cutting the segment out of the path to hash it.
+     */
+    protected static class TrieNode {
+
+        private String[] segments = new String[0];
+        private TrieNode[] children = new TrieNode[0];
+
+        private String[] partials = new String[0];
+        private int[] partialFlags = new int[0];
+
+        /**
+         * @return the child for the segment of <code>length</code> characters at <code>offset</code> in <code>path</code>
+         */
+        protected TrieNode getChild(String path, int offset, int length) {
+            for (int idx = 0; idx < this.segments.length; ++idx) {
+                String segment = this.segments[idx];
+                if (segment.length() == length && path.regionMatches(offset, segment, 0, length)) {
+                    return this.children[idx];
+                }
+            }
+            return null;
+        }
+
+        protected TrieNode getOrAddChild(String segment) {
+            TrieNode child = getChild(segment, 0, segment.length());
+            if (child == null) {
+                child = new TrieNode();
+
+                String[] newSegments = new String[this.segments.length + 1];
+                TrieNode[] newChildren = new TrieNode[this.children.length + 1];
+                System.arraycopy(this.segments, 0, newSegments, 0, this.segments.length);
+                System.arraycopy(this.children, 0, newChildren, 0, this.children.length);
+                newSegments[this.segments.length] = segment;
+                newChildren[this.children.length] = child;
+
+                this.segments = newSegments;
+                this.children = newChildren;
+            }
+            return child;
+        }
+
+        protected void addPartial(String partial, int flag) {
+            for (int idx = 0; idx < this.partials.length; ++idx) {
+                if (this.partials[idx].equals(partial)) {
+                    this.partialFlags[idx] |= flag;
+                    return;
+                }
+            }
+
+            String[] newPartials = new String[this.partials.length + 1];
+            int[] newFlags = new int[this.partialFlags.length + 1];
+            System.arraycopy(this.partials, 0, newPartials, 0, this.partials.length);
+            System.arraycopy(this.partialFlags, 0, newFlags, 0, this.partialFlags.length);
+            newPartials[this.partials.length] = partial;
+            newFlags[this.partialFlags.length] = flag;
+
+            this.partials = newPartials;
+            this.partialFlags = newFlags;
+        }
+    }
+}
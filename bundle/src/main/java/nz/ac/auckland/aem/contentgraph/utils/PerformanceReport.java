@@ -1,49 +1,169 @@
 package nz.ac.auckland.aem.contentgraph.utils;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Marnix Cook
+ *
+ * Time spent per category, shared by the traversal and the writer threads. For each
+ * category the number of calls, the total, the maximum and a histogram of the durations
+ * are kept. Counts and totals are {@link StripedCounter}s, so threads adding to the same
+ * category don't contend on a single counter.
+ *
+ * Snapshots can be taken while other threads keep adding, a snapshot may miss additions
+ * that happen while it is being taken.
  */
 public class PerformanceReport {
 
     private static final PerformanceReport INSTANCE = new PerformanceReport();
-    private Map<String, Long> categorySpentMap;
+
+    private volatile ConcurrentMap<String, Category> categories;
 
     private PerformanceReport() {
         // private constructor, singleton
         resetMap();
     }
 
+    /**
+     * Timings of one category
+     */
+    protected static class Category {
+
+        private final StripedCounter count = new StripedCounter();
+        private final StripedCounter total = new StripedCounter();
+        private final AtomicLong max = new AtomicLong();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        protected void add(long nanos) {
+            count.increment();
+            total.add(nanos);
+            histogram.record(nanos);
+
+            // only written when a new maximum is seen, so it rarely contends
+            long current = max.get();
+            while (nanos > current && !max.compareAndSet(current, nanos)) {
+                current = max.get();
+            }
+        }
+
+        protected Snapshot snapshot(String name) {
+            return new Snapshot(name, count.sum(), total.sum(), max.get(), histogram.getCounts());
+        }
+    }
+
+    /**
+     * Timings of one category at the time the snapshot was taken, in nanoseconds
+     */
+    public static class Snapshot {
+
+        private final String name;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] histogram;
+
+        protected Snapshot(String name, long count, long totalNanos, long maxNanos, long[] histogram) {
+            this.name = name;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.histogram = histogram;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * @param quantile the quantile, between 0 and 1
+         * @return the duration below which <code>quantile</code> of the timings fall, at most 6% too high
+         */
+        public long getPercentileNanos(double quantile) {
+            return Math.min(this.maxNanos, LatencyHistogram.valueAt(this.histogram, quantile));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%.2fs in %d calls, p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                totalNanos / 1e9, count,
+                getPercentileNanos(0.5) / 1e6, getPercentileNanos(0.99) / 1e6, maxNanos / 1e6
+            );
+        }
+    }
 
     public void resetMap() {
-        this.categorySpentMap = new HashMap<String, Long>();
+        this.categories = new ConcurrentHashMap<String, Category>();
     }
 
+    /**
+     * @return the total milliseconds spent per category
+     */
     public Map<String, Long> getMap() {
-        return this.categorySpentMap;
+        Map<String, Long> totals = new TreeMap<String, Long>();
+        for (Snapshot snapshot : getSnapshots().values()) {
+            totals.put(snapshot.getName(), TimeUnit.NANOSECONDS.toMillis(snapshot.getTotalNanos()));
+        }
+        return totals;
+    }
+
+    /**
+     * @return the timings of all categories by name, without stopping threads that are adding to them
+     */
+    public Map<String, Snapshot> getSnapshots() {
+        Map<String, Snapshot> snapshots = new TreeMap<String, Snapshot>();
+        for (Map.Entry<String, Category> entry : this.categories.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return snapshots;
     }
 
     /**
      * Add amount of time to category
      *
      * @param catName
-     * @param spent
+     * @param spent milliseconds
      */
     public void addToCategory(String catName, Long spent) {
+        addNanos(catName, TimeUnit.MILLISECONDS.toNanos(spent));
+    }
 
-        // new category? put in map
-        if (!categorySpentMap.containsKey(catName)) {
-            categorySpentMap.put(catName, spent);
-        } else {
+    /**
+     * Add amount of time to category
+     *
+     * @param catName
+     * @param nanos nanoseconds, measured with System.nanoTime()
+     */
+    public void addNanos(String catName, long nanos) {
+        ConcurrentMap<String, Category> current = this.categories;
 
-            // otherwise, add to existing number
-            categorySpentMap.put(
-                catName,
-                categorySpentMap.get(catName) + spent
-            );
+        Category category = current.get(catName);
+        if (category == null) {
+            Category created = new Category();
+            category = current.putIfAbsent(catName, created);
+            if (category == null) {
+                category = created;
+            }
         }
+
+        category.add(nanos);
     }
 
 
@@ -0,0 +1,62 @@
+package nz.ac.auckland.aem.contentgraph.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Marnix Cook
+ *
+ * Counter for statistics that many threads add to and that is only read now and then,
+ * like the LongAdder of Java 8 that isn't available at the source level of the bundle.
+ * The count is striped over a number of cells by thread, each on a cache line of its
+ * own, so threads adding at the same time don't contend on a single value.
+ *
+ * The sum is not an atomic snapshot, additions made while it is being taken may or may
+ * not be included.
+ */
+public class StripedCounter {
+
+    /**
+     * Number of cells the count is striped over, a power of two
+     */
+    private static final int N_STRIPES = 16;
+
+    /**
+     * Longs between two cells, so each cell has a cache line of its own
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(N_STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long amount) {
+        cells.addAndGet(stripe() * PADDING, amount);
+    }
+
+    /**
+     * @return the sum of all cells
+     */
+    public long sum() {
+        long sum = 0;
+        for (int stripe = 0; stripe < N_STRIPES; ++stripe) {
+            sum += cells.get(stripe * PADDING);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    /**
+     * @return the cell of the current thread
+     */
+    protected static int stripe() {
+        long id = Thread.currentThread().getId();
+        id *= 0x9e3779b97f4a7c15L;
+        return (int) (id >>> 32) & (N_STRIPES - 1);
+    }
+}
@@ -20,23 +20,18 @@ public class ValidPathHelper {
      * @return
      */
     public static boolean isTrackedContentPath(String changedPath, String[] includes, String[] excludes) {
+        return isTrackedContentPath(changedPath, new PathPrefixTrie(includes, excludes));
+    }
 
-        boolean yes = false;
-        boolean butNo = false;
-
-        for (String path : includes) {
-            if (changedPath.startsWith(path)) {
-                yes = true;
-            }
-        }
-
-        for (String path : excludes) {
-            if (changedPath.startsWith(path)) {
-                butNo = true;
-            }
-        }
-
-        return yes && !butNo;
+    /**
+     * This method determines whether the updated information should be synched.
+     *
+     * @param changedPath is the path that has changes
+     * @param pathTrie the compiled include and exclude paths
+     * @return
+     */
+    public static boolean isTrackedContentPath(String changedPath, PathPrefixTrie pathTrie) {
+        return pathTrie.isTracked(changedPath);
     }
 
 }
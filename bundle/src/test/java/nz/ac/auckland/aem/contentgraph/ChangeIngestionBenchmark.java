@@ -0,0 +1,167 @@
+package nz.ac.auckland.aem.contentgraph;
+
+import nz.ac.auckland.aem.contentgraph.synch.CompositeSynchronizer;
+import nz.ac.auckland.aem.contentgraph.synch.CompositeSynchronizerImpl;
+import nz.ac.auckland.aem.contentgraph.synch.PathSynchronizer;
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixTrie;
+import org.apache.sling.api.resource.Resource;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Marnix Cook
+ *
+ * Compares the two ways of receiving the changes of a page activation: one resource
+ * event per node that is processed as a job, and the JCR events of the whole save
+ * delivered as one batch to the observation listener. The Sling job machinery itself
+ * isn't available outside the container: the job mode is measured once with only the
+ * listener's own work per event and once with a hand-off to a pool thread per event,
+ * the least a job dispatch costs. Not a unit test, run it by hand:
+ *
+ *   java ... ChangeIngestionBenchmark [nComponents] [nPages]
+ */
+public class ChangeIngestionBenchmark {
+
+    private static final int N_ROUNDS = 5;
+
+    /**
+     * Property events per component, besides the node event
+     */
+    private static final int N_PROPERTIES = 3;
+
+    /**
+     * Number of paths the synchronizer received, keeps the work from being optimised away
+     */
+    private static final AtomicLong sink = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int nComponents = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int nPages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        // collects the changes for the default window, like it does in the container
+        CompositeSynchronizerImpl composite = new CompositeSynchronizerImpl();
+        composite.addSynchronizer(new CountingSynchronizer());
+        composite.configChanged(getContext());
+
+        final JcrChangeListenerImpl jobListener = new JcrChangeListenerImpl();
+        ExecutorService jobPool = Executors.newFixedThreadPool(4);
+        Field synchField = JcrChangeListenerImpl.class.getDeclaredField("synchronizers");
+        synchField.setAccessible(true);
+        synchField.set(jobListener, composite);
+
+        PathPrefixTrie trie = new PathPrefixTrie(new String[] { "/content/abi" }, null);
+        ObservationBatchListener batchListener = new ObservationBatchListener(composite, null, trie);
+
+        // the resource events and the JCR events of one page activation
+        Event[] resourceEvents = new Event[nComponents];
+        TestEvents jcrEvents = new TestEvents();
+        for (int idx = 0; idx < nComponents; ++idx) {
+            String path = "/content/abi/page/jcr:content/par/component-" + idx;
+
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put("path", path);
+            resourceEvents[idx] = new Event("org/apache/sling/api/resource/Resource/CHANGED", props);
+
+            jcrEvents.add(javax.jcr.observation.Event.NODE_ADDED, path);
+            for (int prop = 0; prop < N_PROPERTIES; ++prop) {
+                jcrEvents.add(javax.jcr.observation.Event.PROPERTY_ADDED, path + "/property-" + prop);
+            }
+        }
+
+        System.out.println(String.format(
+            "%d pages of %d components, %d resource events or %d JCR events per page",
+            nPages, nComponents, nComponents, nComponents * (N_PROPERTIES + 1)
+        ));
+
+        // the first rounds warm up the JVM
+        for (int round = 1; round <= N_ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (int page = 0; page < nPages; ++page) {
+                for (Event event : resourceEvents) {
+                    jobListener.process(event);
+                }
+            }
+            report("jobs, round " + round, nPages, nPages * (long) nComponents, "resource", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int page = 0; page < nPages; ++page) {
+                List<Future<?>> jobs = new ArrayList<Future<?>>(nComponents);
+                for (final Event event : resourceEvents) {
+                    jobs.add(jobPool.submit(new Runnable() {
+                        public void run() {
+                            jobListener.process(event);
+                        }
+                    }));
+                }
+                for (Future<?> job : jobs) {
+                    job.get();
+                }
+            }
+            report("jobs + hand-off", nPages, nPages * (long) nComponents, "resource", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int page = 0; page < nPages; ++page) {
+                batchListener.onEvent(jcrEvents.rewind());
+            }
+            report("batches, round " + round, nPages, nPages * (long) jcrEvents.getSize(), "JCR", System.nanoTime() - start);
+        }
+
+        jobPool.shutdown();
+        composite.deactivate();
+        System.out.println("(" + sink + " paths received)");
+    }
+
+    private static ComponentContext getContext() {
+        return (ComponentContext) Proxy.newProxyInstance(
+            ChangeIngestionBenchmark.class.getClassLoader(),
+            new Class[] { ComponentContext.class },
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return method.getName().equals("getProperties") ? new Hashtable<String, Object>() : null;
+                }
+            }
+        );
+    }
+
+    private static void report(String label, int nPages, long nEvents, String kind, long nanos) {
+        System.out.println(String.format(
+            "%-20s: %8.1f pages/s, %12.0f %s events/s",
+            label, nPages * 1e9 / nanos, nEvents * 1e9 / nanos, kind
+        ));
+    }
+
+    private static class CountingSynchronizer implements PathSynchronizer {
+
+        public void synchPath(String path) {
+            sink.incrementAndGet();
+        }
+
+        public void resynchSubtree(String path) {
+            sink.incrementAndGet();
+        }
+
+        public void synch(Resource resource) {
+            sink.incrementAndGet();
+        }
+
+        public void delete(String path) {
+            sink.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package nz.ac.auckland.aem.contentgraph;
+
+import junit.framework.TestCase;
+import nz.ac.auckland.aem.contentgraph.synch.ChangeBatch;
+import nz.ac.auckland.aem.contentgraph.synch.ChangeRecord;
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixTrie;
+
+import javax.jcr.observation.Event;
+import java.util.Arrays;
+
+public class ObservationBatchListenerTest extends TestCase {
+
+    private static final PathPrefixTrie TRIE = new PathPrefixTrie(
+        new String[] { "/content/abi", "/etc/tags/" },
+        new String[] { "/content/abi/news" }
+    );
+
+    public void testEventsBecomeNodeChanges() throws Exception {
+        TestEvents events = new TestEvents()
+            .add(Event.NODE_ADDED, "/content/abi/page")
+            .add(Event.PROPERTY_ADDED, "/content/abi/page/jcr:primaryType")
+            .add(Event.PROPERTY_CHANGED, "/content/abi/page/jcr:content/jcr:title")
+            .add(Event.PROPERTY_CHANGED, "/content/abi/page/jcr:content/jcr:description")
+            .add(Event.NODE_REMOVED, "/content/abi/old")
+            .add(Event.NODE_ADDED, "/content/abi/news/item")
+            .add(Event.NODE_ADDED, "/content/other/page");
+
+        ChangeBatch batch = new ObservationBatchListener(null, null, TRIE).toBatch(events);
+
+        assertEquals(
+            Arrays.asList("/content/abi/page", "/content/abi/page/jcr:content"),
+            batch.getPaths(ChangeRecord.Operation.SYNCH)
+        );
+        assertEquals(Arrays.asList("/content/abi/old"), batch.getPaths(ChangeRecord.Operation.DELETE));
+        assertEquals(5, batch.getEventCount());
+
+        // the node itself was added, so any of its properties may be new
+        assertTrue(batch.getRecord("/content/abi/page").getPropertyNames().isEmpty());
+        assertEquals(
+            Arrays.asList("jcr:description", "jcr:title"),
+            Arrays.asList(batch.getRecord("/content/abi/page/jcr:content").getPropertyNames().toArray())
+        );
+    }
+
+    public void testLastOperationWins() throws Exception {
+        TestEvents events = new TestEvents()
+            .add(Event.NODE_REMOVED, "/content/abi/page")
+            .add(Event.NODE_ADDED, "/content/abi/page")
+            .add(Event.PROPERTY_CHANGED, "/content/abi/other/title")
+            .add(Event.NODE_REMOVED, "/content/abi/other");
+
+        ChangeBatch batch = new ObservationBatchListener(null, null, TRIE).toBatch(events);
+
+        assertEquals(ChangeRecord.Operation.SYNCH, batch.getRecord("/content/abi/page").getOperation());
+        assertEquals(ChangeRecord.Operation.DELETE, batch.getRecord("/content/abi/other").getOperation());
+    }
+
+    public void testObservedPaths() throws Exception {
+        assertEquals(
+            Arrays.asList("/content", "/etc/tags"),
+            ObservationBatchListener.getObservedPaths(
+                new String[] { "/content/abi", "/content/uoa/", "/etc/tags/", "/etc/tags/sub" }
+            )
+        );
+        assertEquals(Arrays.asList("/"), ObservationBatchListener.getObservedPaths(new String[] { "/content", "/etc/" }));
+    }
+}
@@ -0,0 +1,97 @@
+package nz.ac.auckland.aem.contentgraph;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Marnix Cook
+ *
+ * JCR observation events for tests, without a repository
+ */
+public class TestEvents implements EventIterator {
+
+    private List<Event> events = new ArrayList<Event>();
+    private Iterator<Event> eventIt;
+    private long position;
+
+    public TestEvents add(final int type, final String path) {
+        this.events.add(new Event() {
+
+            public int getType() {
+                return type;
+            }
+
+            public String getPath() {
+                return path;
+            }
+
+            public String getUserID() {
+                return "admin";
+            }
+
+            public String getIdentifier() {
+                return null;
+            }
+
+            public Map getInfo() {
+                return null;
+            }
+
+            public long getDate() {
+                return 0;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * @return an iterator over the added events, from the start
+     */
+    public TestEvents rewind() {
+        this.eventIt = null;
+        this.position = 0;
+        return this;
+    }
+
+    public Event nextEvent() {
+        ++this.position;
+        return iterator().next();
+    }
+
+    public boolean hasNext() {
+        return iterator().hasNext();
+    }
+
+    public Object next() {
+        return nextEvent();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void skip(long n) {
+        for (long idx = 0; idx < n; ++idx) {
+            nextEvent();
+        }
+    }
+
+    public long getSize() {
+        return this.events.size();
+    }
+
+    public long getPosition() {
+        return this.position;
+    }
+
+    private Iterator<Event> iterator() {
+        if (this.eventIt == null) {
+            this.eventIt = this.events.iterator();
+        }
+        return this.eventIt;
+    }
+}
@@ -0,0 +1,58 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ChangeBatchTest extends TestCase {
+
+    public void testPropertyNamesOfAPathAddUp() {
+        ChangeBatch batch = new ChangeBatch();
+        batch.add(new ChangeRecord("/content/abi", ChangeRecord.Operation.SYNCH, 10, Arrays.asList("title")));
+        batch.add(new ChangeRecord("/content/abi", ChangeRecord.Operation.SYNCH, 20, Arrays.asList("created", "title")));
+
+        ChangeRecord record = batch.getRecord("/content/abi");
+        assertEquals(1, batch.size());
+        assertEquals(2, batch.getEventCount());
+        assertEquals(20, record.getTimestamp());
+        assertEquals(Arrays.asList("created", "title"), Arrays.asList(record.getPropertyNames().toArray()));
+    }
+
+    public void testUnknownPropertyNamesStayUnknown() {
+        ChangeBatch batch = new ChangeBatch();
+        batch.synch("/content/abi");
+        batch.add(new ChangeRecord("/content/abi", ChangeRecord.Operation.SYNCH, 20, Arrays.asList("title")));
+
+        assertTrue(batch.getRecord("/content/abi").getPropertyNames().isEmpty());
+    }
+
+    public void testLastChangeWinsAndMovesToTheEnd() {
+        ChangeBatch batch = new ChangeBatch();
+        batch.synch("/content/abi/page");
+        batch.delete("/content/abi");
+        batch.synch("/content/abi/page");
+
+        List<ChangeRecord> records = batch.getRecords();
+        assertEquals("/content/abi", records.get(0).getPath());
+        assertEquals(ChangeRecord.Operation.DELETE, records.get(0).getOperation());
+        assertEquals("/content/abi/page", records.get(1).getPath());
+        assertEquals(ChangeRecord.Operation.SYNCH, records.get(1).getOperation());
+    }
+
+    public void testAddAllCountsTheEventsOfBoth() {
+        ChangeBatch first = new ChangeBatch();
+        first.synch("/content/abi");
+        first.synch("/content/abi");
+
+        ChangeBatch second = new ChangeBatch();
+        second.delete("/content/abi");
+        second.synch("/content/other");
+        second.synch("/content/other");
+
+        first.addAll(second);
+        assertEquals(5, first.getEventCount());
+        assertEquals(Arrays.asList("/content/abi"), first.getPaths(ChangeRecord.Operation.DELETE));
+        assertEquals(Arrays.asList("/content/other"), first.getPaths(ChangeRecord.Operation.SYNCH));
+    }
+}
@@ -0,0 +1,243 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import junit.framework.TestCase;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.ComponentContext;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+public class CompositeSynchronizerImplTest extends TestCase {
+
+    private int nResolved;
+
+    public void testPathSynchronizersDontResolve() throws Exception {
+        RecordingPathSynchronizer pathSynch = new RecordingPathSynchronizer();
+
+        CompositeSynchronizerImpl composite = new CompositeSynchronizerImpl();
+        composite.addSynchronizer(pathSynch);
+        composite.synchPath("/content/abi/page", getResolver());
+        composite.deactivate();
+
+        assertEquals(0, nResolved);
+        assertEquals(1, pathSynch.paths.size());
+        assertEquals("/content/abi/page", pathSynch.paths.get(0));
+    }
+
+    public void testResourceIsResolvedOnceForOtherSynchronizers() throws Exception {
+        RecordingSynchronizer first = new RecordingSynchronizer();
+        RecordingSynchronizer second = new RecordingSynchronizer();
+
+        CompositeSynchronizerImpl composite = new CompositeSynchronizerImpl();
+        composite.addSynchronizer(new RecordingPathSynchronizer());
+        composite.addSynchronizer(first);
+        composite.addSynchronizer(second);
+        composite.synchPath("/content/abi/page", getResolver());
+        composite.deactivate();
+
+        assertEquals(1, nResolved);
+        assertEquals(1, first.resources.size());
+        assertSame(first.resources.get(0), second.resources.get(0));
+    }
+
+    public void testChangesWithinTheWindowArriveAsOneBatch() throws Exception {
+        RecordingBatchSynchronizer batchSynch = new RecordingBatchSynchronizer();
+
+        CompositeSynchronizerImpl composite = new CompositeSynchronizerImpl();
+        composite.addSynchronizer(batchSynch);
+        composite.configChanged(getContext(60000, 1000));
+
+        composite.synchPath("/content/abi/page", getResolver());
+        composite.synchPath("/content/abi/other", getResolver());
+        composite.delete("/content/abi/page");
+        assertTrue(batchSynch.batches.isEmpty());
+
+        // deactivation passes on what was collected
+        composite.deactivate();
+        assertEquals(1, batchSynch.batches.size());
+
+        List<ChangeRecord> batch = batchSynch.batches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals("/content/abi/other", batch.get(0).getPath());
+        assertEquals(ChangeRecord.Operation.DELETE, batch.get(1).getOperation());
+    }
+
+    public void testFullBatchIsPassedOnBeforeTheWindowEnds() throws Exception {
+        RecordingBatchSynchronizer batchSynch = new RecordingBatchSynchronizer();
+
+        CompositeSynchronizerImpl composite = new CompositeSynchronizerImpl();
+        composite.addSynchronizer(batchSynch);
+        composite.configChanged(getContext(60000, 2));
+
+        composite.synchPath("/content/abi/page", getResolver());
+        composite.synchPath("/content/abi/other", getResolver());
+
+        awaitBatches(batchSynch, 1);
+        assertEquals(1, batchSynch.batches.size());
+        assertEquals(2, batchSynch.batches.get(0).size());
+
+        composite.deactivate();
+    }
+
+    public void testSlowSynchronizerOnlyHoldsUpItself() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingBatchSynchronizer slow = new RecordingBatchSynchronizer() {
+
+            @Override
+            public void synchBatch(List<ChangeRecord> records, ResourceLookup resources) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException iEx) {
+                    Thread.currentThread().interrupt();
+                }
+                super.synchBatch(records, resources);
+            }
+        };
+        RecordingBatchSynchronizer fast = new RecordingBatchSynchronizer();
+
+        CompositeSynchronizerImpl composite = new CompositeSynchronizerImpl();
+        composite.configChanged(getContext(0, 1000, 1));
+        composite.addSynchronizer(slow);
+        composite.addSynchronizer(fast);
+
+        // one batch is being handled, one waits and the third doesn't fit
+        composite.synchPath("/content/abi/first", getResolver());
+        awaitBatches(fast, 1);
+        composite.synchPath("/content/abi/second", getResolver());
+        awaitBatches(fast, 2);
+        composite.synchPath("/content/abi/third", getResolver());
+        awaitBatches(fast, 3);
+
+        assertEquals(3, fast.batches.size());
+        assertTrue(slow.batches.isEmpty());
+
+        SynchronizerDispatcher slowDispatcher = composite.getDispatchers().get(0);
+        assertEquals(1, slowDispatcher.getQueueDepth());
+        assertEquals(1, slowDispatcher.getDroppedCount());
+
+        release.countDown();
+        composite.deactivate();
+
+        assertEquals(2, slow.batches.size());
+        assertEquals("/content/abi/first", slow.batches.get(0).get(0).getPath());
+        assertEquals("/content/abi/second", slow.batches.get(1).get(0).getPath());
+        assertEquals(0, composite.getDispatchers().get(1).getDroppedCount());
+    }
+
+    private void awaitBatches(RecordingBatchSynchronizer synch, int nBatches) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (synch.batches.size() < nBatches && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private ComponentContext getContext(int windowMillis, int maxBatchSize) {
+        return getContext(windowMillis, maxBatchSize, CompositeSynchronizerImpl.DEFAULT_SINK_QUEUE_CAPACITY);
+    }
+
+    private ComponentContext getContext(int windowMillis, int maxBatchSize, int sinkQueueCapacity) {
+        final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("windowMillis", windowMillis);
+        properties.put("maxBatchSize", maxBatchSize);
+        properties.put("sinkQueueCapacity", sinkQueueCapacity);
+
+        return (ComponentContext) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class[] { ComponentContext.class },
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return method.getName().equals("getProperties") ? properties : null;
+                }
+            }
+        );
+    }
+
+    private ResourceResolver getResolver() {
+        return (ResourceResolver) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class[] { ResourceResolver.class },
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("getResource")) {
+                        ++nResolved;
+                        return Proxy.newProxyInstance(
+                            getClass().getClassLoader(), new Class[] { Resource.class }, this
+                        );
+                    }
+                    return null;
+                }
+            }
+        );
+    }
+
+    private static class RecordingSynchronizer implements Synchronizer {
+
+        private List<Resource> resources = new ArrayList<Resource>();
+
+        @Override
+        public void synch(Resource resource) {
+            resources.add(resource);
+        }
+
+        @Override
+        public void delete(String path) {
+        }
+    }
+
+    private static class RecordingBatchSynchronizer implements BatchSynchronizer {
+
+        private List<List<ChangeRecord>> batches = new CopyOnWriteArrayList<List<ChangeRecord>>();
+
+        @Override
+        public void synchBatch(List<ChangeRecord> records, ResourceLookup resources) {
+            batches.add(records);
+        }
+
+        @Override
+        public void synch(Resource resource) {
+            fail("changes should arrive as a batch");
+        }
+
+        @Override
+        public void delete(String path) {
+            fail("changes should arrive as a batch");
+        }
+    }
+
+    private static class RecordingPathSynchronizer implements PathSynchronizer {
+
+        private List<String> paths = new CopyOnWriteArrayList<String>();
+        private List<String> resynched = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void synchPath(String path) {
+            paths.add(path);
+        }
+
+        @Override
+        public void resynchSubtree(String path) {
+            resynched.add(path);
+        }
+
+        @Override
+        public void synch(Resource resource) {
+            fail("the resource should not be resolved");
+        }
+
+        @Override
+        public void delete(String path) {
+        }
+    }
+}
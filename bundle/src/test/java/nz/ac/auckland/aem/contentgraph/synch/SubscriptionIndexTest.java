@@ -0,0 +1,86 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import junit.framework.TestCase;
+import org.apache.sling.api.resource.Resource;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+public class SubscriptionIndexTest extends TestCase {
+
+    private static final int ALL = 0;
+    private static final int TAGS = 1;
+    private static final int TITLES = 2;
+
+    private SubscriptionIndex index = new SubscriptionIndex(Arrays.asList(
+        new SynchronizerDispatcher(new TestSynchronizer(null), 1),
+        new SynchronizerDispatcher(new TestSynchronizer(new Subscription(new String[] { "/etc/tags/" }, null, null)), 1),
+        new SynchronizerDispatcher(new TestSynchronizer(new Subscription(
+            new String[] { "/content/abi" }, new String[] { "/content/abi/news" }, new String[] { "jcr:title" }
+        )), 1)
+    ));
+
+    public void testPathsAreMatchedAsPrefixes() throws Exception {
+        assertReceivers(ChangeRecord.synch("/etc/tags/uoa:topic"), ALL, TAGS);
+        assertReceivers(ChangeRecord.synch("/etc/tags"), ALL);
+        assertReceivers(ChangeRecord.synch("/content/abilities/page"), ALL, TITLES);
+        assertReceivers(ChangeRecord.delete("/content/abi/news/2015"), ALL);
+    }
+
+    public void testPropertyNamesFilterSynchronizations() throws Exception {
+        assertReceivers(synch("/content/abi/page", "jcr:title", "jcr:description"), ALL, TITLES);
+        assertReceivers(synch("/content/abi/page", "jcr:description"), ALL);
+
+        // deletions and unknown properties can't be filtered
+        assertReceivers(ChangeRecord.delete("/content/abi/page"), ALL, TITLES);
+        assertReceivers(ChangeRecord.synch("/content/abi/page"), ALL, TITLES);
+    }
+
+    public void testRouteKeepsTheOrder() throws Exception {
+        List<List<ChangeRecord>> routed = index.route(Arrays.asList(
+            ChangeRecord.synch("/content/abi/page"),
+            ChangeRecord.synch("/etc/tags/uoa:topic"),
+            ChangeRecord.delete("/content/abi/old")
+        ));
+
+        assertEquals(3, routed.get(ALL).size());
+        assertEquals(1, routed.get(TAGS).size());
+        assertEquals("/content/abi/page", routed.get(TITLES).get(0).getPath());
+        assertEquals("/content/abi/old", routed.get(TITLES).get(1).getPath());
+    }
+
+    private ChangeRecord synch(String path, String... propertyNames) {
+        return new ChangeRecord(path, ChangeRecord.Operation.SYNCH, 0, Arrays.asList(propertyNames));
+    }
+
+    private void assertReceivers(ChangeRecord record, int... receivers) {
+        BitSet expected = new BitSet();
+        for (int receiver : receivers) {
+            expected.set(receiver);
+        }
+        assertEquals(record.toString(), expected, index.match(record));
+    }
+
+    private static class TestSynchronizer implements SubscribingSynchronizer {
+
+        private Subscription subscription;
+
+        private TestSynchronizer(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public Subscription getSubscription() {
+            return subscription;
+        }
+
+        @Override
+        public void synch(Resource resource) {
+        }
+
+        @Override
+        public void delete(String path) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package nz.ac.auckland.aem.contentgraph.synch;
+
+import junit.framework.TestCase;
+import org.apache.sling.api.resource.Resource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SynchronizerDispatcherTest extends TestCase {
+
+    public void testDroppedBatchIsResynchronized() throws Exception {
+        BlockingPathSynchronizer synch = new BlockingPathSynchronizer();
+        SynchronizerDispatcher dispatcher = new SynchronizerDispatcher(synch, 1);
+
+        // one batch is being handled, one waits and the third doesn't fit
+        assertTrue(dispatcher.dispatch(batch("/content/abi/first"), null));
+        synch.started.await();
+        assertTrue(dispatcher.dispatch(batch("/content/abi/second"), null));
+        long start = System.nanoTime();
+        assertFalse(dispatcher.dispatch(batch("/content/abi/news/2015/a", "/content/abi/news/2016"), null));
+        assertFalse(dispatcher.dispatch(batch("/content/abi/news/2017"), null));
+
+        // a full queue drops the batches right away instead of waiting for room
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(3, dispatcher.getDroppedCount());
+
+        synch.release.countDown();
+        dispatcher.stop();
+
+        assertEquals(Arrays.asList("/content/abi/first", "/content/abi/second"), synch.paths);
+        assertEquals(Arrays.asList("/content/abi/news"), synch.resynched);
+    }
+
+    public void testResizeWaitsForTheOldWorker() throws Exception {
+        BlockingPathSynchronizer synch = new BlockingPathSynchronizer();
+        SynchronizerDispatcher dispatcher = new SynchronizerDispatcher(synch, 2);
+
+        dispatcher.dispatch(batch("/content/abi/first"), null);
+        synch.started.await();
+        dispatcher.dispatch(batch("/content/abi/second"), null);
+        dispatcher.resize(4);
+        dispatcher.dispatch(batch("/content/abi/third"), null);
+
+        // the new worker doesn't start on the third batch while the first is still being handled
+        Thread.sleep(100);
+        assertEquals(1, synch.calls.get());
+
+        synch.release.countDown();
+        dispatcher.stop();
+
+        assertEquals(Arrays.asList("/content/abi/first", "/content/abi/second", "/content/abi/third"), synch.paths);
+    }
+
+    public void testCommonAncestor() throws Exception {
+        assertEquals("/content/abi", SynchronizerDispatcher.getCommonAncestor("/content/abi/a", "/content/abi/b/c"));
+        assertEquals("/content/abi", SynchronizerDispatcher.getCommonAncestor("/content/abi", "/content/abi/b"));
+        assertEquals("/content", SynchronizerDispatcher.getCommonAncestor("/content/abi", "/content/abilities"));
+        assertEquals("/", SynchronizerDispatcher.getCommonAncestor("/content/abi", "/etc/tags"));
+    }
+
+    private List<ChangeRecord> batch(String... paths) {
+        List<ChangeRecord> records = new CopyOnWriteArrayList<ChangeRecord>();
+        for (String path : paths) {
+            records.add(ChangeRecord.synch(path));
+        }
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Blocks in the first change until it is released
+     */
+    private static class BlockingPathSynchronizer implements PathSynchronizer {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private final AtomicInteger calls = new AtomicInteger();
+        private final List<String> paths = new CopyOnWriteArrayList<String>();
+        private final List<String> resynched = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void synchPath(String path) {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException iEx) {
+                Thread.currentThread().interrupt();
+            }
+            paths.add(path);
+        }
+
+        @Override
+        public void resynchSubtree(String path) {
+            resynched.add(path);
+        }
+
+        @Override
+        public void synch(Resource resource) {
+            fail("the resource should not be resolved");
+        }
+
+        @Override
+        public void delete(String path) {
+        }
+    }
+}
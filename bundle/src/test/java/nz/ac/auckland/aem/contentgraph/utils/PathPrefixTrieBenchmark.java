@@ -0,0 +1,104 @@
+package nz.ac.auckland.aem.contentgraph.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marnix Cook
+ *
+ * Compares matching paths with the compiled trie against the `startsWith` loop over
+ * the configured paths that it replaces. Not a unit test, the JMH annotation processor
+ * generates the harness when the test sources are compiled, run it by hand with:
+ *
+ *   mvn -pl bundle test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp bundle/target/test-classes:bundle/target/classes:$(cat bundle/cp.txt) \
+ *        org.openjdk.jmh.Main PathPrefixTrieBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(PathPrefixTrieBenchmark.N_PATHS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathPrefixTrieBenchmark {
+
+    /**
+     * Number of paths matched by a single invocation
+     */
+    public static final int N_PATHS = 4096;
+
+    @Param({ "0", "40", "200" })
+    public int nExclusions;
+
+    private String[] includes = { "/content/abi", "/content/uoa", "/content/shared/", "/etc/tags", "/content/dam/uoa" };
+    private String[] excludes;
+    private String[] paths;
+    private PathPrefixTrie trie;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+
+        this.excludes = new String[this.nExclusions];
+        for (int idx = 0; idx < this.nExclusions; ++idx) {
+            this.excludes[idx] = this.includes[idx % this.includes.length] + "/excluded-" + idx;
+        }
+
+        this.paths = new String[N_PATHS];
+        for (int idx = 0; idx < N_PATHS; ++idx) {
+            String path = this.includes[random.nextInt(this.includes.length)] + "/section-" + random.nextInt(20);
+            if (this.nExclusions > 0 && random.nextInt(10) == 0) {
+                path = this.excludes[random.nextInt(this.nExclusions)];
+            }
+            this.paths[idx] = path + "/page-" + idx + "/jcr:content/par/text";
+        }
+
+        this.trie = new PathPrefixTrie(this.includes, this.excludes);
+    }
+
+    @Benchmark
+    public void startsWithLoop(Blackhole blackhole) {
+        for (String path : this.paths) {
+            blackhole.consume(isTrackedLoop(path, this.includes, this.excludes));
+        }
+    }
+
+    @Benchmark
+    public void trie(Blackhole blackhole) {
+        for (String path : this.paths) {
+            blackhole.consume(this.trie.isTracked(path));
+        }
+    }
+
+    /**
+     * The matching as it was done before the trie
+     */
+    protected static boolean isTrackedLoop(String path, String[] includes, String[] excludes) {
+        for (String excl : excludes) {
+            if (path.startsWith(excl)) {
+                return false;
+            }
+        }
+        for (String incl : includes) {
+            if (path.startsWith(incl)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package nz.ac.auckland.aem.contentgraph.utils;
+
+import junit.framework.TestCase;
+
+public class PathPrefixTrieTest extends TestCase {
+
+    private static final String[] INCLUDE = { "/content/abi", "/etc/tags", "/content/shared/" };
+    private static final String[] EXCLUDE = { "/content/abi/news", "/content/abi/intranet/", "/content/shared/dam" };
+
+    private static final String[] PATHS = {
+        "/content/abi",
+        "/content/abi/",
+        "/content/abilities/page",
+        "/content/abi/mypath/jcr:content",
+        "/content/abi/news",
+        "/content/abi/news/2015",
+        "/content/abi/newsletter",
+        "/content/abi/intranet",
+        "/content/abi/intranet/page",
+        "/content/shared",
+        "/content/shared/",
+        "/content/shared/page",
+        "/content/shared/dam",
+        "/content/shared/damage",
+        "/etc/tags/uoa:topic",
+        "/etc/workflow",
+        "/content",
+        "/",
+        ""
+    };
+
+    public void testMatchesLikeStartsWith() throws Exception {
+        PathPrefixTrie trie = new PathPrefixTrie(INCLUDE, EXCLUDE);
+
+        for (String path : PATHS) {
+            assertEquals(path, startsWithAny(path, INCLUDE), trie.isIncluded(path));
+            assertEquals(path, startsWithAny(path, EXCLUDE), trie.isExcluded(path));
+            assertEquals(
+                path,
+                startsWithAny(path, INCLUDE) && !startsWithAny(path, EXCLUDE),
+                trie.isTracked(path)
+            );
+        }
+    }
+
+    public void testPrunedChildrenAreExcluded() throws Exception {
+        PathPrefixTrie trie = new PathPrefixTrie(INCLUDE, EXCLUDE);
+
+        String[] parents = { "/content", "/content/abi", "/content/abi/intranet", "/content/shared", "/etc/tags", "/" };
+        String[] children = { "news", "newsletter", "intranet", "dam", "damage", "page", "abi", "tags" };
+
+        for (String parent : parents) {
+            String[] prunedNames = trie.getPrunedChildNames(parent);
+            for (String child : children) {
+                String childPath = (parent.endsWith("/") ? parent : parent + "/") + child;
+                assertEquals(childPath, trie.isExcluded(childPath), PathPrefixTrie.isPrunedChild(prunedNames, child));
+            }
+        }
+
+        assertTrue(PathPrefixTrie.isPruningAll(trie.getPrunedChildNames("/content/abi/intranet")));
+        assertFalse(PathPrefixTrie.isPruningAll(trie.getPrunedChildNames("/content/abi")));
+        assertEquals(0, trie.getPrunedChildNames("/etc/tags").length);
+    }
+
+    public void testEmptyConfiguration() throws Exception {
+        PathPrefixTrie trie = new PathPrefixTrie(null, new String[0]);
+        assertFalse(trie.isTracked("/content/abi"));
+        assertFalse(trie.isExcluded("/content/abi"));
+
+        // an empty prefix matches everything, like startsWith does
+        assertTrue(new PathPrefixTrie(new String[] { "" }, null).isTracked("/content/abi"));
+    }
+
+    protected boolean startsWithAny(String path, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package nz.ac.auckland.aem.contentgraph.utils;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+public class PerformanceReportTest extends TestCase {
+
+    public void testConcurrentAddsAreNotLost() throws Exception {
+        final PerformanceReport report = PerformanceReport.getInstance();
+        final int nThreads = 8;
+        final int nAdds = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[nThreads];
+        for (int idx = 0; idx < nThreads; ++idx) {
+            threads[idx] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException iEx) {
+                        return;
+                    }
+                    for (int add = 0; add < nAdds; ++add) {
+                        report.addNanos("test.concurrent", 1000);
+                    }
+                }
+            };
+            threads[idx].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        PerformanceReport.Snapshot snapshot = report.getSnapshots().get("test.concurrent");
+        assertEquals(nThreads * nAdds, snapshot.getCount());
+        assertEquals(1000L * nThreads * nAdds, snapshot.getTotalNanos());
+        assertEquals(1000, snapshot.getMaxNanos());
+    }
+
+    public void testPercentiles() throws Exception {
+        PerformanceReport report = PerformanceReport.getInstance();
+        for (int idx = 1; idx <= 1000; ++idx) {
+            report.addNanos("test.percentiles", idx * 1000L);
+        }
+
+        PerformanceReport.Snapshot snapshot = report.getSnapshots().get("test.percentiles");
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMaxNanos());
+        assertWithin(500000, snapshot.getPercentileNanos(0.5));
+        assertWithin(990000, snapshot.getPercentileNanos(0.99));
+        assertEquals(1000000, snapshot.getPercentileNanos(1.0));
+    }
+
+    public void testMillisecondsAreStillAccepted() throws Exception {
+        PerformanceReport report = PerformanceReport.getInstance();
+        report.addToCategory("test.millis", 15L);
+        report.addToCategory("test.millis", 25L);
+
+        assertEquals(Long.valueOf(40), report.getMap().get("test.millis"));
+    }
+
+    public void testHistogramBucketsAreWithinSixPercent() throws Exception {
+        for (long value = 0; value < 100000; value += 7) {
+            long reported = LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(value));
+            assertTrue(reported >= value);
+            assertTrue(reported <= value + value / 16);
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " > " + expected, actual <= expected + expected / 16);
+    }
+}
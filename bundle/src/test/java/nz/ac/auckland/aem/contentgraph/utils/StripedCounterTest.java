@@ -0,0 +1,42 @@
+package nz.ac.auckland.aem.contentgraph.utils;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+public class StripedCounterTest extends TestCase {
+
+    public void testConcurrentAddsAreNotLost() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final int nThreads = 8;
+        final int nAdds = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[nThreads];
+        for (int idx = 0; idx < nThreads; ++idx) {
+            threads[idx] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException iEx) {
+                        return;
+                    }
+                    for (int add = 0; add < nAdds; ++add) {
+                        counter.increment();
+                        counter.add(2);
+                    }
+                }
+            };
+            threads[idx].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(3L * nThreads * nAdds, counter.sum());
+    }
+}
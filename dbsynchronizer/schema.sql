@@ -12,6 +12,7 @@ CREATE TABLE `Node` (
   `resourceType` varchar(512) DEFAULT NULL,
   `type` varchar(100) DEFAULT NULL,
   `title` text,
+  `hash` bigint DEFAULT NULL,
   PRIMARY KEY (`id`),
   KEY `NodeTypePathMapping` (`resourceType`(100),`path`(200)),
   KEY `SiteTypeMapping` (`site`,`type`,`resourceType`(100))
@@ -34,6 +35,17 @@ CREATE TABLE `Property` (
   KEY `PropertyNameValueAscMapping` (`name`,`value`(200))
 ) ENGINE=MyISAM DEFAULT CHARSET=utf8;
 
+--
+-- Table structure for table `NodeSequence`
+--
+
+DROP TABLE IF EXISTS `NodeSequence`;
+CREATE TABLE `NodeSequence` (
+  `name` varchar(32) NOT NULL,
+  `id` bigint NOT NULL,
+  PRIMARY KEY (`name`)
+) ENGINE=MyISAM DEFAULT CHARSET=utf8;
+
 --
 -- Table structure for table `SynchState`
 --
@@ -1,19 +1,24 @@
 package nz.ac.auckland.aem.contentgraph.dbsynch;
 
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
-import nz.ac.auckland.aem.contentgraph.synch.Synchronizer;
+import nz.ac.auckland.aem.contentgraph.synch.PathSynchronizer;
 
 /**
  * @author Marnix Cook
  *
  * Interface description for the database synchronization implementation
  */
-public interface DatabaseSynchronizer extends Synchronizer {
+public interface DatabaseSynchronizer extends PathSynchronizer {
 
     public static final String BUNDLE_PARAM_ENABLED = "enabled";
     public static final String BUNDLE_PARAM_JDBC = "jdbc";
     public static final String BUNDLE_PARAM_USER = "user";
     public static final String BUNDLE_PARAM_PASSWORD = "password";
+    public static final String BUNDLE_PARAM_POOL_MAX_SIZE = "pool.maxSize";
+    public static final String BUNDLE_PARAM_POOL_MAX_IDLE = "pool.maxIdleSeconds";
+    public static final String BUNDLE_PARAM_POOL_VALIDATION_INTERVAL = "pool.validationIntervalSeconds";
+    public static final String BUNDLE_PARAM_POOL_BORROW_TIMEOUT = "pool.borrowTimeoutSeconds";
+    public static final String BUNDLE_PARAM_VALIDATE_AFTER_IDLE = "connection.validateAfterIdleSeconds";
 
     public ConnectionInfo getConnectionInfo();
 
@@ -2,6 +2,7 @@ package nz.ac.auckland.aem.contentgraph.dbsynch;
 
 import nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathQueue;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionPool;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.DeleteSynchVisitor;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.PersistSynchVisitor;
@@ -55,6 +56,41 @@ import static nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper
         name = DatabaseSynchronizer.BUNDLE_PARAM_PASSWORD,
         label = "Password",
         description = "Database password"
+    ),
+    @Property(
+        name = DatabaseSynchronizer.BUNDLE_PARAM_POOL_MAX_SIZE,
+        label = "Maximum pool size",
+        description =
+                "Maximum number of database connections. A reindex uses one connection per consumer " +
+                "and one per traversal thread, on top of the connections of the periodic job and servlets; " +
+                "a reindex runs with fewer of them when the pool is too small",
+        intValue = DatabaseSynchronizerImpl.DEFAULT_POOL_MAX_SIZE
+    ),
+    @Property(
+        name = DatabaseSynchronizer.BUNDLE_PARAM_POOL_MAX_IDLE,
+        label = "Maximum idle seconds",
+        description = "Idle connections are closed after this number of seconds",
+        intValue = DatabaseSynchronizerImpl.DEFAULT_POOL_MAX_IDLE
+    ),
+    @Property(
+        name = DatabaseSynchronizer.BUNDLE_PARAM_POOL_VALIDATION_INTERVAL,
+        label = "Validation interval in seconds",
+        description = "An idle connection is validated when it is borrowed and wasn't validated for this number of seconds",
+        intValue = DatabaseSynchronizerImpl.DEFAULT_POOL_VALIDATION_INTERVAL
+    ),
+    @Property(
+        name = DatabaseSynchronizer.BUNDLE_PARAM_POOL_BORROW_TIMEOUT,
+        label = "Borrow timeout in seconds",
+        description = "Number of seconds to wait for a connection when all connections are in use",
+        intValue = DatabaseSynchronizerImpl.DEFAULT_POOL_BORROW_TIMEOUT
+    ),
+    @Property(
+        name = DatabaseSynchronizer.BUNDLE_PARAM_VALIDATE_AFTER_IDLE,
+        label = "Validate after idle seconds",
+        description =
+                "A connection that is in use is only validated when it has been idle for this number " +
+                "of seconds, or when a statement failed on it",
+        intValue = DatabaseSynchronizerImpl.DEFAULT_VALIDATE_AFTER_IDLE
     )
 })
 public class DatabaseSynchronizerImpl implements DatabaseSynchronizer {
@@ -64,6 +100,15 @@ public class DatabaseSynchronizerImpl implements DatabaseSynchronizer {
      */
     private static final Logger LOG = LoggerFactory.getLogger(DatabaseSynchronizerImpl.class);
 
+    /**
+     * Connection pool defaults
+     */
+    public static final int DEFAULT_POOL_MAX_SIZE = 16;
+    public static final int DEFAULT_POOL_MAX_IDLE = 300;
+    public static final int DEFAULT_POOL_VALIDATION_INTERVAL = 30;
+    public static final int DEFAULT_POOL_BORROW_TIMEOUT = 30;
+    public static final int DEFAULT_VALIDATE_AFTER_IDLE = 30;
+
     /**
      * Enabled
      */
@@ -85,23 +130,75 @@ public class DatabaseSynchronizerImpl implements DatabaseSynchronizer {
     @Activate @Modified
     public void configChanged(ComponentContext context) {
         this.enabled = (Boolean) context.getProperties().get(BUNDLE_PARAM_ENABLED);
+
+        closeConnectionPool();
         this.connInfo = getConnectionInformation(context);
 
         if (!loadJdbcDriver() || this.connInfo.isIncomplete()) {
             this.enabled = false;
+        } else {
+            this.connInfo.setConnectionPool(getConnectionPool(context, this.connInfo));
         }
     }
 
+    /**
+     * Close the connection pool when the component goes away
+     */
+    @Deactivate
+    public void deactivate() {
+        closeConnectionPool();
+    }
+
+    /**
+     * Close the pool of the current connection information, connections that are
+     * still borrowed are closed when they are returned.
+     */
+    protected void closeConnectionPool() {
+        if (this.connInfo != null && this.connInfo.getConnectionPool() != null) {
+            this.connInfo.getConnectionPool().close();
+        }
+    }
+
+    /**
+     * @return a connection pool configured from the component context
+     */
+    protected ConnectionPool getConnectionPool(ComponentContext context, ConnectionInfo connInfo) {
+        return new ConnectionPool(
+            connInfo,
+            getIntProperty(context, BUNDLE_PARAM_POOL_MAX_SIZE, DEFAULT_POOL_MAX_SIZE),
+            getIntProperty(context, BUNDLE_PARAM_POOL_MAX_IDLE, DEFAULT_POOL_MAX_IDLE),
+            getIntProperty(context, BUNDLE_PARAM_POOL_VALIDATION_INTERVAL, DEFAULT_POOL_VALIDATION_INTERVAL),
+            getIntProperty(context, BUNDLE_PARAM_POOL_BORROW_TIMEOUT, DEFAULT_POOL_BORROW_TIMEOUT)
+        );
+    }
+
+    /**
+     * @return the positive integer configuration value for <code>name</code> or the default value
+     */
+    protected int getIntProperty(ComponentContext context, String name, int defaultValue) {
+        Integer value = (Integer) context.getProperties().get(name);
+        if (value == null || value < 1) {
+            return defaultValue;
+        }
+        return value;
+    }
+
 
     /**
      * @return a connection information instance that
      */
     protected ConnectionInfo getConnectionInformation(ComponentContext context) {
-        return new ConnectionInfo(
+        ConnectionInfo info = new ConnectionInfo(
             (String) context.getProperties().get(BUNDLE_PARAM_JDBC),
             (String) context.getProperties().get(BUNDLE_PARAM_USER),
             (String) context.getProperties().get(BUNDLE_PARAM_PASSWORD)
         );
+
+        info.setValidateAfterIdleMillis(
+            getIntProperty(context, BUNDLE_PARAM_VALIDATE_AFTER_IDLE, DEFAULT_VALIDATE_AFTER_IDLE) * 1000L
+        );
+
+        return info;
     }
 
 
@@ -112,13 +209,46 @@ public class DatabaseSynchronizerImpl implements DatabaseSynchronizer {
      */
     @Override
     public void synch(Resource resource) {
-        if (!this.enabled || resource == null) {
+        if (resource == null) {
+            LOG.info("No resource to synchronize, stopping synch");
+            return;
+        }
+
+        synchPath(resource.getPath());
+    }
+
+    /**
+     * Called when a page is created or updated, only the path is queued so the
+     * resource doesn't have to be read
+     *
+     * @param path the path of the resource that has been changed
+     */
+    @Override
+    public void synchPath(String path) {
+        if (!this.enabled || path == null) {
+            LOG.info("Instant synchronization not enabled, stopping synch");
+            return;
+        }
+
+        LOG.info("Queuing add/update: " + path);
+        pathQueue.add(path);
+    }
+
+    /**
+     * Called when changes underneath a path were lost, the subtree is resynchronised by
+     * the periodic job like one that overflowed the path queue
+     *
+     * @param path the root of the subtree
+     */
+    @Override
+    public void resynchSubtree(String path) {
+        if (!this.enabled || path == null) {
             LOG.info("Instant synchronization not enabled, stopping synch");
             return;
         }
 
-        LOG.info("Queuing add/update: " + resource.getPath());
-        pathQueue.add(resource.getPath());
+        LOG.info("Queuing resync: " + path);
+        pathQueue.resync(path);
     }
 
     /**
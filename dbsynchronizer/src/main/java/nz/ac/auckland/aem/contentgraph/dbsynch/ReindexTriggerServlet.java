@@ -1,10 +1,13 @@
 package nz.ac.auckland.aem.contentgraph.dbsynch;
 
+import nz.ac.auckland.aem.contentgraph.JcrChangeListener;
 import nz.ac.auckland.aem.contentgraph.dbsynch.reindex.DatabaseReindexer;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.SynchronizationManager;
+import nz.ac.auckland.aem.contentgraph.utils.ValidPathHelper;
+import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -23,9 +26,11 @@ import java.sql.SQLException;
 /**
  * @author Marnix Cook
  *
- * This servlet will trigger the reindexing of the entire database. It will
- * return a '423 Locked' when the reindexing is already going on. Otherwise
- * a '200 OK' is returned.
+ * This servlet will trigger the reindexing of the entire database, or of the
+ * subtree in the `path` parameter. With `mode=verify` only the nodes whose
+ * content hash changed are rewritten. It will return a '423 Locked' when the
+ * reindexing is already going on and a '400 Bad Request' when the path is
+ * not synchronised. Otherwise a '200 OK' is returned.
  *
  * More information about http response codes:
  * http://en.wikipedia.org/wiki/List_of_HTTP_status_codes
@@ -35,6 +40,11 @@ public class ReindexTriggerServlet extends SlingSafeMethodsServlet {
 
     public static final int STATUS_LOCKED = 423;
 
+    /**
+     * Value of the `mode` parameter that starts a verify reindex
+     */
+    public static final String MODE_VERIFY = "verify";
+
     /**
      * Hook up Scheduler instance.
      */
@@ -47,6 +57,9 @@ public class ReindexTriggerServlet extends SlingSafeMethodsServlet {
     @Reference
     private DatabaseSynchronizer dbSynch;
 
+    @Reference
+    private JcrChangeListener synchPaths;
+
     /**
      * Logger
      */
@@ -71,6 +84,20 @@ public class ReindexTriggerServlet extends SlingSafeMethodsServlet {
         Database db = null;
         ConnectionInfo connInfo = this.dbSynch.getConnectionInfo();
 
+        String path = StringUtils.removeEnd(request.getParameter("path"), "/");
+        if (path != null && !isSynchronizedPath(path)) {
+            response.getWriter().write("<html><body><p>The path is not synchronised.</p></body></html>");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        boolean verify = MODE_VERIFY.equals(request.getParameter("mode"));
+        if (verify && path != null) {
+            response.getWriter().write("<html><body><p>A verify reindex always covers all paths.</p></body></html>");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
         try {
             db = new Database(connInfo);
 
@@ -81,7 +108,7 @@ public class ReindexTriggerServlet extends SlingSafeMethodsServlet {
             }
 
             // OK, start reindexing job.
-            if (this.scheduleReindex()) {
+            if (verify ? this.scheduleVerify() : this.scheduleReindex(path)) {
                 response.getWriter().write("<html><body><p>Reindex started</p></body></html>");
                 response.setStatus(HttpServletResponse.SC_OK);
             } else {
@@ -99,11 +126,57 @@ public class ReindexTriggerServlet extends SlingSafeMethodsServlet {
     }
 
     /**
+     * @return true if <code>path</code> is an absolute path that is synchronised
+     */
+    protected boolean isSynchronizedPath(String path) {
+        return
+            path.startsWith("/") &&
+            ValidPathHelper.isTrackedContentPath(path, this.synchPaths.getPathTrie());
+    }
+
+    /**
+     * @param path the root of the subtree to reindex, or null to reindex everything
      * @return true if the job was scheduled properly.
      */
-    protected boolean scheduleReindex() {
+    protected boolean scheduleReindex(final String path) {
+        try {
+            if (path == null) {
+                scheduler.fireJob(this.dbReindexer, null);
+            } else {
+                scheduler.fireJob(
+                    new Runnable() {
+
+                        @Override
+                        public void run() {
+                            dbReindexer.reindexSubtree(path);
+                        }
+                    },
+                    null
+                );
+            }
+            return true;
+        }
+        catch (Exception ex) {
+            LOG.error("Cannot schedule the fire job, because:", ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the verify reindex was scheduled properly.
+     */
+    protected boolean scheduleVerify() {
         try {
-            scheduler.fireJob(this.dbReindexer, null);
+            scheduler.fireJob(
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        dbReindexer.verify();
+                    }
+                },
+                null
+            );
             return true;
         }
         catch (Exception ex) {
@@ -0,0 +1,192 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.periodic;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.*;
+
+/**
+ * @author Marnix Cook
+ *
+ * Collapses queued operations into as few path elements as possible. The operations
+ * have to be applied in the order in which they happened. Not thread-safe, the path
+ * queue replays a flushed batch into a new instance on the flushing thread.
+ *
+ * Updates and deletes are kept in path order so the ancestors and descendants of a
+ * path can be found when an operation is applied. A page activation fires an event
+ * for the page, its jcr:content node and every component, these end up as a single
+ * update for the page.
+ */
+public class PathCoalescer {
+
+    /**
+     * Coalesced operations by path, an update is never underneath another update,
+     * a delete never underneath another delete and nothing is underneath a resync.
+     */
+    private TreeMap<String, PathElement> updates = new TreeMap<String, PathElement>();
+    private TreeMap<String, PathElement> deletes = new TreeMap<String, PathElement>();
+    private TreeMap<String, PathElement> resyncs = new TreeMap<String, PathElement>();
+
+    /**
+     * Number of updates that were merged into an update of the same path or an ancestor
+     */
+    private long nMerged;
+
+    /**
+     * Number of queued elements and operations dropped because a delete or resync covers them
+     */
+    private long nSuperseded;
+
+    /**
+     * Apply an update of <code>path</code>
+     *
+     * @param path the path to add
+     */
+    public void add(String path) {
+
+        // already queued, or part of a subtree that is being updated or resynchronised
+        if (getSelfOrAncestor(this.resyncs, path) != null) {
+            ++nSuperseded;
+            return;
+        }
+        PathElement ancestor = getSelfOrAncestor(this.updates, path);
+        if (ancestor != null) {
+            if (!ancestor.getPath().equals(path)) {
+                ancestor.merge(path, null);
+            }
+            ++nMerged;
+            return;
+        }
+
+        // take over the updates that were queued for descendants
+        PathElement element = new PathElement(path, Update);
+        SortedMap<String, PathElement> descendants = getDescendants(this.updates, path);
+        for (PathElement descendant : descendants.values()) {
+            element.merge(descendant.getPath(), descendant.getMergedPaths());
+        }
+        nMerged += descendants.size();
+        descendants.clear();
+
+        this.updates.put(path, element);
+    }
+
+    /**
+     * Apply a delete of <code>path</code>, removes everything that was queued for its subtree
+     *
+     * @param path to be deleted
+     */
+    public void delete(String path) {
+        if (getSelfOrAncestor(this.resyncs, path) != null) {
+            ++nSuperseded;
+            return;
+        }
+
+        nSuperseded += removeSubtree(this.updates, path);
+
+        // an ancestor delete removes this subtree already
+        if (getSelfOrAncestor(this.deletes, path) != null) {
+            ++nSuperseded;
+            return;
+        }
+
+        nSuperseded += clear(getDescendants(this.deletes, path));
+        this.deletes.put(path, new PathElement(path, Delete));
+    }
+
+    /**
+     * Resynchronise the subtree at <code>path</code> from the repository, it replaces
+     * every operation that was queued for the subtree.
+     *
+     * @param path the root of the subtree
+     */
+    public void resync(String path) {
+        if (getSelfOrAncestor(this.resyncs, path) != null) {
+            ++nSuperseded;
+            return;
+        }
+
+        nSuperseded += removeSubtree(this.updates, path);
+        nSuperseded += this.deletes.remove(path) == null ? 0 : 1;
+        nSuperseded += clear(getDescendants(this.deletes, path));
+        nSuperseded += clear(getDescendants(this.resyncs, path));
+
+        this.resyncs.put(path, new PathElement(path, Resync));
+    }
+
+    /**
+     * @return the coalesced elements, deletes first, then updates and resyncs
+     */
+    public Set<PathElement> getElements() {
+        Set<PathElement> elements = new LinkedHashSet<PathElement>(this.deletes.values());
+        elements.addAll(this.updates.values());
+        elements.addAll(this.resyncs.values());
+        return elements;
+    }
+
+    /**
+     * @return the number of updates that were merged into another one so far
+     */
+    public long getMergedCount() {
+        return nMerged;
+    }
+
+    /**
+     * @return the number of elements and operations that a delete or resync replaced so far
+     */
+    public long getSupersededCount() {
+        return nSuperseded;
+    }
+
+    /**
+     * Remove the updates at or below <code>path</code>, also when they were merged into an ancestor
+     *
+     * @return the number of elements and merged paths that were removed
+     */
+    protected int removeSubtree(TreeMap<String, PathElement> elements, String path) {
+        int nRemoved = elements.remove(path) == null ? 0 : 1;
+        nRemoved += clear(getDescendants(elements, path));
+
+        PathElement ancestor = getSelfOrAncestor(elements, path);
+        if (ancestor != null) {
+            nRemoved += ancestor.unmerge(path);
+        }
+        return nRemoved;
+    }
+
+    /**
+     * Remove the elements of <code>view</code> from the map it is backed by
+     *
+     * @return the number of removed elements
+     */
+    protected int clear(SortedMap<String, PathElement> view) {
+        int size = view.size();
+        view.clear();
+        return size;
+    }
+
+    /**
+     * @return the element queued for <code>path</code> or its closest ancestor, or null
+     */
+    protected PathElement getSelfOrAncestor(Map<String, PathElement> elements, String path) {
+        String current = path;
+        while (current.length() > 0) {
+            PathElement element = elements.get(current);
+            if (element != null) {
+                return element;
+            }
+            current = current.equals("/") ? "" : PathElement.getParentPath(current);
+        }
+        return null;
+    }
+
+    /**
+     * @return a view of the elements queued underneath <code>path</code>, '0' follows '/'
+     */
+    protected SortedMap<String, PathElement> getDescendants(TreeMap<String, PathElement> elements, String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        return elements.subMap(prefix, prefix.substring(0, prefix.length() - 1) + "0");
+    }
+}
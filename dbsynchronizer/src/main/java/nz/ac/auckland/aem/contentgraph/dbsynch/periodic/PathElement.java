@@ -1,22 +1,40 @@
 package nz.ac.auckland.aem.contentgraph.dbsynch.periodic;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
 import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Delete;
 
 /**
  * @author Marnix Cook
  *
- * Path element contains information that gets stored in the PathQueue object
+ * Path element contains information that gets stored in the PathQueue object.
+ *
+ * An update element can have descendant updates merged into it, they are synchronised
+ * together with the element's own node. A delete element removes the whole subtree and a
+ * resync element reindexes it.
  */
 public class PathElement implements Comparable<PathElement> {
 
     public static enum PathOperation {
         Update,
-        Delete
+        Delete,
+
+        /**
+         * Operations for the subtree were dropped, it has to be reindexed
+         */
+        Resync
     }
 
     private String path;
     private PathOperation op;
 
+    /**
+     * Paths of descendant updates that were merged into this update
+     */
+    private TreeSet<String> mergedPaths;
+
     /**
      * Initialize data-members
      *
@@ -45,22 +63,123 @@ public class PathElement implements Comparable<PathElement> {
     }
 
 
-    public boolean equals(PathElement other) {
-        return this.path.equals(other.path) && this.op == other.op;
+    /**
+     * Merge a descendant update, and the updates that were merged into it, into this update
+     *
+     * @param descendantPath the path of the descendant update
+     * @param descendantMerged the paths that were merged into the descendant, or null
+     */
+    public void merge(String descendantPath, Set<String> descendantMerged) {
+        if (this.mergedPaths == null) {
+            this.mergedPaths = new TreeSet<String>();
+        }
+        this.mergedPaths.add(descendantPath);
+        if (descendantMerged != null) {
+            this.mergedPaths.addAll(descendantMerged);
+        }
+    }
+
+    /**
+     * Remove merged updates that are at or below <code>rootPath</code>
+     *
+     * @param rootPath the root of the subtree that was deleted
+     * @return the number of merged updates that were removed
+     */
+    public int unmerge(String rootPath) {
+        if (this.mergedPaths == null) {
+            return 0;
+        }
+        int nRemoved = this.mergedPaths.remove(rootPath) ? 1 : 0;
+
+        // '0' follows '/', so this view holds exactly the descendants
+        Set<String> descendants = this.mergedPaths.subSet(rootPath + "/", rootPath + "0");
+        nRemoved += descendants.size();
+        descendants.clear();
+
+        return nRemoved;
+    }
+
+    /**
+     * @return the paths of the descendant updates merged into this update, in path order
+     */
+    public Set<String> getMergedPaths() {
+        if (this.mergedPaths == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(this.mergedPaths);
+    }
+
+    /**
+     * @return true if this element is about <code>otherPath</code>, itself or as a merged update
+     */
+    public boolean includes(String otherPath) {
+        return this.path.equals(otherPath) || (this.mergedPaths != null && this.mergedPaths.contains(otherPath));
+    }
+
+    /**
+     * @return the parent of <code>path</code>, the root is the parent of top-level paths
+     */
+    public static String getParentPath(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash <= 0 ? "/" : path.substring(0, lastSlash);
+    }
+
+    /**
+     * @return <code>path</code> without the part from its `jcr:content` on, the page it belongs to
+     */
+    public static String getPagePath(String path) {
+        int jcrContentIdx = path.indexOf("/jcr:content");
+        return jcrContentIdx == -1 ? path : path.substring(0, jcrContentIdx);
+    }
+
+    /**
+     * @return the closest path that is <code>first</code> or <code>second</code>, or an ancestor of both
+     */
+    public static String getCommonAncestor(String first, String second) {
+        String ancestor = first;
+        while (!isSelfOrAncestor(ancestor, second)) {
+            ancestor = getParentPath(ancestor);
+        }
+        return ancestor;
+    }
+
+    /**
+     * @return true if <code>ancestor</code> is <code>path</code> or one of its ancestors
+     */
+    public static boolean isSelfOrAncestor(String ancestor, String path) {
+        return
+            path.equals(ancestor) ||
+            path.startsWith(ancestor.endsWith("/") ? ancestor : ancestor + "/");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof PathElement)) {
+            return false;
+        }
+        PathElement otherElement = (PathElement) other;
+        return this.path.equals(otherElement.path) && this.op == otherElement.op;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.path.hashCode() + this.op.hashCode();
     }
 
     @Override
     public int compareTo(PathElement other) {
 
         // if it's the same path, make sure the delete operation
-        // has priority over an update operation
+        // has priority over the other operations
         if (this.path.equals(other.path)) {
             if (this.op == other.op) {
                 return 0;
             } else if (this.op == Delete) {
                 return -1;
-            } else {
+            } else if (other.op == Delete) {
                 return 1;
+            } else {
+                return this.op.compareTo(other.op);
             }
         }
 
@@ -0,0 +1,424 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.periodic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.*;
+
+/**
+ * @author Marnix Cook
+ *
+ * Append-only journal of the operations in the path queue, so they survive a restart of
+ * AEM or a refresh of the bundle. Every batch of the queue writes to a segment of its own,
+ * a memory-mapped file of a fixed size. Appending reserves room with an atomic counter and
+ * copies the record into the mapping, the operating system writes it out, so there is no
+ * lock and no system call per operation.
+ *
+ * Once the operations of a segment have been committed to the database the segment is
+ * released: it is cleared and kept mapped for a later batch, so a flush doesn't map a new
+ * file. Released segments beyond {@link #MAX_FREE_SEGMENTS} are unmapped and deleted.
+ *
+ * A segment starts with a header that holds the sequence number of its batch and the
+ * overflow root, followed by the records: an operation byte, a two byte length and the
+ * UTF-8 encoded path. The operation byte is written last, reading stops at the first
+ * record that has none. A reused file keeps its name, so segments are ordered by the
+ * sequence number in their header.
+ */
+public class PathJournal {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PathJournal.class);
+
+    /**
+     * Paths are stored as UTF-8
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Extension of segment files
+     */
+    private static final String EXTENSION = ".journal";
+
+    /**
+     * Room for the overflow root, the records start after it
+     */
+    public static final int HEADER_SIZE = 4096;
+
+    /**
+     * Offset of the overflow root in the header, after the sequence number
+     */
+    private static final int ROOT_OFFSET = 8;
+
+    /**
+     * Number of released segments that are kept for reuse
+     */
+    public static final int MAX_FREE_SEGMENTS = 2;
+
+    /**
+     * Size of a record without its path
+     */
+    private static final int RECORD_OVERHEAD = 3;
+
+    private File directory;
+    private long nextSequence;
+
+    /**
+     * Released segments, ready to be reused
+     */
+    private LinkedList<Segment> freeSegments = new LinkedList<Segment>();
+
+    /**
+     * Initialize data-members, new segments are numbered after the existing ones
+     *
+     * @param directory the directory the segments are written to
+     * @throws IOException when the directory can't be created
+     */
+    public PathJournal(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the path journal directory " + directory);
+        }
+        this.directory = directory;
+
+        // a file is named after the sequence number it was created with, its header holds the latest
+        this.nextSequence = 1;
+        for (File file : getSegmentFiles()) {
+            this.nextSequence = Math.max(this.nextSequence, Math.max(getSequence(file), readSequence(file)) + 1);
+        }
+    }
+
+    /**
+     * Hand out a segment for a new batch, a released segment of the same size is reused
+     *
+     * @param size the size of the segment in bytes
+     * @return the segment
+     * @throws IOException when it can't be created or mapped
+     */
+    public synchronized Segment acquireSegment(int size) throws IOException {
+        long sequence = this.nextSequence++;
+
+        Iterator<Segment> freeIt = this.freeSegments.iterator();
+        while (freeIt.hasNext()) {
+            Segment segment = freeIt.next();
+            if (segment.buffer.capacity() == size) {
+                freeIt.remove();
+                segment.setSequence(sequence);
+                return segment;
+            }
+        }
+
+        File file = new File(this.directory, String.format("%012d%s", sequence, EXTENSION));
+
+        RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+        try {
+            raFile.setLength(size);
+            Segment segment = new Segment(file, raFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segment.setSequence(sequence);
+            return segment;
+        }
+        finally {
+            // the mapping stays valid after the file is closed
+            raFile.close();
+        }
+    }
+
+    /**
+     * Release a segment, its operations have been committed. It is cleared for reuse, or
+     * unmapped and deleted when enough segments are kept already.
+     *
+     * @param segment the segment to release
+     */
+    public synchronized void releaseSegment(Segment segment) {
+        segment.clear();
+
+        if (this.freeSegments.size() < MAX_FREE_SEGMENTS) {
+            this.freeSegments.add(segment);
+        } else {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Unmap and delete the released segments
+     */
+    public synchronized void close() {
+        for (Segment segment : this.freeSegments) {
+            segment.delete();
+        }
+        this.freeSegments.clear();
+    }
+
+    /**
+     * @return the segments that are on disk, oldest batch first
+     */
+    public List<File> getSegmentFiles() {
+        File[] files = this.directory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(EXTENSION);
+            }
+        });
+
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File first, File second) {
+                return Long.valueOf(readSequence(first)).compareTo(readSequence(second));
+            }
+        });
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    /**
+     * Read the operations of a segment file in the order they were appended
+     *
+     * @param file the segment file
+     * @return the operations, the overflow root comes last as a resync element
+     * @throws IOException when the file can't be read
+     */
+    public List<PathElement> read(File file) throws IOException {
+        List<PathElement> elements = new ArrayList<PathElement>();
+
+        RandomAccessFile raFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer = null;
+        try {
+            buffer = raFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raFile.length());
+
+            int position = HEADER_SIZE;
+            while (position + RECORD_OVERHEAD <= buffer.limit()) {
+                PathElement.PathOperation op = getOperation(buffer.get(position));
+                if (op == null) {
+                    break;
+                }
+
+                int length = buffer.getShort(position + 1) & 0xffff;
+                elements.add(new PathElement(readString(buffer, position + RECORD_OVERHEAD, length), op));
+                position += RECORD_OVERHEAD + length;
+            }
+
+            if (buffer.limit() >= HEADER_SIZE) {
+                int rootLength = buffer.getShort(ROOT_OFFSET) & 0xffff;
+                if (rootLength > 0) {
+                    elements.add(new PathElement(readString(buffer, ROOT_OFFSET + 2, rootLength), Resync));
+                }
+            }
+        }
+        finally {
+            raFile.close();
+
+            // the strings are copies, so the file can be deleted right after
+            if (buffer != null) {
+                unmap(buffer);
+            }
+        }
+
+        return elements;
+    }
+
+    protected static String readString(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    protected static PathElement.PathOperation getOperation(byte opByte) {
+        switch (opByte) {
+            case 1: return Update;
+            case 2: return Delete;
+            default: return null;
+        }
+    }
+
+    /**
+     * @return the sequence number in the header of <code>file</code>, 0 when it has none
+     */
+    protected static long readSequence(File file) {
+        try {
+            RandomAccessFile raFile = new RandomAccessFile(file, "r");
+            try {
+                return raFile.length() >= HEADER_SIZE ? raFile.readLong() : 0;
+            }
+            finally {
+                raFile.close();
+            }
+        }
+        catch (IOException ioEx) {
+            return 0;
+        }
+    }
+
+    /**
+     * Release the mapping of <code>buffer</code> right away instead of when it is garbage
+     * collected, a mapped file can't be deleted on Windows. The buffer must not be used after.
+     * There is no public API for this before Java 9, the cleaner is called by reflection.
+     */
+    protected static void unmap(MappedByteBuffer buffer) {
+        try {
+            // up to Java 8 the buffer has a cleaner
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            Method cleanMethod = cleaner.getClass().getMethod("clean");
+            cleanMethod.setAccessible(true);
+            cleanMethod.invoke(cleaner);
+            return;
+        }
+        catch (Exception ex) {
+            // not accessible on newer runtimes
+        }
+
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            unsafeField.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafeField.get(null), buffer);
+        }
+        catch (Exception ex) {
+            LOG.debug("Could not unmap a path journal segment, it is unmapped when it is garbage collected", ex);
+        }
+    }
+
+    protected static long getSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+        }
+        catch (NumberFormatException nfEx) {
+            return 0;
+        }
+    }
+
+    /**
+     * A memory-mapped segment that a single batch at a time appends to
+     */
+    public static class Segment {
+
+        private File file;
+        private MappedByteBuffer buffer;
+
+        /**
+         * Offset of the next record
+         */
+        private AtomicInteger position = new AtomicInteger(HEADER_SIZE);
+
+        protected Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Append an update or delete, safe to call from many threads at once
+         *
+         * @param element the operation to append
+         * @return false if the segment has no room for it
+         */
+        public boolean append(PathElement element) {
+            byte[] path = element.getPath().getBytes(UTF8);
+            int length = RECORD_OVERHEAD + path.length;
+
+            if (path.length > 0xffff) {
+                return false;
+            }
+
+            int offset = this.position.getAndAdd(length);
+            if (offset + length > this.buffer.capacity()) {
+                return false;
+            }
+
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(offset + 1);
+            view.putShort((short) path.length);
+            view.put(path);
+
+            // marks the record as complete
+            this.buffer.put(offset, (byte) (element.getOp() == Delete ? 2 : 1));
+            return true;
+        }
+
+        /**
+         * Store the overflow root of the batch, the length goes last so a torn write reads as no root
+         *
+         * @param root the closest common ancestor of the operations that did not fit
+         */
+        public synchronized void writeOverflowRoot(String root) {
+            byte[] path = root.getBytes(UTF8);
+            if (path.length > HEADER_SIZE - ROOT_OFFSET - 2) {
+                path = "/".getBytes(UTF8);
+            }
+
+            this.buffer.putShort(ROOT_OFFSET, (short) 0);
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(ROOT_OFFSET + 2);
+            view.put(path);
+            this.buffer.putShort(ROOT_OFFSET, (short) path.length);
+        }
+
+        protected void setSequence(long sequence) {
+            this.buffer.putLong(0, sequence);
+        }
+
+        /**
+         * Remove the overflow root and the records, the first record goes first so a torn
+         * clear reads as an empty segment
+         */
+        protected synchronized void clear() {
+            int end = Math.min(this.position.get(), this.buffer.capacity());
+
+            if (end > HEADER_SIZE) {
+                this.buffer.put(HEADER_SIZE, (byte) 0);
+            }
+            this.buffer.putShort(ROOT_OFFSET, (short) 0);
+
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(HEADER_SIZE);
+            byte[] zeros = new byte[Math.min(end - HEADER_SIZE, 64 * 1024)];
+            while (view.position() < end) {
+                view.put(zeros, 0, Math.min(zeros.length, end - view.position()));
+            }
+
+            this.position.set(HEADER_SIZE);
+        }
+
+        /**
+         * Unmap and remove the segment
+         */
+        protected void delete() {
+            unmap(this.buffer);
+            this.buffer = null;
+
+            if (!this.file.delete()) {
+                LOG.warn("Could not delete path journal segment {}, it is replayed at the next start", this.file);
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+}
@@ -8,7 +8,12 @@ import java.util.Set;
  * The path queue will contain paths that have been signalled as updated and
  * will be emptied once the periodic update job runs.
  *
- * The methods in its implementation should be thread-safe.
+ * The methods in its implementation should be thread-safe, adding a path should
+ * not block behind a flush.
+ *
+ * Operations are coalesced as they are added: a delete supersedes the operations that
+ * were queued for its subtree, and an update underneath an update that is already
+ * queued is merged into it.
  */
 public interface PathQueue {
 
@@ -26,12 +31,57 @@ public interface PathQueue {
      */
     public void delete(String path);
 
+    /**
+     * Add a subtree to be resynchronised as a whole, the next flush hands it out as
+     * a resync element
+     *
+     * @param path the root of the subtree
+     */
+    public void resync(String path);
+
     /**
      * Flushes the queue and returns the current set of paths that
-     * have been added.
+     * have been added. All deletes come before the updates, every update
+     * that is left underneath a delete was queued after it. When operations
+     * had to be dropped, the set ends with resync elements for the subtrees
+     * they were in. The elements of an earlier flush that was not checkpointed
+     * are handed out again, coalesced with the newer operations.
      *
      * @return the paths.
      */
     public Set<PathElement> flushAndGet();
 
+    /**
+     * Called when the operations of the flushes so far have been committed, they
+     * no longer have to be handed out again or survive a restart.
+     */
+    public void checkpoint();
+
+    /**
+     * @return the number of add and delete operations received since activation
+     */
+    public long getReceivedCount();
+
+    /**
+     * @return the number of elements handed out by flushes since activation
+     */
+    public long getFlushedCount();
+
+    /**
+     * @return the number of operations that did not fit in the queue since activation
+     */
+    public long getOverflowCount();
+
+    /**
+     * @return the number of updates that flushes merged into an update of the same path
+     *         or an ancestor since activation
+     */
+    public long getMergedCount();
+
+    /**
+     * @return the number of queued operations that flushes dropped because a later delete
+     *         or resync covered them since activation
+     */
+    public long getSupersededCount();
+
 }
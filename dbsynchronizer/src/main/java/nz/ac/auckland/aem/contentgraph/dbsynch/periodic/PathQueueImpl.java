@@ -1,28 +1,179 @@
 package nz.ac.auckland.aem.contentgraph.dbsynch.periodic;
 
+import nz.ac.auckland.aem.contentgraph.utils.StripedCounter;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.LinkedHashSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.*;
 
 /**
  * @author Marnix Cook
+ *
+ * Event handler threads append their operations to the current batch without taking a
+ * lock. A flush swaps in an empty batch and coalesces the operations of the old one on
+ * the flushing thread, so adding a path never waits for the periodic job.
+ *
+ * A batch holds at most `capacity` operations. Operations beyond that are not stored,
+ * the batch only remembers the closest common ancestor of their pages and the flush
+ * hands it out as a subtree to resynchronise.
+ *
+ * Each batch is also written to a segment of the path journal in the bundle's data area.
+ * The periodic job checkpoints the queue once the flushed operations are committed, which
+ * releases the segments of every flush up to then. Until that happens the elements of the
+ * uncommitted flushes are handed out again by the next flush, ahead of the newer
+ * operations, and their segments stay on disk. Segments that are still on disk when the
+ * component is activated are replayed into the queue.
  */
 @Service
-@Component
+@Component(
+    metatype = true,
+    name = "UoA Database Synchronizer Path Queue"
+)
+@Properties({
+    @Property(
+        name = "capacity",
+        label = "Capacity",
+        description = "Maximum number of operations queued between two periodic updates, beyond it the affected subtree is reindexed",
+        intValue = PathQueueImpl.DEFAULT_CAPACITY
+    )
+})
 public class PathQueueImpl implements PathQueue {
 
-    private Set<PathElement> paths;
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PathQueueImpl.class);
+
+    /**
+     * Default number of operations a batch holds
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * Journal room per operation, a record that doesn't fit in its segment overflows
+     */
+    public static final int JOURNAL_BYTES_PER_OPERATION = 256;
+
+    /**
+     * Largest journal segment
+     */
+    public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The batch new operations are appended to
+     */
+    private final AtomicReference<Batch> current = new AtomicReference<Batch>(new Batch(null));
+
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * Journal the batches are written to, null when the bundle has no data area
+     */
+    private volatile PathJournal journal;
+
+    /**
+     * Segments of the batches flushed since the last checkpoint, released by the next one
+     */
+    private final List<PathJournal.Segment> flushedSegments = new ArrayList<PathJournal.Segment>();
+
+    /**
+     * Elements of the last flush when it has not been checkpointed yet
+     */
+    private Set<PathElement> uncommitted;
+
+    /**
+     * Coalescing statistics
+     */
+    private final StripedCounter nReceived = new StripedCounter();
+    private final StripedCounter nFlushed = new StripedCounter();
+    private final StripedCounter nOverflowed = new StripedCounter();
+    private final StripedCounter nMerged = new StripedCounter();
+    private final StripedCounter nSuperseded = new StripedCounter();
+
+    /**
+     * Read the capacity from the configuration
+     *
+     * @param context is the context to read the configuration from
+     */
+    @Activate @Modified
+    public void configChanged(ComponentContext context) {
+        Integer cfgCapacity = (Integer) context.getProperties().get("capacity");
+        setCapacity(cfgCapacity == null ? DEFAULT_CAPACITY : cfgCapacity);
+
+        if (this.journal == null) {
+            File directory = context.getBundleContext().getDataFile("pathqueue");
+            if (directory == null) {
+                LOG.warn("No bundle data area, the path queue is not journaled and is lost on restart");
+            } else {
+                openJournal(directory);
+            }
+        }
+    }
 
     /**
-     * Initialize data-members
+     * Unmap the journal segments that are kept for reuse
      */
-    public PathQueueImpl() {
-        reset();
+    @Deactivate
+    public void deactivate() {
+        PathJournal currentJournal = this.journal;
+        if (currentJournal != null) {
+            currentJournal.close();
+        }
+    }
+
+    /**
+     * Start journaling the batches to <code>directory</code> and replay the segments that
+     * were left behind by an earlier instance.
+     *
+     * @param directory the journal directory
+     */
+    public void openJournal(File directory) {
+        try {
+            PathJournal newJournal = getPathJournal(directory);
+            List<File> leftBehind = newJournal.getSegmentFiles();
+
+            this.journal = newJournal;
+            swapBatch();
+
+            int nReplayed = 0;
+            for (File segmentFile : leftBehind) {
+                for (PathElement operation : newJournal.read(segmentFile)) {
+                    offer(operation);
+                    ++nReplayed;
+                }
+            }
+
+            // replayed operations are in the new segment now
+            for (File segmentFile : leftBehind) {
+                if (!segmentFile.delete()) {
+                    LOG.warn("Could not delete replayed path journal segment {}", segmentFile);
+                }
+            }
+
+            if (nReplayed > 0) {
+                LOG.info("Replayed {} path queue operations from {} journal segments", nReplayed, leftBehind.size());
+            }
+        }
+        catch (IOException ioEx) {
+            LOG.error("Could not open the path journal, the path queue is lost on restart", ioEx);
+        }
     }
 
     /**
@@ -31,31 +182,274 @@ public class PathQueueImpl implements PathQueue {
      * @param path the path to add
      */
     @Override
-    public synchronized void add(String path) {
-        this.paths.add(new PathElement(path, Update));
+    public void add(String path) {
+        offer(new PathElement(path, Update));
     }
 
+    /**
+     * Path to delete
+     *
+     * @param path to be deleted
+     */
     @Override
     public void delete(String path) {
-        this.paths.add(new PathElement(path, Delete));
+        offer(new PathElement(path, Delete));
     }
 
     /**
-     * Flush and retrieve the path contents
+     * Subtree to resynchronise, it is merged with the subtrees of operations that did not fit
      *
-     * @return the current set of paths
+     * @param path the root of the subtree
+     */
+    @Override
+    public void resync(String path) {
+        offer(new PathElement(path, Resync));
+    }
+
+    /**
+     * Swap in an empty batch and coalesce the operations of the current one, after the
+     * elements of an earlier flush that was not checkpointed
+     *
+     * @return the current set of paths, deletes first
      */
     @Override
     public synchronized Set<PathElement> flushAndGet() {
-        Set<PathElement> oldPaths = this.paths;
-        reset();
-        return oldPaths;
+        Batch batch = swapBatch();
+        if (batch.segment != null) {
+            this.flushedSegments.add(batch.segment);
+        }
+
+        PathCoalescer coalescer = getPathCoalescer();
+        if (this.uncommitted != null) {
+            LOG.info("Handing out the {} queue elements of an uncommitted flush again", this.uncommitted.size());
+            for (PathElement element : this.uncommitted) {
+                switch (element.getOp()) {
+                    case Delete: coalescer.delete(element.getPath()); break;
+                    case Update: readd(coalescer, element); break;
+                    default: coalescer.resync(element.getPath()); break;
+                }
+            }
+        }
+
+        for (PathElement operation : batch.operations) {
+            if (operation.getOp() == Delete) {
+                coalescer.delete(operation.getPath());
+            } else {
+                coalescer.add(operation.getPath());
+            }
+        }
+
+        String overflowRoot = batch.overflowRoot.get();
+        if (overflowRoot != null) {
+            LOG.warn("The path queue overflowed, `{}` has to be resynchronised", overflowRoot);
+            coalescer.resync(overflowRoot);
+        }
+
+        Set<PathElement> elements = coalescer.getElements();
+        this.uncommitted = elements;
+
+        this.nFlushed.add(elements.size());
+        this.nMerged.add(coalescer.getMergedCount());
+        this.nSuperseded.add(coalescer.getSupersededCount());
+
+        if (!elements.isEmpty()) {
+            LOG.debug("Flushing {} queue elements, {} updates were merged and {} operations superseded",
+                    new Object[] { elements.size(), coalescer.getMergedCount(), coalescer.getSupersededCount() });
+        }
+
+        return elements;
     }
 
     /**
-     * Reset the queue
+     * Add an update that was handed out before, together with the descendant updates
+     * that were merged into it
      */
-    protected void reset() {
-        this.paths = new TreeSet<PathElement>();
+    protected void readd(PathCoalescer coalescer, PathElement element) {
+        coalescer.add(element.getPath());
+        for (String mergedPath : element.getMergedPaths()) {
+            coalescer.add(mergedPath);
+        }
+    }
+
+    /**
+     * Release the journal segments of all flushes so far, their operations have been committed
+     */
+    @Override
+    public synchronized void checkpoint() {
+        for (PathJournal.Segment segment : this.flushedSegments) {
+            this.journal.releaseSegment(segment);
+        }
+        this.flushedSegments.clear();
+        this.uncommitted = null;
+    }
+
+    /**
+     * Swap in an empty batch with a segment of its own
+     *
+     * @return the batch that was swapped out, no thread appends to it anymore
+     */
+    protected Batch swapBatch() {
+        Batch batch = this.current.getAndSet(new Batch(createSegment()));
+
+        // writers that got hold of the batch before the swap are about to finish
+        while (batch.writers.get() > 0) {
+            Thread.yield();
+        }
+        return batch;
+    }
+
+    /**
+     * @return a journal segment sized for the capacity, or null when not journaling
+     */
+    protected PathJournal.Segment createSegment() {
+        PathJournal currentJournal = this.journal;
+        if (currentJournal == null) {
+            return null;
+        }
+
+        long size = PathJournal.HEADER_SIZE + (long) this.capacity * JOURNAL_BYTES_PER_OPERATION;
+        try {
+            return currentJournal.acquireSegment((int) Math.min(size, MAX_SEGMENT_SIZE));
+        }
+        catch (IOException ioEx) {
+            LOG.error("Could not create a path journal segment, the next batch is not journaled", ioEx);
+            return null;
+        }
+    }
+
+    /**
+     * Append an operation to the current batch. When a flush swaps the batch after it was
+     * read, the operation is appended to the new batch instead.
+     *
+     * @param operation the operation to append
+     */
+    protected void offer(PathElement operation) {
+        this.nReceived.increment();
+
+        while (true) {
+            Batch batch = this.current.get();
+            batch.writers.incrementAndGet();
+            try {
+                if (this.current.get() != batch) {
+                    continue;
+                }
+
+                if (operation.getOp() == Resync) {
+                    batch.markOverflow(operation.getPath());
+                }
+                else if (batch.size.incrementAndGet() <= this.capacity && batch.journal(operation)) {
+                    batch.operations.offer(operation);
+                }
+                else {
+                    this.nOverflowed.increment();
+                    batch.markOverflow(operation.getPath());
+                }
+                return;
+            }
+            finally {
+                batch.writers.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long getReceivedCount() {
+        return nReceived.sum();
+    }
+
+    @Override
+    public long getFlushedCount() {
+        return nFlushed.sum();
+    }
+
+    @Override
+    public long getOverflowCount() {
+        return nOverflowed.sum();
+    }
+
+    @Override
+    public long getMergedCount() {
+        return nMerged.sum();
+    }
+
+    @Override
+    public long getSupersededCount() {
+        return nSuperseded.sum();
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @return the journal that writes to <code>directory</code> (part of class seam)
+     */
+    protected PathJournal getPathJournal(File directory) throws IOException {
+        return new PathJournal(directory);
+    }
+
+    /**
+     * @return a coalescer for a flushed batch (part of class seam)
+     */
+    protected PathCoalescer getPathCoalescer() {
+        return new PathCoalescer();
+    }
+
+    /**
+     * The operations that were added between two flushes
+     */
+    protected static class Batch {
+
+        /**
+         * Journal segment of the batch, or null
+         */
+        private final PathJournal.Segment segment;
+
+        private final ConcurrentLinkedQueue<PathElement> operations = new ConcurrentLinkedQueue<PathElement>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * Number of threads appending to this batch
+         */
+        private final AtomicInteger writers = new AtomicInteger();
+
+        /**
+         * Closest common ancestor of the operations that did not fit
+         */
+        private final AtomicReference<String> overflowRoot = new AtomicReference<String>();
+
+        protected Batch(PathJournal.Segment segment) {
+            this.segment = segment;
+        }
+
+        /**
+         * @return false if the operation could not be written to the journal segment
+         */
+        protected boolean journal(PathElement operation) {
+            return this.segment == null || this.segment.append(operation);
+        }
+
+        protected void markOverflow(String operationPath) {
+            // a subtree is reindexed page by page, never from inside a page's jcr:content
+            String path = PathElement.getPagePath(operationPath);
+
+            while (true) {
+                String root = this.overflowRoot.get();
+                String newRoot = root == null ? path : PathElement.getCommonAncestor(root, path);
+                if (newRoot.equals(root)) {
+                    return;
+                }
+                if (this.overflowRoot.compareAndSet(root, newRoot)) {
+                    break;
+                }
+            }
+
+            // the root only moves up, so whichever thread writes last writes the latest root
+            if (this.segment != null) {
+                synchronized (this) {
+                    this.segment.writeOverflowRoot(this.overflowRoot.get());
+                }
+            }
+        }
     }
 }
@@ -3,12 +3,14 @@ package nz.ac.auckland.aem.contentgraph.dbsynch.periodic;
 import nz.ac.auckland.aem.contentgraph.JcrChangeListener;
 import nz.ac.auckland.aem.contentgraph.SynchronizationPaths;
 import nz.ac.auckland.aem.contentgraph.dbsynch.DatabaseSynchronizer;
+import nz.ac.auckland.aem.contentgraph.dbsynch.reindex.DatabaseReindexer;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.SQLRunnable;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.NodeDAO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.DeleteSynchVisitor;
-import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.PersistSynchVisitor;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.BatchPersistSynchVisitor;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.SynchronizationManager;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.TransactionManager;
 import org.apache.felix.scr.annotations.*;
@@ -35,8 +37,10 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Delete;
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Resync;
 import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Update;
 
 /**
@@ -71,6 +75,14 @@ import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathO
         label = "Enabled",
         description = "Service is enabled",
         boolValue = true
+    ),
+    @Property(
+        name = "fullResyncInterval",
+        label = "Minutes between overflow reindexes",
+        description =
+                "Minimum number of minutes between two full reindexes that are started because " +
+                "the path queue overflowed above an include path, a later overflow waits until then",
+        intValue = PeriodicUpdateJobImpl.DEFAULT_FULL_RESYNC_INTERVAL
     )
 })
 public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
@@ -95,6 +107,11 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
      */
     public static final int DEFAULT_N_SECONDS = 5;
 
+    /**
+     * Default number of minutes between two full reindexes started by an overflow
+     */
+    public static final int DEFAULT_FULL_RESYNC_INTERVAL = 30;
+
     /**
      * Name of the job
      */
@@ -115,6 +132,22 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
      */
     private Boolean trustQueue = true;
 
+    /**
+     * Minimum number of milliseconds between two full reindexes started by an overflow
+     */
+    private long fullResyncInterval = DEFAULT_FULL_RESYNC_INTERVAL * 60 * 1000L;
+
+    /**
+     * Time at which the last full reindex for an overflow was started
+     */
+    private volatile long lastFullResyncAt;
+
+    /**
+     * True while a resync job is running, the periodic updates wait for it so the
+     * flush it was started for is handed out again when it does not finish
+     */
+    private final AtomicBoolean resyncRunning = new AtomicBoolean();
+
     @Reference
     private DatabaseSynchronizer dbSynch;
 
@@ -127,6 +160,12 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
     @Reference
     private PathQueue pathQueue;
 
+    /**
+     * Reindexes the subtrees of operations the path queue had no room for
+     */
+    @Reference
+    private DatabaseReindexer dbReindexer;
+
     /**
      * Scheduler
      */
@@ -140,8 +179,9 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
 
     private SynchronizationManager sMgr = getSynchronizationManager();
     private TransactionManager txMgr = getTransactionManager();
-    private PersistSynchVisitor updateVisitor = getUpdateVisitor();
+    private BatchPersistSynchVisitor updateVisitor = getUpdateVisitor();
     private DeleteSynchVisitor deleteVisitor = getDeleteSynchVisitor();
+    private NodeDAO nodeDAO = getNodeDAO();
 
 
 
@@ -157,6 +197,11 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
         this.enabled = (Boolean) context.getProperties().get("enabled");
         this.trustQueue = (Boolean) context.getProperties().get("trustQueue");
 
+        Integer cfgFullResyncInterval = (Integer) context.getProperties().get("fullResyncInterval");
+        this.fullResyncInterval =
+                (cfgFullResyncInterval == null ? DEFAULT_FULL_RESYNC_INTERVAL : Math.max(0, cfgFullResyncInterval))
+                * 60 * 1000L;
+
         startSession();
 
         try {
@@ -197,6 +242,11 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
             return;
         }
 
+        if (this.resyncRunning.get()) {
+            LOG.info("Waiting for the resync of an overflowed subtree, will skip this particular update");
+            return;
+        }
+
         ConnectionInfo connInfo = this.dbSynch.getConnectionInfo();
         Connection dbConn = null;
         Database db = null;
@@ -225,6 +275,7 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
                 return;
             }
 
+            nodeDAO.ensureHashColumn(db);
             sMgr.startPeriodicUpdate(db, lastUpdateAt);
 
             // get all nodes that have changed since then
@@ -236,14 +287,32 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
                 synchronizeFromIterator(db, nIterator, queueElements);
             }
 
+            // the visited nodes are written in a few large batches
+            this.updateVisitor.flush(db);
+
             // set state to 'finished'
             sMgr.finished(db);
 
             // commit transaction
             txMgr.commit(db.getConnection());
+
+            LOG.debug(
+                "Since activation: {} unchanged nodes skipped, {}",
+                this.updateVisitor.getUnchangedNodes(),
+                this.updateVisitor.getPropertyRowSummary()
+            );
+
+            // the reindexer writes its own state, so it runs after the periodic update has
+            // finished; the resync job checkpoints the queue itself once it is done
+            if (!resyncSubtrees(queueElements)) {
+
+                // the flushed operations no longer have to survive a restart
+                this.pathQueue.checkpoint();
+            }
         }
         catch (Exception ex) {
             LOG.error("An SQL exception occurred", ex);
+            this.updateVisitor.discard();
             if (db != null) {
                 writeFinishedError(db, ex);
             }
@@ -251,6 +320,22 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
         }
         finally {
             JDBCHelper.closeQuietly(dbConn);
+
+            if (connInfo.getConnectionPool() != null) {
+                LOG.debug("Connection pool: {}", connInfo.getConnectionPool());
+            }
+            LOG.debug("Connection health: {}", Database.getHealthSummary());
+            LOG.debug(
+                "Path queue: {} operations received, {} queue elements flushed, {} updates merged, " +
+                "{} operations superseded, {} operations overflowed",
+                new Object[] {
+                    this.pathQueue.getReceivedCount(),
+                    this.pathQueue.getFlushedCount(),
+                    this.pathQueue.getMergedCount(),
+                    this.pathQueue.getSupersededCount(),
+                    this.pathQueue.getOverflowCount()
+                }
+            );
         }
     }
 
@@ -284,14 +369,22 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
     }
 
     /**
-     * @return if the node was in the queue was an update operation already
+     * @return if the node was in the queue was an update operation already, or merged into one
      */
     protected boolean nodeInQueue(Set<PathElement> queueElements, Node node) throws RepositoryException {
-        return queueElements.contains(new PathElement(node.getPath(), Update));
+        String path = node.getPath();
+        for (PathElement pElement : queueElements) {
+            if (pElement.getOp() == Update && pElement.includes(path)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Execute the changes that were pushed into the path queue
+     * Execute the changes that were pushed into the path queue. The deletes come first and
+     * remove their subtree, an update synchronises its node and the descendants that were
+     * merged into it, so each affected subtree is resolved once.
      *
      * @param db the database connection to use
      * @param queueElements
@@ -300,8 +393,9 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
     protected void doPathQueueUpdates(Database db, Set<PathElement> queueElements) throws Exception {
         for (PathElement pElement : queueElements) {
 
-            // should even bother at all?
-            if (!shouldUpdate(pElement.getPath())) {
+            // should even bother at all? an element above the include paths can hold tracked descendants
+            boolean tracked = shouldUpdate(pElement.getPath());
+            if (!tracked && !isAboveIncludePath(pElement.getPath())) {
                 LOG.debug("`{}` not a tracked path, skipping.", pElement.getPath());
                 continue;
             }
@@ -317,12 +411,149 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
                 if (resource == null) {
                     LOG.error("Could not update resource at `{}`, not found in repository", pElement.getPath());
                 } else {
-                    this.updateVisitor.visit(db, resource.adaptTo(Node.class));
+                    Node node = resource.adaptTo(Node.class);
+                    if (tracked) {
+                        this.updateVisitor.visit(db, node);
+                    }
+                    visitMergedPaths(db, node, pElement);
                 }
             }
         }
     }
 
+    /**
+     * Reindex the subtrees the path queue had to drop operations for, as a job of its own
+     * so the periodic updates don't wait for it. A subtree below an include path is
+     * rebuilt in place; a subtree that covers a whole include path is rebuilt by a full
+     * reindex into the shadow tables, so readers don't see the content disappear.
+     *
+     * The job checkpoints the path queue when the reindex finished. Until then the
+     * periodic updates are skipped, and when it fails or never runs the resync elements
+     * are handed out again by the next flush or replayed from the journal.
+     *
+     * A full reindex is started at most once per `fullResyncInterval`: the queue fills up
+     * while it runs, so it could overflow again and start the next one. A resync that
+     * has to wait is queued again and handed out by a later flush.
+     *
+     * @param queueElements the flushed queue elements
+     * @return true if a resync job was started, it checkpoints the queue
+     * @throws Exception when the reindex could not be scheduled
+     */
+    protected boolean resyncSubtrees(Set<PathElement> queueElements) throws Exception {
+        final List<String> roots = new ArrayList<String>();
+        List<String> fullRoots = new ArrayList<String>();
+
+        for (PathElement pElement : queueElements) {
+            if (pElement.getOp() != Resync) {
+                continue;
+            }
+
+            if (coversIncludePath(pElement.getPath())) {
+                fullRoots.add(pElement.getPath());
+            }
+            else if (shouldUpdate(pElement.getPath())) {
+                roots.add(pElement.getPath());
+            }
+        }
+
+        boolean full = !fullRoots.isEmpty();
+        long now = System.currentTimeMillis();
+
+        if (full && now - this.lastFullResyncAt < this.fullResyncInterval) {
+            LOG.warn(
+                "The path queue overflowed above an include path again, the full reindex waits until {}",
+                new Date(this.lastFullResyncAt + this.fullResyncInterval)
+            );
+            for (String root : fullRoots) {
+                this.pathQueue.resync(root);
+            }
+            full = false;
+        }
+
+        if (!full && roots.isEmpty()) {
+            return false;
+        }
+
+        final boolean fullReindex = full;
+        if (fullReindex) {
+            this.lastFullResyncAt = now;
+        }
+
+        this.resyncRunning.set(true);
+        try {
+            this.scheduler.fireJob(
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            if (resync(fullReindex, roots)) {
+                                pathQueue.checkpoint();
+                            } else {
+                                LOG.warn("The resync did not finish, the next periodic update starts it again");
+                            }
+                        }
+                        finally {
+                            resyncRunning.set(false);
+                        }
+                    }
+                },
+                null
+            );
+        }
+        catch (Exception ex) {
+            this.resyncRunning.set(false);
+            throw ex;
+        }
+        return true;
+    }
+
+    /**
+     * Reindex everything, or the subtrees in <code>roots</code>
+     *
+     * @return true if every reindex finished without errors
+     */
+    protected boolean resync(boolean fullReindex, List<String> roots) {
+        if (fullReindex) {
+            LOG.info("Reindexing everything because the path queue overflowed above an include path");
+            return this.dbReindexer.reindexAll();
+        }
+
+        boolean finished = true;
+        for (String root : roots) {
+            LOG.info("Resynchronising `{}` because the path queue overflowed", root);
+            finished &= this.dbReindexer.reindexSubtree(root);
+        }
+        return finished;
+    }
+
+    /**
+     * Synchronise the descendant updates that were merged into <code>pElement</code>,
+     * they are looked up relative to its node.
+     *
+     * @param db the database connection to use
+     * @param node the node of the update
+     * @param pElement the update with the merged paths
+     * @throws Exception when something has gone wrong
+     */
+    protected void visitMergedPaths(Database db, Node node, PathElement pElement) throws Exception {
+        int prefixLength = pElement.getPath().length() + 1;
+
+        for (String mergedPath : pElement.getMergedPaths()) {
+            if (!shouldUpdate(mergedPath)) {
+                continue;
+            }
+
+            String relPath = mergedPath.substring(prefixLength);
+            if (!node.hasNode(relPath)) {
+                LOG.debug("Merged update `{}` not found in repository, skipping", mergedPath);
+                continue;
+            }
+
+            this.updateVisitor.visit(db, node.getNode(relPath));
+        }
+    }
+
 
     /**
      * Determine whether the path is updatable
@@ -332,23 +563,31 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
      * @throws RepositoryException
      */
     protected boolean shouldUpdate(String nodePath) throws RepositoryException {
+        return this.synchPaths.getPathTrie().isTracked(nodePath);
+    }
 
-        // if definitely an excluded path, skip it
-        for (String excl : this.synchPaths.getExcludedPaths()) {
-            if (nodePath.startsWith(excl)) {
-                return false;
+    /**
+     * @return true if one of the include paths is <code>nodePath</code> or underneath it
+     */
+    protected boolean coversIncludePath(String nodePath) {
+        for (String incl : this.synchPaths.getIncludePaths()) {
+            if (PathElement.isSelfOrAncestor(nodePath, incl)) {
+                return true;
             }
         }
+        return false;
+    }
 
-        // if an included path return true
+    /**
+     * @return true if one of the include paths is underneath <code>nodePath</code>
+     */
+    protected boolean isAboveIncludePath(String nodePath) {
         for (String incl : this.synchPaths.getIncludePaths()) {
-            if (nodePath.startsWith(incl)) {
+            if (!incl.equals(nodePath) && PathElement.isSelfOrAncestor(nodePath, incl)) {
                 return true;
             }
         }
-
         return false;
-
     }
 
     /**
@@ -493,11 +732,18 @@ public class PeriodicUpdateJobImpl implements PeriodicUpdateJob {
         return new TransactionManager();
     }
 
+    /**
+     * @return the node DAO instance
+     */
+    protected NodeDAO getNodeDAO() {
+        return new NodeDAO();
+    }
+
     /**
      * @return the synch visitor instance
      */
-    protected PersistSynchVisitor getUpdateVisitor() {
-        return new PersistSynchVisitor();
+    protected BatchPersistSynchVisitor getUpdateVisitor() {
+        return new BatchPersistSynchVisitor();
     }
 
     protected DeleteSynchVisitor getDeleteSynchVisitor() {
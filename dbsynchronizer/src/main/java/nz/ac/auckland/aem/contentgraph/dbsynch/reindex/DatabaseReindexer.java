@@ -7,4 +7,26 @@ package nz.ac.auckland.aem.contentgraph.dbsynch.reindex;
  */
 public interface DatabaseReindexer extends Runnable {
 
+    /**
+     * Rebuild the nodes and properties of all include paths
+     *
+     * @return true if the reindex finished without errors
+     */
+    boolean reindexAll();
+
+    /**
+     * Rebuild only the nodes and properties underneath <code>rootPath</code>, the
+     * rows of all other paths are left alone.
+     *
+     * @param rootPath the root of the subtree to reindex
+     * @return true if the reindex finished without errors
+     */
+    boolean reindexSubtree(String rootPath);
+
+    /**
+     * Compare the content hashes stored in the index with the repository and only
+     * rewrite the nodes that changed, rows of nodes that no longer exist are removed.
+     */
+    void verify();
+
 }
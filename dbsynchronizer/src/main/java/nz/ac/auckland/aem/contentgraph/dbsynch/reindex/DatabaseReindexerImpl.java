@@ -5,25 +5,41 @@ import nz.ac.auckland.aem.contentgraph.SynchronizationPaths;
 import nz.ac.auckland.aem.contentgraph.dbsynch.DatabaseSynchronizer;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.NodeDAO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.PropertyDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.ShadowTableDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionPool;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.NodeIdMapping;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.NodeRowFormat;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.PathDictionary;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.PathIdCache;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.PropertyRowFormat;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.ConcurrencyController;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.ForkJoinTraversal;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.LoadDataLoader;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeConsumer;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeHashIndex;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeIdAllocator;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.PropertyConsumer;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.PropertyConsumerPool;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.ReindexWriter;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.PersistSynchVisitor;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.ReindexPersistSynchVisitor;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.SynchVisitor;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.VerifySynchVisitor;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.SynchVisitorManager;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.SynchronizationManager;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.TransactionManager;
 import nz.ac.auckland.aem.contentgraph.utils.PerformanceReport;
-import org.apache.felix.scr.annotations.Component;
-import org.apache.felix.scr.annotations.Reference;
-import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.*;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,9 +48,7 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -44,7 +58,72 @@ import java.util.concurrent.LinkedBlockingQueue;
  * a select number of nodes.
  */
 @Service
-@Component(immediate = true)
+@Component(
+    immediate = true,
+    metatype = true,
+    name = "UoA Database Reindexer"
+)
+@Properties({
+    @Property(
+        name = "parallelism",
+        label = "Traversal parallelism",
+        description =
+                "Number of threads that traverse the repository during a reindex. When larger " +
+                "than 1 the subtrees are visited on a fork-join pool, each thread with its own " +
+                "JCR session and database connection (1 <= n <= 64)",
+        intValue = DatabaseReindexerImpl.DEFAULT_PARALLELISM
+    ),
+    @Property(
+        name = "bulkNodeInsert",
+        label = "Bulk node insertion",
+        description =
+                "Assign node identifiers from blocks reserved in the NodeSequence table, so nodes " +
+                "are written with multi-row inserts by separate writer threads instead of one " +
+                "insert per node",
+        boolValue = DatabaseReindexerImpl.DEFAULT_BULK_NODE_INSERT
+    ),
+    @Property(
+        name = "loadDataInfile",
+        label = "Bulk load with LOAD DATA LOCAL INFILE",
+        description =
+                "Stream nodes and properties into the tables with LOAD DATA LOCAL INFILE. Node " +
+                "identifiers are assigned up front like with bulk node insertion. Falls back to " +
+                "the normal inserts when the server has local_infile disabled",
+        boolValue = DatabaseReindexerImpl.DEFAULT_LOAD_DATA_INFILE
+    ),
+    @Property(
+        name = "queueCapacity",
+        label = "Writer queue capacity",
+        description =
+                "Maximum number of elements waiting in each queue between the traversal and the " +
+                "writer threads. The traversal waits when a queue is full, so a slow database " +
+                "bounds the memory a reindex takes up (64 <= n <= 1048576)",
+        intValue = DatabaseReindexerImpl.DEFAULT_QUEUE_CAPACITY
+    ),
+    @Property(
+        name = "propertyConsumers",
+        label = "Property writer threads",
+        description =
+                "Number of threads that write properties during a reindex, each with a " +
+                "connection of its own. With adaptive sizing this is the number to start " +
+                "with (1 <= n <= 32)",
+        intValue = DatabaseReindexerImpl.DEFAULT_PROPERTY_CONSUMERS
+    ),
+    @Property(
+        name = "adaptiveConsumers",
+        label = "Adaptive property writers",
+        description =
+                "Add property writer threads while their queue fills up and remove them while " +
+                "it stays empty or when another thread no longer makes writing faster",
+        boolValue = DatabaseReindexerImpl.DEFAULT_ADAPTIVE_CONSUMERS
+    ),
+    @Property(
+        name = "maxPropertyConsumers",
+        label = "Maximum property writer threads",
+        description = "Largest number of property writer threads with adaptive sizing (1 <= n <= 32)",
+        intValue = DatabaseReindexerImpl.DEFAULT_MAX_PROPERTY_CONSUMERS
+    )
+})
 public class DatabaseReindexerImpl implements DatabaseReindexer {
 
     /**
@@ -52,7 +131,114 @@ public class DatabaseReindexerImpl implements DatabaseReindexer {
      */
     private static final Logger LOG = LoggerFactory.getLogger(DatabaseReindexerImpl.class);
 
-    private static final int N_CONSUMERS = 4;
+    /**
+     * Suffix of the tables the reindex is written into before they are swapped in
+     */
+    public static final String SHADOW_SUFFIX = "_shadow";
+
+    /**
+     * Number of node writer threads when inserting nodes in bulk
+     */
+    private static final int N_NODE_CONSUMERS = 2;
+
+    /**
+     * Connections a reindex leaves to the periodic update and the servlets
+     */
+    private static final int RESERVED_CONNECTIONS = 2;
+
+    /**
+     * Nodes are inserted one by one by default
+     */
+    public static final boolean DEFAULT_BULK_NODE_INSERT = false;
+
+    /**
+     * Rows are not bulk loaded by default
+     */
+    public static final boolean DEFAULT_LOAD_DATA_INFILE = false;
+
+    /**
+     * Default traversal parallelism, a single thread traverses recursively
+     */
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    /**
+     * Maximum traversal parallelism
+     */
+    public static final int MAX_PARALLELISM = 64;
+
+    /**
+     * Default capacity of the writer queues
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Minimum and maximum capacity of the writer queues
+     */
+    public static final int MIN_QUEUE_CAPACITY = 64;
+    public static final int MAX_QUEUE_CAPACITY = 1048576;
+
+    /**
+     * Default number of property writer threads
+     */
+    public static final int DEFAULT_PROPERTY_CONSUMERS = 4;
+
+    /**
+     * The number of property writer threads is fixed by default
+     */
+    public static final boolean DEFAULT_ADAPTIVE_CONSUMERS = false;
+
+    /**
+     * Default largest number of property writer threads with adaptive sizing
+     */
+    public static final int DEFAULT_MAX_PROPERTY_CONSUMERS = 12;
+
+    /**
+     * Largest configurable number of property writer threads
+     */
+    public static final int MAX_PROPERTY_CONSUMERS = 32;
+
+    /**
+     * Number of threads traversing the repository
+     */
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    /**
+     * True if nodes get their identifier up front and are written in bulk
+     */
+    private boolean bulkNodeInsert = DEFAULT_BULK_NODE_INSERT;
+
+    /**
+     * True if nodes and properties are streamed into the tables with `LOAD DATA LOCAL INFILE`
+     */
+    private boolean loadDataInfile = DEFAULT_LOAD_DATA_INFILE;
+
+    /**
+     * Maximum number of elements in each writer queue
+     */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * Number of property writer threads, or the number to start with when adaptive
+     */
+    private int propertyConsumers = DEFAULT_PROPERTY_CONSUMERS;
+
+    /**
+     * True if the number of property writer threads follows the queue and write latency
+     */
+    private boolean adaptiveConsumers = DEFAULT_ADAPTIVE_CONSUMERS;
+
+    /**
+     * Largest number of property writer threads when adaptive
+     */
+    private int maxPropertyConsumers = DEFAULT_MAX_PROPERTY_CONSUMERS;
+
+    /**
+     * Traversal threads and property consumers of the current run, the configured numbers
+     * limited to the connections the pool can hand out
+     */
+    private int runParallelism = DEFAULT_PARALLELISM;
+    private int runPropertyConsumers = DEFAULT_PROPERTY_CONSUMERS;
+    private int runMaxPropertyConsumers = DEFAULT_PROPERTY_CONSUMERS;
 
     @Reference
     private JcrChangeListener synchPaths;
@@ -78,93 +264,436 @@ public class DatabaseReindexerImpl implements DatabaseReindexer {
     private SynchronizationManager sMgr = getSynchronizationManagerInstance();
     private SynchVisitorManager svMgr = getSynchVisitorManager();
 
-    private SynchVisitor sVisitor = getSynchVisitorInstance();
     private PropertyDAO propertyDAO = getPropertyDAO();
     private NodeDAO nodeDAO = getNodeDAO();
+    private ShadowTableDAO shadowTableDAO = getShadowTableDAO();
+
+    /**
+     * Called when the configuration changed
+     *
+     * @param context is the context to read the configuration from
+     */
+    @Activate @Modified
+    public void configChanged(ComponentContext context) {
+        this.parallelism = getNormalizedParallelism(context);
+
+        Boolean cfgBulkNodeInsert = (Boolean) context.getProperties().get("bulkNodeInsert");
+        this.bulkNodeInsert = cfgBulkNodeInsert == null ? DEFAULT_BULK_NODE_INSERT : cfgBulkNodeInsert;
+
+        Boolean cfgLoadDataInfile = (Boolean) context.getProperties().get("loadDataInfile");
+        this.loadDataInfile = cfgLoadDataInfile == null ? DEFAULT_LOAD_DATA_INFILE : cfgLoadDataInfile;
 
-    //
-    //  Thread information
-    //
-    private List<PropertyConsumer> consumers;
-    private BlockingQueue<List<PropertyDTO>> propertyQueue;
+        Integer cfgQueueCapacity = (Integer) context.getProperties().get("queueCapacity");
+        this.queueCapacity = cfgQueueCapacity == null ?
+                DEFAULT_QUEUE_CAPACITY :
+                Math.max(MIN_QUEUE_CAPACITY, Math.min(MAX_QUEUE_CAPACITY, cfgQueueCapacity));
 
+        this.propertyConsumers = getConsumerCount(context, "propertyConsumers", DEFAULT_PROPERTY_CONSUMERS);
+        this.maxPropertyConsumers = getConsumerCount(context, "maxPropertyConsumers", DEFAULT_MAX_PROPERTY_CONSUMERS);
+
+        Boolean cfgAdaptiveConsumers = (Boolean) context.getProperties().get("adaptiveConsumers");
+        this.adaptiveConsumers = cfgAdaptiveConsumers == null ? DEFAULT_ADAPTIVE_CONSUMERS : cfgAdaptiveConsumers;
+    }
 
     /**
-     * The runnable method
+     * The runnable method, reindexes all include paths
      */
     @Override
     public void run() {
+        reindexAll();
+    }
+
+    /**
+     * Reindex all include paths
+     *
+     * @return true if the reindex finished without errors
+     */
+    @Override
+    public boolean reindexAll() {
         LOG.info("Starting to run the reindexer in the background.");
+        return reindex(null);
+    }
+
+    /**
+     * Reindex the subtree at <code>rootPath</code>, its rows are deleted from the live
+     * tables and rebuilt with the same writer pipeline as the full reindex.
+     *
+     * @param rootPath the root of the subtree to reindex
+     * @return true if the reindex finished without errors
+     */
+    @Override
+    public boolean reindexSubtree(String rootPath) {
+        LOG.info("Starting to reindex `{}` in the background.", rootPath);
+        return reindex(rootPath);
+    }
+
+    /**
+     * Run a reindex. A full reindex is written into shadow tables that are swapped in
+     * when it succeeds. A subtree reindex can't be swapped in, it deletes the rows of the
+     * subtree from the live tables before rebuilding them.
+     *
+     * @param subtreeRoot the root of the subtree to reindex, or null for a full reindex
+     * @return true if the reindex finished without errors
+     */
+    protected synchronized boolean reindex(String subtreeRoot) {
+        boolean full = subtreeRoot == null;
 
         ConnectionInfo connInfo = this.dbSynch.getConnectionInfo();
+        ConnectionInfo writeInfo = full ? connInfo.forTableSuffix(SHADOW_SUFFIX) : connInfo;
+        String[] includePaths = full ? this.synchPaths.getIncludePaths() : new String[] { subtreeRoot };
         Database database = null;
 
-        NodeDAO.resetMapping();
+        SynchVisitor<Node> visitor;
+        NodeIdAllocator allocator = null;
+        BlockingQueue<NodeDTO> nodeQueue = null;
+        List<ReindexWriter> writers = null;
+        PropertyConsumerPool consumerPool = null;
+
+        // queued rows aren't in the table yet, so an evicted parent could not be looked
+        // up again; a reindex keeps every node in a compact dictionary of its own instead
+        // of the cache that the periodic updates share
+        NodeIdMapping mapping = new PathDictionary();
         PerformanceReport.getInstance().resetMap();
-        initializeConsumers(connInfo);
 
         try {
-            database = new Database(connInfo);
+            database = new Database(writeInfo);
             database.getConnection().setAutoCommit(false);
 
             long timestamp = System.currentTimeMillis();
 
-            sMgr.startReindex(database);
+            nodeDAO.ensureHashColumn(database);
+
+            if (full) {
+                sMgr.startReindex(database);
+            } else {
+                sMgr.startSubtreeReindex(database, subtreeRoot);
+            }
             svMgr.reset();
 
-            // remove all existing content.
-            propertyDAO.truncate(database);
-            nodeDAO.truncate(database);
-            database.getConnection().commit();
+            // written rows are committed by the writers when done, no need to commit partial results
+            svMgr.setCommitOnThreshold(false);
 
-            int nNodes = 0;
+            if (full) {
+                // build into empty shadow tables, the live tables stay untouched
+                shadowTableDAO.create(database, SHADOW_SUFFIX);
+            } else {
+                propertyDAO.removeSubtree(database, subtreeRoot);
+                nodeDAO.removeSubtree(database, subtreeRoot);
+                database.getConnection().commit();
+            }
 
-            // iterate over all base paths
-            for (String includePath : this.synchPaths.getIncludePaths()) {
-                Resource inclResource = this.getResourceResolver().getResource(includePath);
-                if (inclResource == null) {
-                    LOG.error("Could not find `{}`, skipping", includePath);
-                    continue;
-                }
+            // identifiers continue after the existing rows of a subtree reindex
+            long lastNodeId = full ? 0 : nodeDAO.getMaxId(database);
 
-                // node
-                Node inclNode = inclResource.adaptTo(Node.class);
+            writers = new ArrayList<ReindexWriter>();
 
-                // recursion
-                nNodes += svMgr.recursiveVisit(database, inclNode, this.synchPaths.getExcludedPaths(), this.sVisitor);
+            boolean loadData = this.loadDataInfile && LoadDataLoader.isSupported(database);
+            boolean bulkNodes = !loadData && (this.bulkNodeInsert || this.loadDataInfile);
+
+            // the node id allocator and the loaders or node consumers have a connection each
+            fitToConnectionPool(connInfo, loadData ? 3 : bulkNodes ? 1 + N_NODE_CONSUMERS : 0, !loadData);
+
+            if (loadData) {
+                allocator = getNodeIdAllocator(writeInfo);
+                allocator.reset(database, lastNodeId);
+
+                nodeQueue = createQueue();
+                BlockingQueue<List<PropertyDTO>> loadQueue = createQueue();
+
+                writers.addAll(createLoaders(writeInfo, nodeQueue, loadQueue));
+                visitor = new ReindexPersistSynchVisitor(loadQueue, nodeQueue, allocator, mapping);
+            }
+            else {
+                BlockingQueue<List<PropertyDTO>> propertyQueue = createQueue();
+                consumerPool = createConsumerPool(writeInfo, propertyQueue);
+                writers.add(consumerPool);
+                consumerPool.start(this.runPropertyConsumers);
+                visitor = getSynchVisitorInstance(propertyQueue, mapping);
+
+                if (bulkNodes) {
+                    allocator = getNodeIdAllocator(writeInfo);
+                    allocator.reset(database, lastNodeId);
+
+                    nodeQueue = createQueue();
+                    writers.addAll(createNodeConsumers(writeInfo, nodeQueue, N_NODE_CONSUMERS));
+                    visitor = getBulkSynchVisitorInstance(propertyQueue, nodeQueue, allocator, mapping);
+                }
             }
 
-            // commit last properties
-            new PropertyDAO().executeBatch(database);
+            int nNodes = traverse(database, writeInfo, includePaths, visitor);
 
-            for (PropertyConsumer consumer : this.consumers) {
-                consumer.commit();
+            // wait for the last rows to be written
+            Exception writeError = stopWriters(writers);
+            writers = null;
+
+            if (consumerPool != null) {
+                LOG.info("Property consumers: {}", consumerPool.getConcurrencySummary());
+            }
+            if (writeError != null) {
+                throw new SQLException("Not all rows could be written", writeError);
+            }
+            if (allocator != null) {
+                LOG.info("Node identifiers were reserved in {} blocks", allocator.getReservations());
             }
 
             // commit last bits
             database.getConnection().commit();
             database.getConnection().setAutoCommit(true);
 
+            if (full) {
+                // replace the live tables in one go
+                shadowTableDAO.swap(database, SHADOW_SUFFIX);
+
+                // the rows the periodic updates have cached identifiers for were replaced
+                NodeDAO.clearSharedMapping();
+            }
+
             // set state to being 'finished'
             sMgr.finished(database);
 
             logPerformanceReport(timestamp, nNodes);
+
+            if (connInfo.getConnectionPool() != null) {
+                LOG.info("Connection pool: {}", connInfo.getConnectionPool());
+            }
+            LOG.info("Connection health: {}", Database.getHealthSummary());
+            return true;
         }
         catch (Exception ex) {
+            if (writers != null) {
+                stopWriters(writers);
+                writers = null;
+            }
+
             if (database != null) {
                 txMgr.safeRollback(database.getConnection());
+                if (full) {
+                    shadowTableDAO.dropQuietly(database, SHADOW_SUFFIX);
+                }
             }
 
             // write errors
             LOG.error("Something went wrong during the reindexing process. Finished with errors.", ex);
             writeErrorMessage(database, ex);
+            return false;
+        }
+        finally {
+            LOG.info("Node id mapping: {}", mapping);
+
+            if (writers != null) {
+                stopWriters(writers);
+            }
+            if (database != null) {
+                JDBCHelper.closeQuietly(database.getConnection());
+            }
+        }
+
+    }
+
+    /**
+     * Compare all include paths with the content hashes stored in the live tables. Only
+     * nodes that are new or have changed are written, the rows of nodes that were not
+     * visited are deleted afterwards.
+     */
+    @Override
+    public synchronized void verify() {
+        LOG.info("Starting to verify the index in the background.");
+
+        ConnectionInfo connInfo = this.dbSynch.getConnectionInfo();
+        Database database = null;
+
+        // verify writes its rows right away, so evicted entries are found in the table
+        NodeIdMapping mapping = new PathIdCache(NodeDAO.DEFAULT_MAPPING_WEIGHT);
+        PerformanceReport.getInstance().resetMap();
+
+        try {
+            database = new Database(connInfo);
+            database.getConnection().setAutoCommit(false);
+
+            long timestamp = System.currentTimeMillis();
+
+            nodeDAO.ensureHashColumn(database);
+            fitToConnectionPool(connInfo, 0, false);
+            sMgr.startVerify(database);
+            svMgr.reset();
+            svMgr.setCommitOnThreshold(true);
+
+            NodeHashIndex index = nodeDAO.loadHashIndex(database);
+            LOG.info("Loaded the content hashes of {} nodes", index.size());
+
+            VerifySynchVisitor visitor = getVerifySynchVisitorInstance(index, mapping);
+            int nNodes = traverse(database, connInfo, this.synchPaths.getIncludePaths(), visitor);
+            database.getConnection().commit();
+
+            // nodes that were not visited no longer exist
+            List<Long> unseenIds = index.getUnseenIds();
+            propertyDAO.removeAllForNodes(database, unseenIds);
+            nodeDAO.removeAll(database, unseenIds);
+
+            database.getConnection().commit();
+            database.getConnection().setAutoCommit(true);
+
+            sMgr.finished(database);
+
+            LOG.info(
+                "Verified {} nodes: {} unchanged, {} changed, {} added, {} removed",
+                new Object[] {
+                    nNodes, visitor.getUnchanged(), visitor.getChanged(),
+                    visitor.getAdded(), unseenIds.size()
+                }
+            );
+            LOG.info("Verify wrote {}", visitor.getPropertyRowSummary());
+            logPerformanceReport(timestamp, nNodes);
+        }
+        catch (Exception ex) {
+            if (database != null) {
+                txMgr.safeRollback(database.getConnection());
+            }
+
+            LOG.error("Something went wrong during the verification process. Finished with errors.", ex);
+            writeErrorMessage(database, ex);
         }
         finally {
+            LOG.info("Node id mapping: {}", mapping);
+
             if (database != null) {
                 JDBCHelper.closeQuietly(database.getConnection());
             }
         }
+    }
+
+    /**
+     * Visit all include paths, on a fork-join pool when the parallelism is larger than 1
+     *
+     * @param database the database to write to on the current thread
+     * @param connInfo the connection information of the traversal workers
+     * @param includePaths the paths to start the traversal from
+     * @param visitor the visitor to call each node with
+     * @return the number of visited nodes
+     */
+    protected int traverse(Database database, ConnectionInfo connInfo, String[] includePaths, SynchVisitor<Node> visitor) throws Exception {
+        int nNodes;
+        int nPruned;
+        if (this.runParallelism > 1) {
+            ForkJoinTraversal traversal = getForkJoinTraversal(connInfo);
+            nNodes = traversal.traverse(
+                    includePaths,
+                    this.synchPaths.getPathTrie(),
+                    visitor
+                );
+            nPruned = traversal.getPruned();
+        } else {
+            nNodes = recursiveVisitIncludePaths(database, includePaths, visitor);
+            nPruned = svMgr.getPruned();
+        }
+        LOG.info("Skipped {} excluded subtrees without traversing them", nPruned);
+
+        return nNodes;
+    }
+
+    /**
+     * Visit all include paths on the current thread
+     *
+     * @param database the database to write to
+     * @param includePaths the paths to start the traversal from
+     * @param visitor the visitor to call each node with
+     * @return the number of visited nodes
+     */
+    protected int recursiveVisitIncludePaths(Database database, String[] includePaths, SynchVisitor<Node> visitor) throws Exception {
+        int nNodes = 0;
+
+        // iterate over all base paths
+        for (String includePath : includePaths) {
+            Resource inclResource = this.getResourceResolver().getResource(includePath);
+            if (inclResource == null) {
+                LOG.error("Could not find `{}`, skipping", includePath);
+                continue;
+            }
+
+            // node
+            Node inclNode = inclResource.adaptTo(Node.class);
+
+            // recursion
+            nNodes += svMgr.recursiveVisit(database, inclNode, this.synchPaths.getPathTrie(), visitor);
+        }
+
+        return nNodes;
+    }
+
+    /**
+     * Decide the traversal threads and property consumers of a run. Every traversal thread
+     * and every consumer holds a connection for the whole run, next to the main connection
+     * and <code>nFixed</code> others. When the pool can't hand out that many while leaving
+     * some to the periodic update and the servlets, both are cut back in proportion, or
+     * borrowers would wait for a connection until they time out.
+     *
+     * @param connInfo the connection information with the pool
+     * @param nFixed the number of other connections the run holds
+     * @param withConsumers true when properties are written by a consumer pool
+     */
+    protected void fitToConnectionPool(ConnectionInfo connInfo, int nFixed, boolean withConsumers) {
+        this.runParallelism = this.parallelism;
+        this.runPropertyConsumers = withConsumers ? this.propertyConsumers : 0;
+        this.runMaxPropertyConsumers =
+            !withConsumers ? 0 :
+            this.adaptiveConsumers ? Math.max(this.propertyConsumers, this.maxPropertyConsumers) :
+            this.propertyConsumers;
+
+        ConnectionPool pool = connInfo.getConnectionPool();
+        if (pool == null) {
+            return;
+        }
+
+        // a single thread traverses on the main connection
+        int nThreads = this.parallelism > 1 ? this.parallelism : 0;
+        int nConsumers = this.runMaxPropertyConsumers;
+        int demand = 1 + nFixed + nThreads + nConsumers + RESERVED_CONNECTIONS;
+        if (demand <= pool.getMaxSize()) {
+            return;
+        }
+
+        int budget = Math.max(0, pool.getMaxSize() - 1 - nFixed - RESERVED_CONNECTIONS);
+        if (this.runMaxPropertyConsumers > 0) {
+            this.runMaxPropertyConsumers = Math.max(1, budget * nConsumers / (nThreads + nConsumers));
+            this.runPropertyConsumers = Math.min(this.runPropertyConsumers, this.runMaxPropertyConsumers);
+        }
+        if (nThreads > 0) {
+            int threadBudget = budget - this.runMaxPropertyConsumers;
+            this.runParallelism = threadBudget > 1 ? Math.min(nThreads, threadBudget) : 1;
+        }
+
+        LOG.warn(
+            "A reindex with {} traversal threads and up to {} property consumers needs {} connections, " +
+            "the pool has {}; running with {} traversal threads and up to {} property consumers",
+            new Object[] {
+                this.parallelism, nConsumers, demand, pool.getMaxSize(), this.runParallelism, this.runMaxPropertyConsumers
+            }
+        );
+    }
+
+    /**
+     * @return the configured parallelism, within the allowed range
+     */
+    protected int getNormalizedParallelism(ComponentContext context) {
+        Integer cfgParallelism = (Integer) context.getProperties().get("parallelism");
+
+        // not set? set default.
+        if (cfgParallelism == null) {
+            cfgParallelism = DEFAULT_PARALLELISM;
+        }
+
+        return Math.max(1, Math.min(MAX_PARALLELISM, cfgParallelism));
+    }
 
+    /**
+     * @return the number of consumers configured in <code>name</code>, between 1 and MAX_PROPERTY_CONSUMERS
+     */
+    protected int getConsumerCount(ComponentContext context, String name, int defaultCount) {
+        Integer cfgCount = (Integer) context.getProperties().get(name);
+        if (cfgCount == null) {
+            cfgCount = defaultCount;
+        }
+        return Math.max(1, Math.min(MAX_PROPERTY_CONSUMERS, cfgCount));
     }
 
     /**
@@ -186,24 +715,13 @@ public class DatabaseReindexerImpl implements DatabaseReindexer {
         );
 
         // output all
-        for (Map.Entry<String, Long> spent : PerformanceReport.getInstance().getMap().entrySet()) {
+        for (PerformanceReport.Snapshot spent : PerformanceReport.getInstance().getSnapshots().values()) {
             LOG.info(
-                String.format("%-40s: %.2f", spent.getKey(), spent.getValue() * 0.001)
+                String.format("%-40s: %s", spent.getName(), spent)
             );
         }
     }
 
-    /**
-     * Initialize the consumers
-     *
-     * @param connInfo
-     */
-    protected void initializeConsumers(ConnectionInfo connInfo) {
-        if (consumers == null) {
-            consumers = createConsumers(connInfo, N_CONSUMERS);
-        }
-    }
-
     /**
      * Write an error message to the synchstate table.
      */
@@ -244,71 +762,185 @@ public class DatabaseReindexerImpl implements DatabaseReindexer {
 
 
     /**
-     * Create a list of threads (that have been started) with a new database connection.
+     * Create the pool of property consumers, its size is fixed unless adaptive sizing is
+     * enabled. The consumers stop at the end of the reindex.
      *
-     * @param connInfo
-     * @param nConsumers
-     * @return
+     * @param connInfo the connection information to connect with
+     * @param propertyQueue the queue the consumers take the properties from
+     * @return the pool, not started yet
      */
-    protected List<PropertyConsumer> createConsumers(ConnectionInfo connInfo, int nConsumers) {
-        List<PropertyConsumer> consumers = new ArrayList<PropertyConsumer>();
+    protected PropertyConsumerPool createConsumerPool(ConnectionInfo connInfo, BlockingQueue<List<PropertyDTO>> propertyQueue) {
+        ConcurrencyController controller = null;
+        if (this.adaptiveConsumers) {
+            controller = new ConcurrencyController(1, this.runMaxPropertyConsumers);
+        }
+        return new PropertyConsumerPool(connInfo, propertyQueue, controller);
+    }
+
+    /**
+     * Create and start the node consumers, each with a connection of its own.
+     *
+     * @param connInfo the connection information to connect with
+     * @param nodeQueue the queue the consumers take from
+     * @param nConsumers the number of consumers
+     * @return the started consumers
+     * @throws SQLException when a connection could not be made
+     */
+    protected List<ReindexWriter> createNodeConsumers(
+            ConnectionInfo connInfo, BlockingQueue<NodeDTO> nodeQueue, int nConsumers)
+            throws SQLException {
+
+        List<ReindexWriter> consumers = new ArrayList<ReindexWriter>();
 
         for (int idx = 0; idx < nConsumers; ++idx) {
-            try {
-                Connection dbConn = JDBCHelper.getDatabaseConnection(connInfo);
-                dbConn.setAutoCommit(false);
-                Database database = new Database(dbConn, connInfo);
+            Connection dbConn = JDBCHelper.getDatabaseConnection(connInfo);
+            dbConn.setAutoCommit(false);
 
-                PropertyConsumer propConsumer =
-                        new PropertyConsumer(
-                                database,
-                                getPropertyQueue()
-                        );
+            NodeConsumer nodeConsumer = new NodeConsumer(new Database(dbConn, connInfo), nodeQueue);
 
-                Thread consumerThread = new Thread(propConsumer);
-                consumerThread.setName("Consumer #" + (idx + 1));
-                consumerThread.start();
+            Thread consumerThread = new Thread(nodeConsumer);
+            consumerThread.setName("Node consumer #" + (idx + 1));
+            consumerThread.start();
 
-                consumers.add(propConsumer);
-            }
-            catch (SQLException sqlEx) {
-                LOG.error("Cannot create consumer thread", sqlEx);
-            }
+            consumers.add(nodeConsumer);
         }
 
         return consumers;
     }
 
+    /**
+     * Create and start a loader for the Node table and one for the Property table, each
+     * with a connection of its own.
+     *
+     * @param connInfo the connection information to connect with
+     * @param nodeQueue the queue the nodes are taken from
+     * @param propQueue the queue the properties are taken from
+     * @return the started loaders
+     * @throws SQLException when a connection could not be made
+     */
+    protected List<ReindexWriter> createLoaders(
+            ConnectionInfo connInfo, BlockingQueue<NodeDTO> nodeQueue, BlockingQueue<List<PropertyDTO>> propQueue)
+            throws SQLException {
+
+        List<ReindexWriter> loaders = new ArrayList<ReindexWriter>();
+
+        Connection nodeConn = JDBCHelper.getDatabaseConnection(connInfo);
+        nodeConn.setAutoCommit(false);
+        Database nodeDb = new Database(nodeConn, connInfo);
+        loaders.add(
+            new LoadDataLoader<NodeDTO>(
+                nodeDb, nodeDb.table("Node"), new NodeRowFormat(),
+                nodeQueue, NodeConsumer.END_OF_NODES
+            )
+        );
+
+        Connection propConn = JDBCHelper.getDatabaseConnection(connInfo);
+        propConn.setAutoCommit(false);
+        Database propDb = new Database(propConn, connInfo);
+        loaders.add(
+            new LoadDataLoader<List<PropertyDTO>>(
+                propDb, propDb.table("Property"), new PropertyRowFormat(),
+                propQueue, PropertyConsumer.END_OF_PROPERTIES
+            )
+        );
+
+        int idx = 0;
+        for (ReindexWriter loader : loaders) {
+            Thread loaderThread = new Thread(loader);
+            loaderThread.setName("Loader #" + (++idx));
+            loaderThread.start();
+        }
+
+        return loaders;
+    }
+
+    /**
+     * Tell the writers to stop once their queue has been written, wait for them
+     * and close their connections.
+     *
+     * @param writers the writers to stop
+     * @return the first error a writer ran into, or null
+     */
+    protected Exception stopWriters(List<ReindexWriter> writers) {
+        Exception error = null;
+
+        try {
+            for (ReindexWriter writer : writers) {
+                writer.endOfInput();
+            }
+
+            for (ReindexWriter writer : writers) {
+                writer.awaitFinished();
+                if (error == null) {
+                    error = writer.getError();
+                }
+            }
+        }
+        catch (InterruptedException iEx) {
+            LOG.error("Interrupted while waiting for the writers", iEx);
+            Thread.currentThread().interrupt();
+            error = iEx;
+        }
+        finally {
+            for (ReindexWriter writer : writers) {
+                if (writer.getDatabase() != null) {
+                    JDBCHelper.closeQuietly(writer.getDatabase().getConnection());
+                }
+            }
+        }
+
+        return error;
+    }
 
     // ------------------------------------------------------------------------
     //    Class seam definition
     // ------------------------------------------------------------------------
 
-    protected BlockingQueue<List<PropertyDTO>> getPropertyQueue() {
-        if (propertyQueue == null) {
-            propertyQueue = new LinkedBlockingQueue<List<PropertyDTO>>();
-        }
-        return propertyQueue;
+    /**
+     * @return a new writer queue, bounded so the traversal can't run ahead of the writers
+     */
+    protected <E> BlockingQueue<E> createQueue() {
+        return new LinkedBlockingQueue<E>(this.queueCapacity);
     }
 
-    protected SynchVisitor<Node> getSynchVisitorInstance() {
-        return new ReindexPersistSynchVisitor(getPropertyQueue());
+    protected SynchVisitor<Node> getSynchVisitorInstance(BlockingQueue<List<PropertyDTO>> propertyQueue, NodeIdMapping mapping) {
+        return new ReindexPersistSynchVisitor(propertyQueue, mapping);
     }
 
-    protected NodeDAO getNodeDAO() {
-        return new NodeDAO();
+    protected SynchVisitor<Node> getBulkSynchVisitorInstance(BlockingQueue<List<PropertyDTO>> propertyQueue, BlockingQueue<NodeDTO> nodeQueue, NodeIdAllocator allocator, NodeIdMapping mapping) {
+        return new ReindexPersistSynchVisitor(propertyQueue, nodeQueue, allocator, mapping);
     }
 
-    protected TransactionManager getTransactionManager() {
-        return new TransactionManager();
+    protected VerifySynchVisitor getVerifySynchVisitorInstance(NodeHashIndex index, NodeIdMapping mapping) {
+        return new VerifySynchVisitor(index, mapping);
+    }
+
+    protected NodeIdAllocator getNodeIdAllocator(ConnectionInfo connInfo) {
+        return new NodeIdAllocator(connInfo, NodeIdAllocator.DEFAULT_BLOCK_SIZE);
+    }
+
+    protected NodeDAO getNodeDAO() {
+        return new NodeDAO();
     }
 
     protected PropertyDAO getPropertyDAO() {
         return new PropertyDAO();
     }
 
+    protected ShadowTableDAO getShadowTableDAO() {
+        return new ShadowTableDAO();
+    }
+
+    protected TransactionManager getTransactionManager() {
+        return new TransactionManager();
+    }
+
     protected SynchVisitorManager getSynchVisitorManager() {
         return new SynchVisitorManager();
     }
 
+    protected ForkJoinTraversal getForkJoinTraversal(ConnectionInfo connInfo) {
+        return new ForkJoinTraversal(this.runParallelism, this.rrFactory, connInfo);
+    }
+
 }
@@ -0,0 +1,17 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * @author Marnix Cook
+ *
+ * Binds the parameters of a prepared statement and executes it. Implementations
+ * must be safe to run twice, the database wrapper retries them on a new connection
+ * when the first attempt failed because the connection broke.
+ */
+public interface StatementRunnable<ReturnType> {
+
+    ReturnType run(PreparedStatement pStmt) throws SQLException;
+
+}
@@ -1,16 +1,24 @@
 package nz.ac.auckland.aem.contentgraph.dbsynch.services.dao;
 
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.SQLRunnable;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.StatementRunnable;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.NodeIdMapping;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.PathIdCache;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeHashIndex;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeIdAllocator;
 import nz.ac.auckland.aem.contentgraph.utils.PerformanceReport;
 import org.apache.commons.lang.NotImplementedException;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * @author Marnix Cook
@@ -24,13 +32,83 @@ public class NodeDAO implements GenericDAO<NodeDTO, Long> {
      */
     private static final Logger LOG = LoggerFactory.getLogger(NodeDAO.class);
 
-    private static Map<String, Long> nodePathIdMap = new HashMap<String, Long>();
+    /**
+     * Number of rows written by a single multi-row insert
+     */
+    public static final int MULTI_ROW_SIZE = 256;
+
+    /**
+     * Columns written when the node identifier is known up front
+     */
+    private static final String INSERT_WITH_ID_COLUMNS =
+            " (id, parent_id, site, path, sub, resourceType, type, title, hash) VALUES ";
+
+    private static final String ROW_PLACEHOLDERS = "(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Columns written when the identifier is generated by the database
+     */
+    private static final String INSERT_COLUMNS =
+            " (parent_id, site, path, sub, resourceType, type, title, hash) VALUES ";
+
+    private static final String ROW_WITHOUT_ID_PLACEHOLDERS = "(?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Number of rows removed by a single delete statement
+     */
+    private static final int DELETE_CHUNK_SIZE = 1000;
+
+    /**
+     * True once the `hash` column is known to exist in the Node table
+     */
+    private static volatile boolean hashColumnChecked;
+
+    /**
+     * Default maximum weight of the path to id mapping, in bytes
+     */
+    public static final long DEFAULT_MAPPING_WEIGHT = 64L * 1024 * 1024;
+
+    /**
+     * Path to id mapping of the DAOs that are created without one, shared by the
+     * periodic updates
+     */
+    private static volatile NodeIdMapping sharedMapping = new PathIdCache(DEFAULT_MAPPING_WEIGHT);
+
+    /**
+     * Forget the identifiers in the shared mapping, for instance when the tables they
+     * refer to were replaced
+     */
+    public static void clearSharedMapping() {
+        sharedMapping = new PathIdCache(DEFAULT_MAPPING_WEIGHT);
+    }
+
+    /**
+     * Path to id mapping of this DAO, null when it uses the shared mapping
+     */
+    private final NodeIdMapping mapping;
 
     /**
-     * Reset the mapping
+     * Initialize a DAO that uses the shared path to id mapping
      */
-    public static void resetMapping() {
-        nodePathIdMap = new HashMap<String, Long>();
+    public NodeDAO() {
+        this(null);
+    }
+
+    /**
+     * Initialize a DAO with a path to id mapping of its own. A reindex hands the same
+     * mapping to all of its traversal workers so they find each other's nodes.
+     *
+     * @param mapping the mapping to look identifiers up in, or null for the shared mapping
+     */
+    public NodeDAO(NodeIdMapping mapping) {
+        this.mapping = mapping;
+    }
+
+    /**
+     * @return the path to id mapping this DAO uses
+     */
+    public NodeIdMapping getMapping() {
+        return this.mapping == null ? sharedMapping : this.mapping;
     }
 
 
@@ -57,6 +135,115 @@ public class NodeDAO implements GenericDAO<NodeDTO, Long> {
     }
 
 
+    /**
+     * The bulk version of the force insert. Instead of writing the node, it is given
+     * an identifier from <code>allocator</code> and its parent's identifier so it can be
+     * written later on by {@link #insertAllWithIds(Database, List)}.
+     *
+     * @param db the database to look up the parent identifier in when it isn't mapped
+     * @param dto the node information, its id and parent id are set
+     * @param allocator the allocator to get the identifier from
+     * @return the identifier the node will be written with
+     *
+     * @throws SQLException when no identifier could be allocated
+     */
+    public Long assignId(Database db, NodeDTO dto, NodeIdAllocator allocator) throws SQLException {
+
+        Long parentId = getNodeIdForPath(db, dto.getParentPath(), dto.getParentSub());
+        Long newId = allocator.nextId();
+        setNodeIdForPath(dto.getPath(), dto.getSub(), newId);
+
+        dto.setId(newId);
+        dto.setParentId(parentId);
+
+        return newId;
+    }
+
+    /**
+     * Write nodes that already have an identifier. Full chunks go out as a single
+     * multi-row insert, the remainder as a batch.
+     *
+     * @param db the database to write to
+     * @param dtos the nodes to write, their id and parent id must be set
+     * @throws SQLException
+     */
+    public void insertAllWithIds(Database db, List<NodeDTO> dtos) throws SQLException {
+        int offset = 0;
+
+        for (; offset + MULTI_ROW_SIZE <= dtos.size(); offset += MULTI_ROW_SIZE) {
+            PreparedStatement pStmt = db.preparedStatement(getMultiRowInsertSql(db, MULTI_ROW_SIZE));
+
+            int pIdx = 0;
+            for (NodeDTO dto : dtos.subList(offset, offset + MULTI_ROW_SIZE)) {
+                pIdx = setRowParameters(pStmt, pIdx, dto);
+            }
+            pStmt.executeUpdate();
+        }
+
+        if (offset < dtos.size()) {
+            PreparedStatement pStmt = db.preparedStatement(getMultiRowInsertSql(db, 1));
+            for (NodeDTO dto : dtos.subList(offset, dtos.size())) {
+                setRowParameters(pStmt, 0, dto);
+                pStmt.addBatch();
+            }
+            pStmt.executeBatch();
+        }
+    }
+
+    /**
+     * @return the insert statement for <code>nRows</code> rows
+     */
+    protected String getMultiRowInsertSql(Database db, int nRows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(db.table("Node")).append(INSERT_WITH_ID_COLUMNS);
+        for (int idx = 0; idx < nRows; ++idx) {
+            if (idx > 0) {
+                sql.append(", ");
+            }
+            sql.append(ROW_PLACEHOLDERS);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Bind the columns of a single row, the id column is left out when the node
+     * doesn't have an identifier yet
+     *
+     * @return the last parameter index that was set
+     */
+    protected int setRowParameters(PreparedStatement pStmt, int pIdx, NodeDTO dto) throws SQLException {
+        if (dto.getId() != null) {
+            pStmt.setLong(++pIdx, dto.getId());
+        }
+
+        if (dto.getParentId() == null) {
+            pStmt.setNull(++pIdx, Types.INTEGER);
+        } else {
+            pStmt.setLong(++pIdx, dto.getParentId());
+        }
+
+        pStmt.setString(++pIdx, dto.getSite());
+        pStmt.setString(++pIdx, dto.getPath());
+        pStmt.setString(++pIdx, dto.getSub());
+        pStmt.setString(++pIdx, dto.getResourceType());
+        pStmt.setString(++pIdx, dto.getType());
+        pStmt.setString(++pIdx, dto.getTitle());
+        setHashParameter(pStmt, ++pIdx, dto);
+
+        return pIdx;
+    }
+
+    /**
+     * Bind the content hash of <code>dto</code>, or null when it has none
+     */
+    protected void setHashParameter(PreparedStatement pStmt, int pIdx, NodeDTO dto) throws SQLException {
+        if (dto.getHash() == null) {
+            pStmt.setNull(pIdx, Types.BIGINT);
+        } else {
+            pStmt.setLong(pIdx, dto.getHash());
+        }
+    }
+
+
     /**
      * Insert a Node DTO into the database and return the id it got.
      *
@@ -69,10 +256,10 @@ public class NodeDAO implements GenericDAO<NodeDTO, Long> {
     @Override
     public Long insert(Database db, NodeDTO dto) throws SQLException {
 
-        Long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         Long parentId = getNodeIdForPath(db, dto.getParentPath(), dto.getParentSub());
         Long existingNodeId = getNodeIdForPath(db, dto.getPath(), dto.getSub());
-        PerformanceReport.getInstance().addToCategory("pre-insert selects", System.currentTimeMillis() - start);
+        PerformanceReport.getInstance().addNanos("pre-insert selects", System.nanoTime() - start);
 
         if (existingNodeId == null) {
             LOG.info("Node not found in DB `{}`", dto.getPath());
@@ -88,6 +275,119 @@ public class NodeDAO implements GenericDAO<NodeDTO, Long> {
     }
 
 
+    /**
+     * Update the rows of nodes that already exist, in a single batch
+     *
+     * @param db the database to write to
+     * @param dtos the nodes to update, their id must be set
+     * @throws SQLException
+     */
+    public void replaceAll(Database db, List<NodeDTO> dtos) throws SQLException {
+        PreparedStatement pStmt = db.preparedStatement(getReplaceSql(db));
+
+        for (NodeDTO dto : dtos) {
+            int pIdx = 0;
+            pStmt.setString(++pIdx, dto.getPath());
+            pStmt.setString(++pIdx, dto.getSite());
+            pStmt.setString(++pIdx, dto.getSub());
+            pStmt.setString(++pIdx, dto.getResourceType());
+            pStmt.setString(++pIdx, dto.getType());
+            pStmt.setString(++pIdx, dto.getTitle());
+            setHashParameter(pStmt, ++pIdx, dto);
+            pStmt.setLong(++pIdx, dto.getId());
+            pStmt.addBatch();
+        }
+
+        pStmt.executeBatch();
+    }
+
+    /**
+     * Insert new nodes with multi-row inserts and set the identifiers they got. The
+     * parent id of each node must be set, so parents have to be inserted before their
+     * children.
+     *
+     * @param db the database to write to
+     * @param dtos the nodes to insert
+     * @throws SQLException
+     */
+    public void insertAll(Database db, List<NodeDTO> dtos) throws SQLException {
+        int offset = 0;
+
+        for (; offset + MULTI_ROW_SIZE <= dtos.size(); offset += MULTI_ROW_SIZE) {
+            List<NodeDTO> chunk = dtos.subList(offset, offset + MULTI_ROW_SIZE);
+            PreparedStatement pStmt = db.preparedStatement(getMultiRowInsertWithoutIdSql(db, MULTI_ROW_SIZE));
+
+            int pIdx = 0;
+            for (NodeDTO dto : chunk) {
+                pIdx = setRowParameters(pStmt, pIdx, dto);
+            }
+            pStmt.executeUpdate();
+            setGeneratedIds(pStmt, chunk);
+        }
+
+        if (offset < dtos.size()) {
+            List<NodeDTO> remainder = dtos.subList(offset, dtos.size());
+            PreparedStatement pStmt = db.preparedStatement(getMultiRowInsertWithoutIdSql(db, 1));
+
+            for (NodeDTO dto : remainder) {
+                setRowParameters(pStmt, 0, dto);
+                pStmt.addBatch();
+            }
+            pStmt.executeBatch();
+            setGeneratedIds(pStmt, remainder);
+        }
+    }
+
+    /**
+     * Set the identifiers the database generated for <code>dtos</code>, the driver
+     * reports a generated key for each row in insertion order.
+     */
+    protected void setGeneratedIds(PreparedStatement pStmt, List<NodeDTO> dtos) throws SQLException {
+        ResultSet gkSet = pStmt.getGeneratedKeys();
+        try {
+            for (NodeDTO dto : dtos) {
+                if (!gkSet.next()) {
+                    throw new SQLException("No identifier was generated for `" + dto.getPath() + "`");
+                }
+                dto.setId(gkSet.getLong(1));
+            }
+        }
+        finally {
+            gkSet.close();
+        }
+    }
+
+    /**
+     * @return the insert statement for <code>nRows</code> rows without an identifier
+     */
+    protected String getMultiRowInsertWithoutIdSql(Database db, int nRows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(db.table("Node")).append(INSERT_COLUMNS);
+        for (int idx = 0; idx < nRows; ++idx) {
+            if (idx > 0) {
+                sql.append(", ");
+            }
+            sql.append(ROW_WITHOUT_ID_PLACEHOLDERS);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @return the statement that updates an existing node
+     */
+    protected String getReplaceSql(Database db) {
+        return
+            "UPDATE " + db.table("Node") + " SET " +
+                "path = ?, " +
+                "site = ?, " +
+                "sub = ?, " +
+                "resourceType = ?, " +
+                "type = ?, " +
+                "title = ?, " +
+                "hash = ? " +
+            "WHERE " +
+                "id = ?";
+    }
+
     /**
      * Replace an existing node information
      *
@@ -97,31 +397,29 @@ public class NodeDAO implements GenericDAO<NodeDTO, Long> {
      * @return
      * @throws SQLException
      */
-    protected Long replaceNode(Database db, NodeDTO dto, Long existingNodeId) throws SQLException {
-        PreparedStatement stmt =
-            db.preparedStatement(
-                "UPDATE Node SET " +
-                    "path = ?, " +
-                    "site = ?, " +
-                    "sub = ?, " +
-                    "resourceType = ?, " +
-                    "type = ?, " +
-                    "title = ? " +
-                "WHERE " +
-                    "id = ?"
-            );
-
-        int pIdx = 0;
-        stmt.setString(++pIdx, dto.getPath());
-        stmt.setString(++pIdx, dto.getSite());
-        stmt.setString(++pIdx, dto.getSub());
-        stmt.setString(++pIdx, dto.getResourceType());
-        stmt.setString(++pIdx, dto.getType());
-        stmt.setString(++pIdx, dto.getTitle());
-        stmt.setLong(++pIdx, existingNodeId);
-        stmt.executeUpdate();
-
-        return existingNodeId;
+    protected Long replaceNode(Database db, final NodeDTO dto, final Long existingNodeId) throws SQLException {
+        return db.withStatement(
+            getReplaceSql(db),
+
+            new StatementRunnable<Long>() {
+
+                @Override
+                public Long run(PreparedStatement stmt) throws SQLException {
+                    int pIdx = 0;
+                    stmt.setString(++pIdx, dto.getPath());
+                    stmt.setString(++pIdx, dto.getSite());
+                    stmt.setString(++pIdx, dto.getSub());
+                    stmt.setString(++pIdx, dto.getResourceType());
+                    stmt.setString(++pIdx, dto.getType());
+                    stmt.setString(++pIdx, dto.getTitle());
+                    setHashParameter(stmt, ++pIdx, dto);
+                    stmt.setLong(++pIdx, existingNodeId);
+                    stmt.executeUpdate();
+
+                    return existingNodeId;
+                }
+            }
+        );
     }
 
     /**
@@ -133,82 +431,95 @@ public class NodeDAO implements GenericDAO<NodeDTO, Long> {
      * @return
      * @throws SQLException
      */
-    protected Long insertNode(Database db, NodeDTO dto, Long parentId) throws SQLException {
-        PreparedStatement stmt =
-            db.preparedStatement(
-                "INSERT INTO Node SET " +
-                    "path = ?, " +
-                    "site = ?, " +
-                    "sub = ?, " +
-                    "resourceType = ?, " +
-                    "type = ?, " +
-                    "title = ?, " +
-                    "parent_id = ?"
-            );
-
-        int pIdx = 0;
-        stmt.setString(++pIdx, dto.getPath());
-        stmt.setString(++pIdx, dto.getSite());
-        stmt.setString(++pIdx, dto.getSub());
-        stmt.setString(++pIdx, dto.getResourceType());
-        stmt.setString(++pIdx, dto.getType());
-        stmt.setString(++pIdx, dto.getTitle());
-
-        if (parentId == null) {
-            stmt.setNull(++pIdx, Types.INTEGER);
-        } else {
-            stmt.setLong(++pIdx, parentId);
-        }
-
-        stmt.executeUpdate();
-
-        return JDBCHelper.getLastInsertedId(stmt);
+    protected Long insertNode(Database db, final NodeDTO dto, final Long parentId) throws SQLException {
+        return db.withStatement(
+            "INSERT INTO " + db.table("Node") + " SET " +
+                "path = ?, " +
+                "site = ?, " +
+                "sub = ?, " +
+                "resourceType = ?, " +
+                "type = ?, " +
+                "title = ?, " +
+                "hash = ?, " +
+                "parent_id = ?",
+
+            new StatementRunnable<Long>() {
+
+                @Override
+                public Long run(PreparedStatement stmt) throws SQLException {
+                    int pIdx = 0;
+                    stmt.setString(++pIdx, dto.getPath());
+                    stmt.setString(++pIdx, dto.getSite());
+                    stmt.setString(++pIdx, dto.getSub());
+                    stmt.setString(++pIdx, dto.getResourceType());
+                    stmt.setString(++pIdx, dto.getType());
+                    stmt.setString(++pIdx, dto.getTitle());
+                    setHashParameter(stmt, ++pIdx, dto);
+
+                    if (parentId == null) {
+                        stmt.setNull(++pIdx, Types.INTEGER);
+                    } else {
+                        stmt.setLong(++pIdx, parentId);
+                    }
+
+                    stmt.executeUpdate();
+
+                    return JDBCHelper.getLastInsertedId(stmt);
+                }
+            }
+        );
     }
 
 
-    protected void setNodeIdForPath(String path, String sub, Long newId) {
-        nodePathIdMap.put(path + "/" + sub, newId);
+    public void setNodeIdForPath(String path, String sub, Long newId) {
+        if (newId != null) {
+            getMapping().put(path, sub, newId);
+        }
     }
 
     public Long getNodeIdForPath(Database db, String path, String sub) throws SQLException {
-        String mapKey = path + "/" + sub;
-        if (nodePathIdMap.containsKey(mapKey)) {
-            return nodePathIdMap.get(mapKey);
-        } else {
-            Long id = getNodeIdForPathDb(db, path, sub);
-            setNodeIdForPath(path, sub, id);
+        long id = getMapping().get(path, sub);
+        if (id != NodeIdMapping.NOT_FOUND) {
             return id;
         }
+
+        Long dbId = getNodeIdForPathDb(db, path, sub);
+        setNodeIdForPath(path, sub, dbId);
+        return dbId;
     }
 
     /**
      * @return the id or null for the node with path <code>path</code>
      */
-    public Long getNodeIdForPathDb(Database db, String path, String sub) throws SQLException {
-
-        PreparedStatement pStmt =
-            db.preparedStatement(
-                "SELECT id FROM Node WHERE path = ? AND sub = ?"
-            );
-
-        pStmt.setString(1, path);
-        pStmt.setString(2, sub);
-        pStmt.execute();
-
-        // get result
-        ResultSet rSet = null;
-        try {
-            rSet = pStmt.getResultSet();
-            if (!rSet.next()) {
-                return null;
+    public Long getNodeIdForPathDb(Database db, final String path, final String sub) throws SQLException {
+        return db.withStatement(
+            "SELECT id FROM " + db.table("Node") + " WHERE path = ? AND sub = ?",
+
+            new StatementRunnable<Long>() {
+
+                @Override
+                public Long run(PreparedStatement pStmt) throws SQLException {
+                    pStmt.setString(1, path);
+                    pStmt.setString(2, sub);
+                    pStmt.execute();
+
+                    // get result
+                    ResultSet rSet = null;
+                    try {
+                        rSet = pStmt.getResultSet();
+                        if (!rSet.next()) {
+                            return null;
+                        }
+                        return rSet.getLong(1);
+                    }
+                    finally {
+                        if (rSet != null && !rSet.isClosed()) {
+                            rSet.close();
+                        }
+                    }
+                }
             }
-            return rSet.getLong(1);
-        }
-        finally {
-            if (rSet != null && !rSet.isClosed()) {
-                rSet.close();
-            }
-        }
+        );
     }
 
 
@@ -234,34 +545,263 @@ public class NodeDAO implements GenericDAO<NodeDTO, Long> {
 
         if (path.contains("/jcr:content")) {
             int jcrContentIdx = path.indexOf("/jcr:content");
-            String sub = path.substring(jcrContentIdx + 1);
-            String strippedPath = path.substring(0, jcrContentIdx);
-
-            PreparedStatement stmt =
-                    db.preparedStatement(
-                        "DELETE FROM Node WHERE path = ? AND sub LIKE ?"
-                    );
+            final String sub = path.substring(jcrContentIdx + 1);
+            final String strippedPath = path.substring(0, jcrContentIdx);
+
+            // the node itself and the nodes below it, not its siblings that start with its name
+            db.withStatement(
+                "DELETE FROM " + db.table("Node") + " WHERE path = ? AND (sub = ? OR sub LIKE ?)",
+
+                new StatementRunnable<Void>() {
+
+                    @Override
+                    public Void run(PreparedStatement stmt) throws SQLException {
+                        stmt.setString(1, strippedPath);
+                        stmt.setString(2, sub);
+                        stmt.setString(3, JDBCHelper.escapeLike(sub) + "/%");
+                        stmt.execute();
+                        return null;
+                    }
+                }
+            );
 
-            stmt.setString(1, strippedPath);
-            stmt.setString(2, sub + "%");
-            stmt.execute();
+            getMapping().removeSubtree(path);
         }
         else {
+            final String nodePath = path;
+
+            db.withStatement(
+                "DELETE FROM " + db.table("Node") + " WHERE path = ?",
 
-            PreparedStatement stmt =
-                    db.preparedStatement(
-                        "DELETE FROM Node WHERE path = ?"
-                    );
+                new StatementRunnable<Void>() {
 
-            stmt.setString(1, path);
-            stmt.execute();
+                    @Override
+                    public Void run(PreparedStatement stmt) throws SQLException {
+                        stmt.setString(1, nodePath);
+                        stmt.execute();
+                        return null;
+                    }
+                }
+            );
+
+            // the page and its content, not the pages below it
+            getMapping().remove(nodePath, "");
+            getMapping().removeSubtree(nodePath + "/jcr:content");
+        }
+
+    }
+
+    /**
+     * Remove the node at <code>rootPath</code> and all nodes underneath it. A root inside
+     * a page's jcr:content is matched on its page path and `sub`, like {@link #removeAll(Database, String)}.
+     *
+     * @param db is the connection to operate on
+     * @param rootPath is the root of the subtree to delete
+     * @throws SQLException
+     */
+    public void removeSubtree(Database db, final String rootPath) throws SQLException {
+        if (rootPath.contains("/jcr:content")) {
+            removeAll(db, rootPath);
+            return;
         }
 
+        db.withStatement(
+            "DELETE FROM " + db.table("Node") + " WHERE path = ? OR path LIKE ?",
+
+            new StatementRunnable<Void>() {
+
+                @Override
+                public Void run(PreparedStatement stmt) throws SQLException {
+                    stmt.setString(1, rootPath);
+                    stmt.setString(2, JDBCHelper.escapeLike(rootPath) + "/%");
+                    stmt.execute();
+                    return null;
+                }
+            }
+        );
+
+        getMapping().removeSubtree(rootPath);
+    }
+
+    /**
+     * Remove the nodes with the identifiers in <code>ids</code>
+     *
+     * @param db is the connection to operate on
+     * @param ids the identifiers of the nodes to remove
+     * @throws SQLException
+     */
+    public void removeAll(Database db, List<Long> ids) throws SQLException {
+        for (int offset = 0; offset < ids.size(); offset += DELETE_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(offset, Math.min(ids.size(), offset + DELETE_CHUNK_SIZE));
+            String idList = StringUtils.join(chunk, ", ");
+
+            // the mapping is keyed by path, so read the paths of the rows before they are gone
+            JDBCHelper.queryWithCallback(
+                db.getConnection(),
+                "SELECT path, sub FROM " + db.table("Node") + " WHERE id IN (" + idList + ")",
+                Void.class,
+                new SQLRunnable<Void>() {
+
+                    @Override
+                    public Void run(Statement stmt, ResultSet rSet) throws SQLException {
+                        while (rSet.next()) {
+                            getMapping().remove(rSet.getString(1), rSet.getString(2));
+                        }
+                        return null;
+                    }
+                }
+            );
+
+            JDBCHelper.query(
+                db.getConnection(),
+                "DELETE FROM " + db.table("Node") + " WHERE id IN (" + idList + ")"
+            );
+        }
+    }
+
+    /**
+     * Add the `hash` column to the live Node table when it was created before content
+     * hashes were stored. Only checked once, the shadow tables are created like the
+     * live table so they get the column as well.
+     *
+     * @param db is the connection to operate on
+     * @throws SQLException
+     */
+    public void ensureHashColumn(Database db) throws SQLException {
+        if (hashColumnChecked) {
+            return;
+        }
+
+        long nColumns = JDBCHelper.queryWithCallback(
+            db.getConnection(),
+            "SELECT COUNT(*) FROM information_schema.COLUMNS " +
+            "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'Node' AND COLUMN_NAME = 'hash'",
+            Long.class,
+            new SQLRunnable<Long>() {
+
+                @Override
+                public Long run(Statement stmt, ResultSet rSet) throws SQLException {
+                    return rSet.next() ? rSet.getLong(1) : 0L;
+                }
+            }
+        );
+
+        if (nColumns == 0) {
+            LOG.info("Adding the `hash` column to the Node table");
+            JDBCHelper.query(db.getConnection(), "ALTER TABLE Node ADD COLUMN hash bigint DEFAULT NULL");
+        }
+
+        hashColumnChecked = true;
+    }
+
+    /**
+     * Read the identifier and content hash of every node. The rows are streamed from the
+     * server instead of being buffered by the driver, the connection can't be used for
+     * anything else until they have all been read.
+     *
+     * @param db is the connection to read from
+     * @return the index of the stored nodes
+     * @throws SQLException
+     */
+    public NodeHashIndex loadHashIndex(Database db) throws SQLException {
+        NodeHashIndex index = new NodeHashIndex();
+
+        Statement stmt = null;
+        ResultSet rSet = null;
+
+        try {
+            stmt = db.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            rSet = stmt.executeQuery("SELECT id, path, sub, hash FROM " + db.table("Node"));
+
+            while (rSet.next()) {
+                long hash = rSet.getLong(4);
+                index.put(rSet.getString(2), rSet.getString(3), rSet.getLong(1), rSet.wasNull() ? null : hash);
+            }
+        }
+        finally {
+            if (rSet != null) {
+                rSet.close();
+            }
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Read the identifier and content hash of the nodes at <code>paths</code>, with one
+     * select for every few hundred paths. The lists are padded with the last path, so
+     * only a handful of distinct statements are prepared.
+     *
+     * @param db is the connection to read from
+     * @param paths the paths to read the nodes of, with all of their sub paths
+     * @return the index of the stored nodes
+     * @throws SQLException
+     */
+    public NodeHashIndex loadHashIndex(Database db, Collection<String> paths) throws SQLException {
+        final NodeHashIndex index = new NodeHashIndex();
+        final List<String> pathList = new ArrayList<String>(paths);
+
+        for (int offset = 0; offset < pathList.size(); offset += JDBCHelper.MAX_IN_LIST_SIZE) {
+            final List<String> chunk = pathList.subList(offset, Math.min(pathList.size(), offset + JDBCHelper.MAX_IN_LIST_SIZE));
+            final int nPlaceholders = JDBCHelper.getInListSize(chunk.size());
+
+            db.withStatement(
+                "SELECT id, path, sub, hash FROM " + db.table("Node") + " " +
+                "WHERE path IN (" + StringUtils.repeat("?", ", ", nPlaceholders) + ")",
+
+                new StatementRunnable<Void>() {
+
+                    @Override
+                    public Void run(PreparedStatement pStmt) throws SQLException {
+                        for (int pIdx = 0; pIdx < nPlaceholders; ++pIdx) {
+                            pStmt.setString(pIdx + 1, chunk.get(Math.min(pIdx, chunk.size() - 1)));
+                        }
+
+                        ResultSet rSet = pStmt.executeQuery();
+                        try {
+                            while (rSet.next()) {
+                                long hash = rSet.getLong(4);
+                                index.put(rSet.getString(2), rSet.getString(3), rSet.getLong(1), rSet.wasNull() ? null : hash);
+                            }
+                        }
+                        finally {
+                            rSet.close();
+                        }
+                        return null;
+                    }
+                }
+            );
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the highest node identifier in use, 0 when the table is empty
+     */
+    public long getMaxId(Database db) throws SQLException {
+        return JDBCHelper.queryWithCallback(
+            db.getConnection(),
+            "SELECT COALESCE(MAX(id), 0) FROM " + db.table("Node"),
+            Long.class,
+            new SQLRunnable<Long>() {
+
+                @Override
+                public Long run(Statement stmt, ResultSet rSet) throws SQLException {
+                    return rSet.next() ? rSet.getLong(1) : 0L;
+                }
+            }
+        );
     }
 
     @Override
     public void truncate(Database db) throws SQLException {
-        db.preparedStatement("TRUNCATE TABLE Node").execute();
+        db.preparedStatement("TRUNCATE TABLE " + db.table("Node")).execute();
+        getMapping().removeSubtree("/");
     }
 
 
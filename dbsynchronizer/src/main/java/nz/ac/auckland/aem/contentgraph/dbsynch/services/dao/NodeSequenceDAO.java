@@ -0,0 +1,103 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.dao;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.SQLRunnable;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.StatementRunnable;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * @author Marnix Cook
+ *
+ * Interfaces with the NodeSequence table, which hands out blocks of node identifiers
+ * so they can be assigned in the JVM instead of by the AUTO_INCREMENT column.
+ */
+public class NodeSequenceDAO {
+
+    /**
+     * Name of the sequence row for the Node table
+     */
+    public static final String NODE_SEQUENCE = "Node";
+
+    /**
+     * Make sure the sequence table exists and restart the node sequence at <code>lastId</code>.
+     *
+     * @param db is the database to operate on
+     * @param lastId the last identifier that is in use
+     * @throws SQLException
+     */
+    public void reset(Database db, final long lastId) throws SQLException {
+        JDBCHelper.query(
+            db.getConnection(),
+            "CREATE TABLE IF NOT EXISTS NodeSequence (" +
+                "name varchar(32) NOT NULL, " +
+                "id bigint NOT NULL, " +
+                "PRIMARY KEY (name)" +
+            ") ENGINE=MyISAM DEFAULT CHARSET=utf8"
+        );
+
+        db.withStatement(
+            "REPLACE INTO NodeSequence SET name = ?, id = ?",
+
+            new StatementRunnable<Integer>() {
+
+                @Override
+                public Integer run(PreparedStatement pStmt) throws SQLException {
+                    pStmt.setString(1, NODE_SEQUENCE);
+                    pStmt.setLong(2, lastId);
+                    return pStmt.executeUpdate();
+                }
+            }
+        );
+    }
+
+    /**
+     * Reserve a block of identifiers. The increment and read happen in one statement
+     * through LAST_INSERT_ID(expr), so concurrent reservations never overlap.
+     *
+     * @param db is the database to operate on, should be in auto-commit mode
+     * @param blockSize the number of identifiers to reserve
+     * @return the last identifier of the reserved block
+     * @throws SQLException when the sequence does not exist
+     */
+    public long reserve(Database db, final int blockSize) throws SQLException {
+        int nUpdated = db.withStatement(
+            "UPDATE NodeSequence SET id = LAST_INSERT_ID(id + ?) WHERE name = ?",
+
+            new StatementRunnable<Integer>() {
+
+                @Override
+                public Integer run(PreparedStatement pStmt) throws SQLException {
+                    pStmt.setInt(1, blockSize);
+                    pStmt.setString(2, NODE_SEQUENCE);
+                    return pStmt.executeUpdate();
+                }
+            }
+        );
+
+        if (nUpdated == 0) {
+            throw new SQLException("Node sequence has not been initialized");
+        }
+
+        // LAST_INSERT_ID() is connection specific, so it must be read on the same connection
+        return JDBCHelper.queryWithCallback(
+            db.getConnection(),
+            "SELECT LAST_INSERT_ID()",
+            Long.class,
+            new SQLRunnable<Long>() {
+
+                @Override
+                public Long run(Statement stmt, ResultSet rSet) throws SQLException {
+                    if (!rSet.next()) {
+                        throw new SQLException("Could not read the reserved node identifiers");
+                    }
+                    return rSet.getLong(1);
+                }
+            }
+        );
+    }
+}
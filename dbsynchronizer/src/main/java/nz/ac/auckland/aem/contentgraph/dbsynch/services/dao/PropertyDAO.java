@@ -1,12 +1,18 @@
 package nz.ac.auckland.aem.contentgraph.dbsynch.services.dao;
 
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.StatementRunnable;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
 import org.apache.commons.lang.NotImplementedException;
+import org.apache.commons.lang.StringUtils;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Marnix Cook
@@ -20,6 +26,12 @@ public class PropertyDAO implements GenericDAO<PropertyDTO, Long> {
      */
     private static final int BATCH_THRESHOLD = 4096;
 
+    /**
+     * Number of nodes whose properties are removed by a single delete statement
+     */
+    private static final int DELETE_CHUNK_SIZE = 1000;
+
+
     /**
      * Thread local counter for batched number of properties
      */
@@ -76,7 +88,6 @@ public class PropertyDAO implements GenericDAO<PropertyDTO, Long> {
         ++val;
         if (val > BATCH_THRESHOLD) {
             pStmt.executeBatch();
-            pStmt.getConnection().commit();
             val %= BATCH_THRESHOLD;
         }
 
@@ -92,19 +103,22 @@ public class PropertyDAO implements GenericDAO<PropertyDTO, Long> {
      * @throws SQLException
      */
     @Override
-    public Long insert(Database db, PropertyDTO property) throws SQLException {
-        PreparedStatement pStmt = getInsertStatement(db);
+    public Long insert(Database db, final PropertyDTO property) throws SQLException {
+        return db.withStatement(getInsertSql(db), new StatementRunnable<Long>() {
 
-        int pIdx = 0;
-        pStmt.setString(++pIdx, property.getName());
-        pStmt.setString(++pIdx, property.getValue());
-        pStmt.setLong(++pIdx, property.getNodeId());
-        pStmt.setString(++pIdx, property.getSub());
-        pStmt.setString(++pIdx, property.getPath());
-
-        pStmt.executeUpdate();
-        return JDBCHelper.getLastInsertedId(pStmt);
+            @Override
+            public Long run(PreparedStatement pStmt) throws SQLException {
+                int pIdx = 0;
+                pStmt.setString(++pIdx, property.getName());
+                pStmt.setString(++pIdx, property.getValue());
+                pStmt.setLong(++pIdx, property.getNodeId());
+                pStmt.setString(++pIdx, property.getSub());
+                pStmt.setString(++pIdx, property.getPath());
 
+                pStmt.executeUpdate();
+                return JDBCHelper.getLastInsertedId(pStmt);
+            }
+        });
     }
 
     /**
@@ -118,10 +132,14 @@ public class PropertyDAO implements GenericDAO<PropertyDTO, Long> {
     }
 
     protected PreparedStatement getInsertStatement(Database db) throws SQLException {
-        return
-            db.preparedStatement(
-                "INSERT DELAYED INTO Property SET name = ?, value = ?, nodeId = ?, sub = ?, path = ?"
-            );
+        return db.preparedStatement(getInsertSql(db));
+    }
+
+    /**
+     * @return the statement that inserts a single property
+     */
+    protected String getInsertSql(Database db) {
+        return "INSERT DELAYED INTO " + db.table("Property") + " SET name = ?, value = ?, nodeId = ?, sub = ?, path = ?";
     }
 
     @Override
@@ -130,17 +148,45 @@ public class PropertyDAO implements GenericDAO<PropertyDTO, Long> {
     }
 
     /**
-     * Remove all properties that belong to, or are a subpath of <code>path</code>
+     * Remove all properties that belong to, or are a subpath of <code>path</code>. The rows
+     * of a node inside a page's jcr:content have the page path and the rest in `sub`.
      *
      * @param db contains the connection to operate on
      * @param path is the path to delete properties for
-     * @param sub is the sub path to delete properties for
      * @throws SQLException
      */
-    public void removeAll(Database db, String path) throws SQLException {
-        PreparedStatement pStmt = db.preparedStatement("DELETE FROM Property WHERE path = ?");
-        pStmt.setString(1, path);
-        pStmt.execute();
+    public void removeAll(Database db, final String path) throws SQLException {
+        if (path.contains("/jcr:content")) {
+            int jcrContentIdx = path.indexOf("/jcr:content");
+            final String sub = path.substring(jcrContentIdx + 1);
+            final String strippedPath = path.substring(0, jcrContentIdx);
+
+            // the node itself and the nodes below it, not its siblings that start with its name
+            db.withStatement(
+                "DELETE FROM " + db.table("Property") + " WHERE path = ? AND (sub = ? OR sub LIKE ?)",
+
+                new StatementRunnable<Boolean>() {
+
+                    @Override
+                    public Boolean run(PreparedStatement pStmt) throws SQLException {
+                        pStmt.setString(1, strippedPath);
+                        pStmt.setString(2, sub);
+                        pStmt.setString(3, JDBCHelper.escapeLike(sub) + "/%");
+                        return pStmt.execute();
+                    }
+                }
+            );
+            return;
+        }
+
+        db.withStatement("DELETE FROM " + db.table("Property") + " WHERE path = ?", new StatementRunnable<Boolean>() {
+
+            @Override
+            public Boolean run(PreparedStatement pStmt) throws SQLException {
+                pStmt.setString(1, path);
+                return pStmt.execute();
+            }
+        });
     }
 
     /**
@@ -150,13 +196,210 @@ public class PropertyDAO implements GenericDAO<PropertyDTO, Long> {
      * @param path is the path to delete properties for
      * @throws SQLException
      */
-    public void removeAll(Database db, String path, String sub) throws SQLException {
-        PreparedStatement pStmt = db.preparedStatement("DELETE FROM Property WHERE path = ? AND sub = ?");
-        pStmt.setString(1, path);
-        pStmt.setString(2, sub);
-        pStmt.execute();
+    public void removeAll(Database db, final String path, final String sub) throws SQLException {
+        db.withStatement("DELETE FROM " + db.table("Property") + " WHERE path = ? AND sub = ?", new StatementRunnable<Boolean>() {
+
+            @Override
+            public Boolean run(PreparedStatement pStmt) throws SQLException {
+                pStmt.setString(1, path);
+                pStmt.setString(2, sub);
+                return pStmt.execute();
+            }
+        });
+    }
+
+
+    /**
+     * Read the property rows stored for the node at <code>path</code> and <code>sub</code>
+     *
+     * @param db contains the connection to operate on
+     * @param path is the path to read properties for
+     * @param sub is the sub path to read properties for
+     * @return the stored rows
+     * @throws SQLException
+     */
+    public List<PropertyDTO> getAll(Database db, final String path, final String sub) throws SQLException {
+        return db.withStatement(
+            "SELECT name, value, nodeId FROM " + db.table("Property") + " WHERE path = ? AND sub = ?",
+
+            new StatementRunnable<List<PropertyDTO>>() {
+
+                @Override
+                public List<PropertyDTO> run(PreparedStatement pStmt) throws SQLException {
+                    pStmt.setString(1, path);
+                    pStmt.setString(2, sub);
+
+                    List<PropertyDTO> properties = new ArrayList<PropertyDTO>();
+                    ResultSet rSet = pStmt.executeQuery();
+                    try {
+                        while (rSet.next()) {
+                            PropertyDTO property = new PropertyDTO();
+                            property.setPath(path);
+                            property.setSub(sub);
+                            property.setName(rSet.getString(1));
+                            property.setValue(rSet.getString(2));
+
+                            long nodeId = rSet.getLong(3);
+                            property.setNodeId(rSet.wasNull() ? null : nodeId);
+
+                            properties.add(property);
+                        }
+                    }
+                    finally {
+                        rSet.close();
+                    }
+                    return properties;
+                }
+            }
+        );
+    }
+
+    /**
+     * Read the property rows stored for all nodes at <code>paths</code>, with one select
+     * for every few hundred paths. The lists are padded like the node lookups.
+     *
+     * @param db contains the connection to operate on
+     * @param paths the paths to read the properties of, for all of their sub paths
+     * @return the stored rows by path and sub path, joined by a slash
+     * @throws SQLException
+     */
+    public Map<String, List<PropertyDTO>> getAllForPaths(Database db, Collection<String> paths) throws SQLException {
+        final Map<String, List<PropertyDTO>> propertiesByNode = new HashMap<String, List<PropertyDTO>>();
+        final List<String> pathList = new ArrayList<String>(paths);
+
+        for (int offset = 0; offset < pathList.size(); offset += JDBCHelper.MAX_IN_LIST_SIZE) {
+            final List<String> chunk = pathList.subList(offset, Math.min(pathList.size(), offset + JDBCHelper.MAX_IN_LIST_SIZE));
+            final int nPlaceholders = JDBCHelper.getInListSize(chunk.size());
+
+            db.withStatement(
+                "SELECT name, value, nodeId, path, sub FROM " + db.table("Property") + " " +
+                "WHERE path IN (" + StringUtils.repeat("?", ", ", nPlaceholders) + ")",
+
+                new StatementRunnable<Void>() {
+
+                    @Override
+                    public Void run(PreparedStatement pStmt) throws SQLException {
+                        for (int pIdx = 0; pIdx < nPlaceholders; ++pIdx) {
+                            pStmt.setString(pIdx + 1, chunk.get(Math.min(pIdx, chunk.size() - 1)));
+                        }
+
+                        ResultSet rSet = pStmt.executeQuery();
+                        try {
+                            while (rSet.next()) {
+                                PropertyDTO property = new PropertyDTO();
+                                property.setName(rSet.getString(1));
+                                property.setValue(rSet.getString(2));
+
+                                long nodeId = rSet.getLong(3);
+                                property.setNodeId(rSet.wasNull() ? null : nodeId);
+
+                                property.setPath(rSet.getString(4));
+                                property.setSub(rSet.getString(5));
+
+                                String key = property.getPath() + "/" + property.getSub();
+                                List<PropertyDTO> nodeProperties = propertiesByNode.get(key);
+                                if (nodeProperties == null) {
+                                    nodeProperties = new ArrayList<PropertyDTO>();
+                                    propertiesByNode.put(key, nodeProperties);
+                                }
+                                nodeProperties.add(property);
+                            }
+                        }
+                        finally {
+                            rSet.close();
+                        }
+                        return null;
+                    }
+                }
+            );
+        }
+
+        return propertiesByNode;
+    }
+
+    /**
+     * Remove a single row for each property in <code>properties</code>, in one batch.
+     * Rows are matched on all of their columns as the table has no key. The text columns
+     * are compared as binary strings: under the case-insensitive collation of the table
+     * `LIMIT 1` could otherwise delete a value that only differs in case or trailing spaces.
+     *
+     * @param db contains the connection to operate on
+     * @param properties the property rows to remove
+     * @throws SQLException
+     */
+    public void removeAll(Database db, final List<PropertyDTO> properties) throws SQLException {
+        db.withStatement(
+            "DELETE FROM " + db.table("Property") + " " +
+            "WHERE path = ? AND BINARY sub = ? AND BINARY name = ? AND BINARY value <=> ? AND nodeId <=> ? LIMIT 1",
+
+            new StatementRunnable<Void>() {
+
+                @Override
+                public Void run(PreparedStatement pStmt) throws SQLException {
+                    for (PropertyDTO property : properties) {
+                        int pIdx = 0;
+                        pStmt.setString(++pIdx, property.getPath());
+                        pStmt.setString(++pIdx, property.getSub());
+                        pStmt.setString(++pIdx, property.getName());
+                        pStmt.setString(++pIdx, property.getValue());
+
+                        if (property.getNodeId() == null) {
+                            pStmt.setNull(++pIdx, Types.INTEGER);
+                        } else {
+                            pStmt.setLong(++pIdx, property.getNodeId());
+                        }
+
+                        pStmt.addBatch();
+                    }
+                    pStmt.executeBatch();
+                    return null;
+                }
+            }
+        );
+    }
+
+    /**
+     * Remove all properties of the node at <code>rootPath</code> and the nodes underneath it.
+     * A root inside a page's jcr:content is matched on its page path and `sub`, like
+     * {@link #removeAll(Database, String)}.
+     *
+     * @param db contains the connection to operate on
+     * @param rootPath is the root of the subtree to delete properties for
+     * @throws SQLException
+     */
+    public void removeSubtree(Database db, final String rootPath) throws SQLException {
+        if (rootPath.contains("/jcr:content")) {
+            removeAll(db, rootPath);
+            return;
+        }
+
+        db.withStatement("DELETE FROM " + db.table("Property") + " WHERE path = ? OR path LIKE ?", new StatementRunnable<Boolean>() {
+
+            @Override
+            public Boolean run(PreparedStatement pStmt) throws SQLException {
+                pStmt.setString(1, rootPath);
+                pStmt.setString(2, JDBCHelper.escapeLike(rootPath) + "/%");
+                return pStmt.execute();
+            }
+        });
     }
 
+    /**
+     * Remove all properties of the nodes with the identifiers in <code>nodeIds</code>
+     *
+     * @param db contains the connection to operate on
+     * @param nodeIds the identifiers of the nodes to delete properties for
+     * @throws SQLException
+     */
+    public void removeAllForNodes(Database db, List<Long> nodeIds) throws SQLException {
+        for (int offset = 0; offset < nodeIds.size(); offset += DELETE_CHUNK_SIZE) {
+            List<Long> chunk = nodeIds.subList(offset, Math.min(nodeIds.size(), offset + DELETE_CHUNK_SIZE));
+            JDBCHelper.query(
+                db.getConnection(),
+                "DELETE FROM " + db.table("Property") + " WHERE nodeId IN (" + StringUtils.join(chunk, ", ") + ")"
+            );
+        }
+    }
 
     @Override
     public void update(Database db, Long id, PropertyDTO property) {
@@ -165,6 +408,6 @@ public class PropertyDAO implements GenericDAO<PropertyDTO, Long> {
 
     @Override
     public void truncate(Database db) throws SQLException {
-        db.preparedStatement("TRUNCATE TABLE Property").execute();
+        db.preparedStatement("TRUNCATE TABLE " + db.table("Property")).execute();
     }
 }
@@ -0,0 +1,101 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.dao;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+
+/**
+ * @author Marnix Cook
+ *
+ * Manages the shadow copies of the Node and Property tables a reindex is written into.
+ * Once the reindex completes they replace the live tables in a single RENAME TABLE, so
+ * readers never see an empty or partial content graph.
+ */
+public class ShadowTableDAO {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ShadowTableDAO.class);
+
+    /**
+     * Tables that are rebuilt by a reindex
+     */
+    private static final String[] TABLES = { "Node", "Property" };
+
+    /**
+     * Suffix of the tables that are replaced, they are dropped right after the swap
+     */
+    private static final String OLD_SUFFIX = "_old";
+
+    /**
+     * Create empty shadow tables with the same structure as the live tables, shadow
+     * tables of an earlier, failed reindex are dropped first.
+     *
+     * @param db the database to operate on
+     * @param suffix the suffix of the shadow tables
+     * @throws SQLException
+     */
+    public void create(Database db, String suffix) throws SQLException {
+        for (String table : TABLES) {
+            JDBCHelper.query(db.getConnection(), "DROP TABLE IF EXISTS " + table + suffix);
+            JDBCHelper.query(db.getConnection(), "CREATE TABLE " + table + suffix + " LIKE " + table);
+        }
+    }
+
+    /**
+     * Atomically replace the live tables by the shadow tables and drop the old ones.
+     *
+     * @param db the database to operate on
+     * @param suffix the suffix of the shadow tables
+     * @throws SQLException
+     */
+    public void swap(Database db, String suffix) throws SQLException {
+        StringBuilder rename = new StringBuilder("RENAME TABLE ");
+        for (int idx = 0; idx < TABLES.length; ++idx) {
+            String table = TABLES[idx];
+            if (idx > 0) {
+                rename.append(", ");
+            }
+            rename
+                .append(table).append(" TO ").append(table).append(OLD_SUFFIX).append(", ")
+                .append(table).append(suffix).append(" TO ").append(table);
+        }
+
+        JDBCHelper.query(db.getConnection(), "DROP TABLE IF EXISTS " + joinTables(OLD_SUFFIX));
+        JDBCHelper.query(db.getConnection(), rename.toString());
+        JDBCHelper.query(db.getConnection(), "DROP TABLE " + joinTables(OLD_SUFFIX));
+    }
+
+    /**
+     * Drop the shadow tables, used when a reindex failed. The live tables are untouched.
+     *
+     * @param db the database to operate on
+     * @param suffix the suffix of the shadow tables
+     */
+    public void dropQuietly(Database db, String suffix) {
+        try {
+            JDBCHelper.query(db.getConnection(), "DROP TABLE IF EXISTS " + joinTables(suffix));
+        }
+        catch (SQLException sqlEx) {
+            LOG.error("Could not drop the shadow tables, they are dropped by the next reindex", sqlEx);
+        }
+    }
+
+    /**
+     * @return the comma separated table names with a suffix
+     */
+    protected String joinTables(String suffix) {
+        StringBuilder tables = new StringBuilder();
+        for (String table : TABLES) {
+            if (tables.length() > 0) {
+                tables.append(", ");
+            }
+            tables.append(table).append(suffix);
+        }
+        return tables.toString();
+    }
+}
@@ -20,6 +20,7 @@ public class NodeDTO implements DtoFromRow {
     private String resourceType;
     private String type;
     private String title;
+    private Long hash;
 
     public Long getId() {
         return id;
@@ -85,6 +86,17 @@ public class NodeDTO implements DtoFromRow {
         this.title = title;
     }
 
+    /**
+     * @return the content hash of the node and its properties, see ContentHash
+     */
+    public Long getHash() {
+        return hash;
+    }
+
+    public void setHash(Long hash) {
+        this.hash = hash;
+    }
+
     /**
      * @return an instance of NodeDTO based on the contents of the current resultset row content.
      */
@@ -24,6 +24,26 @@ public class ConnectionInfo {
      */
     private String password;
 
+    /**
+     * Default number of milliseconds a connection may be idle before it is validated
+     */
+    public static final long DEFAULT_VALIDATE_AFTER_IDLE_MILLIS = 30000L;
+
+    /**
+     * Number of milliseconds a connection may be idle before it is validated on use
+     */
+    private long validateAfterIdleMillis = DEFAULT_VALIDATE_AFTER_IDLE_MILLIS;
+
+    /**
+     * Pool that connections are borrowed from, if any
+     */
+    private ConnectionPool connectionPool;
+
+    /**
+     * Suffix of the Node and Property tables that are written to, empty for the live tables
+     */
+    private String tableSuffix = "";
+
     /**
      * Initialize data-members
      *
@@ -49,6 +69,37 @@ public class ConnectionInfo {
         return password;
     }
 
+    public long getValidateAfterIdleMillis() {
+        return validateAfterIdleMillis;
+    }
+
+    public void setValidateAfterIdleMillis(long validateAfterIdleMillis) {
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public String getTableSuffix() {
+        return tableSuffix;
+    }
+
+    /**
+     * @return a copy of this connection information, for Node and Property tables with a suffix
+     */
+    public ConnectionInfo forTableSuffix(String suffix) {
+        ConnectionInfo info = new ConnectionInfo(this.connectionString, this.username, this.password);
+        info.setValidateAfterIdleMillis(this.validateAfterIdleMillis);
+        info.setConnectionPool(this.connectionPool);
+        info.tableSuffix = suffix;
+        return info;
+    }
+
     /**
      * @return true if the connection information is incomplete
      */
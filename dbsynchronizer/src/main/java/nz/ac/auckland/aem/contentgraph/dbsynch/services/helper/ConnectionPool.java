@@ -0,0 +1,433 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import nz.ac.auckland.aem.contentgraph.utils.StripedCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marnix Cook
+ *
+ * A bounded pool of JDBC connections. Callers borrow a connection through
+ * {@link JDBCHelper#getDatabaseConnection(ConnectionInfo)} and return it by closing
+ * it, so none of the existing close logic has to change. The connection that is
+ * handed out is a proxy; closing it rolls back uncommitted work, closes the statements
+ * that were created on it and puts the physical connection back into the pool.
+ *
+ * Idle connections are evicted when they haven't been used for a while, and a
+ * connection is only validated on borrow when its last validation is older than
+ * the validation interval.
+ */
+public class ConnectionPool {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /**
+     * Number of seconds the validation query may take
+     */
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    private ConnectionInfo connInfo;
+    private int maxSize;
+    private long maxIdleMillis;
+    private long validationIntervalMillis;
+    private long borrowTimeoutMillis;
+
+    /**
+     * Limits the number of physical connections that are handed out or idle
+     */
+    private Semaphore permits;
+
+    /**
+     * Idle connections, most recently returned first
+     */
+    private LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+
+    private volatile boolean closed = false;
+
+    //
+    //  Metrics
+    //
+    private StripedCounter nCreated = new StripedCounter();
+    private StripedCounter nBorrowed = new StripedCounter();
+    private StripedCounter nReturned = new StripedCounter();
+    private StripedCounter nValidated = new StripedCounter();
+    private StripedCounter nInvalid = new StripedCounter();
+    private StripedCounter nEvicted = new StripedCounter();
+    private StripedCounter nWaited = new StripedCounter();
+    private StripedCounter nTimeouts = new StripedCounter();
+
+    /**
+     * Initialize data-members
+     *
+     * @param connInfo the information to open physical connections with
+     * @param maxSize the maximum number of physical connections
+     * @param maxIdleSeconds number of seconds after which an idle connection is evicted
+     * @param validationIntervalSeconds number of seconds after which a borrowed connection is validated again
+     * @param borrowTimeoutSeconds number of seconds to wait for a connection when the pool is exhausted
+     */
+    public ConnectionPool(ConnectionInfo connInfo, int maxSize, int maxIdleSeconds, int validationIntervalSeconds, int borrowTimeoutSeconds) {
+        this.connInfo = connInfo;
+        this.maxSize = maxSize;
+        this.maxIdleMillis = maxIdleSeconds * 1000L;
+        this.validationIntervalMillis = validationIntervalSeconds * 1000L;
+        this.borrowTimeoutMillis = borrowTimeoutSeconds * 1000L;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrow a connection, close it to return it to the pool.
+     *
+     * @return a connection proxy
+     * @throws SQLException when the pool is exhausted or no connection could be opened
+     */
+    public Connection borrow() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("Connection pool has been closed");
+        }
+
+        acquirePermit();
+
+        try {
+            evictIdle();
+
+            PooledConnection pooled;
+            while ((pooled = this.idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    break;
+                }
+                pooled.closePhysical();
+            }
+
+            if (pooled == null) {
+                pooled = new PooledConnection(openConnection());
+                this.nCreated.increment();
+            }
+
+            this.nBorrowed.increment();
+            return pooled.handOut();
+        }
+        catch (SQLException sqlEx) {
+            this.permits.release();
+            throw sqlEx;
+        }
+        catch (RuntimeException rEx) {
+            this.permits.release();
+            throw rEx;
+        }
+    }
+
+    /**
+     * Close the pool, idle connections are closed immediately and borrowed connections
+     * are closed when they are returned.
+     */
+    public void close() {
+        this.closed = true;
+
+        PooledConnection pooled;
+        while ((pooled = this.idle.pollFirst()) != null) {
+            pooled.closePhysical();
+        }
+
+        LOG.info("Connection pool closed, {}", this);
+    }
+
+    /**
+     * Close connections that have been idle for longer than the maximum idle time.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        Iterator<PooledConnection> it = this.idle.descendingIterator();
+        while (it.hasNext()) {
+            PooledConnection pooled = it.next();
+            if (now - pooled.lastUsed > this.maxIdleMillis && this.idle.remove(pooled)) {
+                pooled.closePhysical();
+                this.nEvicted.increment();
+            }
+        }
+    }
+
+    /**
+     * @return a new physical connection (part of class seam)
+     */
+    protected Connection openConnection() throws SQLException {
+        return JDBCHelper.openConnection(this.connInfo);
+    }
+
+    /**
+     * Wait for a free slot in the pool
+     */
+    protected void acquirePermit() throws SQLException {
+        if (this.permits.tryAcquire()) {
+            return;
+        }
+
+        this.nWaited.increment();
+        try {
+            if (!this.permits.tryAcquire(this.borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                this.nTimeouts.increment();
+                throw new SQLException("Timed out waiting for a connection, all " + this.maxSize + " are in use");
+            }
+        }
+        catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+        }
+    }
+
+    /**
+     * @return true if the idle connection can be handed out, validates it when the interval has passed
+     */
+    protected boolean isUsable(PooledConnection pooled) {
+        try {
+            if (pooled.physical.isClosed()) {
+                return false;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - pooled.lastValidated < this.validationIntervalMillis) {
+                return true;
+            }
+
+            this.nValidated.increment();
+            if (!pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                this.nInvalid.increment();
+                return false;
+            }
+
+            pooled.lastValidated = now;
+            return true;
+        }
+        catch (SQLException sqlEx) {
+            this.nInvalid.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Called by the connection proxy when it is closed
+     *
+     * @param pooled the connection that was returned
+     */
+    protected void giveBack(PooledConnection pooled) {
+        this.nReturned.increment();
+
+        try {
+            if (this.closed || !pooled.reset()) {
+                pooled.closePhysical();
+            } else {
+                pooled.lastUsed = System.currentTimeMillis();
+                this.idle.offerFirst(pooled);
+            }
+        }
+        finally {
+            this.permits.release();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    //    Metrics
+    // ------------------------------------------------------------------------
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActive() {
+        return this.maxSize - this.permits.availablePermits();
+    }
+
+    public int getIdle() {
+        return this.idle.size();
+    }
+
+    public long getCreated() {
+        return nCreated.sum();
+    }
+
+    public long getBorrowed() {
+        return nBorrowed.sum();
+    }
+
+    public long getReturned() {
+        return nReturned.sum();
+    }
+
+    public long getValidated() {
+        return nValidated.sum();
+    }
+
+    public long getInvalid() {
+        return nInvalid.sum();
+    }
+
+    public long getEvicted() {
+        return nEvicted.sum();
+    }
+
+    public long getWaited() {
+        return nWaited.sum();
+    }
+
+    public long getTimeouts() {
+        return nTimeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "active: %d/%d, idle: %d, created: %d, borrowed: %d, returned: %d, " +
+            "validated: %d, invalid: %d, evicted: %d, waited: %d, timeouts: %d",
+            getActive(), this.maxSize, getIdle(), getCreated(), getBorrowed(), getReturned(),
+            getValidated(), getInvalid(), getEvicted(), getWaited(), getTimeouts()
+        );
+    }
+
+    // ------------------------------------------------------------------------
+    //    Pooled connection
+    // ------------------------------------------------------------------------
+
+    /**
+     * Physical connection and its bookkeeping
+     */
+    protected class PooledConnection {
+
+        private Connection physical;
+        private long lastUsed;
+        private long lastValidated;
+
+        /**
+         * Statements created while the connection was handed out
+         */
+        private List<Statement> statements = new ArrayList<Statement>();
+
+        protected PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.lastUsed = System.currentTimeMillis();
+            this.lastValidated = this.lastUsed;
+        }
+
+        /**
+         * @return a new proxy that returns this connection to the pool when closed
+         */
+        protected Connection handOut() {
+            return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class[] { Connection.class },
+                new ProxyHandler(this)
+            );
+        }
+
+        /**
+         * Bring the connection back into its initial state
+         *
+         * @return false if the connection is no longer usable
+         */
+        protected boolean reset() {
+            for (Statement stmt : this.statements) {
+                try {
+                    stmt.close();
+                }
+                catch (SQLException sqlEx) {
+                    LOG.debug("Could not close statement of returned connection", sqlEx);
+                }
+            }
+            this.statements.clear();
+
+            try {
+                if (this.physical.isClosed()) {
+                    return false;
+                }
+                if (!this.physical.getAutoCommit()) {
+                    this.physical.rollback();
+                    this.physical.setAutoCommit(true);
+                }
+                return true;
+            }
+            catch (SQLException sqlEx) {
+                LOG.info("Returned connection could not be reset, discarding it");
+                return false;
+            }
+        }
+
+        protected void closePhysical() {
+            JDBCHelper.closeQuietly(this.physical);
+        }
+    }
+
+    /**
+     * Delegates to the physical connection until the proxy is closed
+     */
+    protected class ProxyHandler implements InvocationHandler {
+
+        private PooledConnection pooled;
+
+        protected ProxyHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if ("close".equals(name)) {
+                release();
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return this.pooled == null || this.pooled.physical.isClosed();
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "Pooled" + (this.pooled == null ? "[returned]" : this.pooled.physical.toString());
+            }
+            if (this.pooled == null) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+
+            try {
+                Object result = method.invoke(this.pooled.physical, args);
+                if (result instanceof Statement) {
+                    this.pooled.statements.add((Statement) result);
+                }
+                return result;
+            }
+            catch (InvocationTargetException itEx) {
+                throw itEx.getCause();
+            }
+        }
+
+        /**
+         * Return the connection to the pool, only the first call has an effect
+         */
+        protected synchronized void release() {
+            if (this.pooled != null) {
+                PooledConnection toReturn = this.pooled;
+                this.pooled = null;
+                giveBack(toReturn);
+            }
+        }
+    }
+}
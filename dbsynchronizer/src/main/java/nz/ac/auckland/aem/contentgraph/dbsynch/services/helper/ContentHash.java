@@ -0,0 +1,89 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+
+import java.util.List;
+
+/**
+ * @author Marnix Cook
+ *
+ * Computes the 64 bit fingerprint of a node that is stored in the `hash` column of the
+ * Node table. It covers the columns of the node and the names and values of its
+ * properties, so a verify reindex can tell whether the rows of a node are still up to
+ * date without reading them back.
+ *
+ * The property hashes are summed, so the order in which the JCR returns the properties
+ * does not matter.
+ */
+public class ContentHash {
+
+    /**
+     * FNV-1a 64 bit offset basis and prime
+     */
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    /**
+     * Separates fields, so that ("ab", "c") and ("a", "bc") hash differently
+     */
+    private static final char SEPARATOR = '\u0000';
+
+    /**
+     * Marks a null field, so that null and "" hash differently
+     */
+    private static final char NULL_FIELD = '\u0001';
+
+    private ContentHash() {
+    }
+
+    /**
+     * @return the fingerprint of <code>node</code> and its <code>properties</code>
+     */
+    public static long of(NodeDTO node, List<PropertyDTO> properties) {
+        long hash = OFFSET_BASIS;
+        hash = update(hash, node.getSite());
+        hash = update(hash, node.getPath());
+        hash = update(hash, node.getSub());
+        hash = update(hash, node.getResourceType());
+        hash = update(hash, node.getType());
+        hash = update(hash, node.getTitle());
+
+        long propertiesHash = 0;
+        if (properties != null) {
+            for (PropertyDTO property : properties) {
+                long propertyHash = update(OFFSET_BASIS, property.getName());
+                propertiesHash += mix(update(propertyHash, property.getValue()));
+            }
+        }
+
+        return mix(hash ^ propertiesHash);
+    }
+
+    /**
+     * @return <code>hash</code> updated with the characters of <code>value</code>
+     */
+    protected static long update(long hash, String value) {
+        if (value == null) {
+            return (hash ^ NULL_FIELD) * PRIME;
+        }
+
+        for (int idx = 0; idx < value.length(); ++idx) {
+            hash = (hash ^ value.charAt(idx)) * PRIME;
+        }
+        return (hash ^ SEPARATOR) * PRIME;
+    }
+
+    /**
+     * Spread the bits of <code>hash</code>, so the sum of the property hashes doesn't
+     * cancel out similar values (finalizer of MurmurHash3)
+     */
+    protected static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9a64fe1ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
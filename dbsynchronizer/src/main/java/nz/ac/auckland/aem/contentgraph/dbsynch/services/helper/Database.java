@@ -1,11 +1,14 @@
 package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
 
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.StatementRunnable;
+import nz.ac.auckland.aem.contentgraph.utils.StripedCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
@@ -14,6 +17,14 @@ import java.util.Map;
  * @author Marnix Cook
  *
  * Wraps a connection and is able to generate named, prepared statements.
+ *
+ * The connection is not pinged before every statement. It is only validated when it
+ * has been idle for longer than the connection information's idle time, or when a
+ * statement failed because the connection broke. Statements that are run through
+ * {@link #withStatement(String, StatementRunnable)} are retried once on a fresh connection
+ * when the connection broke, whether or not auto-commit is on: the tables are MyISAM
+ * (see schema.sql), so every statement is applied as it runs and nothing is lost with the
+ * connection but the statement itself.
  */
 public class Database {
 
@@ -22,6 +33,19 @@ public class Database {
      */
     private static final Logger LOG = LoggerFactory.getLogger(Database.class);
 
+    /**
+     * Number of seconds the validation may take
+     */
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    //
+    //  Health counters, shared by all instances
+    //
+    private static final StripedCounter validationsSkipped = new StripedCounter();
+    private static final StripedCounter validationsPerformed = new StripedCounter();
+    private static final StripedCounter reconnects = new StripedCounter();
+    private static final StripedCounter retries = new StripedCounter();
+
     /**
      * Connection
      */
@@ -34,6 +58,16 @@ public class Database {
 
     private ConnectionInfo info;
 
+    /**
+     * Last time the connection was handed out
+     */
+    private long lastUsed;
+
+    /**
+     * Set when a statement failed, the connection is validated before its next use
+     */
+    private boolean suspect;
+
     /**
      * Database wrapper
      *
@@ -42,6 +76,7 @@ public class Database {
     public Database(Connection conn) {
         this.connection = conn;
         this.namedStatements = new HashMap<String, PreparedStatement>();
+        this.lastUsed = System.currentTimeMillis();
     }
 
     public Database(Connection conn, ConnectionInfo info) {
@@ -74,22 +109,126 @@ public class Database {
      */
     public Connection getConnection() {
         try {
-            if (connection == null || connection.isClosed() || !connection.isValid(1)) {
-                boolean oldAutoCommitStatus = connection == null? true : connection.getAutoCommit();
-                if (this.info != null) {
-                    connection = JDBCHelper.getDatabaseConnection(this.info);
-                    connection.setAutoCommit(oldAutoCommitStatus);
-                } else {
-                    LOG.error("Connection closed, cannot reconnect because no connection information provided");
-                }
+            if (!isHealthy()) {
+                reconnect();
             }
         }
         catch (SQLException sqlEx) {
             LOG.error("Something went wrong", sqlEx);
         }
+        this.lastUsed = System.currentTimeMillis();
         return connection;
     }
 
+    /**
+     * Determine whether the connection can be used without a round-trip to the
+     * database. Only when it has been idle for a while or a statement failed on it,
+     * it is validated.
+     *
+     * @return true if the connection can be used
+     */
+    protected boolean isHealthy() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            return false;
+        }
+
+        long idleMillis = System.currentTimeMillis() - this.lastUsed;
+        if (!this.suspect && (this.info == null || idleMillis < this.info.getValidateAfterIdleMillis())) {
+            validationsSkipped.increment();
+            return true;
+        }
+
+        validationsPerformed.increment();
+        this.suspect = false;
+        return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Replace the connection by a new one with the same auto-commit status, all
+     * prepared statements belonged to the old connection and are dropped.
+     */
+    protected void reconnect() throws SQLException {
+        if (this.info == null) {
+            LOG.error("Connection closed, cannot reconnect because no connection information provided");
+            return;
+        }
+
+        boolean oldAutoCommitStatus = getAutoCommitQuietly();
+        JDBCHelper.closeQuietly(connection);
+        this.namedStatements.clear();
+
+        reconnects.increment();
+        connection = JDBCHelper.getDatabaseConnection(this.info);
+        connection.setAutoCommit(oldAutoCommitStatus);
+    }
+
+    /**
+     * @return the auto-commit status of the current connection, true if there is none
+     */
+    protected boolean getAutoCommitQuietly() {
+        try {
+            return connection == null || connection.isClosed() || connection.getAutoCommit();
+        }
+        catch (SQLException sqlEx) {
+            return true;
+        }
+    }
+
+    /**
+     * @return the name of <code>table</code> that this database writes to, which has a suffix
+     *          when a reindex is building shadow tables
+     */
+    public String table(String table) {
+        return this.info == null ? table : table + this.info.getTableSuffix();
+    }
+
+    /**
+     * Run the callback with the prepared statement for <code>sql</code>. When the
+     * statement fails because the connection broke, it is retried once on a new
+     * connection with the same auto-commit status. This holds for the reindex writers,
+     * the traversal workers and the periodic update too, which turn auto-commit off:
+     * MyISAM ignores transactions, the statements before the failure are in the tables
+     * already and a rollback would not have undone them. Moving the tables to a
+     * transactional engine means only auto-commit statements may be retried here.
+     *
+     * @param sql is the SQL of the prepared statement
+     * @param callback binds the parameters and executes the statement, it may be called twice
+     * @return the value returned by the callback
+     * @throws SQLException
+     */
+    public <RT> RT withStatement(String sql, StatementRunnable<RT> callback) throws SQLException {
+        PreparedStatement pStmt = preparedStatement(sql);
+        try {
+            return callback.run(pStmt);
+        }
+        catch (SQLException sqlEx) {
+            if (!isConnectionFailure(sqlEx)) {
+                throw sqlEx;
+            }
+
+            LOG.info("Connection failure ({}), reconnecting to retry statement", sqlEx.getSQLState());
+            reconnect();
+            retries.increment();
+            try {
+                return callback.run(preparedStatement(sql));
+            }
+            catch (SQLException retryEx) {
+                // the connection is validated the next time it is used
+                this.suspect = true;
+                throw retryEx;
+            }
+        }
+    }
+
+    /**
+     * @return true if the exception indicates the connection itself is broken
+     */
+    protected boolean isConnectionFailure(SQLException sqlEx) {
+        return
+            sqlEx instanceof SQLRecoverableException ||
+            (sqlEx.getSQLState() != null && sqlEx.getSQLState().startsWith("08"));
+    }
+
     /**
      * Add a new prepared statement
      *
@@ -124,7 +263,7 @@ public class Database {
 
         PreparedStatement pStmt = this.namedStatements.get(sql);
         try {
-            if (pStmt.isClosed() || pStmt.getConnection().isClosed()|| !pStmt.getConnection().isValid(1)) {
+            if (pStmt.isClosed()) {
                 LOG.info("Statement was closed, creating a new one");
                 this.namedStatements.remove(sql);
                 pStmt = addPreparedStatement(sql);
@@ -147,12 +286,15 @@ public class Database {
 
     /**
      * Convenience function for often used pattern in retrieving the prepared statements.
+     * The connection health is checked first, a reconnect drops all prepared statements.
      *
      * @param sql SQL of the prepared statement
      * @return an existing or a new prepared statement object
      * @throws SQLException
      */
     public PreparedStatement preparedStatement(String sql) throws SQLException {
+        getConnection();
+
         if (!hasPreparedStatement(sql)) {
             return addPreparedStatement(sql);
         } else {
@@ -160,5 +302,34 @@ public class Database {
         }
     }
 
+    // ------------------------------------------------------------------------
+    //    Health counters
+    // ------------------------------------------------------------------------
+
+    public static long getValidationsSkipped() {
+        return validationsSkipped.sum();
+    }
+
+    public static long getValidationsPerformed() {
+        return validationsPerformed.sum();
+    }
+
+    public static long getReconnects() {
+        return reconnects.sum();
+    }
+
+    public static long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return a summary of the health counters
+     */
+    public static String getHealthSummary() {
+        return String.format(
+            "validations skipped: %d, validations performed: %d, reconnects: %d, retried statements: %d",
+            getValidationsSkipped(), getValidationsPerformed(), getReconnects(), getRetries()
+        );
+    }
 
 }
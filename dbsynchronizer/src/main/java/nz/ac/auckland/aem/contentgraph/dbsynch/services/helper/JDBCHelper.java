@@ -24,6 +24,16 @@ public class JDBCHelper {
      */
     public static final String MYSQL_DRIVER = "com.mysql.jdbc.Driver";
 
+    /**
+     * Largest number of values in a single `IN (...)` list
+     */
+    public static final int MAX_IN_LIST_SIZE = 512;
+
+    /**
+     * Smallest number of values in an `IN (...)` list
+     */
+    private static final int MIN_IN_LIST_SIZE = 8;
+
 
     /**
      * Helper class has private constructor
@@ -81,6 +91,22 @@ public class JDBCHelper {
             ;
     }
 
+    /**
+     * Escape the wildcards of a LIKE pattern, so the value only matches itself
+     *
+     * @param val is the value to escape
+     * @return is the escaped version
+     */
+    public static String escapeLike(String val) {
+        return
+            val == null
+            ? null
+            :   val.replace("\\", "\\\\")
+                   .replace("%", "\\%")
+                   .replace("_", "\\_")
+            ;
+    }
+
     public static <RT> RT updateWithCallback(Connection conn, String query, Class<RT> rt, SQLRunnable callback) throws SQLException {
         if (conn == null) {
             throw new IllegalArgumentException("`conn` cannot be null");
@@ -202,6 +228,9 @@ public class JDBCHelper {
     }
 
     /**
+     * Borrow a connection from the pool that belongs to the connection information, or
+     * open a new one when there is no pool. Either way, close the connection when done.
+     *
      * @return database connection instance, or null when incomplete conn info object
      */
     public static Connection getDatabaseConnection(ConnectionInfo connInfo) throws SQLException {
@@ -210,6 +239,17 @@ public class JDBCHelper {
             return null;
         }
 
+        if (connInfo.getConnectionPool() != null) {
+            return connInfo.getConnectionPool().borrow();
+        }
+
+        return openConnection(connInfo);
+    }
+
+    /**
+     * @return a new physical database connection
+     */
+    public static Connection openConnection(ConnectionInfo connInfo) throws SQLException {
         return DriverManager.getConnection(
                 connInfo.getConnectionString(),
                 connInfo.getUsername(),
@@ -217,6 +257,21 @@ public class JDBCHelper {
         );
     }
 
+    /**
+     * Prepared statements are cached by their SQL, so `IN (...)` lists are padded to a
+     * power of two to keep the number of distinct statements small.
+     *
+     * @param nValues the number of values in the list, at most MAX_IN_LIST_SIZE
+     * @return the number of placeholders to use for <code>nValues</code> values
+     */
+    public static int getInListSize(int nValues) {
+        int size = MIN_IN_LIST_SIZE;
+        while (size < nValues) {
+            size <<= 1;
+        }
+        return size;
+    }
+
     /**
      * @return the last inserted row id
      */
@@ -0,0 +1,41 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+/**
+ * @author Marnix Cook
+ *
+ * Maps the path and sub path of a node to its identifier in the Node table
+ */
+public interface NodeIdMapping {
+
+    /**
+     * Returned when a node is not in the mapping
+     */
+    long NOT_FOUND = -1;
+
+    /**
+     * @return the identifier of the node at <code>path</code> and <code>sub</code>, or NOT_FOUND
+     */
+    long get(String path, String sub);
+
+    /**
+     * Remember the identifier of the node at <code>path</code> and <code>sub</code>
+     */
+    void put(String path, String sub, long id);
+
+    /**
+     * Forget the identifier of the node at <code>path</code> and <code>sub</code>
+     */
+    void remove(String path, String sub);
+
+    /**
+     * Forget the identifiers of the node at repository path <code>path</code> and of all
+     * nodes underneath it. A path inside a page's jcr:content only covers that part of
+     * the page, like the deletes of the DAOs.
+     */
+    void removeSubtree(String path);
+
+    /**
+     * @return the number of nodes in the mapping
+     */
+    int size();
+}
@@ -0,0 +1,33 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+
+/**
+ * @author Marnix Cook
+ *
+ * Formats a node that already has its identifier as a row of the Node table
+ */
+public class NodeRowFormat extends TsvRowFormat<NodeDTO> {
+
+    private static final String[] COLUMNS = {
+        "id", "parent_id", "site", "path", "sub", "resourceType", "type", "title", "hash"
+    };
+
+    @Override
+    public String[] getColumns() {
+        return COLUMNS;
+    }
+
+    @Override
+    public void append(NodeDTO node, StringBuilder out) {
+        appendField(out, node.getId(), false);
+        appendField(out, node.getParentId(), false);
+        appendField(out, node.getSite(), false);
+        appendField(out, node.getPath(), false);
+        appendField(out, node.getSub(), false);
+        appendField(out, node.getResourceType(), false);
+        appendField(out, node.getType(), false);
+        appendField(out, node.getTitle(), false);
+        appendField(out, node.getHash(), true);
+    }
+}
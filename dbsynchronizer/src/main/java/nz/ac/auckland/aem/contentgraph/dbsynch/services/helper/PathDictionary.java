@@ -0,0 +1,393 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author Marnix Cook
+ *
+ * Compact node id mapping for a reindex, which has to remember the identifier of every
+ * node it writes. Instead of a key string and a boxed identifier per node, a path is
+ * stored as a chain of entries that each hold the index of their parent entry and the
+ * index of their interned name, all in primitive arrays:
+ *
+ * - names are stored once in a shared character pool, `jcr:content` and the names of
+ *   common components take up no room after their first occurrence;
+ * - entries are found by parent and name through an open-addressing table;
+ * - the first segment of a sub path is flagged, so `(/a/b, "")` and `(/a, "b")` are
+ *   different entries.
+ *
+ * Lookups walk the path and sub path in place and don't allocate. They can run
+ * concurrently, adding entries takes an exclusive lock.
+ */
+public class PathDictionary implements NodeIdMapping {
+
+    /**
+     * Index of the root entry, the parent of the first segment of every path
+     */
+    private static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    //
+    //  Entries, indexed by entry number. A name reference is the name index, or its
+    //  complement for the first segment of a sub path.
+    //
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] nameRefs = new int[INITIAL_CAPACITY];
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private int nEntries;
+    private int nNodes;
+
+    /**
+     * Open-addressing table of entry numbers, 0 is an empty slot as the root is never in it
+     */
+    private int[] entrySlots = new int[2 * INITIAL_CAPACITY];
+
+    //
+    //  Interned names, indexed by name number
+    //
+    private char[] chars = new char[16 * INITIAL_CAPACITY];
+    private int nChars;
+    private int[] nameOffsets = new int[INITIAL_CAPACITY];
+    private int[] nameLengths = new int[INITIAL_CAPACITY];
+    private int nNames;
+
+    /**
+     * Open-addressing table of name numbers plus one, 0 is an empty slot
+     */
+    private int[] nameSlots = new int[2 * INITIAL_CAPACITY];
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Initialize data-members
+     */
+    public PathDictionary() {
+        this.parents[ROOT] = -1;
+        this.ids[ROOT] = NOT_FOUND;
+        this.nEntries = 1;
+    }
+
+    @Override
+    public long get(String path, String sub) {
+        lock.readLock().lock();
+        try {
+            int entry = find(path, sub, false);
+            return entry < 0 ? NOT_FOUND : this.ids[entry];
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String path, String sub, long id) {
+        lock.writeLock().lock();
+        try {
+            int entry = find(path, sub, true);
+            if (this.ids[entry] == NOT_FOUND) {
+                ++this.nNodes;
+            }
+            this.ids[entry] = id;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String path, String sub) {
+        lock.writeLock().lock();
+        try {
+            int entry = find(path, sub, false);
+            if (entry >= 0) {
+                clearId(entry);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Clear the identifiers of the entry of <code>path</code> and its descendants. The
+     * entries stay, they are reused when the nodes are written again. An entry is always
+     * added after its parent, so a single pass in entry order finds all descendants.
+     */
+    @Override
+    public void removeSubtree(String path) {
+        int jcrContentIdx = path.indexOf("/jcr:content");
+
+        lock.writeLock().lock();
+        try {
+            int root = jcrContentIdx < 0 ?
+                    find(path, null, false) :
+                    find(path.substring(0, jcrContentIdx), path.substring(jcrContentIdx + 1), false);
+            if (root < 0) {
+                return;
+            }
+
+            boolean[] inside = new boolean[this.nEntries];
+            inside[root] = true;
+            clearId(root);
+
+            for (int entry = root + 1; entry < this.nEntries; ++entry) {
+                if (inside[this.parents[entry]]) {
+                    inside[entry] = true;
+                    clearId(entry);
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget the identifier of <code>entry</code>, the write lock must be held
+     */
+    protected void clearId(int entry) {
+        if (this.ids[entry] != NOT_FOUND) {
+            this.ids[entry] = NOT_FOUND;
+            --this.nNodes;
+        }
+    }
+
+    /**
+     * @return the entry of <code>path</code> and <code>sub</code>, or -1 when it doesn't
+     * exist and <code>create</code> is false
+     */
+    protected int find(String path, String sub, boolean create) {
+        int entry = walk(ROOT, path, false, create);
+        if (entry < 0 || sub == null || sub.length() == 0) {
+            return entry;
+        }
+        return walk(entry, sub, true, create);
+    }
+
+    /**
+     * Follow the segments of <code>value</code> from <code>entry</code>, empty segments are skipped
+     *
+     * @return the entry of the last segment, or -1
+     */
+    protected int walk(int entry, String value, boolean subPath, boolean create) {
+        if (value == null) {
+            return entry;
+        }
+
+        boolean flagged = subPath;
+        int length = value.length();
+        int start = 0;
+
+        while (start < length) {
+            int end = value.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            if (end > start) {
+                int name = findName(value, start, end, create);
+                if (name < 0) {
+                    return -1;
+                }
+
+                entry = findEntry(entry, flagged ? ~name : name, create);
+                if (entry < 0) {
+                    return -1;
+                }
+                flagged = false;
+            }
+
+            start = end + 1;
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return the child of <code>parent</code> with name reference <code>nameRef</code>, or -1
+     */
+    protected int findEntry(int parent, int nameRef, boolean create) {
+        int mask = this.entrySlots.length - 1;
+        int slot = mix(parent * 0x9e3779b9 + nameRef) & mask;
+
+        for (int entry = this.entrySlots[slot]; entry != 0; entry = this.entrySlots[slot]) {
+            if (this.parents[entry] == parent && this.nameRefs[entry] == nameRef) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (!create) {
+            return -1;
+        }
+
+        if (this.nEntries == this.parents.length) {
+            int capacity = this.parents.length * 2;
+            this.parents = Arrays.copyOf(this.parents, capacity);
+            this.nameRefs = Arrays.copyOf(this.nameRefs, capacity);
+            this.ids = Arrays.copyOf(this.ids, capacity);
+        }
+
+        int entry = this.nEntries++;
+        this.parents[entry] = parent;
+        this.nameRefs[entry] = nameRef;
+        this.ids[entry] = NOT_FOUND;
+
+        if (2 * this.nEntries > this.entrySlots.length) {
+            rehashEntries();
+        } else {
+            this.entrySlots[slot] = entry;
+        }
+        return entry;
+    }
+
+    /**
+     * @return the name index of <code>value[start..end)</code>, or -1
+     */
+    protected int findName(String value, int start, int end, boolean create) {
+        int length = end - start;
+        int hash = 0;
+        for (int idx = start; idx < end; ++idx) {
+            hash = 31 * hash + value.charAt(idx);
+        }
+
+        int mask = this.nameSlots.length - 1;
+        int slot = mix(hash) & mask;
+
+        for (int name = this.nameSlots[slot] - 1; name >= 0; name = this.nameSlots[slot] - 1) {
+            if (this.nameLengths[name] == length && regionEquals(name, value, start)) {
+                return name;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (!create) {
+            return -1;
+        }
+
+        if (this.nChars + length > this.chars.length) {
+            this.chars = Arrays.copyOf(this.chars, Math.max(2 * this.chars.length, this.nChars + length));
+        }
+        value.getChars(start, end, this.chars, this.nChars);
+
+        if (this.nNames == this.nameOffsets.length) {
+            int capacity = this.nameOffsets.length * 2;
+            this.nameOffsets = Arrays.copyOf(this.nameOffsets, capacity);
+            this.nameLengths = Arrays.copyOf(this.nameLengths, capacity);
+        }
+
+        int name = this.nNames++;
+        this.nameOffsets[name] = this.nChars;
+        this.nameLengths[name] = length;
+        this.nChars += length;
+
+        if (2 * this.nNames > this.nameSlots.length) {
+            rehashNames();
+        } else {
+            this.nameSlots[slot] = name + 1;
+        }
+        return name;
+    }
+
+    protected boolean regionEquals(int name, String value, int start) {
+        int offset = this.nameOffsets[name];
+        for (int idx = 0; idx < this.nameLengths[name]; ++idx) {
+            if (this.chars[offset + idx] != value.charAt(start + idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void rehashEntries() {
+        this.entrySlots = new int[2 * this.entrySlots.length];
+        int mask = this.entrySlots.length - 1;
+
+        for (int entry = ROOT + 1; entry < this.nEntries; ++entry) {
+            int slot = mix(this.parents[entry] * 0x9e3779b9 + this.nameRefs[entry]) & mask;
+            while (this.entrySlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.entrySlots[slot] = entry;
+        }
+    }
+
+    protected void rehashNames() {
+        this.nameSlots = new int[2 * this.nameSlots.length];
+        int mask = this.nameSlots.length - 1;
+
+        for (int name = 0; name < this.nNames; ++name) {
+            int hash = 0;
+            int offset = this.nameOffsets[name];
+            for (int idx = 0; idx < this.nameLengths[name]; ++idx) {
+                hash = 31 * hash + this.chars[offset + idx];
+            }
+
+            int slot = mix(hash) & mask;
+            while (this.nameSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.nameSlots[slot] = name + 1;
+        }
+    }
+
+    /**
+     * Spread the bits of <code>hash</code> over the table (finalizer of MurmurHash3)
+     */
+    protected static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * @return the number of nodes that have an identifier
+     */
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return this.nNodes;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes taken up by the arrays
+     */
+    public long getMemoryUsage() {
+        lock.readLock().lock();
+        try {
+            return
+                4L * (this.parents.length + this.nameRefs.length + this.entrySlots.length) +
+                8L * this.ids.length +
+                2L * this.chars.length +
+                4L * (this.nameOffsets.length + this.nameLengths.length + this.nameSlots.length);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return String.format(
+                "%d nodes in %d entries, %d distinct names, %d KB",
+                this.nNodes, this.nEntries, this.nNames, getMemoryUsage() / 1024
+            );
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+}
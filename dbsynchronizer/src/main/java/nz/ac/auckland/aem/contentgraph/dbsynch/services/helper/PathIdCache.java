@@ -0,0 +1,228 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import nz.ac.auckland.aem.contentgraph.utils.StripedCounter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Marnix Cook
+ *
+ * Concurrent cache of node identifiers by path and sub path. The entries are spread over
+ * a number of segments that each have their own lock and evict their least recently used
+ * entries once their share of the maximum weight is exceeded. The weight of an entry is
+ * an estimate of the bytes it takes up, so long paths count for more than short ones.
+ *
+ * Unknown paths are not cached, a node that is written later on would otherwise keep
+ * resolving to null.
+ */
+public class PathIdCache implements NodeIdMapping {
+
+    /**
+     * Maximum weight of a cache that never evicts
+     */
+    public static final long UNBOUNDED = 0;
+
+    /**
+     * Number of independently locked segments
+     */
+    private static final int N_SEGMENTS = 16;
+
+    /**
+     * Estimated bytes of an entry besides the characters of its key: the map entry with
+     * its access order links, the String and its array header and the boxed Long
+     */
+    private static final int ENTRY_OVERHEAD = 112;
+
+    /**
+     * Entries of a segment in access order and their total weight
+     */
+    private static class Segment {
+
+        private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+        private long weight;
+    }
+
+    private final Segment[] segments = new Segment[N_SEGMENTS];
+
+    /**
+     * Maximum weight of a single segment, or UNBOUNDED
+     */
+    private final long maxSegmentWeight;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    /**
+     * Initialize data-members
+     *
+     * @param maxWeight the maximum number of bytes the entries may take up, or UNBOUNDED
+     */
+    public PathIdCache(long maxWeight) {
+        this.maxSegmentWeight = maxWeight <= 0 ? UNBOUNDED : Math.max(1, maxWeight / N_SEGMENTS);
+
+        for (int idx = 0; idx < N_SEGMENTS; ++idx) {
+            this.segments[idx] = new Segment();
+        }
+    }
+
+    @Override
+    public long get(String path, String sub) {
+        Long id = get(path + "/" + sub);
+        return id == null ? NOT_FOUND : id;
+    }
+
+    @Override
+    public void put(String path, String sub, long id) {
+        put(path + "/" + sub, Long.valueOf(id));
+    }
+
+    @Override
+    public void remove(String path, String sub) {
+        String key = path + "/" + sub;
+
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            if (segment.entries.remove(key) != null) {
+                segment.weight -= weigh(key);
+            }
+        }
+    }
+
+    /**
+     * Remove the entries at or below <code>path</code>. The key of a node without a sub path
+     * ends in a slash, the key of a node inside jcr:content is its repository path.
+     */
+    @Override
+    public void removeSubtree(String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                Iterator<String> keyIt = segment.entries.keySet().iterator();
+                while (keyIt.hasNext()) {
+                    String key = keyIt.next();
+                    if (key.startsWith(prefix) || key.equals(path)) {
+                        keyIt.remove();
+                        segment.weight -= weigh(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the identifier for <code>key</code> or null when it isn't cached
+     */
+    public Long get(String key) {
+        Segment segment = getSegment(key);
+
+        Long id;
+        synchronized (segment) {
+            id = segment.entries.get(key);
+        }
+
+        if (id == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return id;
+    }
+
+    /**
+     * Cache the identifier of <code>key</code>, a null identifier is ignored
+     */
+    public void put(String key, Long id) {
+        if (id == null) {
+            return;
+        }
+
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            if (segment.entries.put(key, id) == null) {
+                segment.weight += weigh(key);
+            }
+            evict(segment);
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the segment fits again
+     */
+    protected void evict(Segment segment) {
+        if (this.maxSegmentWeight == UNBOUNDED) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, Long>> entryIt = segment.entries.entrySet().iterator();
+        while (segment.weight > this.maxSegmentWeight && entryIt.hasNext()) {
+            String key = entryIt.next().getKey();
+            entryIt.remove();
+            segment.weight -= weigh(key);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes taken up by the entry for <code>key</code>
+     */
+    protected static long weigh(String key) {
+        return ENTRY_OVERHEAD + 2L * key.length();
+    }
+
+    protected Segment getSegment(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return this.segments[hash & (N_SEGMENTS - 1)];
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated number of bytes taken up by the cached entries
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "%d entries, %d KB, %d hits, %d misses, %d evictions",
+            size(), getWeight() / 1024, getHits(), getMisses(), getEvictions()
+        );
+    }
+}
@@ -0,0 +1,31 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+
+import java.util.List;
+
+/**
+ * @author Marnix Cook
+ *
+ * Formats the properties of a node as rows of the Property table
+ */
+public class PropertyRowFormat extends TsvRowFormat<List<PropertyDTO>> {
+
+    private static final String[] COLUMNS = { "name", "value", "nodeId", "sub", "path" };
+
+    @Override
+    public String[] getColumns() {
+        return COLUMNS;
+    }
+
+    @Override
+    public void append(List<PropertyDTO> properties, StringBuilder out) {
+        for (PropertyDTO property : properties) {
+            appendField(out, property.getName(), false);
+            appendField(out, property.getValue(), false);
+            appendField(out, property.getNodeId(), false);
+            appendField(out, property.getSub(), false);
+            appendField(out, property.getPath(), true);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+/**
+ * @author Marnix Cook
+ *
+ * Formats queued elements as tab separated rows in the format `LOAD DATA INFILE` reads
+ * by default: fields end in a tab, rows end in a newline, special characters are escaped
+ * with a backslash and NULL is written as \N.
+ *
+ * @param <E> the type of element that is formatted, an element may result in several rows
+ */
+public abstract class TsvRowFormat<E> {
+
+    /**
+     * @return the columns the fields of a row are loaded into, in order
+     */
+    public abstract String[] getColumns();
+
+    /**
+     * Append the row(s) for <code>element</code>
+     *
+     * @param element the element to format
+     * @param out the buffer to append to
+     */
+    public abstract void append(E element, StringBuilder out);
+
+    /**
+     * Append a single field, followed by a tab unless it is the last one of the row
+     *
+     * @param out the buffer to append to
+     * @param value the value to write, may be null
+     * @param last true if this is the last field of the row
+     */
+    public static void appendField(StringBuilder out, Object value, boolean last) {
+        if (value == null) {
+            out.append("\\N");
+        } else {
+            String str = value.toString();
+            for (int idx = 0; idx < str.length(); ++idx) {
+                char chr = str.charAt(idx);
+                switch (chr) {
+                    case '\\': out.append("\\\\"); break;
+                    case '\t': out.append("\\t"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\0': out.append("\\0"); break;
+                    default: out.append(chr);
+                }
+            }
+        }
+        out.append(last ? '\n' : '\t');
+    }
+}
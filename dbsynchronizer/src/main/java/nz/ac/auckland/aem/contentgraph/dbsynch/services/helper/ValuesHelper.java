@@ -13,7 +13,16 @@ import java.text.SimpleDateFormat;
  */
 public class ValuesHelper {
 
-    private static SimpleDateFormat sdFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm");
+    /**
+     * Date formats are not thread-safe, the reindexer formats dates on several threads
+     */
+    private static ThreadLocal<SimpleDateFormat> sdFormat = new ThreadLocal<SimpleDateFormat>() {
+
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy/MM/dd HH:mm");
+        }
+    };
 
     private ValuesHelper() {
     }
@@ -33,7 +42,7 @@ public class ValuesHelper {
                 return Double.toString(val.getDouble());
 
             case PropertyType.DATE:
-                return sdFormat.format(val.getDate().getTime());
+                return sdFormat.get().format(val.getDate().getTime());
 
             case PropertyType.DECIMAL:
                 return val.getDecimal().toPlainString();
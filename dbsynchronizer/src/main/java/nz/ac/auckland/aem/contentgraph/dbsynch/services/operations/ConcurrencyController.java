@@ -0,0 +1,109 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+/**
+ * @author Marnix Cook
+ *
+ * Decides how many writers should take from a queue, from samples of the queue depth,
+ * the number of rows written per second and the time a batch takes to write:
+ *
+ * - a queue that fills up means the writers fall behind, another writer is added;
+ * - an almost empty queue means the traversal is the bottleneck, a writer is removed;
+ * - when an added writer did not raise the throughput while batches got slower, the
+ *   database is saturated: the writer is removed again and no writer is added for a
+ *   number of samples.
+ *
+ * Not thread-safe, the samples are taken on a single thread.
+ */
+public class ConcurrencyController {
+
+    /**
+     * Queue fill ratio above which a writer is added
+     */
+    public static final double HIGH_WATER = 0.5;
+
+    /**
+     * Queue fill ratio below which a writer is removed
+     */
+    public static final double LOW_WATER = 0.05;
+
+    /**
+     * Factor the throughput has to rise by for an added writer to be kept
+     */
+    public static final double MIN_GAIN = 1.05;
+
+    /**
+     * Number of samples no writer is added after one was removed again
+     */
+    public static final int BACKOFF_SAMPLES = 5;
+
+    private final int minWriters;
+    private final int maxWriters;
+
+    /**
+     * Throughput and batch latency of the sample before the last added writer, or
+     * negative when the last change was not an added writer
+     */
+    private double throughputBeforeGrow = -1;
+    private double latencyBeforeGrow = -1;
+
+    /**
+     * Remaining samples before a writer may be added again
+     */
+    private int backoff;
+
+    /**
+     * Initialize data-members
+     *
+     * @param minWriters the smallest number of writers
+     * @param maxWriters the largest number of writers
+     */
+    public ConcurrencyController(int minWriters, int maxWriters) {
+        this.minWriters = Math.max(1, minWriters);
+        this.maxWriters = Math.max(this.minWriters, maxWriters);
+    }
+
+    /**
+     * @param current the current number of writers
+     * @param queueFill the part of the queue capacity in use, between 0 and 1
+     * @param throughput the number of rows written per second since the last sample
+     * @param latency the average time in milliseconds to write a batch since the last sample
+     * @return the number of writers there should be
+     */
+    public int next(int current, double queueFill, double throughput, double latency) {
+        boolean grew = this.throughputBeforeGrow >= 0;
+        double gainBase = this.throughputBeforeGrow;
+        double latencyBase = this.latencyBeforeGrow;
+
+        this.throughputBeforeGrow = -1;
+        this.latencyBeforeGrow = -1;
+
+        if (this.backoff > 0) {
+            --this.backoff;
+        }
+
+        if (grew && throughput < gainBase * MIN_GAIN && latency > latencyBase && current > this.minWriters) {
+            this.backoff = BACKOFF_SAMPLES;
+            return current - 1;
+        }
+
+        if (queueFill >= HIGH_WATER && current < this.maxWriters && this.backoff == 0) {
+            this.throughputBeforeGrow = throughput;
+            this.latencyBeforeGrow = latency;
+            return current + 1;
+        }
+
+        if (queueFill <= LOW_WATER && current > this.minWriters) {
+            return current - 1;
+        }
+
+        return Math.max(this.minWriters, Math.min(this.maxWriters, current));
+    }
+
+    public int getMinWriters() {
+        return minWriters;
+    }
+
+    public int getMaxWriters() {
+        return maxWriters;
+    }
+}
@@ -0,0 +1,184 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.SynchVisitor;
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixTrie;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marnix Cook
+ *
+ * Traverses the include paths on a fork-join pool. Every include path becomes a
+ * {@link SubtreeVisitTask} that splits itself into smaller subtrees, which are
+ * work-stolen by the {@link TraversalWorker} threads. Each worker writes on its own
+ * connection with auto-commit off.
+ *
+ * The tables are MyISAM, which ignores transactions: every row is in the table as soon
+ * as its statement ran, the commit at the end only ends the transaction and a rollback
+ * after a failure undoes nothing. Live data is only protected by the shadow tables of a
+ * full reindex, which are not swapped in when the traversal fails.
+ *
+ * The fork-join pool needs a Java 7 runtime.
+ */
+public class ForkJoinTraversal {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ForkJoinTraversal.class);
+
+    /**
+     * Number of minutes to wait for the workers to wind down
+     */
+    private static final int SHUTDOWN_TIMEOUT_MINUTES = 5;
+
+    private int parallelism;
+    private ResourceResolverFactory rrFactory;
+    private ConnectionInfo connInfo;
+
+    /**
+     * All workers the pool has created, idle workers may terminate during the run
+     * but their connection is only closed once the traversal is over.
+     */
+    private List<TraversalWorker> workers = Collections.synchronizedList(new ArrayList<TraversalWorker>());
+
+    /**
+     * Number of excluded subtrees the workers skipped
+     */
+    private int nPruned;
+
+    /**
+     * Initialize data-members
+     *
+     * @param parallelism the number of workers
+     * @param rrFactory the factory the workers get their JCR session from
+     * @param connInfo the connection information the workers connect with
+     */
+    public ForkJoinTraversal(int parallelism, ResourceResolverFactory rrFactory, ConnectionInfo connInfo) {
+        this.parallelism = parallelism;
+        this.rrFactory = rrFactory;
+        this.connInfo = connInfo;
+    }
+
+    /**
+     * Visit all nodes underneath the include paths
+     *
+     * @param includePaths the paths to start the traversal from
+     * @param pathTrie the compiled paths, excluded paths are not visited
+     * @param visitor the visitor to call each node with
+     * @return the number of visited nodes
+     * @throws Exception when one of the subtrees could not be visited
+     */
+    public int traverse(String[] includePaths, PathPrefixTrie pathTrie, SynchVisitor<Node> visitor) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism, getWorkerFactory(), null, false);
+        boolean successful = false;
+
+        try {
+            List<ForkJoinTask<Integer>> tasks = new ArrayList<ForkJoinTask<Integer>>();
+            for (String includePath : includePaths) {
+                tasks.add(pool.submit(new SubtreeVisitTask(includePath, pathTrie, visitor)));
+            }
+
+            int nNodes = 0;
+            for (ForkJoinTask<Integer> task : tasks) {
+                nNodes += task.get();
+            }
+
+            this.nPruned = 0;
+            for (TraversalWorker worker : getWorkers()) {
+                this.nPruned += worker.getSynchVisitorManager().getPruned();
+            }
+
+            // ends the transactions, the rows were written as the workers went
+            for (TraversalWorker worker : getWorkers()) {
+                worker.commit();
+            }
+
+            successful = true;
+            return nNodes;
+        }
+        catch (ExecutionException exEx) {
+            if (exEx.getCause() instanceof Exception) {
+                throw (Exception) exEx.getCause();
+            }
+            throw exEx;
+        }
+        finally {
+            shutdown(pool, successful);
+        }
+    }
+
+    /**
+     * Stop the pool and release all worker resources. The connections of an unsuccessful
+     * traversal are rolled back, which leaves the rows that were written in place.
+     *
+     * @param pool the pool to stop
+     * @param successful true if the traversal finished successfully
+     */
+    protected void shutdown(ForkJoinPool pool, boolean successful) throws InterruptedException {
+        if (successful) {
+            pool.shutdown();
+        } else {
+            pool.shutdownNow();
+        }
+
+        if (!pool.awaitTermination(SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            LOG.warn("Traversal workers did not finish within {} minutes", SHUTDOWN_TIMEOUT_MINUTES);
+        }
+
+        for (TraversalWorker worker : getWorkers()) {
+            if (!successful) {
+                worker.rollback();
+            }
+            worker.close();
+            worker.logPerformance();
+        }
+    }
+
+    /**
+     * @return the number of excluded subtrees skipped by the last traversal
+     */
+    public int getPruned() {
+        return nPruned;
+    }
+
+    /**
+     * @return a copy of the list of workers
+     */
+    protected List<TraversalWorker> getWorkers() {
+        synchronized (this.workers) {
+            return new ArrayList<TraversalWorker>(this.workers);
+        }
+    }
+
+    /**
+     * @return the factory that creates and registers the traversal workers
+     */
+    protected ForkJoinPool.ForkJoinWorkerThreadFactory getWorkerFactory() {
+        return new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                TraversalWorker worker = new TraversalWorker(pool, rrFactory, connInfo);
+                synchronized (workers) {
+                    workers.add(worker);
+                    worker.setName("Traversal worker #" + workers.size());
+                }
+                return worker;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,275 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.SQLRunnable;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.TsvRowFormat;
+import nz.ac.auckland.aem.contentgraph.utils.PerformanceReport;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author Marnix Cook
+ *
+ * Writes the elements of a queue into a table with a single `LOAD DATA LOCAL INFILE`
+ * statement. The driver reads the rows from an input stream that formats the queued
+ * elements as they are taken, so nothing is written to a temporary file and loading
+ * starts while the traversal is still producing rows. The statement completes when
+ * the end marker is taken from the queue.
+ *
+ * @param <E> the type of the queued elements
+ */
+public class LoadDataLoader<E> implements ReindexWriter {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(LoadDataLoader.class);
+
+    /**
+     * The rows are sent as UTF-8
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Database db;
+    private String table;
+    private TsvRowFormat<E> format;
+    private BlockingQueue<E> queue;
+    private E endMarker;
+
+    /**
+     * Set when loading failed, the reindex should not finish successfully
+     */
+    private volatile Exception error;
+
+    private int nLoaded;
+
+    /**
+     * Released when the loader has stopped
+     */
+    private CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Initialize data-members
+     *
+     * @param db the database to load into, should not be in auto-commit mode
+     * @param table the table to load into
+     * @param format formats the elements as rows
+     * @param queue the queue to take the elements from
+     * @param endMarker the element that marks the end of the input
+     */
+    public LoadDataLoader(Database db, String table, TsvRowFormat<E> format, BlockingQueue<E> queue, E endMarker) {
+        this.db = db;
+        this.table = table;
+        this.format = format;
+        this.queue = queue;
+        this.endMarker = endMarker;
+    }
+
+    /**
+     * Determine whether the driver and server allow loading local data. When they don't,
+     * the reindex should write through the DAOs instead.
+     *
+     * @param db the database to check
+     * @return true if `LOAD DATA LOCAL INFILE` can be used
+     */
+    public static boolean isSupported(Database db) {
+        Statement stmt = null;
+        try {
+            stmt = db.getConnection().createStatement();
+            if (!stmt.isWrapperFor(com.mysql.jdbc.Statement.class)) {
+                LOG.warn("The JDBC driver cannot stream local data, not using LOAD DATA LOCAL INFILE");
+                return false;
+            }
+
+            Boolean enabled = JDBCHelper.queryWithCallback(
+                db.getConnection(),
+                "SELECT @@local_infile",
+                Boolean.class,
+                new SQLRunnable<Boolean>() {
+
+                    @Override
+                    public Boolean run(Statement stmt, ResultSet rSet) throws SQLException {
+                        return rSet.next() && rSet.getInt(1) == 1;
+                    }
+                }
+            );
+
+            if (!enabled) {
+                LOG.warn("The server has local_infile disabled, not using LOAD DATA LOCAL INFILE");
+            }
+            return enabled;
+        }
+        catch (SQLException sqlEx) {
+            LOG.warn("Could not determine whether LOAD DATA LOCAL INFILE is supported", sqlEx);
+            return false;
+        }
+        finally {
+            closeQuietly(stmt);
+        }
+    }
+
+    /**
+     * Run the load statement until the end marker has been streamed
+     */
+    public void run() {
+        Statement stmt = null;
+        QueueInputStream input = new QueueInputStream();
+
+        try {
+            long startTime = System.nanoTime();
+
+            stmt = this.db.getConnection().createStatement();
+            stmt.unwrap(com.mysql.jdbc.Statement.class).setLocalInfileInputStream(input);
+
+            this.nLoaded = stmt.executeUpdate(getLoadSql());
+            this.db.getConnection().commit();
+
+            PerformanceReport.getInstance().addNanos(
+                    Thread.currentThread().getName(),
+                    System.nanoTime() - startTime
+            );
+
+            LOG.info("[{}]: loaded {} rows into {}", new Object[] { Thread.currentThread().getName(), this.nLoaded, this.table });
+        }
+        catch (SQLException sqlEx) {
+            LOG.error("Error loading rows into " + this.table + ", caused by", sqlEx);
+            this.error = sqlEx;
+
+            // keep the traversal from blocking on a full queue
+            if (!input.ended) {
+                ReindexQueues.discardUntilEnd(this.queue, this.endMarker);
+            }
+        }
+        finally {
+            closeQuietly(stmt);
+            this.finished.countDown();
+        }
+    }
+
+    /**
+     * @return the load statement for the table and its columns
+     */
+    protected String getLoadSql() {
+        return
+            "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + this.table + " " +
+            "CHARACTER SET utf8 " +
+            "FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' " +
+            "LINES TERMINATED BY '\\n' " +
+            "(" + StringUtils.join(this.format.getColumns(), ", ") + ")";
+    }
+
+    @Override
+    public void endOfInput() throws InterruptedException {
+        this.queue.put(this.endMarker);
+    }
+
+    @Override
+    public void awaitFinished() throws InterruptedException {
+        this.finished.await();
+    }
+
+    @Override
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public Database getDatabase() {
+        return db;
+    }
+
+    public int getLoaded() {
+        return nLoaded;
+    }
+
+    protected static void closeQuietly(Statement stmt) {
+        try {
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+        catch (SQLException sqlEx) {
+            LOG.debug("Could not close the load statement", sqlEx);
+        }
+    }
+
+    /**
+     * Formats the next queued element when the driver has read all bytes of the previous one
+     */
+    protected class QueueInputStream extends InputStream {
+
+        private byte[] buffer = new byte[0];
+        private int position = 0;
+        private boolean ended = false;
+
+        private StringBuilder rows = new StringBuilder();
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return this.buffer[this.position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+
+            int nBytes = Math.min(length, this.buffer.length - this.position);
+            System.arraycopy(this.buffer, this.position, target, offset, nBytes);
+            this.position += nBytes;
+            return nBytes;
+        }
+
+        /**
+         * Make sure there are bytes left in the buffer
+         *
+         * @return false when the end marker has been reached
+         */
+        protected boolean fill() throws IOException {
+            while (this.position >= this.buffer.length) {
+                if (this.ended) {
+                    return false;
+                }
+
+                E element;
+                try {
+                    element = queue.take();
+                }
+                catch (InterruptedException iEx) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for rows");
+                }
+
+                if (element == endMarker) {
+                    this.ended = true;
+                    return false;
+                }
+
+                this.rows.setLength(0);
+                format.append(element, this.rows);
+                this.buffer = this.rows.toString().getBytes(UTF8);
+                this.position = 0;
+            }
+            return true;
+        }
+    }
+}
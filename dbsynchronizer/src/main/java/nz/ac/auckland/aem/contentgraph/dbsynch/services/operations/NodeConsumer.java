@@ -0,0 +1,180 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.NodeDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.utils.PerformanceReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author Marnix Cook
+ *
+ * Consumer of Node DTO instances that already have their identifier. It drains as
+ * many nodes from the queue as are available and writes them with multi-row inserts.
+ * The consumer stops when it takes the {@link #END_OF_NODES} marker, so put one marker
+ * on the queue for every consumer when the traversal is done.
+ */
+public class NodeConsumer implements ReindexWriter {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(NodeConsumer.class);
+
+    /**
+     * Marker that tells a consumer there are no more nodes
+     */
+    public static final NodeDTO END_OF_NODES = new NodeDTO();
+
+    /**
+     * Maximum number of nodes written in one go
+     */
+    public static final int WRITE_BATCH_SIZE = 4 * NodeDAO.MULTI_ROW_SIZE;
+
+    /**
+     * Queue to read from
+     */
+    private BlockingQueue<NodeDTO> nodeQueue;
+
+    /**
+     * Database
+     */
+    private Database db;
+
+    private NodeDAO nodeDao = getNodeDAO();
+
+    /**
+     * Set when writing failed, the reindex should not finish successfully
+     */
+    private volatile Exception error;
+
+    private int nWritten;
+
+    /**
+     * Released when the consumer has stopped
+     */
+    private CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Node consumer
+     *
+     * @param db database connection to use
+     * @param nodeQueue the node queue to take from
+     */
+    public NodeConsumer(Database db, BlockingQueue<NodeDTO> nodeQueue) {
+        this.db = db;
+        this.nodeQueue = nodeQueue;
+    }
+
+    /**
+     * Take from the queue until the end marker is found
+     */
+    public void run() {
+        List<NodeDTO> batch = new ArrayList<NodeDTO>(WRITE_BATCH_SIZE);
+        boolean done = false;
+
+        try {
+            while (!done) {
+                batch.add(this.nodeQueue.take());
+                this.nodeQueue.drainTo(batch, WRITE_BATCH_SIZE - 1);
+
+                // anything after the marker belongs to another consumer
+                int endIdx = batch.indexOf(END_OF_NODES);
+                if (endIdx != -1) {
+                    done = true;
+                    for (NodeDTO other : batch.subList(endIdx + 1, batch.size())) {
+                        this.nodeQueue.put(other);
+                    }
+                    batch.subList(endIdx, batch.size()).clear();
+                }
+
+                write(batch);
+                batch.clear();
+            }
+
+            this.db.getConnection().commit();
+        }
+        catch (SQLException sqlEx) {
+            LOG.error("Error writing nodes, caused by", sqlEx);
+            this.error = sqlEx;
+
+            // keep the traversal from blocking on a full queue
+            if (!done) {
+                ReindexQueues.discardUntilEnd(this.nodeQueue, END_OF_NODES);
+            }
+        }
+        catch (InterruptedException iEx) {
+            LOG.error("Interrupted consumer, caused by:", iEx);
+            this.error = iEx;
+        }
+        finally {
+            this.finished.countDown();
+        }
+    }
+
+    /**
+     * Put an end marker on the queue, one for each consumer
+     */
+    @Override
+    public void endOfInput() throws InterruptedException {
+        this.nodeQueue.put(END_OF_NODES);
+    }
+
+    @Override
+    public void awaitFinished() throws InterruptedException {
+        this.finished.await();
+    }
+
+    /**
+     * Write a batch of nodes
+     */
+    protected void write(List<NodeDTO> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+
+        this.nodeDao.insertAllWithIds(this.db, batch);
+        this.db.getConnection().commit();
+        this.nWritten += batch.size();
+
+        PerformanceReport.getInstance().addNanos(
+                Thread.currentThread().getName(),
+                System.nanoTime() - startTime
+        );
+
+        LOG.debug(
+            String.format(
+                "[%s]: storing %d nodes",
+                Thread.currentThread().getName(),
+                batch.size()
+            )
+        );
+    }
+
+    @Override
+    public Exception getError() {
+        return error;
+    }
+
+    public int getWritten() {
+        return nWritten;
+    }
+
+    @Override
+    public Database getDatabase() {
+        return db;
+    }
+
+    protected NodeDAO getNodeDAO() {
+        return new NodeDAO();
+    }
+}
@@ -0,0 +1,99 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Marnix Cook
+ *
+ * The identifier and content hash of every row in the Node table, keyed by path and sub
+ * path. A verify reindex marks the entries of the nodes it visits as seen; the entries
+ * that are left over belong to nodes that no longer exist.
+ *
+ * The index is filled before the traversal starts and isn't changed structurally after
+ * that, so the traversal workers can look up entries without locking.
+ */
+public class NodeHashIndex {
+
+    /**
+     * Stored information of a single node
+     */
+    public static class Entry {
+
+        private final long id;
+        private final Long hash;
+        private volatile boolean seen;
+
+        protected Entry(long id, Long hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return true if the stored hash equals <code>hash</code>, rows written before
+         * hashes were stored never match
+         */
+        public boolean matches(long hash) {
+            return this.hash != null && this.hash == hash;
+        }
+
+        public void markSeen() {
+            this.seen = true;
+        }
+
+        public boolean isSeen() {
+            return seen;
+        }
+    }
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Add the stored information of a node
+     *
+     * @param path the path of the node
+     * @param sub the sub path of the node
+     * @param id the identifier of the node
+     * @param hash the stored content hash, or null if none was stored
+     */
+    public void put(String path, String sub, long id, Long hash) {
+        entries.put(getKey(path, sub), new Entry(id, hash));
+    }
+
+    /**
+     * @return the entry of the node at <code>path</code> and <code>sub</code> or null
+     */
+    public Entry get(String path, String sub) {
+        return entries.get(getKey(path, sub));
+    }
+
+    /**
+     * @return the identifiers of the nodes that were not seen
+     */
+    public List<Long> getUnseenIds() {
+        List<Long> unseen = new ArrayList<Long>();
+        for (Entry entry : entries.values()) {
+            if (!entry.isSeen()) {
+                unseen.add(entry.getId());
+            }
+        }
+        return unseen;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the key of a node, the same as the key of the node id mapping
+     */
+    protected String getKey(String path, String sub) {
+        return path + "/" + sub;
+    }
+}
@@ -0,0 +1,123 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.NodeSequenceDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * @author Marnix Cook
+ *
+ * Hands out node identifiers from blocks that are reserved in the NodeSequence table.
+ * Knowing the identifier of a node before it is written means its children can refer
+ * to it right away, so node rows no longer have to be inserted one at a time to read
+ * back their generated key.
+ *
+ * Reservations run on a connection of their own in auto-commit mode, so they are not
+ * part of the transaction of the thread that asks for an identifier.
+ */
+public class NodeIdAllocator {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(NodeIdAllocator.class);
+
+    /**
+     * Default number of identifiers reserved at once
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private ConnectionInfo connInfo;
+    private int blockSize;
+
+    private NodeSequenceDAO sequenceDAO = getNodeSequenceDAO();
+
+    /**
+     * Next identifier to hand out and the last identifier of the current block
+     */
+    private long nextId = 1;
+    private long lastId = 0;
+
+    /**
+     * Number of blocks that have been reserved
+     */
+    private int nReservations;
+
+    /**
+     * Initialize data-members
+     *
+     * @param connInfo the connection information used to reserve blocks
+     * @param blockSize the number of identifiers reserved at once
+     */
+    public NodeIdAllocator(ConnectionInfo connInfo, int blockSize) {
+        this.connInfo = connInfo;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Restart the sequence, call this after the Node table has been truncated.
+     *
+     * @param db is the database to operate on
+     * @throws SQLException
+     */
+    public synchronized void reset(Database db) throws SQLException {
+        reset(db, 0);
+    }
+
+    /**
+     * Restart the sequence after <code>lastId</code>, used when nodes are added to a
+     * table that already has rows.
+     *
+     * @param db is the database to operate on
+     * @param lastId the highest identifier in use
+     * @throws SQLException
+     */
+    public synchronized void reset(Database db, long lastId) throws SQLException {
+        this.sequenceDAO.reset(db, lastId);
+        this.nextId = lastId + 1;
+        this.lastId = lastId;
+        this.nReservations = 0;
+    }
+
+    /**
+     * @return the next node identifier, reserves a new block when the current one is used up
+     * @throws SQLException when no block could be reserved
+     */
+    public synchronized long nextId() throws SQLException {
+        if (this.nextId > this.lastId) {
+            reserveBlock();
+        }
+        return this.nextId++;
+    }
+
+    /**
+     * Reserve a new block of identifiers
+     */
+    protected void reserveBlock() throws SQLException {
+        Connection dbConn = JDBCHelper.getDatabaseConnection(this.connInfo);
+        try {
+            this.lastId = this.sequenceDAO.reserve(new Database(dbConn, this.connInfo), this.blockSize);
+            this.nextId = this.lastId - this.blockSize + 1;
+            ++this.nReservations;
+
+            LOG.debug("Reserved node identifiers {} to {}", this.nextId, this.lastId);
+        }
+        finally {
+            JDBCHelper.closeQuietly(dbConn);
+        }
+    }
+
+    public synchronized int getReservations() {
+        return nReservations;
+    }
+
+    protected NodeSequenceDAO getNodeSequenceDAO() {
+        return new NodeSequenceDAO();
+    }
+}
@@ -9,21 +9,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * @author Marnix Cook
  *
- * Consumer of Property DTO instances
+ * Consumer of Property DTO instances. A consumer lives for a single reindex, it stops
+ * when it takes the {@link #END_OF_PROPERTIES} marker after writing and committing
+ * the properties it was given.
  */
-public class PropertyConsumer implements Runnable {
+public class PropertyConsumer implements ReindexWriter {
 
     /**
      * Logger
      */
     private static final Logger LOG = LoggerFactory.getLogger(PropertyConsumer.class);
 
+    /**
+     * Marker that tells a reader of the property queue there are no more properties
+     */
+    public static final List<PropertyDTO> END_OF_PROPERTIES = new ArrayList<PropertyDTO>(0);
+
     /**
      * Queue to read from
      */
@@ -34,7 +43,22 @@ public class PropertyConsumer implements Runnable {
      */
     private Database db;
 
-    private boolean done = false;
+    /**
+     * Set when writing failed, the reindex should not finish successfully
+     */
+    private volatile Exception error;
+
+    /**
+     * Released when the consumer has stopped
+     */
+    private CountDownLatch finished = new CountDownLatch(1);
+
+    //
+    //  Written by the consumer thread only, read by the pool that samples it
+    //
+    private volatile long nBatches;
+    private volatile long nRows;
+    private volatile long writeNanos;
 
     /**
      * Property consumer
@@ -48,37 +72,30 @@ public class PropertyConsumer implements Runnable {
     }
 
     /**
-     * Finish processing
-     */
-    public void commit() {
-        try {
-            new PropertyDAO().executeBatch(db);
-            db.getConnection().commit();
-        }
-        catch (SQLException sqlEx) {
-            LOG.error("Error committing transaction", sqlEx);
-        }
-    }
-
-    /**
-     * Take from the queue
+     * Take from the queue until the end marker is found
      */
     public void run() {
         PropertyDAO propertyDao = getPropertyDAO();
+        boolean ended = false;
 
-        while (!done) {
-            try {
-                List<PropertyDTO> dtos = propQueue.take();
+        try {
+            List<PropertyDTO> dtos;
+            while ((dtos = propQueue.take()) != END_OF_PROPERTIES) {
 
-                Long startTime = System.currentTimeMillis();
+                long startTime = System.nanoTime();
 
                 // persist
                 propertyDao.insertAll(db, dtos);
 
+                long spent = System.nanoTime() - startTime;
+                this.writeNanos += spent;
+                this.nRows += dtos.size();
+                ++this.nBatches;
+
                 // record length of writing
-                PerformanceReport.getInstance().addToCategory(
+                PerformanceReport.getInstance().addNanos(
                         Thread.currentThread().getName(),
-                        System.currentTimeMillis() - startTime
+                        spent
                 );
 
                 // log information
@@ -90,14 +107,80 @@ public class PropertyConsumer implements Runnable {
                     )
                 );
             }
-            catch (SQLException sqlEx) {
-                LOG.error("Error writing properties, caused by", sqlEx);
-            }
-            catch (InterruptedException iEx) {
-                LOG.error("Interrupted consumer, caused by:", iEx);
+
+            ended = true;
+
+            // finish processing
+            propertyDao.executeBatch(db);
+            db.getConnection().commit();
+        }
+        catch (SQLException sqlEx) {
+            LOG.error("Error writing properties, caused by", sqlEx);
+            this.error = sqlEx;
+
+            // keep the traversal from blocking on a full queue
+            if (!ended) {
+                ReindexQueues.discardUntilEnd(this.propQueue, END_OF_PROPERTIES);
             }
         }
+        catch (InterruptedException iEx) {
+            LOG.error("Interrupted consumer, caused by:", iEx);
+            this.error = iEx;
+        }
+        finally {
+            this.finished.countDown();
+        }
+    }
+
+    /**
+     * Put an end marker on the queue, one for each consumer
+     */
+    @Override
+    public void endOfInput() throws InterruptedException {
+        this.propQueue.put(END_OF_PROPERTIES);
+    }
 
+    @Override
+    public void awaitFinished() throws InterruptedException {
+        this.finished.await();
+    }
+
+    /**
+     * @return true when the consumer has stopped
+     */
+    public boolean isFinished() {
+        return this.finished.getCount() == 0;
+    }
+
+    @Override
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public Database getDatabase() {
+        return db;
+    }
+
+    /**
+     * @return the number of property lists written so far
+     */
+    public long getBatches() {
+        return nBatches;
+    }
+
+    /**
+     * @return the number of properties written so far
+     */
+    public long getRows() {
+        return nRows;
+    }
+
+    /**
+     * @return the nanoseconds spent writing so far
+     */
+    public long getWriteNanos() {
+        return writeNanos;
     }
 
     protected PropertyDAO getPropertyDAO() {
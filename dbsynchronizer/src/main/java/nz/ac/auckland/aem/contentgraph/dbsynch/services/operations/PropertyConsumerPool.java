@@ -0,0 +1,392 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marnix Cook
+ *
+ * The property consumers of a reindex, all taking from the same queue. Without a
+ * controller the number of consumers stays the same. With one, the pool samples the
+ * queue and the consumers on a thread of its own and adds or removes consumers as the
+ * controller decides. A consumer is removed by putting an end marker on the queue, the
+ * consumer that takes it commits and stops like it would at the end of the reindex.
+ *
+ * The pool opens and closes the connections of its consumers itself. A connection may
+ * have to be waited for when the connection pool is exhausted, so it is never borrowed
+ * while holding the lock of this pool.
+ */
+public class PropertyConsumerPool implements ReindexWriter {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PropertyConsumerPool.class);
+
+    /**
+     * Milliseconds between two samples
+     */
+    public static final long SAMPLE_INTERVAL = 2000;
+
+    private ConnectionInfo connInfo;
+    private BlockingQueue<List<PropertyDTO>> queue;
+
+    /**
+     * Decides the number of consumers, or null for a fixed number
+     */
+    private ConcurrencyController controller;
+
+    /**
+     * Consumers that have not been closed yet, guarded by this
+     */
+    private List<PropertyConsumer> consumers = new ArrayList<PropertyConsumer>();
+
+    /**
+     * Number of consumers that have not been told to stop, guarded by this
+     */
+    private int nActive;
+
+    /**
+     * Number of consumers started so far, guarded by this
+     */
+    private int nStarted;
+
+    /**
+     * True once the end of input has been signalled, guarded by this
+     */
+    private boolean ended;
+
+    /**
+     * Totals of the consumers that have been closed, guarded by this
+     */
+    private long closedRows;
+    private long closedBatches;
+    private long closedNanos;
+
+    /**
+     * Changes in the number of consumers as {elapsed milliseconds, number of consumers}, guarded by this
+     */
+    private List<long[]> timeline = new ArrayList<long[]>();
+    private long startTime;
+
+    private volatile Exception error;
+
+    private CountDownLatch stopSampling = new CountDownLatch(1);
+    private CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Initialize data-members
+     *
+     * @param connInfo the connection information the consumers connect with
+     * @param queue the queue the consumers take the properties from
+     * @param controller decides the number of consumers, or null to keep the number fixed
+     */
+    public PropertyConsumerPool(ConnectionInfo connInfo, BlockingQueue<List<PropertyDTO>> queue, ConcurrencyController controller) {
+        this.connInfo = connInfo;
+        this.queue = queue;
+        this.controller = controller;
+    }
+
+    /**
+     * Start the sampling thread and the first consumers
+     *
+     * @param nConsumers the number of consumers to start with
+     * @throws SQLException when a connection could not be made
+     */
+    public void start(int nConsumers) throws SQLException {
+        this.startTime = System.currentTimeMillis();
+
+        Thread samplerThread = new Thread(this);
+        samplerThread.setName("Consumer pool");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+
+        for (int idx = 0; idx < nConsumers; ++idx) {
+            startConsumer(openConsumer());
+        }
+
+        synchronized (this) {
+            record();
+        }
+    }
+
+    /**
+     * Sample the pool until the end of input, only when there is a controller
+     */
+    public void run() {
+        try {
+            if (this.controller == null) {
+                return;
+            }
+
+            long[] last = getTotals();
+            long lastTime = System.nanoTime();
+
+            while (!this.stopSampling.await(SAMPLE_INTERVAL, TimeUnit.MILLISECONDS)) {
+                long[] totals = getTotals();
+                long time = System.nanoTime();
+
+                long nBatches = totals[1] - last[1];
+                double throughput = (totals[0] - last[0]) * 1e9 / Math.max(1, time - lastTime);
+                double latency = nBatches == 0 ? 0 : (totals[2] - last[2]) / 1e6 / nBatches;
+
+                int size = this.queue.size();
+                double queueFill = size / (double) Math.max(1, size + this.queue.remainingCapacity());
+
+                if (!adjust(queueFill, throughput, latency)) {
+                    break;
+                }
+
+                last = totals;
+                lastTime = time;
+            }
+        }
+        catch (InterruptedException iEx) {
+            LOG.error("Interrupted consumer pool, caused by:", iEx);
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            this.finished.countDown();
+        }
+    }
+
+    /**
+     * Apply the decision of the controller to one sample
+     *
+     * @return false when the end of input was signalled
+     */
+    protected boolean adjust(double queueFill, double throughput, double latency) throws InterruptedException {
+        int nRemove = 0;
+        boolean add = false;
+
+        synchronized (this) {
+            if (this.ended) {
+                return false;
+            }
+
+            closeFinished();
+
+            int target = this.controller.next(this.nActive, queueFill, throughput, latency);
+            if (target > this.nActive && this.error == null) {
+                add = true;
+            }
+            else if (target < this.nActive) {
+                nRemove = this.nActive - target;
+                this.nActive = target;
+            }
+            else {
+                return true;
+            }
+        }
+
+        if (add) {
+            try {
+                if (!startConsumer(openConsumer())) {
+                    return false;
+                }
+            }
+            catch (SQLException sqlEx) {
+                LOG.warn("Could not add a property consumer, caused by", sqlEx);
+            }
+        }
+
+        synchronized (this) {
+            LOG.debug(
+                "Property consumers: {}, queue {}% full, {} rows/s, {} ms per batch",
+                new Object[] { this.nActive, Math.round(queueFill * 100), Math.round(throughput), Math.round(latency) }
+            );
+            record();
+        }
+
+        // outside the lock, the queue may be full
+        for (int idx = 0; idx < nRemove; ++idx) {
+            this.queue.put(PropertyConsumer.END_OF_PROPERTIES);
+        }
+        return true;
+    }
+
+    /**
+     * Open a connection and create a consumer with it, the caller must not hold the lock
+     *
+     * @return the consumer, not started yet
+     * @throws SQLException when no connection could be made
+     */
+    protected PropertyConsumer openConsumer() throws SQLException {
+        Connection dbConn = JDBCHelper.getDatabaseConnection(this.connInfo);
+        try {
+            dbConn.setAutoCommit(false);
+        }
+        catch (SQLException sqlEx) {
+            JDBCHelper.closeQuietly(dbConn);
+            throw sqlEx;
+        }
+        return createConsumer(new Database(dbConn, this.connInfo));
+    }
+
+    /**
+     * Start a consumer, unless the end of input was signalled while its connection was opened
+     *
+     * @param propConsumer the consumer to start
+     * @return false if the consumer was not started and its connection was closed
+     */
+    protected synchronized boolean startConsumer(PropertyConsumer propConsumer) {
+        if (this.ended) {
+            JDBCHelper.closeQuietly(propConsumer.getDatabase().getConnection());
+            return false;
+        }
+
+        Thread consumerThread = new Thread(propConsumer);
+        consumerThread.setName("Consumer #" + (++this.nStarted));
+        consumerThread.start();
+
+        this.consumers.add(propConsumer);
+        ++this.nActive;
+        return true;
+    }
+
+    /**
+     * Close the connections of the consumers that have stopped, the caller holds the lock
+     */
+    protected void closeFinished() {
+        Iterator<PropertyConsumer> consumerIt = this.consumers.iterator();
+        while (consumerIt.hasNext()) {
+            PropertyConsumer propConsumer = consumerIt.next();
+            if (!propConsumer.isFinished()) {
+                continue;
+            }
+
+            if (this.error == null) {
+                this.error = propConsumer.getError();
+            }
+
+            this.closedRows += propConsumer.getRows();
+            this.closedBatches += propConsumer.getBatches();
+            this.closedNanos += propConsumer.getWriteNanos();
+
+            JDBCHelper.closeQuietly(propConsumer.getDatabase().getConnection());
+            consumerIt.remove();
+        }
+    }
+
+    /**
+     * @return the rows, batches and write nanoseconds of all consumers so far
+     */
+    protected synchronized long[] getTotals() {
+        long[] totals = { this.closedRows, this.closedBatches, this.closedNanos };
+        for (PropertyConsumer propConsumer : this.consumers) {
+            totals[0] += propConsumer.getRows();
+            totals[1] += propConsumer.getBatches();
+            totals[2] += propConsumer.getWriteNanos();
+        }
+        return totals;
+    }
+
+    /**
+     * Add the current number of consumers to the timeline, the caller holds the lock
+     */
+    protected void record() {
+        this.timeline.add(new long[] { System.currentTimeMillis() - this.startTime, this.nActive });
+    }
+
+    /**
+     * Put an end marker on the queue for every consumer that is still taking from it
+     */
+    @Override
+    public void endOfInput() throws InterruptedException {
+        int nEnds;
+        synchronized (this) {
+            this.ended = true;
+            nEnds = this.nActive;
+        }
+        this.stopSampling.countDown();
+
+        for (int idx = 0; idx < nEnds; ++idx) {
+            this.queue.put(PropertyConsumer.END_OF_PROPERTIES);
+        }
+    }
+
+    /**
+     * Wait for the sampling thread and all consumers, then close their connections
+     */
+    @Override
+    public void awaitFinished() throws InterruptedException {
+        List<PropertyConsumer> running;
+        synchronized (this) {
+            running = new ArrayList<PropertyConsumer>(this.consumers);
+        }
+
+        try {
+            this.finished.await();
+            for (PropertyConsumer propConsumer : running) {
+                propConsumer.awaitFinished();
+            }
+        }
+        finally {
+            synchronized (this) {
+                closeFinished();
+                for (PropertyConsumer propConsumer : this.consumers) {
+                    JDBCHelper.closeQuietly(propConsumer.getDatabase().getConnection());
+                }
+            }
+        }
+    }
+
+    @Override
+    public Exception getError() {
+        synchronized (this) {
+            closeFinished();
+        }
+        return error;
+    }
+
+    /**
+     * @return null, the consumers each have a database of their own
+     */
+    @Override
+    public Database getDatabase() {
+        return null;
+    }
+
+    /**
+     * @return how the number of consumers changed during the reindex, e.g.
+     * "4 at 0s, 5 at 12s, 4 at 30s; 4.3 on average"
+     */
+    public synchronized String getConcurrencySummary() {
+        StringBuilder summary = new StringBuilder();
+
+        long now = System.currentTimeMillis() - this.startTime;
+        double weighted = 0;
+
+        for (int idx = 0; idx < this.timeline.size(); ++idx) {
+            long[] change = this.timeline.get(idx);
+            long until = idx + 1 < this.timeline.size() ? this.timeline.get(idx + 1)[0] : now;
+            weighted += change[1] * (until - change[0]);
+
+            if (idx > 0) {
+                summary.append(", ");
+            }
+            summary.append(change[1]).append(" at ").append(change[0] / 1000).append("s");
+        }
+
+        double average = now > 0 ? weighted / now : this.nActive;
+        summary.append(String.format("; %.1f on average", average));
+        return summary.toString();
+    }
+
+    protected PropertyConsumer createConsumer(Database database) {
+        return new PropertyConsumer(database, this.queue);
+    }
+}
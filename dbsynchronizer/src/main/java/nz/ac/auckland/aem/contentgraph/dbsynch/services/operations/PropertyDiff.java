@@ -0,0 +1,98 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Marnix Cook
+ *
+ * Difference between the property rows stored for a node and the properties it has now.
+ * Rows are compared by name and value; a multi-valued property has a row per value, so
+ * the rows are matched as a multiset. Stored rows that belong to another node identifier
+ * are always removed.
+ */
+public class PropertyDiff {
+
+    /**
+     * Stands in for a null value in a key, so that null and "" are different values
+     */
+    private static final String NULL_VALUE = "\u0001";
+
+    private List<PropertyDTO> inserts = new ArrayList<PropertyDTO>();
+    private List<PropertyDTO> deletes = new ArrayList<PropertyDTO>();
+    private int nUnchanged;
+
+    /**
+     * Initialize data-members
+     *
+     * @param stored the property rows currently in the database
+     * @param current the properties the node has now
+     * @param nodeId the identifier of the node the properties belong to
+     */
+    public PropertyDiff(List<PropertyDTO> stored, List<PropertyDTO> current, Long nodeId) {
+        Map<String, LinkedList<PropertyDTO>> storedByKey = new HashMap<String, LinkedList<PropertyDTO>>();
+
+        for (PropertyDTO property : stored) {
+            if (nodeId == null || !nodeId.equals(property.getNodeId())) {
+                deletes.add(property);
+                continue;
+            }
+
+            String key = getKey(property);
+            LinkedList<PropertyDTO> sameKey = storedByKey.get(key);
+            if (sameKey == null) {
+                sameKey = new LinkedList<PropertyDTO>();
+                storedByKey.put(key, sameKey);
+            }
+            sameKey.add(property);
+        }
+
+        for (PropertyDTO property : current) {
+            LinkedList<PropertyDTO> sameKey = storedByKey.get(getKey(property));
+            if (sameKey == null || sameKey.isEmpty()) {
+                inserts.add(property);
+            } else {
+                sameKey.removeFirst();
+                ++nUnchanged;
+            }
+        }
+
+        for (LinkedList<PropertyDTO> leftOver : storedByKey.values()) {
+            deletes.addAll(leftOver);
+        }
+    }
+
+    /**
+     * @return the key a property row is matched by
+     */
+    protected String getKey(PropertyDTO property) {
+        String value = property.getValue() == null ? NULL_VALUE : property.getValue();
+        return property.getName() + '\u0000' + value;
+    }
+
+    /**
+     * @return the properties that have no row yet
+     */
+    public List<PropertyDTO> getInserts() {
+        return inserts;
+    }
+
+    /**
+     * @return the rows that no longer match a property
+     */
+    public List<PropertyDTO> getDeletes() {
+        return deletes;
+    }
+
+    /**
+     * @return the number of rows that are left untouched
+     */
+    public int getUnchanged() {
+        return nUnchanged;
+    }
+}
@@ -0,0 +1,46 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author Marnix Cook
+ *
+ * Helpers for the bounded queues between the traversal and the reindex writers. The
+ * traversal blocks while a queue is full, so a writer that stopped writing because of
+ * an error still has to keep taking from its queue until its end marker; otherwise the
+ * traversal would wait forever for room.
+ */
+public final class ReindexQueues {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexQueues.class);
+
+    private ReindexQueues() {
+    }
+
+    /**
+     * Take and drop the elements of <code>queue</code> up to and including <code>endMarker</code>
+     *
+     * @param queue the queue of a writer that failed
+     * @param endMarker the end marker of the writer
+     */
+    public static <E> void discardUntilEnd(BlockingQueue<E> queue, E endMarker) {
+        int nDiscarded = 0;
+        try {
+            while (queue.take() != endMarker) {
+                ++nDiscarded;
+            }
+        }
+        catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            LOG.info("[{}]: discarded {} queued elements after an error", Thread.currentThread().getName(), nDiscarded);
+        }
+    }
+}
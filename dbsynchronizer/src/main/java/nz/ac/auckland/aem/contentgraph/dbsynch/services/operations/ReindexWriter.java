@@ -0,0 +1,39 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+
+/**
+ * @author Marnix Cook
+ *
+ * A thread that writes queued rows during a reindex and stops once it has been told
+ * there is no more input.
+ */
+public interface ReindexWriter extends Runnable {
+
+    /**
+     * Tell the writer no more input is coming, it stops when everything before this call
+     * has been written.
+     *
+     * @throws InterruptedException
+     */
+    void endOfInput() throws InterruptedException;
+
+    /**
+     * Wait until the writer has stopped
+     *
+     * @throws InterruptedException
+     */
+    void awaitFinished() throws InterruptedException;
+
+    /**
+     * @return the exception that stopped the writer, or null
+     */
+    Exception getError();
+
+    /**
+     * @return the database the writer writes to, closed when the writer has stopped; or
+     * null when the writer closes its connections itself
+     */
+    Database getDatabase();
+
+}
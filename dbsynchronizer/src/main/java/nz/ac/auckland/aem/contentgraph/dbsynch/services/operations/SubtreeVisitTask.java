@@ -0,0 +1,147 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.SynchVisitor;
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixTrie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * @author Marnix Cook
+ *
+ * Visits the subtree at a path on a {@link TraversalWorker}. Children are visited
+ * inline unless they are worth splitting off: the sites directly underneath an
+ * include path are always forked, deeper subtrees only when the pool is running
+ * out of queued work so idle workers have something to steal.
+ *
+ * Tasks carry a path instead of a node, because nodes belong to the session of the
+ * worker that loaded them and the task can be stolen by any worker.
+ */
+public class SubtreeVisitTask extends RecursiveTask<Integer> {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SubtreeVisitTask.class);
+
+    /**
+     * Nodes at this depth or above are always split off (eg. /content/site)
+     */
+    public static final int SITE_DEPTH = 2;
+
+    /**
+     * Fork deeper subtrees as long as there are fewer surplus tasks queued than this
+     */
+    public static final int SURPLUS_THRESHOLD = 3;
+
+    private String path;
+    private PathPrefixTrie pathTrie;
+    private SynchVisitor<Node> visitor;
+
+    /**
+     * Initialize data-members
+     *
+     * @param path the root of the subtree to visit
+     * @param pathTrie the compiled paths, excluded paths are not visited
+     * @param visitor the visitor to call each node with
+     */
+    public SubtreeVisitTask(String path, PathPrefixTrie pathTrie, SynchVisitor<Node> visitor) {
+        this.path = path;
+        this.pathTrie = pathTrie;
+        this.visitor = visitor;
+    }
+
+    /**
+     * @return the number of nodes visited in this subtree, including forked tasks
+     */
+    @Override
+    protected Integer compute() {
+        TraversalWorker worker = (TraversalWorker) Thread.currentThread();
+
+        try {
+            worker.open();
+
+            Session session = worker.getSession();
+            if (!session.nodeExists(this.path)) {
+                LOG.error("Could not find `{}`, skipping", this.path);
+                return 0;
+            }
+
+            List<SubtreeVisitTask> forked = new ArrayList<SubtreeVisitTask>();
+            int nVisits = visitSubtree(worker, session.getNode(this.path), forked);
+
+            // join in reverse order, most recently forked tasks are most likely still local
+            for (int idx = forked.size() - 1; idx >= 0; --idx) {
+                nVisits += forked.get(idx).join();
+            }
+
+            return nVisits;
+        }
+        catch (RuntimeException rEx) {
+            throw rEx;
+        }
+        catch (Exception ex) {
+            throw new IllegalStateException("Could not visit the subtree at `" + this.path + "`", ex);
+        }
+    }
+
+    /**
+     * Visit a node and its children, forking off the children worth splitting.
+     *
+     * @param worker the worker that is executing this task
+     * @param base the node to visit
+     * @param forked is the list the forked tasks are added to
+     * @return the number of nodes visited inline
+     */
+    protected int visitSubtree(TraversalWorker worker, Node base, List<SubtreeVisitTask> forked) throws Exception {
+        long start = System.nanoTime();
+        if (!worker.getSynchVisitorManager().visitNode(worker.getDatabase(), base, this.pathTrie, this.visitor)) {
+            return 0;
+        }
+        worker.recordVisit(System.nanoTime() - start);
+
+        int nVisits = 1;
+
+        SynchVisitorManager svMgr = worker.getSynchVisitorManager();
+        String[] prunedNames = this.pathTrie.getPrunedChildNames(base.getPath());
+
+        if (svMgr.hasChildrenToVisit(base, prunedNames)) {
+            NodeIterator nIterator = base.getNodes();
+            while (nIterator.hasNext()) {
+                Node childNode = nIterator.nextNode();
+
+                // excluded subtrees are neither forked nor asked for their children
+                if (svMgr.isPruned(childNode, prunedNames)) {
+                    continue;
+                }
+
+                if (shouldSplit(childNode)) {
+                    SubtreeVisitTask task = new SubtreeVisitTask(childNode.getPath(), this.pathTrie, this.visitor);
+                    task.fork();
+                    forked.add(task);
+                } else {
+                    nVisits += visitSubtree(worker, childNode, forked);
+                }
+            }
+        }
+
+        return nVisits;
+    }
+
+    /**
+     * @return true if the subtree at <code>node</code> should become a task of its own
+     */
+    protected boolean shouldSplit(Node node) throws Exception {
+        if (!node.hasNodes()) {
+            return false;
+        }
+        return node.getDepth() <= SITE_DEPTH || getSurplusQueuedTaskCount() < SURPLUS_THRESHOLD;
+    }
+
+}
@@ -2,6 +2,7 @@ package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
 
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors.SynchVisitor;
+import nz.ac.auckland.aem.contentgraph.utils.PathPrefixTrie;
 import nz.ac.auckland.aem.contentgraph.utils.PerformanceReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +32,11 @@ public class SynchVisitorManager {
      */
     private int batchCount;
 
+    /**
+     * False when the caller commits by itself, eg. when writing into shadow tables
+     */
+    private boolean commitOnThreshold = true;
+
     /**
      * Stores the two level deep path that is currently being indexed. If it
      * changes (by called `trackProgress`) a log statement is generated.
@@ -38,31 +44,76 @@ public class SynchVisitorManager {
     private String currentBasePath;
 
     /**
-     * Reset the batch count
+     * Number of excluded subtrees that were skipped without looking at them
+     */
+    private int nPruned;
+
+    /**
+     * Reset the batch count and the number of pruned subtrees
      */
     public void reset() {
         this.batchCount = 0;
+        this.nPruned = 0;
+    }
+
+    /**
+     * @param commitOnThreshold false to stop committing every `commit_threshold` nodes
+     */
+    public void setCommitOnThreshold(boolean commitOnThreshold) {
+        this.commitOnThreshold = commitOnThreshold;
     }
 
     /**
      * Recursive visit through base
      *
      * @param base is the base path to iterate from
-     * @param exclude all the paths that are to be excluded from visting
+     * @param pathTrie the compiled paths, excluded paths are not visited
+     * @param visitor the visitor to call the node with
+     */
+    public int recursiveVisit(Database db, Node base, PathPrefixTrie pathTrie, SynchVisitor visitor) throws Exception {
+        if (!visitNode(db, base, pathTrie, visitor)) {
+            return 0;
+        }
+
+        int nVisits = 1;
+
+        // children? recurse.
+        String[] prunedNames = pathTrie.getPrunedChildNames(base.getPath());
+        if (hasChildrenToVisit(base, prunedNames)) {
+            NodeIterator nIterator = base.getNodes();
+            while (nIterator.hasNext()) {
+                Node childNode = nIterator.nextNode();
+                if (!isPruned(childNode, prunedNames)) {
+                    nVisits += recursiveVisit(db, childNode, pathTrie, visitor);
+                }
+            }
+        }
+
+        return nVisits;
+
+    }
+
+    /**
+     * Visit a single node without descending into its children. Used by the recursive
+     * visit and by the parallel traversal, which decides for itself how to descend.
+     *
+     * @param db is the database to write to
+     * @param base is the node to visit
+     * @param pathTrie the compiled paths, excluded paths are not visited
      * @param visitor the visitor to call the node with
+     * @return true if the node was visited, false if it was null or excluded
      */
-    public int recursiveVisit(Database db, Node base, String[] exclude, SynchVisitor visitor) throws Exception {
-        int nVisits = 0;
+    public boolean visitNode(Database db, Node base, PathPrefixTrie pathTrie, SynchVisitor visitor) throws Exception {
         // base cases
 
         // 1. null?
         if (base == null) {
-            return 0;
+            return false;
         }
 
         // 2. excluded path?
-        if (isExcludedPath(base.getPath(), exclude)) {
-            return 0;
+        if (isExcludedPath(base.getPath(), pathTrie)) {
+            return false;
         }
 
         trackProgress(base.getPath());
@@ -70,30 +121,54 @@ public class SynchVisitorManager {
         // execute.
         visitor.visit(db, base);
 
-        ++nVisits;
-
-        Long start = System.currentTimeMillis();
+        long start = System.nanoTime();
 
         // make sure to commit when necessary
         commitOnThreshold(db);
 
-        PerformanceReport.getInstance().addToCategory(
-                "commitOnThreshold", System.currentTimeMillis() - start
+        PerformanceReport.getInstance().addNanos(
+                "commitOnThreshold", System.nanoTime() - start
             );
 
-        // children? recurse.
-        if (base.hasNodes()) {
-            NodeIterator nIterator = base.getNodes();
-            while (nIterator.hasNext()) {
-                Node childNode = nIterator.nextNode();
-                nVisits += recursiveVisit(db, childNode, exclude, visitor);
-            }
-        }
+        return true;
+    }
 
-        return nVisits;
 
+    /**
+     * @param base the node whose children are about to be visited
+     * @param prunedNames the names of the children to skip, see <code>PathPrefixTrie.getPrunedChildNames</code>
+     * @return true if <code>base</code> has children that are not all pruned
+     */
+    public boolean hasChildrenToVisit(Node base, String[] prunedNames) throws RepositoryException {
+        if (prunedNames.length > 0 && PathPrefixTrie.isPruningAll(prunedNames)) {
+            ++this.nPruned;
+            return false;
+        }
+        return base.hasNodes();
+    }
+
+    /**
+     * Determine by its name whether a child leads to an excluded subtree only, the
+     * subtree is skipped without visiting the child or asking it for its children.
+     *
+     * @param child the child to check
+     * @param prunedNames the names of the children to skip
+     * @return true if the child should be skipped
+     */
+    public boolean isPruned(Node child, String[] prunedNames) throws RepositoryException {
+        if (prunedNames.length == 0 || !PathPrefixTrie.isPrunedChild(prunedNames, child.getName())) {
+            return false;
+        }
+        ++this.nPruned;
+        return true;
     }
 
+    /**
+     * @return the number of excluded subtrees that were skipped since the last reset
+     */
+    public int getPruned() {
+        return nPruned;
+    }
 
     /**
      * Tracks whether the base path changes. If it does, a log statement
@@ -121,6 +196,10 @@ public class SynchVisitorManager {
      * @throws SQLException
      */
     protected void commitOnThreshold(Database db) throws SQLException {
+        if (!this.commitOnThreshold) {
+            return;
+        }
+
         ++this.batchCount;
         if (this.batchCount > COMMIT_THRESHOLD){
             this.batchCount %= COMMIT_THRESHOLD;
@@ -132,17 +211,12 @@ public class SynchVisitorManager {
      * Determine whether the <code>path</code> is excluded
      *
      * @param path is the path to check
-     * @param exclude is the list of exclusions
+     * @param pathTrie the compiled paths
      * @return true if the path is an exclusion path
      * @throws RepositoryException
      */
-    protected boolean isExcludedPath(String path, String[] exclude) throws RepositoryException {
-        for (String exclPath : exclude) {
-            if (path.startsWith(exclPath)) {
-                return true;
-            }
-        }
-        return false;
+    protected boolean isExcludedPath(String path, PathPrefixTrie pathTrie) throws RepositoryException {
+        return pathTrie.isExcluded(path);
     }
 
 }
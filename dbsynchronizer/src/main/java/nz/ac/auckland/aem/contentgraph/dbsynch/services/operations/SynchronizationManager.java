@@ -1,6 +1,7 @@
 package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
 
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.SQLRunnable;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.StatementRunnable;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
 
@@ -46,10 +47,13 @@ public class SynchronizationManager {
      * @throws SQLException
      */
     public void reset(Database db) throws SQLException {
-        PreparedStatement pStmt = db.preparedStatement("TRUNCATE TABLE SynchState");
-        if (pStmt != null) {
-            pStmt.executeUpdate();
-        }
+        db.withStatement("TRUNCATE TABLE SynchState", new StatementRunnable<Integer>() {
+
+            @Override
+            public Integer run(PreparedStatement pStmt) throws SQLException {
+                return pStmt.executeUpdate();
+            }
+        });
     }
 
     /**
@@ -81,19 +85,36 @@ public class SynchronizationManager {
      * @param msg
      * @throws SQLException
      */
-    protected void setSynchState(Database db, String state, String msg) throws SQLException {
-        PreparedStatement pStmt =
-                db.preparedStatement("INSERT INTO SynchState SET state = ?, msg = ?");
-
-        pStmt.setString(1, state);
-        pStmt.setString(2, msg);
-        pStmt.executeUpdate();
+    protected void setSynchState(Database db, final String state, final String msg) throws SQLException {
+        db.withStatement("INSERT INTO SynchState SET state = ?, msg = ?", new StatementRunnable<Integer>() {
+
+            @Override
+            public Integer run(PreparedStatement pStmt) throws SQLException {
+                pStmt.setString(1, state);
+                pStmt.setString(2, msg);
+                return pStmt.executeUpdate();
+            }
+        });
     }
 
     public void startReindex(Database db) throws SQLException {
         this.setSynchState(db, "reindexing", "Complete re-index started");
     }
 
+    /**
+     * Indicate a reindex of the subtree at <code>rootPath</code> is now taking place.
+     */
+    public void startSubtreeReindex(Database db, String rootPath) throws SQLException {
+        this.setSynchState(db, "reindexing", String.format("Re-index of `%s` started", rootPath));
+    }
+
+    /**
+     * Indicate a verify reindex is now taking place.
+     */
+    public void startVerify(Database db) throws SQLException {
+        this.setSynchState(db, "reindexing", "Verify re-index started");
+    }
+
     /**
      * Indicate a periodic update is now taking place.
      */
@@ -0,0 +1,164 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Session;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * @author Marnix Cook
+ *
+ * Fork-join worker thread used by the parallel traversal. JCR sessions and JDBC
+ * connections are not safe to share, so every worker lazily opens its own session
+ * and database connection the first time it picks up a subtree. The worker also
+ * keeps track of the number of nodes it visited so a per-worker throughput can be
+ * reported when the run ends.
+ */
+public class TraversalWorker extends ForkJoinWorkerThread {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(TraversalWorker.class);
+
+    private ResourceResolverFactory rrFactory;
+    private ConnectionInfo connInfo;
+
+    private ResourceResolver resourceResolver;
+    private Session session;
+    private Database database;
+
+    /**
+     * Each worker has its own manager so commit thresholds are tracked per connection
+     */
+    private SynchVisitorManager svMgr = new SynchVisitorManager();
+
+    /**
+     * Statistics, only written by this thread
+     */
+    private int nVisited;
+    private long nanosSpent;
+
+    /**
+     * Initialize data-members
+     *
+     * @param pool the pool this worker belongs to
+     * @param rrFactory the factory to get the worker's resource resolver from
+     * @param connInfo the connection information used to open the worker's connection
+     */
+    public TraversalWorker(ForkJoinPool pool, ResourceResolverFactory rrFactory, ConnectionInfo connInfo) {
+        super(pool);
+        this.rrFactory = rrFactory;
+        this.connInfo = connInfo;
+
+        // the transaction is only ended at the end of the traversal
+        this.svMgr.setCommitOnThreshold(false);
+    }
+
+    /**
+     * Open the JCR session and database connection if that hasn't happened yet.
+     *
+     * @throws LoginException when no resource resolver could be retrieved
+     * @throws SQLException when no database connection could be made
+     */
+    public void open() throws LoginException, SQLException {
+        if (this.session != null) {
+            return;
+        }
+
+        Connection dbConn = JDBCHelper.getDatabaseConnection(this.connInfo);
+        dbConn.setAutoCommit(false);
+        this.database = new Database(dbConn, this.connInfo);
+
+        this.resourceResolver = this.rrFactory.getAdministrativeResourceResolver(null);
+        this.session = this.resourceResolver.adaptTo(Session.class);
+    }
+
+    /**
+     * Commit on this worker's connection. The tables are MyISAM, the rows are in them
+     * already and this only ends the transaction.
+     *
+     * @throws SQLException
+     */
+    public void commit() throws SQLException {
+        if (this.database != null) {
+            this.database.getConnection().commit();
+        }
+    }
+
+    /**
+     * Rollback on this worker's connection. The tables are MyISAM, this does not remove
+     * the rows the worker wrote.
+     */
+    public void rollback() {
+        if (this.database != null) {
+            new TransactionManager().safeRollback(this.database.getConnection());
+        }
+    }
+
+    /**
+     * Close the session and database connection
+     */
+    public void close() {
+        if (this.database != null) {
+            JDBCHelper.closeQuietly(this.database.getConnection());
+            this.database = null;
+        }
+        if (this.resourceResolver != null && this.resourceResolver.isLive()) {
+            this.resourceResolver.close();
+        }
+        this.resourceResolver = null;
+        this.session = null;
+    }
+
+    /**
+     * Record that a node was visited in <code>nanos</code> nanoseconds. Nanoseconds
+     * are used because a single visit is usually well below a millisecond.
+     */
+    public void recordVisit(long nanos) {
+        ++this.nVisited;
+        this.nanosSpent += nanos;
+    }
+
+    /**
+     * Log the throughput of this worker
+     */
+    public void logPerformance() {
+        double seconds = this.nanosSpent * 1e-9;
+        LOG.info(
+            String.format(
+                "%-40s: %d nodes in %.2f seconds, %.2f nodes/sec",
+                getName(),
+                this.nVisited,
+                seconds,
+                seconds > 0 ? this.nVisited / seconds : 0.0
+            )
+        );
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public Database getDatabase() {
+        return database;
+    }
+
+    public SynchVisitorManager getSynchVisitorManager() {
+        return svMgr;
+    }
+
+    public int getVisited() {
+        return nVisited;
+    }
+}
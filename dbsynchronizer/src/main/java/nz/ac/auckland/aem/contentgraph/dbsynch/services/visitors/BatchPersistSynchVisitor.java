@@ -0,0 +1,260 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.NodeDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.PropertyDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeHashIndex;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.PropertyDiff;
+import nz.ac.auckland.aem.contentgraph.utils.PerformanceReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author Marnix Cook
+ *
+ * Persist visitor of the periodic update. Visiting a node only builds its DTOs, the
+ * nodes are written when {@link #flush(Database)} is called:
+ *
+ * - the stored identifiers and hashes of all nodes and their parents are read at once;
+ * - nodes whose hash did not change are skipped;
+ * - changed nodes are updated in one batch, new nodes are inserted with multi-row
+ *   inserts, one round for each level of new nodes so parents get their id first;
+ * - the stored properties of all written nodes are read at once and the rows that
+ *   differ are deleted and inserted in one batch each.
+ *
+ * Not thread-safe, the periodic update visits and flushes on a single thread.
+ */
+public class BatchPersistSynchVisitor extends PersistSynchVisitor {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BatchPersistSynchVisitor.class);
+
+    private NodeDAO nodeDao = getNodeDAOInstance();
+    private PropertyDAO propertyDao = getPropertyDAOInstance();
+
+    /**
+     * Nodes and their properties that were visited since the last flush, by key
+     */
+    private Map<String, PendingNode> pending = new LinkedHashMap<String, PendingNode>();
+
+    /**
+     * Number of visited nodes that did not have to be written
+     */
+    private long nNodesUnchanged;
+
+    /**
+     * A visited node and its properties
+     */
+    protected static class PendingNode {
+
+        private NodeDTO node;
+        private List<PropertyDTO> properties;
+
+        protected PendingNode(NodeDTO node, List<PropertyDTO> properties) {
+            this.node = node;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * Keep the node until the next flush, a node that is visited twice is written once.
+     */
+    @Override
+    protected void persist(Database db, NodeDTO nodeDto, List<PropertyDTO> propertyDtos) throws Exception {
+        this.pending.put(getKey(nodeDto.getPath(), nodeDto.getSub()), new PendingNode(nodeDto, propertyDtos));
+    }
+
+    /**
+     * Write all nodes that were visited since the last flush
+     *
+     * @param db the database to write to
+     * @throws SQLException
+     */
+    public void flush(Database db) throws SQLException {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        try {
+            long start = System.nanoTime();
+
+            Set<String> paths = new HashSet<String>();
+            for (PendingNode pNode : this.pending.values()) {
+                paths.add(pNode.node.getPath());
+                paths.add(pNode.node.getParentPath());
+            }
+
+            NodeHashIndex stored = nodeDao.loadHashIndex(db, paths);
+
+            List<PendingNode> written = new ArrayList<PendingNode>();
+            List<NodeDTO> updates = new ArrayList<NodeDTO>();
+            Map<String, PendingNode> inserts = new LinkedHashMap<String, PendingNode>();
+
+            for (Map.Entry<String, PendingNode> entry : this.pending.entrySet()) {
+                NodeDTO node = entry.getValue().node;
+                NodeHashIndex.Entry storedNode = stored.get(node.getPath(), node.getSub());
+
+                if (storedNode == null) {
+                    inserts.put(entry.getKey(), entry.getValue());
+                }
+                else if (storedNode.matches(node.getHash())) {
+                    ++nNodesUnchanged;
+                }
+                else {
+                    node.setId(storedNode.getId());
+                    updates.add(node);
+                    written.add(entry.getValue());
+                }
+            }
+
+            if (!updates.isEmpty()) {
+                nodeDao.replaceAll(db, updates);
+            }
+
+            written.addAll(insertByLevel(db, stored, inserts));
+
+            writeProperties(db, written);
+
+            LOG.info(
+                "Wrote {} changed and {} new nodes, {} visited nodes were unchanged",
+                new Object[] { updates.size(), written.size() - updates.size(), this.pending.size() - written.size() }
+            );
+
+            PerformanceReport.getInstance().addNanos("batch.flush", System.nanoTime() - start);
+        }
+        finally {
+            this.pending.clear();
+        }
+    }
+
+    /**
+     * Insert the new nodes, parents before their children. Each round inserts the nodes
+     * whose parent is not waiting to be inserted itself.
+     *
+     * @param db the database to write to
+     * @param stored the stored nodes, the inserted nodes are added to it
+     * @param inserts the new nodes by key
+     * @return the inserted nodes
+     */
+    protected List<PendingNode> insertByLevel(Database db, NodeHashIndex stored, Map<String, PendingNode> inserts) throws SQLException {
+        List<PendingNode> inserted = new ArrayList<PendingNode>();
+
+        while (!inserts.isEmpty()) {
+            List<PendingNode> level = new ArrayList<PendingNode>();
+            List<NodeDTO> levelNodes = new ArrayList<NodeDTO>();
+
+            for (PendingNode pNode : inserts.values()) {
+                NodeDTO node = pNode.node;
+                if (inserts.containsKey(getKey(node.getParentPath(), node.getParentSub()))) {
+                    continue;
+                }
+
+                NodeHashIndex.Entry parent = stored.get(node.getParentPath(), node.getParentSub());
+                node.setParentId(parent == null ? null : parent.getId());
+
+                level.add(pNode);
+                levelNodes.add(node);
+            }
+
+            if (levelNodes.isEmpty()) {
+                throw new SQLException("Could not order the new nodes by their parents");
+            }
+
+            nodeDao.insertAll(db, levelNodes);
+
+            for (NodeDTO node : levelNodes) {
+                inserts.remove(getKey(node.getPath(), node.getSub()));
+                stored.put(node.getPath(), node.getSub(), node.getId(), node.getHash());
+            }
+            inserted.addAll(level);
+        }
+
+        return inserted;
+    }
+
+    /**
+     * Bring the property rows of the written nodes up to date, with one select, one
+     * batch of deletes and one batch of inserts.
+     */
+    protected void writeProperties(Database db, List<PendingNode> written) throws SQLException {
+        if (written.isEmpty()) {
+            return;
+        }
+
+        Set<String> paths = new HashSet<String>();
+        for (PendingNode pNode : written) {
+            paths.add(pNode.node.getPath());
+        }
+
+        Map<String, List<PropertyDTO>> storedProperties = propertyDao.getAllForPaths(db, paths);
+
+        List<PropertyDTO> deletes = new ArrayList<PropertyDTO>();
+        List<PropertyDTO> inserts = new ArrayList<PropertyDTO>();
+
+        for (PendingNode pNode : written) {
+            for (PropertyDTO prop : pNode.properties) {
+                prop.setNodeId(pNode.node.getId());
+            }
+
+            List<PropertyDTO> stored = storedProperties.get(getKey(pNode.node.getPath(), pNode.node.getSub()));
+            if (stored == null) {
+                stored = Collections.emptyList();
+            }
+
+            PropertyDiff diff = new PropertyDiff(stored, pNode.properties, pNode.node.getId());
+            deletes.addAll(diff.getDeletes());
+            inserts.addAll(diff.getInserts());
+            countPropertyRows(diff);
+        }
+
+        if (!deletes.isEmpty()) {
+            propertyDao.removeAll(db, deletes);
+        }
+
+        if (!inserts.isEmpty()) {
+            propertyDao.insertAll(db, inserts);
+            propertyDao.executeBatch(db);
+        }
+    }
+
+    /**
+     * Forget the nodes that were visited since the last flush, used when the update failed
+     */
+    public void discard() {
+        this.pending.clear();
+    }
+
+    /**
+     * @return the number of visited nodes that did not have to be written
+     */
+    public long getUnchangedNodes() {
+        return nNodesUnchanged;
+    }
+
+    /**
+     * @return the number of nodes waiting to be written
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * @return the key of a node, the same as the key of the node id mapping
+     */
+    protected String getKey(String path, String sub) {
+        return path + "/" + sub;
+    }
+}
@@ -13,7 +13,9 @@ import java.sql.Connection;
 /**
  * @author Marnix Cook
  *
- * Visitor that deletes nodes that it is passed in the relation database.
+ * Visitor that deletes nodes that it is passed in the relation database. The
+ * nodes underneath it are deleted as well, the path queue relies on this when
+ * it drops the operations that were queued for a deleted subtree.
  */
 public class DeleteSynchVisitor implements SynchVisitor<String> {
 
@@ -40,8 +42,8 @@ public class DeleteSynchVisitor implements SynchVisitor<String> {
         boolean autoCommitValue = dbConn.getAutoCommit();
         dbConn.setAutoCommit(false);
 
-        nodeDao.removeAll(db, path);
-        propertyDao.removeAll(db, path);
+        nodeDao.removeSubtree(db, path);
+        propertyDao.removeSubtree(db, path);
 
         txMgr.commit(dbConn);
         dbConn.setAutoCommit(autoCommitValue);
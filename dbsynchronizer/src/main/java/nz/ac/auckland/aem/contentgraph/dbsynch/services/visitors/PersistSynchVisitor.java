@@ -4,10 +4,14 @@ import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.NodeDAO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.PropertyDAO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ContentHash;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.NodeIdMapping;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeTransform;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.PropertyDiff;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.TransactionManager;
 import nz.ac.auckland.aem.contentgraph.utils.PerformanceReport;
+import nz.ac.auckland.aem.contentgraph.utils.StripedCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +43,28 @@ public class PersistSynchVisitor implements SynchVisitor<Node> {
     private NodeTransform trans = getNodeTransformInstance();
     private PerformanceReport report = PerformanceReport.getInstance();
 
+    /**
+     * Number of property rows written, removed and left alone since creation
+     */
+    private StripedCounter nPropertiesInserted = new StripedCounter();
+    private StripedCounter nPropertiesDeleted = new StripedCounter();
+    private StripedCounter nPropertiesUnchanged = new StripedCounter();
+
+    /**
+     * Initialize a visitor that uses the shared path to id mapping
+     */
+    public PersistSynchVisitor() {
+    }
+
+    /**
+     * Initialize a visitor that looks node identifiers up in <code>mapping</code>
+     *
+     * @param mapping the path to id mapping of the current run
+     */
+    public PersistSynchVisitor(NodeIdMapping mapping) {
+        this.nodeDao = getNodeDAOInstance(mapping);
+    }
+
     /**
      * Called when a node is visited.
      *
@@ -50,37 +76,84 @@ public class PersistSynchVisitor implements SynchVisitor<Node> {
 
         LOG.debug("Visiting node to persist: {}", jcrNode.getPath());
 
-        Long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         NodeDTO nodeDto = trans.getNodeDTO(jcrNode);
-        report.addToCategory("getNodeDTO", System.currentTimeMillis() - start);
+        report.addNanos("getNodeDTO", System.nanoTime() - start);
 
-        start = System.currentTimeMillis();
+        start = System.nanoTime();
         List<PropertyDTO> propertyDtos = trans.getPropertyDTOList(jcrNode);
-        report.addToCategory("getPropertyDTOList", System.currentTimeMillis() - start);
+        report.addNanos("getPropertyDTOList", System.nanoTime() - start);
 
+        nodeDto.setHash(ContentHash.of(nodeDto, propertyDtos));
+
+        persist(db, nodeDto, propertyDtos);
+    }
+
+    /**
+     * Write the node and its properties
+     *
+     * @param db the database to write to
+     * @param nodeDto the node to write
+     * @param propertyDtos the properties of the node
+     */
+    protected void persist(Database db, NodeDTO nodeDto, List<PropertyDTO> propertyDtos) throws Exception {
         Long nodeId = insert(db, nodeDto);
         handleProperties(db, nodeDto, propertyDtos, nodeId);
     }
 
+    /**
+     * Bring the property rows of the node up to date. The stored rows are compared with
+     * <code>propertyDtos</code>, only the rows that differ are deleted or inserted.
+     */
     protected void handleProperties(Database db, NodeDTO node, List<PropertyDTO> propertyDtos, Long nodeId) throws SQLException, RepositoryException {
         Long start;
-        start = System.currentTimeMillis();
-        propertyDao.removeAll(db, node.getPath(), node.getSub());
+        start = System.nanoTime();
 
         for (PropertyDTO prop : propertyDtos) {
             prop.setNodeId(nodeId);
         }
 
-        propertyDao.insertAll(db, propertyDtos);
-        propertyDao.executeBatch(db);
-        report.addToCategory("propertyDao.insert", System.currentTimeMillis() - start);
+        List<PropertyDTO> stored = propertyDao.getAll(db, node.getPath(), node.getSub());
+        PropertyDiff diff = new PropertyDiff(stored, propertyDtos, nodeId);
+
+        if (!diff.getDeletes().isEmpty()) {
+            propertyDao.removeAll(db, diff.getDeletes());
+        }
+
+        if (!diff.getInserts().isEmpty()) {
+            propertyDao.insertAll(db, diff.getInserts());
+            propertyDao.executeBatch(db);
+        }
+
+        countPropertyRows(diff);
+
+        report.addNanos("propertyDao.insert", System.nanoTime() - start);
+    }
+
+    /**
+     * Add the rows of <code>diff</code> to the property row counters
+     */
+    protected void countPropertyRows(PropertyDiff diff) {
+        nPropertiesInserted.add(diff.getInserts().size());
+        nPropertiesDeleted.add(diff.getDeletes().size());
+        nPropertiesUnchanged.add(diff.getUnchanged());
+    }
+
+    /**
+     * @return a summary of the property rows that were written and left untouched
+     */
+    public String getPropertyRowSummary() {
+        return String.format(
+            "%d property rows inserted, %d deleted, %d left untouched",
+            nPropertiesInserted.sum(), nPropertiesDeleted.sum(), nPropertiesUnchanged.sum()
+        );
     }
 
 
     protected Long insert(Database db, NodeDTO nodeDto) throws SQLException {
-        Long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         Long nodeId = nodeDao.insert(db, nodeDto);
-        report.addToCategory("persist.insert", System.currentTimeMillis() - start);
+        report.addNanos("persist.insert", System.nanoTime() - start);
         return nodeId;
     }
 
@@ -104,5 +177,9 @@ public class PersistSynchVisitor implements SynchVisitor<Node> {
         return new NodeDAO();
     }
 
+    protected NodeDAO getNodeDAOInstance(NodeIdMapping mapping) {
+        return new NodeDAO(mapping);
+    }
+
 
 }
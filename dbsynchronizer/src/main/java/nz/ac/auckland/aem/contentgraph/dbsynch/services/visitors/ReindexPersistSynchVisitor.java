@@ -5,6 +5,8 @@ import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.PropertyDAO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
 import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.NodeIdMapping;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeIdAllocator;
 import nz.ac.auckland.aem.contentgraph.utils.PerformanceReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +21,9 @@ import java.util.concurrent.BlockingQueue;
  * @author Marnix Cook
  *
  * Reindex version of the persist synch visitor which uses the 'forceInsert' method.
+ *
+ * When it is given a node queue and an identifier allocator, nodes are not inserted
+ * one by one but get their identifier up front and are queued for the node consumers.
  */
 public class ReindexPersistSynchVisitor extends PersistSynchVisitor {
 
@@ -30,7 +35,7 @@ public class ReindexPersistSynchVisitor extends PersistSynchVisitor {
     /**
      * Node DAO instance
      */
-    private NodeDAO nodeDao = getNodeDAOInstance();
+    private NodeDAO nodeDao;
 
     /**
      * Property DAO instance
@@ -42,16 +47,48 @@ public class ReindexPersistSynchVisitor extends PersistSynchVisitor {
      */
     private BlockingQueue<List<PropertyDTO>> propQueue;
 
+    /**
+     * Queue in which nodes are stored when inserting in bulk
+     */
+    private BlockingQueue<NodeDTO> nodeQueue;
+
+    /**
+     * Hands out node identifiers when inserting in bulk
+     */
+    private NodeIdAllocator allocator;
+
     /**
      * Initialize data-members
      *
      * @param propQueue the property queue in which the property dtos are stored
      *                  so that consumers can pick them up and handle them.
+     * @param mapping the path to id mapping of the reindex
      */
-    public ReindexPersistSynchVisitor(BlockingQueue<List<PropertyDTO>> propQueue) {
+    public ReindexPersistSynchVisitor(BlockingQueue<List<PropertyDTO>> propQueue, NodeIdMapping mapping) {
+        super(mapping);
+        this.nodeDao = getNodeDAOInstance(mapping);
         this.propQueue = propQueue;
     }
 
+    /**
+     * Initialize data-members for bulk node insertion
+     *
+     * @param propQueue the property queue in which the property dtos are stored
+     * @param nodeQueue the node queue in which the node dtos are stored
+     * @param allocator hands out the node identifiers
+     * @param mapping the path to id mapping of the reindex
+     */
+    public ReindexPersistSynchVisitor(
+            BlockingQueue<List<PropertyDTO>> propQueue,
+            BlockingQueue<NodeDTO> nodeQueue,
+            NodeIdAllocator allocator,
+            NodeIdMapping mapping) {
+
+        this(propQueue, mapping);
+        this.nodeQueue = nodeQueue;
+        this.allocator = allocator;
+    }
+
     /**
      * Override the insert method so that we can use the `forceInsert` method.
      *
@@ -63,16 +100,36 @@ public class ReindexPersistSynchVisitor extends PersistSynchVisitor {
      */
     @Override
     protected Long insert(Database db, NodeDTO nodeDto) throws SQLException {
-        Long start = System.currentTimeMillis();
-        Long nodeId = nodeDao.forceInsert(db, nodeDto);
+        long start = System.nanoTime();
+        Long nodeId;
+
+        if (this.allocator == null) {
+            nodeId = nodeDao.forceInsert(db, nodeDto);
+        } else {
+            nodeId = nodeDao.assignId(db, nodeDto, this.allocator);
+            queueNode(nodeDto);
+        }
 
         PerformanceReport
                 .getInstance()
-                .addToCategory("persist.insert", System.currentTimeMillis() - start);
+                .addNanos("persist.insert", System.nanoTime() - start);
 
         return nodeId;
     }
 
+    /**
+     * Hand the node to the node consumers
+     */
+    protected void queueNode(NodeDTO nodeDto) throws SQLException {
+        try {
+            this.nodeQueue.put(nodeDto);
+        }
+        catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while queueing node `" + nodeDto.getPath() + "`");
+        }
+    }
+
     /**
      * Override the handle properties method because we know that there are no existing
      * properties
@@ -87,7 +144,7 @@ public class ReindexPersistSynchVisitor extends PersistSynchVisitor {
      */
     @Override
     protected void handleProperties(Database db, NodeDTO node, List<PropertyDTO> propertyDtos, Long nodeId) throws SQLException, RepositoryException {
-        Long start = System.currentTimeMillis();
+        long start = System.nanoTime();
 
         for (PropertyDTO prop : propertyDtos) {
             prop.setNodeId(nodeId);
@@ -102,7 +159,7 @@ public class ReindexPersistSynchVisitor extends PersistSynchVisitor {
 
         PerformanceReport
                 .getInstance()
-                .addToCategory("propertyDao.insert", System.currentTimeMillis() - start);
+                .addNanos("propertyDao.insert", System.nanoTime() - start);
     }
 
 }
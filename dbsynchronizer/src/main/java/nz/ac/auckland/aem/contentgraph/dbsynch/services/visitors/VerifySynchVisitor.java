@@ -0,0 +1,88 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.visitors;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.NodeDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.NodeIdMapping;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.operations.NodeHashIndex;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Marnix Cook
+ *
+ * Persist visitor of a verify reindex. The content hash of each visited node is
+ * compared with the hash stored in the Node table, only nodes that are new or whose
+ * hash differs are written. Changed nodes keep their identifier, so the rows of their
+ * children stay valid.
+ */
+public class VerifySynchVisitor extends PersistSynchVisitor {
+
+    /**
+     * Node DAO instance
+     */
+    private NodeDAO nodeDao;
+
+    /**
+     * The stored identifiers and hashes
+     */
+    private NodeHashIndex index;
+
+    private AtomicInteger nUnchanged = new AtomicInteger();
+    private AtomicInteger nChanged = new AtomicInteger();
+    private AtomicInteger nAdded = new AtomicInteger();
+
+    /**
+     * Initialize data-members
+     *
+     * @param index the identifiers and hashes stored before the traversal started
+     * @param mapping the path to id mapping of the verify run
+     */
+    public VerifySynchVisitor(NodeHashIndex index, NodeIdMapping mapping) {
+        super(mapping);
+        this.nodeDao = getNodeDAOInstance(mapping);
+        this.index = index;
+    }
+
+    /**
+     * Skip the node when its hash did not change, otherwise write it like the
+     * periodic update does.
+     */
+    @Override
+    protected void persist(Database db, NodeDTO nodeDto, List<PropertyDTO> propertyDtos) throws Exception {
+        NodeHashIndex.Entry stored = this.index.get(nodeDto.getPath(), nodeDto.getSub());
+
+        if (stored == null) {
+            nAdded.incrementAndGet();
+            super.persist(db, nodeDto, propertyDtos);
+            return;
+        }
+
+        stored.markSeen();
+
+        // children that did change look their parent up in the mapping, the existing
+        // row is found there as well so it is updated in place
+        nodeDao.setNodeIdForPath(nodeDto.getPath(), nodeDto.getSub(), stored.getId());
+
+        if (stored.matches(nodeDto.getHash())) {
+            nUnchanged.incrementAndGet();
+        } else {
+            nChanged.incrementAndGet();
+            super.persist(db, nodeDto, propertyDtos);
+        }
+    }
+
+    public int getUnchanged() {
+        return nUnchanged.get();
+    }
+
+    public int getChanged() {
+        return nChanged.get();
+    }
+
+    public int getAdded() {
+        return nAdded.get();
+    }
+}
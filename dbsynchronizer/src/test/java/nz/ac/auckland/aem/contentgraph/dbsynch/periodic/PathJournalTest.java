@@ -0,0 +1,153 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.periodic;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Delete;
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Resync;
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Update;
+
+public class PathJournalTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("pathjournal").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    public void testSegmentRoundTrip() throws Exception {
+        PathJournal journal = new PathJournal(this.directory);
+        PathJournal.Segment segment = journal.acquireSegment(PathJournal.HEADER_SIZE + 64);
+
+        assertTrue(segment.append(new PathElement("/content/site/ünïcode", Update)));
+        assertTrue(segment.append(new PathElement("/content/site/page", Delete)));
+        assertFalse(segment.append(new PathElement("/content/site/a-path-that-does-not-fit-anymore", Update)));
+        segment.writeOverflowRoot("/content/site");
+
+        assertEquals(
+            Arrays.asList(
+                new PathElement("/content/site/ünïcode", Update),
+                new PathElement("/content/site/page", Delete),
+                new PathElement("/content/site", Resync)
+            ),
+            journal.read(segment.getFile())
+        );
+
+        // new journals number their segments after the existing ones
+        PathJournal.Segment next = new PathJournal(this.directory).acquireSegment(PathJournal.HEADER_SIZE);
+        assertEquals(Arrays.asList(segment.getFile(), next.getFile()), journal.getSegmentFiles());
+        assertTrue(journal.read(next.getFile()).isEmpty());
+    }
+
+    public void testQueueIsReplayed() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.openJournal(this.directory);
+        queue.add("/content/site/page");
+        queue.delete("/content/site/old");
+
+        // a new instance, as after a restart
+        PathQueueImpl restarted = new PathQueueImpl();
+        restarted.openJournal(this.directory);
+        assertEquals(1, this.directory.listFiles().length);
+
+        List<PathElement> elements = new ArrayList<PathElement>(restarted.flushAndGet());
+        assertEquals(
+            Arrays.asList(new PathElement("/content/site/old", Delete), new PathElement("/content/site/page", Update)),
+            elements
+        );
+
+        // the flushed segment is cleared for reuse by the checkpoint, the segment of the new batch is empty
+        assertEquals(2, this.directory.listFiles().length);
+        restarted.checkpoint();
+        for (File file : this.directory.listFiles()) {
+            assertTrue(new PathJournal(this.directory).read(file).isEmpty());
+        }
+    }
+
+    public void testReleasedSegmentsAreReused() throws Exception {
+        PathJournal journal = new PathJournal(this.directory);
+        PathJournal.Segment first = journal.acquireSegment(PathJournal.HEADER_SIZE + 64);
+        first.append(new PathElement("/content/site/first", Update));
+        first.writeOverflowRoot("/content/site");
+        PathJournal.Segment second = journal.acquireSegment(PathJournal.HEADER_SIZE + 64);
+        second.append(new PathElement("/content/site/second", Update));
+
+        journal.releaseSegment(first);
+        assertTrue(journal.read(first.getFile()).isEmpty());
+
+        // the file of the first segment now holds the newest batch
+        PathJournal.Segment third = journal.acquireSegment(PathJournal.HEADER_SIZE + 64);
+        assertSame(first, third);
+        third.append(new PathElement("/content/site/third", Delete));
+
+        assertEquals(Arrays.asList(second.getFile(), third.getFile()), journal.getSegmentFiles());
+        assertEquals(Arrays.asList(new PathElement("/content/site/third", Delete)), journal.read(third.getFile()));
+    }
+
+    public void testSegmentsBeyondTheFreeOnesAreDeleted() throws Exception {
+        PathJournal journal = new PathJournal(this.directory);
+        List<PathJournal.Segment> segments = new ArrayList<PathJournal.Segment>();
+        for (int idx = 0; idx < PathJournal.MAX_FREE_SEGMENTS + 2; ++idx) {
+            segments.add(journal.acquireSegment(PathJournal.HEADER_SIZE));
+        }
+        for (PathJournal.Segment segment : segments) {
+            journal.releaseSegment(segment);
+        }
+        assertEquals(PathJournal.MAX_FREE_SEGMENTS, this.directory.listFiles().length);
+
+        journal.close();
+        assertEquals(0, this.directory.listFiles().length);
+    }
+
+    public void testUncommittedFlushesAreHandedOutAgain() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.openJournal(this.directory);
+
+        queue.delete("/content/site/old");
+        assertEquals(Arrays.asList(new PathElement("/content/site/old", Delete)), new ArrayList<PathElement>(queue.flushAndGet()));
+
+        // the periodic update failed, the delete comes again with the newer operations
+        queue.add("/content/site/old/page");
+        queue.add("/content/site/new");
+        assertEquals(
+            Arrays.asList(
+                new PathElement("/content/site/old", Delete),
+                new PathElement("/content/site/new", Update),
+                new PathElement("/content/site/old/page", Update)
+            ),
+            new ArrayList<PathElement>(queue.flushAndGet())
+        );
+
+        // the checkpoint releases the segments of both flushes, only the empty ones are left
+        queue.checkpoint();
+        for (File file : this.directory.listFiles()) {
+            assertTrue(new PathJournal(this.directory).read(file).isEmpty());
+        }
+        assertTrue(queue.flushAndGet().isEmpty());
+
+        // a flush every few seconds doesn't leave files behind
+        for (int idx = 0; idx < 10; ++idx) {
+            queue.add("/content/site/page" + idx);
+            queue.flushAndGet();
+            queue.checkpoint();
+        }
+        assertTrue(this.directory.listFiles().length <= PathJournal.MAX_FREE_SEGMENTS + 1);
+    }
+}
@@ -0,0 +1,204 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.periodic;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Delete;
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Resync;
+import static nz.ac.auckland.aem.contentgraph.dbsynch.periodic.PathElement.PathOperation.Update;
+
+public class PathQueueImplTest extends TestCase {
+
+    public void testDescendantUpdatesAreMerged() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.add("/content/site/page/jcr:content/par/text");
+        queue.add("/content/site/page/jcr:content");
+        queue.add("/content/site/page");
+        queue.add("/content/site/page/jcr:content/par/image");
+        queue.add("/content/site/page");
+        queue.add("/content/site/page-2");
+
+        List<PathElement> elements = new ArrayList<PathElement>(queue.flushAndGet());
+        assertEquals(2, elements.size());
+
+        PathElement page = elements.get(0);
+        assertEquals("/content/site/page", page.getPath());
+        assertEquals(Update, page.getOp());
+        assertEquals(
+            Arrays.asList(
+                "/content/site/page/jcr:content",
+                "/content/site/page/jcr:content/par/image",
+                "/content/site/page/jcr:content/par/text"
+            ),
+            new ArrayList<String>(page.getMergedPaths())
+        );
+
+        assertEquals("/content/site/page-2", elements.get(1).getPath());
+        assertTrue(elements.get(1).getMergedPaths().isEmpty());
+
+        assertEquals(6, queue.getReceivedCount());
+        assertEquals(2, queue.getFlushedCount());
+        assertEquals(4, queue.getMergedCount());
+        assertEquals(0, queue.getSupersededCount());
+        queue.checkpoint();
+        assertTrue(queue.flushAndGet().isEmpty());
+    }
+
+    public void testUncommittedFlushKeepsMergedPaths() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.add("/content/site/page");
+        queue.add("/content/site/page/jcr:content/par/text");
+        assertEquals(1, queue.flushAndGet().size());
+
+        // the periodic update failed, so the queue was not checkpointed
+        queue.add("/content/site/other");
+
+        List<PathElement> elements = new ArrayList<PathElement>(queue.flushAndGet());
+        assertEquals(
+            Arrays.asList(new PathElement("/content/site/other", Update), new PathElement("/content/site/page", Update)),
+            elements
+        );
+        assertEquals(
+            Arrays.asList("/content/site/page/jcr:content/par/text"),
+            new ArrayList<String>(elements.get(1).getMergedPaths())
+        );
+    }
+
+    public void testDeleteSwallowsSubtree() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.add("/content/site");
+        queue.add("/content/site/page/jcr:content");
+        queue.add("/content/site/other");
+        queue.delete("/content/site/page/child");
+        queue.delete("/content/site/page");
+        queue.delete("/content/site/page/jcr:content");
+
+        List<PathElement> elements = new ArrayList<PathElement>(queue.flushAndGet());
+        assertEquals(2, elements.size());
+
+        assertEquals(new PathElement("/content/site/page", Delete), elements.get(0));
+        assertEquals(new PathElement("/content/site", Update), elements.get(1));
+        assertEquals(Arrays.asList("/content/site/other"), new ArrayList<String>(elements.get(1).getMergedPaths()));
+
+        // the merged jcr:content update and both deletes below the page
+        assertEquals(3, queue.getSupersededCount());
+    }
+
+    public void testUpdateAfterDeleteIsKept() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.add("/content/site/page");
+        queue.delete("/content/site/page");
+        queue.add("/content/site/page");
+
+        Set<PathElement> elements = queue.flushAndGet();
+        assertEquals(
+            Arrays.asList(new PathElement("/content/site/page", Delete), new PathElement("/content/site/page", Update)),
+            new ArrayList<PathElement>(elements)
+        );
+        assertTrue(elements.contains(new PathElement("/content/site/page", Update)));
+    }
+
+    public void testSiblingPrefixIsNotADescendant() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.add("/content/site-2/page");
+        queue.add("/content/site");
+        queue.delete("/content/site");
+
+        List<PathElement> elements = new ArrayList<PathElement>(queue.flushAndGet());
+        assertEquals(
+            Arrays.asList(new PathElement("/content/site", Delete), new PathElement("/content/site-2/page", Update)),
+            elements
+        );
+    }
+
+    public void testOverflowBecomesResync() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.setCapacity(3);
+        queue.add("/content/other");
+        queue.add("/content/site/a");
+        queue.add("/content/site/b");
+        queue.add("/content/site/c/jcr:content");
+        queue.delete("/content/site/d");
+
+        List<PathElement> elements = new ArrayList<PathElement>(queue.flushAndGet());
+        assertEquals(
+            Arrays.asList(new PathElement("/content/other", Update), new PathElement("/content/site", Resync)),
+            elements
+        );
+        assertEquals(2, queue.getOverflowCount());
+        queue.checkpoint();
+
+        // the next batch starts empty
+        queue.add("/content/site/a");
+        assertEquals(
+            Arrays.asList(new PathElement("/content/site/a", Update)),
+            new ArrayList<PathElement>(queue.flushAndGet())
+        );
+    }
+
+    public void testOverflowRootIsAPage() throws Exception {
+        PathQueueImpl queue = new PathQueueImpl();
+        queue.setCapacity(1);
+        queue.add("/content/other");
+        queue.add("/content/site/page/jcr:content/par/text");
+        queue.add("/content/site/page/jcr:content/par/image");
+
+        List<PathElement> elements = new ArrayList<PathElement>(queue.flushAndGet());
+        assertEquals(new PathElement("/content/site/page", Resync), elements.get(elements.size() - 1));
+    }
+
+    public void testCommonAncestor() throws Exception {
+        assertEquals("/content/site", PathElement.getCommonAncestor("/content/site/a", "/content/site/b/c"));
+        assertEquals("/content", PathElement.getCommonAncestor("/content/site", "/content/site-2"));
+        assertEquals("/", PathElement.getCommonAncestor("/content", "/etc"));
+        assertEquals("/content/site", PathElement.getCommonAncestor("/content/site", "/content/site/a"));
+    }
+
+    public void testConcurrentAddsAreNotLost() throws Exception {
+        final PathQueueImpl queue = new PathQueueImpl();
+        final int nPaths = 5000;
+        queue.setCapacity(4 * nPaths);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int idx = 0; idx < 4; ++idx) {
+            final int threadIdx = idx;
+            threads.add(new Thread() {
+
+                @Override
+                public void run() {
+                    for (int pathIdx = 0; pathIdx < nPaths; ++pathIdx) {
+                        queue.add("/content/thread-" + threadIdx + "/page-" + pathIdx);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        Set<String> flushed = new HashSet<String>();
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            for (PathElement element : queue.flushAndGet()) {
+                assertTrue(flushed.add(element.getPath()));
+            }
+            queue.checkpoint();
+        }
+        for (PathElement element : queue.flushAndGet()) {
+            assertTrue(flushed.add(element.getPath()));
+        }
+
+        assertEquals(4 * nPaths, flushed.size());
+        assertEquals(0, queue.getOverflowCount());
+    }
+}
@@ -0,0 +1,147 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.dao;
+
+import junit.framework.TestCase;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.FakeConnection;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.NodeIdMapping;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.PathIdCache;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class SubtreeDeleteTest extends TestCase {
+
+    private static final String PAGE = "/content/site/page";
+
+    private static final String[] SUBS_INSIDE = {
+        "jcr:content/par", "jcr:content/par/text", "jcr:content/par/text/link"
+    };
+
+    private static final String[] SUBS_OUTSIDE = {
+        "", "jcr:content", "jcr:content/par2", "jcr:content/par2/text", "jcr:content/parx"
+    };
+
+    public void testNodesBelowJcrContentAreMatchedOnSub() throws Exception {
+        FakeConnection conn = new FakeConnection();
+        new NodeDAO().removeAll(new Database(conn.getConnection()), PAGE + "/jcr:content/par");
+
+        assertDeletesSubtree(conn);
+    }
+
+    public void testPropertiesBelowJcrContentAreMatchedOnSub() throws Exception {
+        FakeConnection conn = new FakeConnection();
+        new PropertyDAO().removeAll(new Database(conn.getConnection()), PAGE + "/jcr:content/par");
+
+        assertDeletesSubtree(conn);
+    }
+
+    public void testSubtreeRootInsideJcrContent() throws Exception {
+        FakeConnection nodeConn = new FakeConnection();
+        new NodeDAO().removeSubtree(new Database(nodeConn.getConnection()), PAGE + "/jcr:content/par");
+        assertDeletesSubtree(nodeConn);
+
+        FakeConnection propertyConn = new FakeConnection();
+        new PropertyDAO().removeSubtree(new Database(propertyConn.getConnection()), PAGE + "/jcr:content/par");
+        assertDeletesSubtree(propertyConn);
+    }
+
+    public void testLikeWildcardsInTheSubAreEscaped() throws Exception {
+        FakeConnection conn = new FakeConnection();
+        new NodeDAO().removeAll(new Database(conn.getConnection()), PAGE + "/jcr:content/par_1");
+
+        String pattern = (String) conn.getExecutedParameters().get(0).get(2);
+        assertTrue(like("jcr:content/par_1/text", pattern));
+        assertFalse(like("jcr:content/parx1/text", pattern));
+    }
+
+    public void testDeletedNodeIsInsertedAgain() throws Exception {
+        NodeIdMapping mapping = new PathIdCache(PathIdCache.UNBOUNDED);
+        mapping.put(PAGE, "", 10);
+        mapping.put(PAGE, "jcr:content", 11);
+        mapping.put(PAGE, "jcr:content/par", 12);
+        mapping.put(PAGE + "/child", "", 13);
+        mapping.put(PAGE + "-2", "", 14);
+
+        NodeDAO nodeDao = new NodeDAO(mapping);
+        FakeConnection conn = new FakeConnection();
+        Database db = new Database(conn.getConnection());
+
+        nodeDao.removeSubtree(db, PAGE);
+
+        assertEquals(NodeIdMapping.NOT_FOUND, mapping.get(PAGE, ""));
+        assertEquals(NodeIdMapping.NOT_FOUND, mapping.get(PAGE, "jcr:content/par"));
+        assertEquals(NodeIdMapping.NOT_FOUND, mapping.get(PAGE + "/child", ""));
+        assertEquals(14, mapping.get(PAGE + "-2", ""));
+
+        // re-created at the same path, the node gets a new row instead of updating the deleted one
+        nodeDao.insert(db, node(PAGE, ""));
+
+        String lastSql = conn.getExecutedSql().get(conn.getExecutedSql().size() - 1);
+        assertTrue(lastSql, lastSql.startsWith("INSERT"));
+    }
+
+    public void testDeleteInsideJcrContentKeepsThePage() throws Exception {
+        NodeIdMapping mapping = new PathIdCache(PathIdCache.UNBOUNDED);
+        mapping.put(PAGE, "", 10);
+        mapping.put(PAGE, "jcr:content", 11);
+        mapping.put(PAGE, "jcr:content/par", 12);
+        mapping.put(PAGE, "jcr:content/par/text", 13);
+        mapping.put(PAGE, "jcr:content/par2", 14);
+
+        new NodeDAO(mapping).removeAll(new Database(new FakeConnection().getConnection()), PAGE + "/jcr:content/par");
+
+        assertEquals(10, mapping.get(PAGE, ""));
+        assertEquals(11, mapping.get(PAGE, "jcr:content"));
+        assertEquals(NodeIdMapping.NOT_FOUND, mapping.get(PAGE, "jcr:content/par"));
+        assertEquals(NodeIdMapping.NOT_FOUND, mapping.get(PAGE, "jcr:content/par/text"));
+        assertEquals(14, mapping.get(PAGE, "jcr:content/par2"));
+    }
+
+    private NodeDTO node(String path, String sub) {
+        NodeDTO node = new NodeDTO();
+        node.setPath(path);
+        node.setSub(sub);
+        node.setSite("/content/site");
+        node.setTitle("page");
+        return node;
+    }
+
+    /**
+     * The single delete statement matches the rows of the subtree and no others
+     */
+    private void assertDeletesSubtree(FakeConnection conn) {
+        assertEquals(1, conn.getExecutedSql().size());
+        assertTrue(conn.getExecutedSql().get(0).contains("path = ? AND (sub = ? OR sub LIKE ?)"));
+
+        List<Object> params = conn.getExecutedParameters().get(0);
+        assertEquals(PAGE, params.get(0));
+
+        for (String sub : SUBS_INSIDE) {
+            assertTrue(sub, sub.equals(params.get(1)) || like(sub, (String) params.get(2)));
+        }
+        for (String sub : SUBS_OUTSIDE) {
+            assertFalse(sub, sub.equals(params.get(1)) || like(sub, (String) params.get(2)));
+        }
+    }
+
+    /**
+     * @return true if <code>value</code> matches the LIKE <code>pattern</code>, with backslash escapes
+     */
+    private static boolean like(String value, String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int idx = 0; idx < pattern.length(); ++idx) {
+            char chr = pattern.charAt(idx);
+            if (chr == '\\') {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(++idx))));
+            } else if (chr == '%') {
+                regex.append(".*");
+            } else if (chr == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(chr)));
+            }
+        }
+        return value.matches(regex.toString());
+    }
+}
@@ -0,0 +1,157 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import junit.framework.TestCase;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConnectionPoolTest extends TestCase {
+
+    public void testClosingTheProxyReturnsTheConnection() throws Exception {
+        TestPool pool = new TestPool(2, 300, 30, 1);
+
+        Connection conn = pool.borrow();
+        assertEquals(1, pool.getActive());
+        conn.close();
+
+        assertTrue(conn.isClosed());
+        assertFalse(pool.opened.get(0).isClosed());
+        assertEquals(0, pool.getActive());
+        assertEquals(1, pool.getIdle());
+
+        try {
+            conn.createStatement();
+            fail("a returned connection can't be used");
+        }
+        catch (SQLException sqlEx) {
+            // expected
+        }
+
+        // the idle connection is handed out again
+        pool.borrow().close();
+        assertEquals(1, pool.getCreated());
+    }
+
+    public void testReleaseIsIdempotent() throws Exception {
+        TestPool pool = new TestPool(1, 300, 30, 0);
+
+        Connection conn = pool.borrow();
+        conn.close();
+        conn.close();
+
+        assertEquals(1, pool.getReturned());
+        assertEquals(0, pool.getActive());
+
+        // a second release would have freed a permit the pool doesn't have
+        Connection first = pool.borrow();
+        try {
+            pool.borrow();
+            fail("the pool holds a single connection");
+        }
+        catch (SQLException sqlEx) {
+            assertEquals(1, pool.getTimeouts());
+        }
+        first.close();
+    }
+
+    public void testPermitIsReleasedWhenOpeningFails() throws Exception {
+        TestPool pool = new TestPool(1, 300, 30, 0);
+        pool.failure = new SQLException("Connection refused", "08001");
+
+        try {
+            pool.borrow();
+            fail("no connection could be opened");
+        }
+        catch (SQLException sqlEx) {
+            assertEquals("08001", sqlEx.getSQLState());
+        }
+        assertEquals(0, pool.getActive());
+
+        pool.failure = null;
+        pool.borrow().close();
+        assertEquals(0, pool.getTimeouts());
+    }
+
+    public void testIdleConnectionsAreEvicted() throws Exception {
+        TestPool pool = new TestPool(2, 0, 30, 1);
+
+        pool.borrow().close();
+        Thread.sleep(5);
+        pool.evictIdle();
+
+        assertEquals(0, pool.getIdle());
+        assertEquals(1, pool.getEvicted());
+        assertTrue(pool.opened.get(0).isClosed());
+    }
+
+    public void testInvalidConnectionsAreReplaced() throws Exception {
+        TestPool pool = new TestPool(2, 300, 0, 1);
+
+        pool.borrow().close();
+        pool.opened.get(0).setValid(false);
+        pool.borrow().close();
+
+        assertEquals(2, pool.getCreated());
+        assertEquals(1, pool.getInvalid());
+        assertTrue(pool.opened.get(0).isClosed());
+    }
+
+    public void testUncommittedWorkIsRolledBackOnReturn() throws Exception {
+        TestPool pool = new TestPool(1, 300, 30, 1);
+
+        Connection conn = pool.borrow();
+        conn.setAutoCommit(false);
+        conn.prepareStatement("DELETE FROM Node WHERE path = ?").executeUpdate();
+        conn.close();
+
+        FakeConnection physical = pool.opened.get(0);
+        assertEquals(1, physical.getRollbackCount());
+        assertTrue(physical.isAutoCommit());
+        assertFalse(physical.isClosed());
+    }
+
+    public void testClosedPoolClosesReturnedConnections() throws Exception {
+        TestPool pool = new TestPool(2, 300, 30, 1);
+
+        Connection conn = pool.borrow();
+        pool.close();
+        conn.close();
+
+        assertTrue(pool.opened.get(0).isClosed());
+        assertEquals(0, pool.getIdle());
+        try {
+            pool.borrow();
+            fail("the pool has been closed");
+        }
+        catch (SQLException sqlEx) {
+            // expected
+        }
+    }
+
+    /**
+     * Pool that opens fake connections
+     */
+    private static class TestPool extends ConnectionPool {
+
+        private List<FakeConnection> opened = new ArrayList<FakeConnection>();
+        private SQLException failure;
+
+        private TestPool(int maxSize, int maxIdleSeconds, int validationIntervalSeconds, int borrowTimeoutSeconds) {
+            super(new ConnectionInfo("jdbc:mysql://localhost/test", "test", "test"),
+                  maxSize, maxIdleSeconds, validationIntervalSeconds, borrowTimeoutSeconds);
+        }
+
+        @Override
+        protected Connection openConnection() throws SQLException {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+
+            FakeConnection conn = new FakeConnection();
+            this.opened.add(conn);
+            return conn.getConnection();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import junit.framework.TestCase;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+
+import java.util.Arrays;
+
+public class ContentHashTest extends TestCase {
+
+    public void testPropertyOrderDoesNotMatter() throws Exception {
+        NodeDTO node = node("Title");
+
+        assertEquals(
+            ContentHash.of(node, Arrays.asList(property("a", "1"), property("b", "2"))),
+            ContentHash.of(node, Arrays.asList(property("b", "2"), property("a", "1")))
+        );
+    }
+
+    public void testChangesAreDetected() throws Exception {
+        long hash = ContentHash.of(node("Title"), Arrays.asList(property("a", "1")));
+
+        assertFalse(hash == ContentHash.of(node("Other title"), Arrays.asList(property("a", "1"))));
+        assertFalse(hash == ContentHash.of(node("Title"), Arrays.asList(property("a", "2"))));
+        assertFalse(hash == ContentHash.of(node("Title"), Arrays.asList(property("a", "1"), property("b", null))));
+
+        // a value moving between fields is a change as well
+        assertFalse(
+            ContentHash.of(node("Title"), Arrays.asList(property("ab", "c"))) ==
+            ContentHash.of(node("Title"), Arrays.asList(property("a", "bc")))
+        );
+    }
+
+    protected NodeDTO node(String title) {
+        NodeDTO node = new NodeDTO();
+        node.setPath("/content/site");
+        node.setSub("jcr:content");
+        node.setTitle(title);
+        return node;
+    }
+
+    protected PropertyDTO property(String name, String value) {
+        PropertyDTO property = new PropertyDTO();
+        property.setName(name);
+        property.setValue(value);
+        return property;
+    }
+}
@@ -0,0 +1,221 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Marnix Cook
+ *
+ * A JDBC connection without a database for tests. It keeps its closed, valid and
+ * auto-commit state, counts commits and rollbacks, and records the SQL and parameters of
+ * every statement that is executed. Queries return empty result sets.
+ */
+public class FakeConnection implements InvocationHandler {
+
+    private final Connection proxy;
+
+    private boolean closed;
+    private boolean valid = true;
+    private boolean autoCommit = true;
+    private int nCommits;
+    private int nRollbacks;
+
+    /**
+     * Thrown by every statement when set
+     */
+    private SQLException failure;
+
+    private final List<String> executedSql = new ArrayList<String>();
+    private final List<List<Object>> executedParameters = new ArrayList<List<Object>>();
+
+    public FakeConnection() {
+        this.proxy = (Connection) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class[] { Connection.class }, this
+        );
+    }
+
+    /**
+     * @return the connection
+     */
+    public Connection getConnection() {
+        return proxy;
+    }
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+
+        if (name.equals("close")) {
+            this.closed = true;
+            return null;
+        }
+        if (name.equals("isClosed")) {
+            return this.closed;
+        }
+        if (name.equals("isValid")) {
+            return this.valid && !this.closed;
+        }
+        if (name.equals("getAutoCommit")) {
+            return this.autoCommit;
+        }
+        if (name.equals("setAutoCommit")) {
+            this.autoCommit = (Boolean) args[0];
+            return null;
+        }
+        if (name.equals("commit")) {
+            ++this.nCommits;
+            return null;
+        }
+        if (name.equals("rollback")) {
+            ++this.nRollbacks;
+            return null;
+        }
+        if (name.equals("prepareStatement")) {
+            return createStatement(PreparedStatement.class, (String) args[0]);
+        }
+        if (name.equals("createStatement")) {
+            return createStatement(Statement.class, null);
+        }
+        return defaultValue(target, method, args);
+    }
+
+    /**
+     * @return a statement that records what it executes
+     */
+    protected Object createStatement(Class<?> type, final String preparedSql) {
+        return Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class[] { type },
+            new InvocationHandler() {
+
+                private List<Object> parameters = new ArrayList<Object>();
+
+                @Override
+                public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        int index = (Integer) args[0];
+                        while (parameters.size() < index) {
+                            parameters.add(null);
+                        }
+                        parameters.set(index - 1, name.equals("setNull") ? null : args[1]);
+                        return null;
+                    }
+
+                    if (name.startsWith("execute") || name.equals("addBatch")) {
+                        if (failure != null) {
+                            throw failure;
+                        }
+                        // a batch was recorded row by row as it was added
+                        if (!name.equals("executeBatch")) {
+                            executedSql.add(args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSql);
+                            executedParameters.add(parameters);
+                            parameters = new ArrayList<Object>();
+                        }
+                        return defaultValue(target, method, args);
+                    }
+
+                    return defaultValue(target, method, args);
+                }
+            }
+        );
+    }
+
+    /**
+     * @return the value of a method without behaviour for its return type
+     */
+    protected static Object defaultValue(Object target, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("equals")) {
+            return target == args[0];
+        }
+        if (name.equals("hashCode")) {
+            return System.identityHashCode(target);
+        }
+        if (name.equals("toString")) {
+            return "FakeConnection";
+        }
+
+        Class<?> type = method.getReturnType();
+        if (type == ResultSet.class) {
+            return emptyResultSet();
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == int[].class) {
+            return new int[0];
+        }
+        return null;
+    }
+
+    /**
+     * @return a result set without rows
+     */
+    protected static ResultSet emptyResultSet() {
+        return (ResultSet) Proxy.newProxyInstance(
+            FakeConnection.class.getClassLoader(),
+            new Class[] { ResultSet.class },
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+                    return method.getReturnType() == ResultSet.class ? null : defaultValue(target, method, args);
+                }
+            }
+        );
+    }
+
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    public void setFailure(SQLException failure) {
+        this.failure = failure;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isAutoCommit() {
+        return autoCommit;
+    }
+
+    public int getCommitCount() {
+        return nCommits;
+    }
+
+    public int getRollbackCount() {
+        return nRollbacks;
+    }
+
+    /**
+     * @return the SQL of each executed statement, in order
+     */
+    public List<String> getExecutedSql() {
+        return executedSql;
+    }
+
+    /**
+     * @return the parameters of each executed statement, in order
+     */
+    public List<List<Object>> getExecutedParameters() {
+        return executedParameters;
+    }
+}
@@ -0,0 +1,69 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+/**
+ * @author Marnix Cook
+ *
+ * Compares the heap taken up by the node id mapping of a reindex when it is held in an
+ * unbounded PathIdCache and in a PathDictionary, and the speed of looking up the parents
+ * of all nodes. Not a unit test, run it by hand with a large enough heap:
+ *
+ *   java -Xmx2g ... PathDictionaryBenchmark [nPages]
+ */
+public class PathDictionaryBenchmark {
+
+    private static final int N_SITES = 10;
+
+    private static final String[] SUBS = {
+        "", "jcr:content", "jcr:content/par", "jcr:content/par/text", "jcr:content/par/image", "jcr:content/image"
+    };
+
+    /**
+     * Keeps the results alive so the loops aren't optimised away
+     */
+    private static long sink;
+
+    public static void main(String[] args) {
+        int nPages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        measure("PathIdCache (unbounded)", new PathIdCache(PathIdCache.UNBOUNDED), nPages);
+        measure("PathDictionary", new PathDictionary(), nPages);
+        System.out.println(sink == 42 ? "" : " ");
+    }
+
+    protected static void measure(String label, NodeIdMapping mapping, int nPages) {
+        long before = usedHeap();
+
+        long id = 0;
+        for (int page = 0; page < nPages; ++page) {
+            String path = "/content/site-" + (page % N_SITES) + "/section-" + (page % 97) + "/page-" + page;
+            for (String sub : SUBS) {
+                mapping.put(path, sub, ++id);
+            }
+        }
+
+        long bytes = usedHeap() - before;
+
+        long start = System.nanoTime();
+        for (int page = 0; page < nPages; ++page) {
+            String path = "/content/site-" + (page % N_SITES) + "/section-" + (page % 97) + "/page-" + page;
+            sink += mapping.get(path, "jcr:content/par");
+        }
+        long lookupNanos = System.nanoTime() - start;
+
+        System.out.println(
+            String.format(
+                "%-25s: %d nodes, %.1f MB, %d bytes per node, %.0f ns per lookup",
+                label, mapping.size(), bytes / (1024.0 * 1024.0), bytes / Math.max(1, mapping.size()),
+                lookupNanos / (double) nPages
+            )
+        );
+    }
+
+    protected static long usedHeap() {
+        for (int idx = 0; idx < 3; ++idx) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
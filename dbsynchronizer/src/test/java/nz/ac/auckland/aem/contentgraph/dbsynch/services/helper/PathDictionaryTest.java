@@ -0,0 +1,89 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PathDictionaryTest extends TestCase {
+
+    public void testPathAndSubPathAreDistinct() throws Exception {
+        PathDictionary dictionary = new PathDictionary();
+        dictionary.put("/content/site", "", 1);
+        dictionary.put("/content/site", "jcr:content", 2);
+        dictionary.put("/content/site/jcr:content", "", 3);
+        dictionary.put("/content/site", "jcr:content/par", 4);
+
+        assertEquals(1, dictionary.get("/content/site", ""));
+        assertEquals(2, dictionary.get("/content/site", "jcr:content"));
+        assertEquals(3, dictionary.get("/content/site/jcr:content", ""));
+        assertEquals(4, dictionary.get("/content/site", "jcr:content/par"));
+        assertEquals(4, dictionary.size());
+    }
+
+    public void testUnknownPathsAreNotFound() throws Exception {
+        PathDictionary dictionary = new PathDictionary();
+        dictionary.put("/content/site/page", "", 1);
+
+        // the segments above a node are entries without an identifier
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("/content/site", ""));
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("/content/site/pag", ""));
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("/content/site/page", "jcr:content"));
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("", ""));
+    }
+
+    public void testRemoveSubtree() throws Exception {
+        PathDictionary dictionary = new PathDictionary();
+        dictionary.put("/content/site/page", "", 1);
+        dictionary.put("/content/site/page", "jcr:content", 2);
+        dictionary.put("/content/site/page", "jcr:content/par", 3);
+        dictionary.put("/content/site/page/child", "", 4);
+        dictionary.put("/content/site/page-2", "", 5);
+
+        dictionary.removeSubtree("/content/site/page/jcr:content/par");
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("/content/site/page", "jcr:content/par"));
+        assertEquals(2, dictionary.get("/content/site/page", "jcr:content"));
+
+        dictionary.removeSubtree("/content/site/page");
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("/content/site/page", ""));
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("/content/site/page", "jcr:content"));
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("/content/site/page/child", ""));
+        assertEquals(5, dictionary.get("/content/site/page-2", ""));
+        assertEquals(1, dictionary.size());
+
+        // the entries are reused when the nodes come back
+        dictionary.put("/content/site/page", "", 6);
+        assertEquals(6, dictionary.get("/content/site/page", ""));
+        assertEquals(2, dictionary.size());
+
+        dictionary.remove("/content/site/page", "");
+        assertEquals(NodeIdMapping.NOT_FOUND, dictionary.get("/content/site/page", ""));
+        assertEquals(1, dictionary.size());
+    }
+
+    public void testMatchesHashMapAfterGrowing() throws Exception {
+        PathDictionary dictionary = new PathDictionary();
+        Map<String, Long> expected = new HashMap<String, Long>();
+
+        long id = 0;
+        for (int site = 0; site < 10; ++site) {
+            for (int page = 0; page < 2000; ++page) {
+                String path = "/content/site-" + site + "/page-" + page;
+                String[] subs = { "", "jcr:content", "jcr:content/par", "jcr:content/par/text_" + page };
+                for (String sub : subs) {
+                    dictionary.put(path, sub, ++id);
+                    expected.put(path + "/" + sub, id);
+                }
+            }
+        }
+
+        assertEquals(expected.size(), dictionary.size());
+        for (int site = 0; site < 10; ++site) {
+            for (int page = 0; page < 2000; page += 7) {
+                String path = "/content/site-" + site + "/page-" + page;
+                assertEquals(expected.get(path + "/").longValue(), dictionary.get(path, ""));
+                assertEquals(expected.get(path + "/jcr:content/par").longValue(), dictionary.get(path, "jcr:content/par"));
+            }
+        }
+    }
+}
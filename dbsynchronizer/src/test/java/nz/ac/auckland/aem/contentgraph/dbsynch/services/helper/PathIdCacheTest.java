@@ -0,0 +1,42 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import junit.framework.TestCase;
+
+public class PathIdCacheTest extends TestCase {
+
+    public void testNullIsNotCached() throws Exception {
+        PathIdCache cache = new PathIdCache(PathIdCache.UNBOUNDED);
+        cache.put("/content/missing/", null);
+
+        assertNull(cache.get("/content/missing/"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        // room for a few entries in each segment
+        PathIdCache cache = new PathIdCache(16 * 3 * PathIdCache.weigh("/content/site/page-000/"));
+
+        cache.put("/content/site/", 1L);
+        for (int idx = 0; idx < 1000; ++idx) {
+            // the parent is used by each of its children
+            assertEquals(Long.valueOf(1L), cache.get("/content/site/"));
+            cache.put(String.format("/content/site/page-%03d/", idx), idx + 2L);
+        }
+
+        assertEquals(Long.valueOf(1L), cache.get("/content/site/"));
+        assertNull(cache.get("/content/site/page-000/"));
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.size() < 100);
+    }
+
+    public void testUnboundedNeverEvicts() throws Exception {
+        PathIdCache cache = new PathIdCache(PathIdCache.UNBOUNDED);
+        for (int idx = 0; idx < 10000; ++idx) {
+            cache.put("/content/site/page-" + idx + "/", (long) idx);
+        }
+
+        assertEquals(10000, cache.size());
+        assertEquals(0, cache.getEvictions());
+    }
+}
@@ -0,0 +1,49 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.helper;
+
+import junit.framework.TestCase;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+
+import java.util.Arrays;
+
+public class TsvRowFormatTest extends TestCase {
+
+    public void testEscaping() throws Exception {
+        StringBuilder out = new StringBuilder();
+
+        TsvRowFormat.appendField(out, "tab\there", false);
+        TsvRowFormat.appendField(out, null, false);
+        TsvRowFormat.appendField(out, "back\\slash\nline\r\0", true);
+
+        assertEquals("tab\\there\t\\N\tback\\\\slash\\nline\\r\\0\n", out.toString());
+    }
+
+    public void testRows() throws Exception {
+        NodeDTO node = new NodeDTO();
+        node.setId(12L);
+        node.setPath("/content/site");
+        node.setSub("jcr:content");
+        node.setTitle("Title");
+
+        StringBuilder out = new StringBuilder();
+        new NodeRowFormat().append(node, out);
+        assertEquals("12\t\\N\t\\N\t/content/site\tjcr:content\t\\N\t\\N\tTitle\t\\N\n", out.toString());
+
+        PropertyDTO first = new PropertyDTO();
+        first.setName("jcr:title");
+        first.setValue("Title");
+        first.setNodeId(12L);
+        first.setPath("/content/site");
+        PropertyDTO second = new PropertyDTO();
+        second.setName("hidden");
+        second.setNodeId(12L);
+
+        out.setLength(0);
+        new PropertyRowFormat().append(Arrays.asList(first, second), out);
+        assertEquals(
+            "jcr:title\tTitle\t12\t\\N\t/content/site\n" +
+            "hidden\t\\N\t12\t\\N\t\\N\n",
+            out.toString()
+        );
+    }
+}
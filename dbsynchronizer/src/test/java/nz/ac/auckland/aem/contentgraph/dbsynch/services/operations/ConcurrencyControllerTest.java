@@ -0,0 +1,42 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import junit.framework.TestCase;
+
+public class ConcurrencyControllerTest extends TestCase {
+
+    public void testGrowsWhileTheQueueFillsUp() throws Exception {
+        ConcurrencyController controller = new ConcurrencyController(1, 3);
+
+        assertEquals(3, controller.next(2, 0.9, 1000, 10));
+        assertEquals(3, controller.next(3, 0.9, 1500, 10));
+    }
+
+    public void testShrinksWhileTheQueueIsEmpty() throws Exception {
+        ConcurrencyController controller = new ConcurrencyController(1, 8);
+
+        assertEquals(3, controller.next(4, 0.0, 1000, 10));
+        assertEquals(1, controller.next(1, 0.0, 1000, 10));
+        assertEquals(4, controller.next(4, 0.2, 1000, 10));
+    }
+
+    public void testUndoesAGrowThatDidNotHelp() throws Exception {
+        ConcurrencyController controller = new ConcurrencyController(1, 8);
+
+        assertEquals(3, controller.next(2, 0.9, 1000, 10));
+
+        // the same throughput with slower batches, the database is saturated
+        assertEquals(2, controller.next(3, 0.9, 1010, 15));
+
+        for (int idx = 0; idx < ConcurrencyController.BACKOFF_SAMPLES - 1; ++idx) {
+            assertEquals(2, controller.next(2, 0.9, 1000, 10));
+        }
+        assertEquals(3, controller.next(2, 0.9, 1000, 10));
+    }
+
+    public void testKeepsAGrowThatHelped() throws Exception {
+        ConcurrencyController controller = new ConcurrencyController(1, 8);
+
+        assertEquals(3, controller.next(2, 0.9, 1000, 10));
+        assertEquals(4, controller.next(3, 0.9, 1400, 11));
+    }
+}
@@ -0,0 +1,201 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.NodeDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dao.PropertyDAO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.NodeDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.ConnectionInfo;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.Database;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.JDBCHelper;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.NodeRowFormat;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.helper.PropertyRowFormat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * @author Marnix Cook
+ *
+ * Compares writing a synthetic content tree through the DAOs with streaming it through
+ * `LOAD DATA LOCAL INFILE`. Not a unit test, it needs a MySQL database with the schema
+ * installed and TRUNCATES its Node and Property tables, so only point it at a scratch
+ * database:
+ *
+ *   java ... LoadDataBenchmark jdbc:mysql://localhost/scratch user password [nPages]
+ */
+public class LoadDataBenchmark {
+
+    private static final int N_SITES = 10;
+    private static final int N_PROPERTIES = 12;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: LoadDataBenchmark <jdbc url> <user> <password> [nPages]");
+            System.exit(1);
+        }
+
+        JDBCHelper.loadJdbcDriver();
+
+        ConnectionInfo connInfo = new ConnectionInfo(args[0], args[1], args[2]);
+        int nPages = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+        List<NodeDTO> nodes = new ArrayList<NodeDTO>();
+        List<List<PropertyDTO>> properties = new ArrayList<List<PropertyDTO>>();
+        createTree(nPages, nodes, properties);
+
+        System.out.println(String.format("Synthetic tree: %d nodes, %d properties", nodes.size(), nodes.size() * N_PROPERTIES));
+
+        // run both twice, the first round warms up the JVM and the server
+        for (int round = 1; round <= 2; ++round) {
+            report("DAO inserts, round " + round, nodes.size(), insertWithDAOs(connInfo, nodes, properties));
+            report("LOAD DATA, round " + round, nodes.size(), loadData(connInfo, nodes, properties));
+        }
+    }
+
+    /**
+     * Create sites with pages underneath them, each page with a jcr:content node
+     */
+    protected static void createTree(int nPages, List<NodeDTO> nodes, List<List<PropertyDTO>> properties) {
+        long nextId = 1;
+
+        for (int siteIdx = 0; siteIdx < N_SITES; ++siteIdx) {
+            String sitePath = "/content/site-" + siteIdx;
+            long siteId = nextId;
+            nextId = addNode(nodes, properties, nextId, null, sitePath, "", sitePath);
+
+            for (int pageIdx = 0; pageIdx < nPages / N_SITES; ++pageIdx) {
+                String pagePath = sitePath + "/page-" + pageIdx;
+                long pageId = nextId;
+                nextId = addNode(nodes, properties, nextId, siteId, pagePath, "", sitePath);
+                nextId = addNode(nodes, properties, nextId, pageId, pagePath, "jcr:content", sitePath);
+            }
+        }
+    }
+
+    protected static long addNode(
+            List<NodeDTO> nodes, List<List<PropertyDTO>> properties,
+            long id, Long parentId, String path, String sub, String site) {
+
+        NodeDTO node = new NodeDTO();
+        node.setId(id);
+        node.setParentId(parentId);
+        node.setPath(path);
+        node.setSub(sub);
+        node.setSite(site);
+        node.setResourceType("uoa/components/page");
+        node.setType("cq:Page");
+        node.setTitle("Title of " + path + "\twith a tab");
+        nodes.add(node);
+
+        List<PropertyDTO> nodeProperties = new ArrayList<PropertyDTO>();
+        for (int propIdx = 0; propIdx < N_PROPERTIES; ++propIdx) {
+            PropertyDTO property = new PropertyDTO();
+            property.setNodeId(id);
+            property.setPath(path);
+            property.setSub(sub);
+            property.setName("property" + propIdx);
+            property.setValue("Value " + propIdx + " of " + path);
+            nodeProperties.add(property);
+        }
+        properties.add(nodeProperties);
+
+        return id + 1;
+    }
+
+    /**
+     * @return the number of milliseconds it took to write the tree through the DAOs
+     */
+    protected static long insertWithDAOs(ConnectionInfo connInfo, List<NodeDTO> nodes, List<List<PropertyDTO>> properties) throws SQLException {
+        Database db = truncate(connInfo);
+        try {
+            long start = System.currentTimeMillis();
+
+            new NodeDAO().insertAllWithIds(db, nodes);
+
+            PropertyDAO propertyDAO = new PropertyDAO();
+            for (List<PropertyDTO> nodeProperties : properties) {
+                propertyDAO.insertAll(db, nodeProperties);
+            }
+            propertyDAO.executeBatch(db);
+            db.getConnection().commit();
+
+            return System.currentTimeMillis() - start;
+        }
+        finally {
+            JDBCHelper.closeQuietly(db.getConnection());
+        }
+    }
+
+    /**
+     * @return the number of milliseconds it took to stream the tree through the loaders
+     */
+    protected static long loadData(ConnectionInfo connInfo, List<NodeDTO> nodes, List<List<PropertyDTO>> properties) throws Exception {
+        JDBCHelper.closeQuietly(truncate(connInfo).getConnection());
+
+        BlockingQueue<NodeDTO> nodeQueue = new LinkedBlockingQueue<NodeDTO>();
+        BlockingQueue<List<PropertyDTO>> propQueue = new LinkedBlockingQueue<List<PropertyDTO>>();
+
+        List<LoadDataLoader<?>> loaders = new ArrayList<LoadDataLoader<?>>();
+        loaders.add(new LoadDataLoader<NodeDTO>(open(connInfo), "Node", new NodeRowFormat(), nodeQueue, NodeConsumer.END_OF_NODES));
+        loaders.add(new LoadDataLoader<List<PropertyDTO>>(open(connInfo), "Property", new PropertyRowFormat(), propQueue, PropertyConsumer.END_OF_PROPERTIES));
+
+        long start = System.currentTimeMillis();
+
+        for (LoadDataLoader<?> loader : loaders) {
+            new Thread(loader).start();
+        }
+
+        for (int idx = 0; idx < nodes.size(); ++idx) {
+            nodeQueue.put(nodes.get(idx));
+            propQueue.put(properties.get(idx));
+        }
+
+        for (LoadDataLoader<?> loader : loaders) {
+            loader.endOfInput();
+        }
+
+        try {
+            for (LoadDataLoader<?> loader : loaders) {
+                loader.awaitFinished();
+                if (loader.getError() != null) {
+                    throw loader.getError();
+                }
+            }
+            return System.currentTimeMillis() - start;
+        }
+        finally {
+            for (LoadDataLoader<?> loader : loaders) {
+                JDBCHelper.closeQuietly(loader.getDatabase().getConnection());
+            }
+        }
+    }
+
+    protected static Database truncate(ConnectionInfo connInfo) throws SQLException {
+        Database db = open(connInfo);
+        new PropertyDAO().truncate(db);
+        new NodeDAO().truncate(db);
+        db.getConnection().commit();
+        return db;
+    }
+
+    protected static Database open(ConnectionInfo connInfo) throws SQLException {
+        Connection dbConn = JDBCHelper.getDatabaseConnection(connInfo);
+        dbConn.setAutoCommit(false);
+        return new Database(dbConn, connInfo);
+    }
+
+    protected static void report(String label, int nNodes, long millis) {
+        System.out.println(
+            String.format(
+                "%-30s: %.2f seconds, %.0f nodes/sec",
+                label,
+                millis * 0.001,
+                millis > 0 ? nNodes / (millis * 0.001) : 0.0
+            )
+        );
+    }
+}
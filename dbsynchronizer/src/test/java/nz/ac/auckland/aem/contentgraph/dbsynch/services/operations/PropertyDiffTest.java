@@ -0,0 +1,55 @@
+package nz.ac.auckland.aem.contentgraph.dbsynch.services.operations;
+
+import junit.framework.TestCase;
+import nz.ac.auckland.aem.contentgraph.dbsynch.services.dto.PropertyDTO;
+
+import java.util.Arrays;
+
+public class PropertyDiffTest extends TestCase {
+
+    public void testOnlyChangedRowsAreWritten() throws Exception {
+        PropertyDiff diff = new PropertyDiff(
+            Arrays.asList(property("jcr:title", "Old", 1L), property("tags", "a", 1L), property("tags", "b", 1L)),
+            Arrays.asList(property("jcr:title", "New", 1L), property("tags", "b", 1L), property("tags", "a", 1L)),
+            1L
+        );
+
+        assertEquals(2, diff.getUnchanged());
+        assertEquals(1, diff.getInserts().size());
+        assertEquals("New", diff.getInserts().get(0).getValue());
+        assertEquals(1, diff.getDeletes().size());
+        assertEquals("Old", diff.getDeletes().get(0).getValue());
+    }
+
+    public void testRepeatedValuesAreCounted() throws Exception {
+        PropertyDiff diff = new PropertyDiff(
+            Arrays.asList(property("tags", "a", 1L), property("tags", "a", 1L)),
+            Arrays.asList(property("tags", "a", 1L)),
+            1L
+        );
+
+        assertEquals(1, diff.getUnchanged());
+        assertEquals(0, diff.getInserts().size());
+        assertEquals(1, diff.getDeletes().size());
+    }
+
+    public void testRowsOfAnotherNodeAreRemoved() throws Exception {
+        PropertyDiff diff = new PropertyDiff(
+            Arrays.asList(property("jcr:title", "Title", 7L), property("hidden", null, 1L)),
+            Arrays.asList(property("jcr:title", "Title", 1L), property("hidden", "", 1L)),
+            1L
+        );
+
+        assertEquals(0, diff.getUnchanged());
+        assertEquals(2, diff.getInserts().size());
+        assertEquals(2, diff.getDeletes().size());
+    }
+
+    protected PropertyDTO property(String name, String value, Long nodeId) {
+        PropertyDTO property = new PropertyDTO();
+        property.setName(name);
+        property.setValue(value);
+        property.setNodeId(nodeId);
+        return property;
+    }
+}